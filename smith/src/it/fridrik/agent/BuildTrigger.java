@@ -0,0 +1,158 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Checks the marker file a build touches when it completes. Each period costs
+ * a single stat: only when the marker changes the agent looks for the changed
+ * classes, reading the change list written by the build if it is fresh, or
+ * walking the watched folders once otherwise. The change list holds one path
+ * per line, absolute or relative to the classes folder, of the class files and
+ * jars the build has written; blank lines and lines starting with # are
+ * ignored
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+class BuildTrigger implements Runnable {
+
+	private static final Logger log = Logger.getLogger(BuildTrigger.class
+			.getName());
+
+	private final Smith smith;
+	private final File marker;
+	private final File changeList;
+	private long lastBuild;
+	private boolean started;
+
+	/**
+	 * Creates a new trigger
+	 * 
+	 * @param smith
+	 *          the agent to notify
+	 * @param marker
+	 *          the absolute path of the marker file
+	 * @param changeList
+	 *          the absolute path of the change list, null to always walk the
+	 *          watched folders
+	 */
+	BuildTrigger(Smith smith, String marker, String changeList) {
+		this.smith = smith;
+		this.marker = new File(marker);
+		this.changeList = changeList != null ? new File(changeList) : null;
+	}
+
+	/**
+	 * The first run walks the watched folders to learn their current state.
+	 * Later runs do nothing until the marker changes. A missing marker, e.g.
+	 * while a clean build is running, is ignored
+	 */
+	public synchronized void run() {
+		long modified = marker.lastModified();
+		if (!started) {
+			started = true;
+			lastBuild = modified;
+			smith.checkFolders();
+			return;
+		}
+		if (modified == 0L || modified == lastBuild) {
+			return;
+		}
+
+		long previousBuild = lastBuild;
+		lastBuild = modified;
+		List<String> changes = readChangeList(previousBuild);
+		if (changes != null) {
+			smith.redefineFiles(changes);
+		} else {
+			smith.checkFolders();
+		}
+	}
+
+	/**
+	 * The path of the marker file
+	 * 
+	 * @return the absolute path
+	 */
+	String getMarker() {
+		return marker.getPath();
+	}
+
+	/**
+	 * Tells whether another trigger watches the same marker and change list
+	 * 
+	 * @param other
+	 *          the other trigger, may be null
+	 * @return true if both triggers watch the same files
+	 */
+	boolean isSameBuild(BuildTrigger other) {
+		return other != null
+				&& marker.equals(other.marker)
+				&& (changeList == null ? other.changeList == null : changeList
+						.equals(other.changeList));
+	}
+
+	/**
+	 * Reads the change list, provided it has been written after the previous
+	 * build completed
+	 * 
+	 * @param previousBuild
+	 *          the last modified time of the marker at the previous build
+	 * @return the changed paths, null if the change list is missing or stale
+	 */
+	private List<String> readChangeList(long previousBuild) {
+		if (changeList == null || changeList.lastModified() < previousBuild) {
+			return null;
+		}
+
+		List<String> changes = new ArrayList<String>();
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(changeList));
+			try {
+				for (String line = reader.readLine(); line != null; line = reader
+						.readLine()) {
+					line = line.trim();
+					if (line.length() > 0 && !line.startsWith("#")) {
+						changes.add(line);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Unable to read change list " + changeList
+					+ ", checking the folders instead", e);
+			return null;
+		}
+		return changes;
+	}
+
+	@Override
+	public String toString() {
+		return marker.getPath();
+	}
+
+}
@@ -0,0 +1,520 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * ChangeJournal is an append-only ring of changed classes, memory mapped from
+ * a file on local disk, through which a single {@link SmithWatcher} feeds the
+ * agents of every jvm on the host. The file is made of a header and a data
+ * area:
+ * <ul>
+ * <li>the header holds a magic number, the size of the data area, the
+ * position reserved by the writer and the position published by the writer.
+ * Positions grow forever, the offset in the data area being the position
+ * modulo its size</li>
+ * <li>the data area holds the records, 8 bytes aligned: an int length, an int
+ * kind, the long position of the record, the long time the change has been
+ * detected, the int hash (CRC32) of the class bytes, the class name (a short
+ * length and UTF-8 bytes), an int length and the class bytes. A record never
+ * wraps: the writer fills the end of the area with a padding record, or
+ * leaves less than a record header, and starts again from offset 0</li>
+ * </ul>
+ * The writer reserves the space of a whole batch, writes its records and
+ * publishes the batch at once, so readers see all of its classes or none.
+ * Readers start from the position published when they open the journal, or
+ * from its beginning, and keep up by polling it, a single read of the mapped
+ * header. A reader left behind by more than the size of the data area loses
+ * the records overwritten in the meantime and skips to the latest batch; a
+ * record being overwritten while read is detected through the reserved
+ * position and the hash. Since the mapped file is shared with another
+ * process, nothing orders the writes of the records before the write of the
+ * published position: a record that does not match its hash, and has not
+ * been overwritten, is read again at the next poll instead of being skipped.
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class ChangeJournal {
+
+	/** Default size of the data area */
+	public static final int DEFAULT_SIZE = 16 * 1024 * 1024;
+
+	private static final int MAGIC = 0x534d4a31;
+	private static final int HEADER = 64;
+	private static final int CAPACITY_OFFSET = 8;
+	private static final int RESERVED_OFFSET = 16;
+	private static final int PUBLISHED_OFFSET = 24;
+	private static final int RECORD_HEADER = 16;
+	private static final int KIND_CLASS = 1;
+	private static final int KIND_PADDING = 2;
+	private static final int MAX_RETRIES = 3;
+
+	private static final Logger log = Logger.getLogger(ChangeJournal.class
+			.getName());
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer buffer;
+	private final FileLock lock;
+	private final int capacity;
+	private long position;
+	private long lost;
+	private int retries;
+
+	private ChangeJournal(File file, RandomAccessFile raf,
+			MappedByteBuffer buffer, FileLock lock, int capacity, long position) {
+		this.file = file;
+		this.raf = raf;
+		this.buffer = buffer;
+		this.lock = lock;
+		this.capacity = capacity;
+		this.position = position;
+	}
+
+	/**
+	 * Creates the journal, replacing any previous content. A journal has a
+	 * single writer: the file stays locked until the writer is closed
+	 * 
+	 * @param file
+	 *          the journal file
+	 * @param size
+	 *          the size of the data area, rounded down to a multiple of 8
+	 * @return the journal, open for writing
+	 * @throws IOException
+	 *           if the journal cannot be created or another writer holds it
+	 */
+	public static ChangeJournal create(File file, int size) throws IOException {
+		if (file.exists()) {
+			retire(file);
+		}
+
+		int capacity = Math.max(4096, size) & ~7;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileLock lock = raf.getChannel().tryLock();
+			if (lock == null) {
+				throw new IOException("Journal " + file + " is already being written");
+			}
+			raf.setLength(HEADER + capacity);
+			MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, HEADER + capacity);
+			buffer.putInt(0, 0);
+			buffer.putInt(CAPACITY_OFFSET, capacity);
+			buffer.putLong(RESERVED_OFFSET, 0);
+			buffer.putLong(PUBLISHED_OFFSET, 0);
+			buffer.putInt(0, MAGIC);
+			return new ChangeJournal(file, raf, buffer, lock, capacity, 0);
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens an existing journal for reading, from the latest published batch
+	 * 
+	 * @param file
+	 *          the journal file
+	 * @return the journal, open for reading
+	 * @throws IOException
+	 *           if the journal does not exist or is not valid
+	 */
+	public static ChangeJournal open(File file) throws IOException {
+		return open(file, false);
+	}
+
+	/**
+	 * Opens an existing journal for reading
+	 * 
+	 * @param file
+	 *          the journal file
+	 * @param fromStart
+	 *          true to read every batch published so far, as a reader replacing
+	 *          a retired journal does, false to start from the latest one
+	 * @return the journal, open for reading
+	 * @throws IOException
+	 *           if the journal does not exist or is not valid
+	 */
+	public static ChangeJournal open(File file, boolean fromStart)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < HEADER) {
+				throw new IOException(file + " is not a journal");
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			int capacity = buffer.getInt(CAPACITY_OFFSET);
+			if (buffer.getInt(0) != MAGIC || capacity <= 0
+					|| HEADER + (long) capacity > raf.length()) {
+				throw new IOException(file + " is not a journal");
+			}
+			return new ChangeJournal(file, raf, buffer, null, capacity,
+					fromStart ? 0 : buffer.getLong(PUBLISHED_OFFSET));
+		} catch (IOException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Marks a previous journal as retired, so that its readers open the new
+	 * one, and deletes it. The file keeps existing for the readers that have
+	 * it mapped
+	 */
+	private static void retire(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileLock lock = raf.getChannel().tryLock();
+			if (lock == null) {
+				throw new IOException("Journal " + file + " is already being written");
+			}
+			if (raf.length() >= HEADER) {
+				raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER)
+						.putInt(0, 0);
+			}
+			lock.release();
+		} finally {
+			raf.close();
+		}
+		if (!file.delete()) {
+			throw new IOException("Cannot replace journal " + file);
+		}
+	}
+
+	/**
+	 * Tells whether the writer has replaced this journal with a new one, which
+	 * readers have to open again
+	 * 
+	 * @return true if the journal is no longer written
+	 */
+	public boolean isRetired() {
+		return buffer.getInt(0) != MAGIC;
+	}
+
+	/**
+	 * Appends a batch of classes and publishes it. Classes bigger than a
+	 * quarter of the data area are left out, and so are the classes that would
+	 * make the batch overwrite its own start: a batch is read as a whole, so it
+	 * cannot be bigger than the data area
+	 * 
+	 * @param entries
+	 *          the changed classes
+	 * @return the number of classes published
+	 */
+	public synchronized int publish(List<Entry> entries) {
+		List<byte[]> names = new ArrayList<byte[]>(entries.size());
+		long end = position;
+		int published = 0;
+		int overflow = 0;
+		for (Entry entry : entries) {
+			byte[] name = toUtf8(entry.getClassName());
+			int length = recordLength(name, entry.getBytes());
+			if (length > capacity / 4) {
+				log.warning("Smith: " + entry.getClassName() + " ("
+						+ entry.getBytes().length
+						+ " bytes) is too big for the journal " + file
+						+ ", not published");
+				names.add(null);
+				continue;
+			}
+			long next = align(end, length) + length;
+			if (next - position > capacity) {
+				names.add(null);
+				overflow++;
+				continue;
+			}
+			end = next;
+			names.add(name);
+			published++;
+		}
+		if (overflow > 0) {
+			log.warning("Smith: " + overflow + " classes do not fit in the journal "
+					+ file + " along with the rest of their batch, not published");
+		}
+		if (published == 0) {
+			return 0;
+		}
+
+		buffer.putLong(RESERVED_OFFSET, end);
+		for (int i = 0; i < entries.size(); i++) {
+			byte[] name = names.get(i);
+			if (name != null) {
+				write(entries.get(i), name);
+			}
+		}
+		buffer.putLong(PUBLISHED_OFFSET, position);
+		return published;
+	}
+
+	/**
+	 * Reads the batches published since the previous poll, all of them or
+	 * none: if a record is overwritten while being read, everything read by
+	 * this poll is thrown away, and if a record is not visible yet, it is read
+	 * again with the rest at the next poll. The batches published before the
+	 * journal has been retired can still be read
+	 * 
+	 * @return the changed classes, in the order they have been published
+	 */
+	public synchronized List<Entry> poll() {
+		long published = buffer.getLong(PUBLISHED_OFFSET);
+		if (published == position) {
+			return Collections.emptyList();
+		}
+		if (published < position || published - position > capacity) {
+			skipTo(published);
+			return Collections.emptyList();
+		}
+
+		long start = position;
+		List<Entry> entries = new ArrayList<Entry>();
+		while (position < published) {
+			int offset = offset(position);
+			if (capacity - offset < RECORD_HEADER) {
+				position += capacity - offset;
+				continue;
+			}
+			int length = buffer.getInt(HEADER + offset);
+			int kind = buffer.getInt(HEADER + offset + 4);
+			long recordPosition = buffer.getLong(HEADER + offset + 8);
+			boolean valid = recordPosition == position && length >= RECORD_HEADER
+					&& length <= capacity - offset;
+			Entry entry = null;
+			if (valid && kind == KIND_CLASS) {
+				entry = read(offset, length);
+				valid = entry != null;
+			}
+			if (buffer.getLong(RESERVED_OFFSET) - position > capacity) {
+				// overwritten while being read
+				position = start;
+				skipTo(buffer.getLong(PUBLISHED_OFFSET));
+				return Collections.emptyList();
+			}
+			if (!valid) {
+				// not visible yet to this process, unless it never will be
+				long corrupted = position;
+				position = start;
+				if (++retries >= MAX_RETRIES) {
+					log.warning("Smith: corrupted record in journal " + file
+							+ " at " + corrupted);
+					skipTo(published);
+				}
+				return Collections.emptyList();
+			}
+			retries = 0;
+			if (entry != null) {
+				entries.add(entry);
+			}
+			position += length;
+		}
+		return entries;
+	}
+
+	/**
+	 * The number of records lost because this reader fell behind the writer
+	 * 
+	 * @return the number of skipped bytes of the data area
+	 */
+	public synchronized long getLost() {
+		return lost;
+	}
+
+	/**
+	 * The journal file
+	 * 
+	 * @return the file
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Closes the journal, releasing the writer lock if held
+	 */
+	public void close() {
+		try {
+			if (lock != null) {
+				lock.release();
+			}
+			raf.close();
+		} catch (IOException e) {
+			// nothing to do
+		}
+	}
+
+	private void write(Entry entry, byte[] name) {
+		byte[] bytes = entry.getBytes();
+		int length = recordLength(name, bytes);
+		int offset = offset(position);
+		if (capacity - offset < length) {
+			if (capacity - offset >= RECORD_HEADER) {
+				putHeader(offset, capacity - offset, KIND_PADDING);
+			}
+			position += capacity - offset;
+			offset = 0;
+		}
+
+		ByteBuffer record = buffer.duplicate();
+		record.position(HEADER + offset + RECORD_HEADER);
+		record.putLong(entry.getDetectedAt());
+		record.putInt(entry.getHash());
+		record.putShort((short) name.length);
+		record.put(name);
+		record.putInt(bytes.length);
+		record.put(bytes);
+		putHeader(offset, length, KIND_CLASS);
+		position += length;
+	}
+
+	private void putHeader(int offset, int length, int kind) {
+		buffer.putInt(HEADER + offset, length);
+		buffer.putInt(HEADER + offset + 4, kind);
+		buffer.putLong(HEADER + offset + 8, position);
+	}
+
+	private Entry read(int offset, int length) {
+		ByteBuffer record = buffer.duplicate();
+		record.position(HEADER + offset + RECORD_HEADER);
+		record.limit(HEADER + offset + length);
+		try {
+			long detectedAt = record.getLong();
+			int hash = record.getInt();
+			byte[] name = new byte[record.getShort() & 0xffff];
+			record.get(name);
+			int size = record.getInt();
+			if (size < 0 || size > record.remaining()) {
+				return null;
+			}
+			byte[] bytes = new byte[size];
+			record.get(bytes);
+			if (hash(bytes) != hash) {
+				return null;
+			}
+			return new Entry(new String(name, "UTF-8"), bytes, detectedAt);
+		} catch (RuntimeException e) {
+			// a record overwritten while being read
+			return null;
+		} catch (UnsupportedEncodingException e) {
+			return null;
+		}
+	}
+
+	private void skipTo(long published) {
+		lost += published - position;
+		position = published;
+		retries = 0;
+	}
+
+	private int offset(long position) {
+		return (int) (position % capacity);
+	}
+
+	/**
+	 * The position a record starts at, given the end of the previous one
+	 */
+	private long align(long position, int length) {
+		int offset = offset(position);
+		return capacity - offset < length ? position + capacity - offset
+				: position;
+	}
+
+	private static int recordLength(byte[] name, byte[] bytes) {
+		int length = RECORD_HEADER + 8 + 4 + 2 + name.length + 4 + bytes.length;
+		return (length + 7) & ~7;
+	}
+
+	private static byte[] toUtf8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Hashes class bytes the way the journal does
+	 * 
+	 * @param bytes
+	 *          the class bytes
+	 * @return the CRC32 of the bytes
+	 */
+	public static int hash(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * A changed class
+	 */
+	public static final class Entry {
+
+		private final String className;
+		private final byte[] bytes;
+		private final int hash;
+		private final long detectedAt;
+
+		/**
+		 * Creates a new entry
+		 * 
+		 * @param className
+		 *          the fully qualified class name
+		 * @param bytes
+		 *          the new class bytes
+		 * @param detectedAt
+		 *          the time the change has been detected
+		 */
+		public Entry(String className, byte[] bytes, long detectedAt) {
+			this.className = className;
+			this.bytes = bytes;
+			this.hash = hash(bytes);
+			this.detectedAt = detectedAt;
+		}
+
+		public String getClassName() {
+			return className;
+		}
+
+		public byte[] getBytes() {
+			return bytes;
+		}
+
+		public int getHash() {
+			return hash;
+		}
+
+		public long getDetectedAt() {
+			return detectedAt;
+		}
+
+	}
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import it.fridrik.filemonitor.FileTree;
+import it.fridrik.filemonitor.LocalFileTree;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * ClassBytesLoader is the jvm-wide stage reading the bytes of changed classes,
+ * shared by every Smith agent. Reads run on a small pool of I/O threads (see
+ * {@link #THREADS_PROPERTY}), so that the agent can read the next chunk of
+ * classes while the current one is being redefined. Files of known size are
+ * read in one shot into an array of the exact size; streams of unknown size
+ * go through a buffer pooled per thread
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class ClassBytesLoader {
+
+	/** System property holding the number of I/O threads */
+	public static final String THREADS_PROPERTY = "smith.io.threads";
+
+	private static final int DEFAULT_THREADS = 4;
+
+	/** Size of the pooled buffers */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Pooled buffers grown beyond this size are not kept */
+	private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+	private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+
+		@Override
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+
+	};
+
+	private static ClassBytesLoader instance;
+
+	/**
+	 * Gets the loader shared by all the agents of this jvm
+	 * 
+	 * @return the ClassBytesLoader instance
+	 */
+	public static synchronized ClassBytesLoader getInstance() {
+		if (instance == null) {
+			instance = new ClassBytesLoader(Integer.getInteger(THREADS_PROPERTY,
+					DEFAULT_THREADS).intValue());
+		}
+		return instance;
+	}
+
+	private final ExecutorService workers;
+
+	/**
+	 * Creates a new loader
+	 * 
+	 * @param threads
+	 *          the number of I/O threads
+	 */
+	ClassBytesLoader(int threads) {
+		this.workers = Executors.newFixedThreadPool(Math.max(1, threads),
+				new ScanScheduler.DaemonThreadFactory("Smith I/O"));
+	}
+
+	/**
+	 * Starts the specified reads, in parallel. A single read is run in the
+	 * calling thread, as handing it to the pool would only add latency
+	 * 
+	 * @param reads
+	 *          the reads to run
+	 * @return the pending results, in the same order as the reads
+	 */
+	public List<Future<byte[]>> load(List<Callable<byte[]>> reads) {
+		List<Future<byte[]>> results = new ArrayList<Future<byte[]>>(reads.size());
+		if (reads.size() == 1) {
+			FutureTask<byte[]> task = new FutureTask<byte[]>(reads.get(0));
+			task.run();
+			results.add(task);
+			return results;
+		}
+
+		for (Callable<byte[]> read : reads) {
+			results.add(workers.submit(charged(read)));
+		}
+		return results;
+	}
+
+	/**
+	 * Charges a read run by the pool to the {@link ResourceGovernor}
+	 * 
+	 * @param read
+	 *          the read to run
+	 * @return the measured read
+	 */
+	private static Callable<byte[]> charged(final Callable<byte[]> read) {
+		return new Callable<byte[]>() {
+
+			public byte[] call() throws Exception {
+				ResourceGovernor governor = ResourceGovernor.getInstance();
+				ResourceGovernor.Sample sample = governor.start();
+				try {
+					return read.call();
+				} finally {
+					governor.charge(sample);
+				}
+			}
+
+		};
+	}
+
+	/**
+	 * Reads a whole file into an array of its size
+	 * 
+	 * @param file
+	 *          the file to read
+	 * @return the bytes of the file
+	 * @throws IOException
+	 *           if the file cannot be read
+	 */
+	public static byte[] read(File file) throws IOException {
+		FileInputStream is = new FileInputStream(file);
+		try {
+			return read(is, is.getChannel().size());
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Reads a whole file of a {@link FileTree}. Files of the platform file
+	 * system are read as by {@link #read(File)}
+	 * 
+	 * @param tree
+	 *          the file system
+	 * @param path
+	 *          the absolute path of the file
+	 * @return the bytes of the file
+	 * @throws IOException
+	 *           if the file cannot be read
+	 */
+	public static byte[] read(FileTree tree, String path) throws IOException {
+		if (tree instanceof LocalFileTree) {
+			return read(new File(path));
+		}
+		InputStream is = tree.open(path);
+		try {
+			return read(is, -1);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Reads a whole stream. The stream is not closed
+	 * 
+	 * @param is
+	 *          the stream to read
+	 * @param size
+	 *          the expected number of bytes, -1 if unknown
+	 * @return the bytes read
+	 * @throws IOException
+	 *           if the stream cannot be read
+	 */
+	public static byte[] read(InputStream is, long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Class file too big: " + size + " bytes");
+		}
+		if (size < 0) {
+			return readUnsized(is);
+		}
+
+		byte[] bytes = new byte[(int) size];
+		int read = 0;
+		while (read < bytes.length) {
+			int count = is.read(bytes, read, bytes.length - read);
+			if (count == -1) {
+				throw new EOFException("Expected " + size + " bytes, found " + read);
+			}
+			read += count;
+		}
+		return bytes;
+	}
+
+	private static byte[] readUnsized(InputStream is) throws IOException {
+		byte[] buffer = buffers.get();
+		int read = 0;
+		for (int count = is.read(buffer); count != -1; count = is.read(buffer,
+				read, buffer.length - read)) {
+			read += count;
+			if (read == buffer.length) {
+				byte[] bigger = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, bigger, 0, read);
+				buffer = bigger;
+				if (buffer.length <= MAX_POOLED_BUFFER_SIZE) {
+					buffers.set(buffer);
+				}
+			}
+		}
+
+		byte[] bytes = new byte[read];
+		System.arraycopy(buffer, 0, bytes, 0, read);
+		return bytes;
+	}
+
+}
@@ -0,0 +1,218 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.lang.instrument.ClassDefinition;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ClassDiff compares the changed class files with the versions the jvm is
+ * running, so that redefinitions which would not change the running code are
+ * left out: every redefinition throws away the compiled code of the classes
+ * involved, sending hot paths back to the interpreter. A change is:
+ * <ul>
+ * <li>a no-op, when the bytes are the same as the running ones: it is
+ * dropped</li>
+ * <li>debug-only, when only debug info (line numbers, local variables, source
+ * file) or the layout of the constant pool changed: it is dropped in
+ * {@link SmithArgs#DIFF_SKIP}, while in {@link SmithArgs#DIFF_LAZY} it is
+ * kept aside and redefined once the agent has not redefined anything for a
+ * while, unless a newer version comes first</li>
+ * <li>a code change otherwise, redefined as usual</li>
+ * </ul>
+ * The running versions are known for the classes loaded or redefined since
+ * the comparison has been enabled: other classes are always redefined the
+ * first time they change.
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+class ClassDiff {
+
+	/** Time without redefinitions after which debug-only changes are applied */
+	static final long QUIET_MILLIS = 60000;
+
+	private final Map<String, ClassDigest> running;
+	private final Map<Class<?>, ClassDefinition> deferred;
+	private volatile String policy;
+	private long lastRedefined;
+	private long avoided;
+
+	/**
+	 * Creates a new class comparison
+	 * 
+	 * @param policy
+	 *          {@link SmithArgs#DIFF_OFF}, {@link SmithArgs#DIFF_SKIP} or
+	 *          {@link SmithArgs#DIFF_LAZY}
+	 */
+	ClassDiff(String policy) {
+		this.running = new HashMap<String, ClassDigest>();
+		this.deferred = new LinkedHashMap<Class<?>, ClassDefinition>();
+		this.lastRedefined = System.currentTimeMillis();
+		setPolicy(policy);
+	}
+
+	/**
+	 * Changes what is done with debug-only changes. Turning the comparison off
+	 * forgets the running versions and the deferred changes
+	 * 
+	 * @param policy
+	 *          {@link SmithArgs#DIFF_OFF}, {@link SmithArgs#DIFF_SKIP} or
+	 *          {@link SmithArgs#DIFF_LAZY}
+	 */
+	synchronized void setPolicy(String policy) {
+		this.policy = policy;
+		if (!isEnabled()) {
+			running.clear();
+			deferred.clear();
+		} else if (SmithArgs.DIFF_SKIP.equals(policy)) {
+			deferred.clear();
+		}
+	}
+
+	boolean isEnabled() {
+		return !SmithArgs.DIFF_OFF.equals(policy);
+	}
+
+	/**
+	 * Records the version a class has been loaded with
+	 * 
+	 * @param className
+	 *          the fully qualified class name
+	 * @param classBytes
+	 *          the bytes of the class
+	 */
+	void loaded(String className, byte[] classBytes) {
+		if (!isEnabled()) {
+			return;
+		}
+		ClassDigest digest = ClassDigest.of(classBytes);
+		synchronized (this) {
+			running.put(className, digest);
+		}
+	}
+
+	/**
+	 * Records the versions just applied to the jvm
+	 * 
+	 * @param definitions
+	 *          the classes redefined, with their new bytes
+	 */
+	void applied(ClassDefinition[] definitions) {
+		if (!isEnabled()) {
+			return;
+		}
+		ClassDigest[] digests = new ClassDigest[definitions.length];
+		for (int i = 0; i < definitions.length; i++) {
+			digests[i] = ClassDigest.of(definitions[i].getDefinitionClassFile());
+		}
+		synchronized (this) {
+			for (int i = 0; i < definitions.length; i++) {
+				Class<?> clazz = definitions[i].getDefinitionClass();
+				running.put(clazz.getName(), digests[i]);
+				deferred.remove(clazz);
+			}
+			lastRedefined = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Leaves out of a set of definitions the ones not changing the running
+	 * code
+	 * 
+	 * @param definitions
+	 *          the classes to redefine, with their new bytes
+	 * @return the definitions to redefine
+	 */
+	List<ClassDefinition> select(List<ClassDefinition> definitions) {
+		if (!isEnabled() || definitions.isEmpty()) {
+			return definitions;
+		}
+		ClassDigest[] digests = new ClassDigest[definitions.size()];
+		for (int i = 0; i < digests.length; i++) {
+			digests[i] = ClassDigest.of(definitions.get(i).getDefinitionClassFile());
+		}
+
+		List<ClassDefinition> selected = new ArrayList<ClassDefinition>(
+				definitions.size());
+		synchronized (this) {
+			boolean lazy = SmithArgs.DIFF_LAZY.equals(policy);
+			for (int i = 0; i < digests.length; i++) {
+				ClassDefinition definition = definitions.get(i);
+				Class<?> clazz = definition.getDefinitionClass();
+				ClassDigest current = running.get(clazz.getName());
+				if (current == null || !current.sameCode(digests[i])) {
+					selected.add(definition);
+					continue;
+				}
+
+				avoided++;
+				if (lazy && !current.sameBytes(digests[i])) {
+					deferred.put(clazz, definition);
+				} else {
+					deferred.remove(clazz);
+				}
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Takes the debug-only changes kept aside, if the agent has been quiet for
+	 * {@link #QUIET_MILLIS}
+	 * 
+	 * @param force
+	 *          true to take them anyway
+	 * @return the definitions to redefine, possibly empty
+	 */
+	synchronized List<ClassDefinition> takeDeferred(boolean force) {
+		if (deferred.isEmpty()
+				|| (!force && System.currentTimeMillis() - lastRedefined < QUIET_MILLIS)) {
+			return new ArrayList<ClassDefinition>(0);
+		}
+		List<ClassDefinition> definitions = new ArrayList<ClassDefinition>(
+				deferred.values());
+		deferred.clear();
+		avoided -= definitions.size();
+		return definitions;
+	}
+
+	/**
+	 * The number of redefinitions left out because they would not change the
+	 * running code, each of which would have thrown away the compiled code of
+	 * its class
+	 * 
+	 * @return the redefinitions avoided
+	 */
+	synchronized long getAvoided() {
+		return avoided;
+	}
+
+	/**
+	 * The number of debug-only changes waiting for a quiet moment
+	 * 
+	 * @return the deferred classes
+	 */
+	synchronized int getDeferred() {
+		return deferred.size();
+	}
+
+}
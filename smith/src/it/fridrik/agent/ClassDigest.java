@@ -0,0 +1,622 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * ClassDigest fingerprints a class file twice: as it is, and as the jvm runs
+ * it. The second fingerprint leaves out the debug attributes (source file,
+ * line numbers, local variables) and the layout of the constant pool, every
+ * reference to the pool being replaced by the constant it points to, so that
+ * two compilations of the same code match even if the pool has been
+ * renumbered. Class files that cannot be parsed, or that carry attributes
+ * holding pool indexes in an unknown layout, are fingerprinted with their
+ * whole pool, in order: at worst a change is redefined when it could have
+ * been skipped, never the other way round.
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+final class ClassDigest {
+
+	private static final Set<String> DEBUG_ATTRIBUTES = new HashSet<String>(
+			Arrays.asList("SourceFile", "SourceDebugExtension", "LineNumberTable",
+					"LocalVariableTable", "LocalVariableTypeTable",
+					"CharacterRangeTable"));
+
+	/** Operand bytes of the opcodes up to jsr_w, -1 for variable lengths */
+	private static final byte[] OPERANDS = new byte[0xca];
+
+	static {
+		OPERANDS[0x10] = 1; // bipush
+		OPERANDS[0x11] = 2; // sipush
+		OPERANDS[0x12] = 1; // ldc
+		OPERANDS[0x13] = 2; // ldc_w
+		OPERANDS[0x14] = 2; // ldc2_w
+		for (int op = 0x15; op <= 0x19; op++) {
+			OPERANDS[op] = 1; // loads
+		}
+		for (int op = 0x36; op <= 0x3a; op++) {
+			OPERANDS[op] = 1; // stores
+		}
+		OPERANDS[0x84] = 2; // iinc
+		for (int op = 0x99; op <= 0xa8; op++) {
+			OPERANDS[op] = 2; // branches, goto, jsr
+		}
+		OPERANDS[0xa9] = 1; // ret
+		OPERANDS[0xaa] = -1; // tableswitch
+		OPERANDS[0xab] = -1; // lookupswitch
+		for (int op = 0xb2; op <= 0xb8; op++) {
+			OPERANDS[op] = 2; // fields and invocations
+		}
+		OPERANDS[0xb9] = 4; // invokeinterface
+		OPERANDS[0xba] = 4; // invokedynamic
+		OPERANDS[0xbb] = 2; // new
+		OPERANDS[0xbc] = 1; // newarray
+		OPERANDS[0xbd] = 2; // anewarray
+		OPERANDS[0xc0] = 2; // checkcast
+		OPERANDS[0xc1] = 2; // instanceof
+		OPERANDS[0xc4] = -1; // wide
+		OPERANDS[0xc5] = 3; // multianewarray
+		OPERANDS[0xc6] = 2; // ifnull
+		OPERANDS[0xc7] = 2; // ifnonnull
+		OPERANDS[0xc8] = 4; // goto_w
+		OPERANDS[0xc9] = 4; // jsr_w
+	}
+
+	private final long code;
+	private final long bytes;
+
+	private ClassDigest(long code, long bytes) {
+		this.code = code;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Fingerprints a class file
+	 * 
+	 * @param classBytes
+	 *          the class file
+	 * @return its digest
+	 */
+	static ClassDigest of(byte[] classBytes) {
+		long bytes = hash(classBytes);
+		byte[] canonical;
+		try {
+			canonical = new Canonicalizer(classBytes).canonicalize();
+		} catch (RuntimeException e) {
+			// not a class file we can read: only identical bytes will match
+			canonical = null;
+		} catch (IOException e) {
+			canonical = null;
+		}
+		return new ClassDigest(canonical != null ? hash(canonical) : ~bytes, bytes);
+	}
+
+	/**
+	 * Tells whether two class files run the same code, debug info aside
+	 * 
+	 * @param other
+	 *          the digest of the other class file
+	 * @return true if the jvm would run the same code
+	 */
+	boolean sameCode(ClassDigest other) {
+		return code == other.code;
+	}
+
+	/**
+	 * Tells whether two class files are identical
+	 * 
+	 * @param other
+	 *          the digest of the other class file
+	 * @return true if the bytes are the same
+	 */
+	boolean sameBytes(ClassDigest other) {
+		return bytes == other.bytes && code == other.code;
+	}
+
+	private static long hash(byte[] data) {
+		try {
+			byte[] sha = MessageDigest.getInstance("SHA-1").digest(data);
+			long hash = 0;
+			for (int i = 0; i < 8; i++) {
+				hash = (hash << 8) | (sha[i] & 0xff);
+			}
+			return hash;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Rewrites a class file in a form independent of the order of its constant
+	 * pool and free of debug attributes
+	 */
+	private static final class Canonicalizer {
+
+		private final byte[] b;
+		private final ByteArrayOutputStream buffer;
+		private final DataOutputStream out;
+		private int pos;
+		private int[] offsets;
+		private boolean wholePool;
+
+		Canonicalizer(byte[] classBytes) {
+			this.b = classBytes;
+			this.buffer = new ByteArrayOutputStream(classBytes.length);
+			this.out = new DataOutputStream(buffer);
+		}
+
+		byte[] canonicalize() throws IOException {
+			if (u4() != 0xcafebabe) {
+				throw new IllegalArgumentException("not a class file");
+			}
+			out.writeInt(u4()); // minor and major version
+			readPool();
+
+			out.writeShort(u2()); // access flags
+			constant(u2()); // this class
+			constant(u2()); // super class
+			int interfaces = u2();
+			out.writeShort(interfaces);
+			for (int i = 0; i < interfaces; i++) {
+				constant(u2());
+			}
+			for (int kind = 0; kind < 2; kind++) {
+				int members = u2();
+				out.writeShort(members);
+				for (int i = 0; i < members; i++) {
+					out.writeShort(u2()); // access flags
+					constant(u2()); // name
+					constant(u2()); // descriptor
+					attributes();
+				}
+			}
+			attributes();
+			if (pos != b.length) {
+				throw new IllegalArgumentException("trailing bytes");
+			}
+
+			if (wholePool) {
+				for (int i = 1; i < offsets.length; i++) {
+					if (offsets[i] != 0) {
+						out.writeShort(i);
+						constant(i);
+					}
+				}
+			}
+			out.flush();
+			return buffer.toByteArray();
+		}
+
+		private void readPool() {
+			int count = u2();
+			offsets = new int[count];
+			for (int i = 1; i < count; i++) {
+				offsets[i] = pos;
+				int tag = u1();
+				switch (tag) {
+				case 1: // Utf8
+					int length = u2();
+					pos += length;
+					break;
+				case 3: // Integer
+				case 4: // Float
+				case 9: // Fieldref
+				case 10: // Methodref
+				case 11: // InterfaceMethodref
+				case 12: // NameAndType
+				case 17: // Dynamic
+				case 18: // InvokeDynamic
+					pos += 4;
+					break;
+				case 5: // Long
+				case 6: // Double
+					pos += 8;
+					i++;
+					break;
+				case 7: // Class
+				case 8: // String
+				case 16: // MethodType
+				case 19: // Module
+				case 20: // Package
+					pos += 2;
+					break;
+				case 15: // MethodHandle
+					pos += 3;
+					break;
+				default:
+					throw new IllegalArgumentException("unknown constant tag " + tag);
+				}
+			}
+		}
+
+		/**
+		 * Writes a constant in place of its index, following its references
+		 */
+		private void constant(int index) throws IOException {
+			constant(index, 0);
+		}
+
+		private void constant(int index, int depth) throws IOException {
+			if (index == 0) {
+				out.writeByte(0);
+				return;
+			}
+			int offset = offsets[index];
+			if (offset == 0 || depth > 4) {
+				throw new IllegalArgumentException("bad constant " + index);
+			}
+			int tag = b[offset] & 0xff;
+			out.writeByte(tag);
+			switch (tag) {
+			case 1:
+				int length = at2(offset + 1);
+				out.writeShort(length);
+				out.write(b, offset + 3, length);
+				break;
+			case 3:
+			case 4:
+				out.write(b, offset + 1, 4);
+				break;
+			case 5:
+			case 6:
+				out.write(b, offset + 1, 8);
+				break;
+			case 7:
+			case 8:
+			case 16:
+			case 19:
+			case 20:
+				constant(at2(offset + 1), depth + 1);
+				break;
+			case 9:
+			case 10:
+			case 11:
+			case 12:
+				constant(at2(offset + 1), depth + 1);
+				constant(at2(offset + 3), depth + 1);
+				break;
+			case 15:
+				out.writeByte(b[offset + 1]);
+				constant(at2(offset + 2), depth + 1);
+				break;
+			case 17:
+			case 18:
+				// the index into the bootstrap methods, hashed resolved
+				out.writeShort(at2(offset + 1));
+				constant(at2(offset + 3), depth + 1);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown constant tag " + tag);
+			}
+		}
+
+		private String utf8(int index) {
+			int offset = offsets[index];
+			if (offset == 0 || b[offset] != 1) {
+				throw new IllegalArgumentException("bad name " + index);
+			}
+			try {
+				return new String(b, offset + 3, at2(offset + 1), "UTF-8");
+			} catch (java.io.UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private void attributes() throws IOException {
+			int count = u2();
+			for (int i = 0; i < count; i++) {
+				String name = utf8(u2());
+				int length = u4();
+				int end = pos + length;
+				if (DEBUG_ATTRIBUTES.contains(name)) {
+					pos = end;
+					continue;
+				}
+
+				out.writeUTF(name);
+				attribute(name, end);
+				if (pos != end) {
+					throw new IllegalArgumentException("bad attribute " + name);
+				}
+			}
+			out.writeUTF("");
+		}
+
+		private void attribute(String name, int end) throws IOException {
+			if ("Code".equals(name)) {
+				code();
+			} else if ("StackMapTable".equals(name)) {
+				stackMapTable();
+			} else if ("ConstantValue".equals(name) || "Signature".equals(name)
+					|| "NestHost".equals(name)) {
+				constant(u2());
+			} else if ("Exceptions".equals(name) || "NestMembers".equals(name)
+					|| "PermittedSubclasses".equals(name)) {
+				constants();
+			} else if ("InnerClasses".equals(name)) {
+				int classes = u2();
+				out.writeShort(classes);
+				for (int i = 0; i < classes; i++) {
+					constant(u2());
+					constant(u2());
+					constant(u2());
+					out.writeShort(u2());
+				}
+			} else if ("EnclosingMethod".equals(name)) {
+				constant(u2());
+				constant(u2());
+			} else if ("BootstrapMethods".equals(name)) {
+				int methods = u2();
+				out.writeShort(methods);
+				for (int i = 0; i < methods; i++) {
+					constant(u2());
+					constants();
+				}
+			} else if ("MethodParameters".equals(name)) {
+				int parameters = u1();
+				out.writeByte(parameters);
+				for (int i = 0; i < parameters; i++) {
+					constant(u2());
+					out.writeShort(u2());
+				}
+			} else if ("RuntimeVisibleAnnotations".equals(name)
+					|| "RuntimeInvisibleAnnotations".equals(name)) {
+				annotations();
+			} else if ("RuntimeVisibleParameterAnnotations".equals(name)
+					|| "RuntimeInvisibleParameterAnnotations".equals(name)) {
+				int parameters = u1();
+				out.writeByte(parameters);
+				for (int i = 0; i < parameters; i++) {
+					annotations();
+				}
+			} else if ("AnnotationDefault".equals(name)) {
+				elementValue();
+			} else if ("Record".equals(name)) {
+				int components = u2();
+				out.writeShort(components);
+				for (int i = 0; i < components; i++) {
+					constant(u2());
+					constant(u2());
+					attributes();
+				}
+			} else {
+				// unknown layout, maybe holding pool indexes
+				wholePool = true;
+				out.writeInt(end - pos);
+				out.write(b, pos, end - pos);
+				pos = end;
+			}
+		}
+
+		private void constants() throws IOException {
+			int count = u2();
+			out.writeShort(count);
+			for (int i = 0; i < count; i++) {
+				constant(u2());
+			}
+		}
+
+		private void code() throws IOException {
+			out.writeShort(u2()); // max stack
+			out.writeShort(u2()); // max locals
+			int length = u4();
+			int start = pos;
+			int end = start + length;
+			out.writeInt(length);
+			while (pos < end) {
+				int opcode = u1();
+				out.writeByte(opcode);
+				if (opcode >= OPERANDS.length) {
+					throw new IllegalArgumentException("unknown opcode " + opcode);
+				}
+				switch (opcode) {
+				case 0x12: // ldc
+					constant(u1());
+					break;
+				case 0x13: // ldc_w
+				case 0x14: // ldc2_w
+				case 0xb2: // getstatic
+				case 0xb3: // putstatic
+				case 0xb4: // getfield
+				case 0xb5: // putfield
+				case 0xb6: // invokevirtual
+				case 0xb7: // invokespecial
+				case 0xb8: // invokestatic
+				case 0xbb: // new
+				case 0xbd: // anewarray
+				case 0xc0: // checkcast
+				case 0xc1: // instanceof
+					constant(u2());
+					break;
+				case 0xb9: // invokeinterface
+				case 0xba: // invokedynamic
+					constant(u2());
+					out.writeShort(u2());
+					break;
+				case 0xc5: // multianewarray
+					constant(u2());
+					out.writeByte(u1());
+					break;
+				case 0xaa: // tableswitch
+				case 0xab: // lookupswitch
+					pos = start + ((pos - start + 3) & ~3);
+					int defaultOffset = u4();
+					int pairs;
+					if (opcode == 0xaa) {
+						int low = u4();
+						int high = u4();
+						pairs = (high - low + 1);
+						out.writeInt(low);
+					} else {
+						pairs = u4() * 2;
+					}
+					out.writeInt(defaultOffset);
+					if (pairs < 0 || pos + pairs * 4 > end) {
+						throw new IllegalArgumentException("bad switch");
+					}
+					copy(pairs * 4);
+					break;
+				case 0xc4: // wide
+					int widened = u1();
+					out.writeByte(widened);
+					copy(widened == 0x84 ? 4 : 2);
+					break;
+				default:
+					copy(OPERANDS[opcode]);
+				}
+			}
+			if (pos != end) {
+				throw new IllegalArgumentException("bad code length");
+			}
+
+			int handlers = u2();
+			out.writeShort(handlers);
+			for (int i = 0; i < handlers; i++) {
+				copy(6); // start, end, handler
+				constant(u2());
+			}
+			attributes();
+		}
+
+		private void stackMapTable() throws IOException {
+			int frames = u2();
+			out.writeShort(frames);
+			for (int i = 0; i < frames; i++) {
+				int type = u1();
+				out.writeByte(type);
+				if (type < 64) {
+					continue;
+				} else if (type < 128) {
+					verificationType();
+				} else if (type < 247) {
+					throw new IllegalArgumentException("reserved frame type " + type);
+				} else if (type == 247) {
+					out.writeShort(u2());
+					verificationType();
+				} else if (type < 252) {
+					out.writeShort(u2());
+				} else if (type < 255) {
+					out.writeShort(u2());
+					for (int j = 0; j < type - 251; j++) {
+						verificationType();
+					}
+				} else {
+					out.writeShort(u2());
+					for (int list = 0; list < 2; list++) {
+						int types = u2();
+						out.writeShort(types);
+						for (int j = 0; j < types; j++) {
+							verificationType();
+						}
+					}
+				}
+			}
+		}
+
+		private void verificationType() throws IOException {
+			int tag = u1();
+			out.writeByte(tag);
+			if (tag == 7) {
+				constant(u2());
+			} else if (tag == 8) {
+				out.writeShort(u2());
+			}
+		}
+
+		private void annotations() throws IOException {
+			int count = u2();
+			out.writeShort(count);
+			for (int i = 0; i < count; i++) {
+				annotation();
+			}
+		}
+
+		private void annotation() throws IOException {
+			constant(u2());
+			int pairs = u2();
+			out.writeShort(pairs);
+			for (int i = 0; i < pairs; i++) {
+				constant(u2());
+				elementValue();
+			}
+		}
+
+		private void elementValue() throws IOException {
+			int tag = u1();
+			out.writeByte(tag);
+			switch (tag) {
+			case 'e':
+				constant(u2());
+				constant(u2());
+				break;
+			case '@':
+				annotation();
+				break;
+			case '[':
+				int values = u2();
+				out.writeShort(values);
+				for (int i = 0; i < values; i++) {
+					elementValue();
+				}
+				break;
+			default:
+				// constants and classes
+				constant(u2());
+			}
+		}
+
+		private void copy(int length) throws IOException {
+			if (pos + length > b.length) {
+				throw new IllegalArgumentException("truncated class file");
+			}
+			out.write(b, pos, length);
+			pos += length;
+		}
+
+		private int u1() {
+			return b[pos++] & 0xff;
+		}
+
+		private int u2() {
+			int value = at2(pos);
+			pos += 2;
+			return value;
+		}
+
+		private int u4() {
+			int value = (at2(pos) << 16) | at2(pos + 2);
+			pos += 4;
+			return value;
+		}
+
+		private int at2(int offset) {
+			return ((b[offset] & 0xff) << 8) | (b[offset + 1] & 0xff);
+		}
+
+	}
+
+}
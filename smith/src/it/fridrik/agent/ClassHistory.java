@@ -0,0 +1,264 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ClassHistory keeps, for each class, the bytes of the versions applied to the
+ * jvm, so that a misbehaving redefinition can be reverted without a build. The
+ * history is bounded by a memory cap: when exceeded, the oldest versions of the
+ * least recently changed classes are evicted first. Versions can be stored off
+ * heap, in direct buffers, to keep large histories away from the garbage
+ * collector.<br/>
+ * The latest version of a class is the one running; the first version is,
+ * when known, the one the class has been loaded with.
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class ClassHistory {
+
+	/** Change set of the versions recorded when a class is loaded */
+	public static final long BASELINE = 0L;
+
+	private final long maxBytes;
+	private final boolean offHeap;
+	private final LinkedHashMap<String, LinkedList<Version>> versions;
+	private long bytes;
+	private long lastChangeSet;
+
+	/**
+	 * Creates a new history
+	 * 
+	 * @param maxBytes
+	 *          the max number of class bytes kept
+	 * @param offHeap
+	 *          true to store the class bytes in direct buffers
+	 */
+	public ClassHistory(long maxBytes, boolean offHeap) {
+		this.maxBytes = maxBytes;
+		this.offHeap = offHeap;
+		this.versions = new LinkedHashMap<String, LinkedList<Version>>(16, 0.75f,
+				true);
+	}
+
+	/**
+	 * Records the bytes a class has been loaded with. Ignored if the class has a
+	 * history already
+	 * 
+	 * @param className
+	 *          the fully qualified class name
+	 * @param classBytes
+	 *          the class bytes
+	 */
+	public synchronized void baseline(String className, byte[] classBytes) {
+		if (!versions.containsKey(className)) {
+			add(BASELINE, className, classBytes);
+		}
+	}
+
+	/**
+	 * Opens a new change set
+	 * 
+	 * @return the id of the change set
+	 */
+	public synchronized long nextChangeSet() {
+		return ++lastChangeSet;
+	}
+
+	/**
+	 * Records a version applied to the jvm
+	 * 
+	 * @param changeSet
+	 *          the change set the version belongs to
+	 * @param className
+	 *          the fully qualified class name
+	 * @param classBytes
+	 *          the class bytes
+	 */
+	public synchronized void applied(long changeSet, String className,
+			byte[] classBytes) {
+		add(changeSet, className, classBytes);
+	}
+
+	/**
+	 * Gets the bytes of the version running before the latest one
+	 * 
+	 * @param className
+	 *          the fully qualified class name
+	 * @return the previous class bytes, or null if not known
+	 */
+	public synchronized byte[] previous(String className) {
+		LinkedList<Version> history = versions.get(className);
+		if (history == null || history.size() < 2) {
+			return null;
+		}
+		return history.get(history.size() - 2).getBytes();
+	}
+
+	/**
+	 * Gets the bytes of the latest version, the one running
+	 * 
+	 * @param className
+	 *          the fully qualified class name
+	 * @return the current class bytes, or null if not known
+	 */
+	public synchronized byte[] current(String className) {
+		LinkedList<Version> history = versions.get(className);
+		if (history == null || history.isEmpty()) {
+			return null;
+		}
+		return history.getLast().getBytes();
+	}
+
+	/**
+	 * Gets the classes whose running version belongs to the specified change
+	 * set and whose previous version is known
+	 * 
+	 * @param changeSet
+	 *          the change set
+	 * @return the class names mapped to their previous bytes
+	 */
+	public synchronized Map<String, byte[]> previousOf(long changeSet) {
+		Map<String, byte[]> result = new HashMap<String, byte[]>();
+		for (Map.Entry<String, LinkedList<Version>> entry : versions.entrySet()) {
+			LinkedList<Version> history = entry.getValue();
+			if (history.size() > 1 && history.getLast().changeSet == changeSet) {
+				result.put(entry.getKey(), history.get(history.size() - 2).getBytes());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Forgets the latest version of the specified class, once the previous one
+	 * has been reapplied
+	 * 
+	 * @param className
+	 *          the fully qualified class name
+	 */
+	public synchronized void rolledBack(String className) {
+		LinkedList<Version> history = versions.get(className);
+		if (history != null && history.size() > 1) {
+			bytes -= history.removeLast().length;
+		}
+	}
+
+	/**
+	 * The id of the latest change set
+	 * 
+	 * @return the change set id, {@link #BASELINE} if none
+	 */
+	public synchronized long getLastChangeSet() {
+		return lastChangeSet;
+	}
+
+	/**
+	 * The memory used by the class bytes kept
+	 * 
+	 * @return the number of bytes
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * The names of the classes with a history
+	 * 
+	 * @return a snapshot of the class names
+	 */
+	public synchronized List<String> getClassNames() {
+		return new ArrayList<String>(versions.keySet());
+	}
+
+	private void add(long changeSet, String className, byte[] classBytes) {
+		if (classBytes.length > maxBytes) {
+			return;
+		}
+
+		LinkedList<Version> history = versions.get(className);
+		if (history == null) {
+			history = new LinkedList<Version>();
+			versions.put(className, history);
+		}
+		history.add(new Version(changeSet, classBytes, offHeap));
+		bytes += classBytes.length;
+		evict();
+	}
+
+	/**
+	 * Drops the oldest versions of the least recently used classes until the
+	 * history fits the memory cap
+	 */
+	private void evict() {
+		Iterator<LinkedList<Version>> it = versions.values().iterator();
+		while (bytes > maxBytes && it.hasNext()) {
+			LinkedList<Version> history = it.next();
+			while (bytes > maxBytes && !history.isEmpty()) {
+				bytes -= history.removeFirst().length;
+			}
+			if (history.isEmpty()) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * A version of a class, stored on or off heap
+	 */
+	private static class Version {
+
+		private final long changeSet;
+		private final int length;
+		private final byte[] heapBytes;
+		private final ByteBuffer directBytes;
+
+		Version(long changeSet, byte[] classBytes, boolean offHeap) {
+			this.changeSet = changeSet;
+			this.length = classBytes.length;
+			if (offHeap) {
+				this.heapBytes = null;
+				this.directBytes = ByteBuffer.allocateDirect(length);
+				this.directBytes.put(classBytes);
+			} else {
+				this.heapBytes = classBytes.clone();
+				this.directBytes = null;
+			}
+		}
+
+		byte[] getBytes() {
+			if (heapBytes != null) {
+				return heapBytes.clone();
+			}
+			byte[] result = new byte[length];
+			ByteBuffer view = directBytes.duplicate();
+			view.clear();
+			view.get(result);
+			return result;
+		}
+
+	}
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the properties file of an agent (<code>config</code> parameter) and
+ * applies its settings as soon as it changes. The file holds the same keys of
+ * the agent parameters, one per line, overriding the ones given when the
+ * agent has been started; the watched folders cannot be changed. When the
+ * file is removed the agent goes back to its original parameters. Each check
+ * costs a single stat
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+class ConfigWatcher implements Runnable {
+
+	/** Period between two checks of the properties file (ms) */
+	static final int PERIOD = 1000;
+
+	private static final Logger log = Logger.getLogger(ConfigWatcher.class
+			.getName());
+
+	private final Smith smith;
+	private final File file;
+	private SmithArgs base;
+	private long lastModified;
+
+	/**
+	 * Creates a new watcher
+	 * 
+	 * @param smith
+	 *          the agent to reconfigure
+	 * @param base
+	 *          the parameters of the agent, holding the path of the properties
+	 *          file
+	 */
+	ConfigWatcher(Smith smith, SmithArgs base) {
+		this.smith = smith;
+		this.file = new File(base.getConfig());
+		this.base = base;
+	}
+
+	/**
+	 * Replaces the parameters the properties file overrides
+	 * 
+	 * @param base
+	 *          the new parameters of the agent
+	 */
+	synchronized void setBase(SmithArgs base) {
+		this.base = base;
+	}
+
+	/**
+	 * Reads the properties file
+	 * 
+	 * @return the parameters of the agent overridden by the properties file
+	 */
+	synchronized SmithArgs load() {
+		lastModified = file.lastModified();
+		if (lastModified == 0) {
+			return base;
+		}
+
+		Properties properties = new Properties();
+		try {
+			InputStream is = new FileInputStream(file);
+			try {
+				properties.load(is);
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Smith: cannot read " + file, e);
+			return base;
+		}
+		return base.merge(properties);
+	}
+
+	public void run() {
+		if (file.lastModified() == lastModified) {
+			return;
+		}
+
+		SmithArgs args = load();
+		log.info("Smith: applying " + file + ": " + args);
+		smith.configure(args);
+	}
+
+	/**
+	 * The properties file
+	 * 
+	 * @return the absolute path of the properties file
+	 */
+	String getConfig() {
+		return file.getAbsolutePath();
+	}
+
+}
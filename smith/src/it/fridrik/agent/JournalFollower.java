@@ -0,0 +1,140 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Follows the {@link ChangeJournal} written by a {@link SmithWatcher},
+ * redefining the classes it publishes instead of checking the watched
+ * folders. Each run costs a read of the mapped journal header, so the
+ * follower can poll often: every jvm following the same journal swaps within
+ * a few milliseconds of the others. The journal is opened, or opened again
+ * when the watcher replaces it, as soon as it exists. A replaced journal is
+ * read to its end, and its replacement from its beginning, so that no batch
+ * is missed in between
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+class JournalFollower implements Runnable {
+
+	/** Period between two polls of the journal (ms) */
+	static final int PERIOD = 10;
+
+	private static final Logger log = Logger.getLogger(JournalFollower.class
+			.getName());
+
+	private final Smith smith;
+	private final File file;
+	private ChangeJournal journal;
+	private boolean replaced;
+	private long lost;
+
+	/**
+	 * Creates a new follower
+	 * 
+	 * @param smith
+	 *          the agent to notify
+	 * @param journal
+	 *          the absolute path of the journal file
+	 */
+	JournalFollower(Smith smith, String journal) {
+		this.smith = smith;
+		this.file = new File(journal);
+	}
+
+	public synchronized void run() {
+		if (journal != null && journal.isRetired()) {
+			// nobody writes a retired journal, its last batches are still there
+			redefine(poll());
+			journal.close();
+			journal = null;
+			replaced = true;
+		}
+		if (journal == null && !open()) {
+			return;
+		}
+		redefine(poll());
+	}
+
+	private List<ChangeJournal.Entry> poll() {
+		List<ChangeJournal.Entry> entries = journal.poll();
+		if (journal.getLost() != lost) {
+			log.warning("Smith: fell behind the journal " + file + ", "
+					+ (journal.getLost() - lost)
+					+ " bytes of changes have been lost");
+			lost = journal.getLost();
+		}
+		return entries;
+	}
+
+	private void redefine(List<ChangeJournal.Entry> entries) {
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+		for (ChangeJournal.Entry entry : entries) {
+			classes.remove(entry.getClassName());
+			classes.put(entry.getClassName(), entry.getBytes());
+		}
+		smith.redefineClasses(classes);
+	}
+
+	private boolean open() {
+		if (!file.exists()) {
+			return false;
+		}
+		try {
+			journal = ChangeJournal.open(file, replaced);
+			lost = 0;
+			log.info("Smith: following journal " + file
+					+ (replaced ? ", replaced by the watcher" : ""));
+			return true;
+		} catch (IOException e) {
+			log.log(Level.FINE, "error", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Stops following the journal
+	 */
+	synchronized void close() {
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+
+	/**
+	 * The journal file
+	 * 
+	 * @return the absolute path of the journal
+	 */
+	String getJournal() {
+		return file.getAbsolutePath();
+	}
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+/**
+ * Latencies tracks, for a Smith agent, how long it takes for a class written
+ * by the compiler to be running in the jvm. Each redefinition is split in
+ * stages:
+ * <ul>
+ * <li>detection: from the modification time of the file to the moment the
+ * monitor notices the change. It is driven by the monitor period</li>
+ * <li>settle: from the detection to the moment the agent starts handling the
+ * change, i.e. the time the change waits in the monitor while the rest of the
+ * check completes</li>
+ * <li>read: the time spent loading the new class bytes</li>
+ * <li>redefinition: the time spent in Instrumentation.redefineClasses</li>
+ * <li>total: from the modification time of the file to the end of the
+ * redefinition</li>
+ * </ul>
+ * Classes received through the push channel only contribute to the
+ * redefinition stage. The duration of the monitor checks is tracked too, as it
+ * bounds the detection stage.
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class Latencies {
+
+	private final LatencyHistogram detection = new LatencyHistogram();
+	private final LatencyHistogram settle = new LatencyHistogram();
+	private final LatencyHistogram read = new LatencyHistogram();
+	private final LatencyHistogram redefinition = new LatencyHistogram();
+	private final LatencyHistogram total = new LatencyHistogram();
+	private final LatencyHistogram scan = new LatencyHistogram();
+
+	public LatencyHistogram getDetection() {
+		return detection;
+	}
+
+	public LatencyHistogram getSettle() {
+		return settle;
+	}
+
+	public LatencyHistogram getRead() {
+		return read;
+	}
+
+	public LatencyHistogram getRedefinition() {
+		return redefinition;
+	}
+
+	public LatencyHistogram getTotal() {
+		return total;
+	}
+
+	public LatencyHistogram getScan() {
+		return scan;
+	}
+
+	@Override
+	public String toString() {
+		return "detection: " + detection + "; settle: " + settle + "; read: "
+				+ read + "; redefinition: " + redefinition + "; total: " + total
+				+ "; scan: " + scan;
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram records durations in buckets whose bounds grow as powers of
+ * two (1us, 2us, 4us, ... up to hours), so that recording is lock free and
+ * costs the same whatever the number of samples. Percentiles are therefore
+ * approximated by the upper bound of the bucket they fall into.
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 40;
+
+	private final AtomicLongArray buckets;
+	private final AtomicLong count;
+	private final AtomicLong sum;
+	private final AtomicLong max;
+
+	public LatencyHistogram() {
+		this.buckets = new AtomicLongArray(BUCKETS);
+		this.count = new AtomicLong();
+		this.sum = new AtomicLong();
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * Records a duration. Negative durations, e.g. due to clock skew between the
+	 * compiler host and this one, are recorded as zero
+	 * 
+	 * @param micros
+	 *          the duration (us)
+	 */
+	public void record(long micros) {
+		long value = Math.max(0, micros);
+		int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * The number of recorded durations
+	 * 
+	 * @return the number of samples
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * The average of the recorded durations
+	 * 
+	 * @return the mean (us), 0 if nothing has been recorded
+	 */
+	public long getMean() {
+		long samples = count.get();
+		return samples == 0 ? 0 : sum.get() / samples;
+	}
+
+	/**
+	 * The longest recorded duration
+	 * 
+	 * @return the max (us)
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * The approximated percentile of the recorded durations
+	 * 
+	 * @param percentile
+	 *          the percentile, between 0 and 100
+	 * @return the upper bound of the bucket holding the percentile (us), never
+	 *         more than the max recorded duration
+	 */
+	public long getPercentile(double percentile) {
+		long samples = count.get();
+		if (samples == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(samples * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank && seen > 0) {
+				return Math.min(i == 0 ? 0 : (1L << i) - 1, getMax());
+			}
+		}
+		return getMax();
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + ",mean=" + getMean() + "us,p50="
+				+ getPercentile(50) + "us,p99=" + getPercentile(99) + "us,max="
+				+ getMax() + "us";
+	}
+
+}
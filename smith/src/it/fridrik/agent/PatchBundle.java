@@ -0,0 +1,442 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A PatchBundle holds the classes changed between two builds in a single
+ * file, to be shipped to the jvms running the old build and applied by
+ * {@link Smith#applyBundle(PatchBundle, boolean)} as one redefinition. For each class
+ * it keeps both the old and the new bytes with their SHA-1, and a hint of the
+ * class loader the class belongs to: the path of its jar within the build
+ * output, empty for the classes of the classes folder. Keeping the old bytes
+ * lets the agent tell whether a jvm runs the build the bundle has been made
+ * from, and makes the bundle its own rollback (see {@link #reverse()}).<br/>
+ * The file is a gzipped stream:
+ * 
+ * <pre>
+ * magic (int) version (int) count (int)
+ * count times: className (utf) hint (utf)
+ *              old length (int, -1 if added) old bytes old SHA-1 (20 bytes)
+ *              new length (int, -1 if removed) new bytes new SHA-1 (20 bytes)
+ * </pre>
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class PatchBundle {
+
+	/** Suggested extension of the bundle files */
+	public static final String EXTENSION = ".smb";
+
+	private static final int MAGIC = 0x534d5042;
+	private static final int VERSION = 1;
+	private static final int HASH_LENGTH = 20;
+
+	private final List<Entry> entries;
+
+	/**
+	 * Creates a bundle
+	 * 
+	 * @param entries
+	 *          the changed classes
+	 */
+	PatchBundle(List<Entry> entries) {
+		this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+	}
+
+	/**
+	 * Builds the bundle of the classes changed between two build outputs. The
+	 * class files found in a build output belong to the classes folder, while
+	 * the classes contained in a jar are hinted by the path of the jar
+	 * 
+	 * @param oldBuild
+	 *          the folder of the build the jvms are running
+	 * @param newBuild
+	 *          the folder of the build to patch them to
+	 * @return the bundle, empty if the builds hold the same classes
+	 * @throws IOException
+	 *           if the build outputs cannot be read
+	 */
+	public static PatchBundle create(File oldBuild, File newBuild)
+			throws IOException {
+		Map<String, byte[]> before = collect(oldBuild);
+		Map<String, byte[]> after = collect(newBuild);
+		TreeSet<String> keys = new TreeSet<String>(before.keySet());
+		keys.addAll(after.keySet());
+
+		List<Entry> entries = new ArrayList<Entry>();
+		for (String key : keys) {
+			byte[] base = before.get(key);
+			byte[] target = after.get(key);
+			if (!Arrays.equals(base, target)) {
+				int separator = key.indexOf('!');
+				entries.add(new Entry(key.substring(separator + 1), key.substring(0,
+						separator), base, target));
+			}
+		}
+		return new PatchBundle(entries);
+	}
+
+	/**
+	 * Reads a bundle, checking the SHA-1 of every class
+	 * 
+	 * @param file
+	 *          the bundle file
+	 * @return the bundle
+	 * @throws IOException
+	 *           if the file cannot be read, is not a bundle or is corrupted
+	 */
+	public static PatchBundle read(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new GZIPInputStream(new FileInputStream(file))));
+		try {
+			if (in.readInt() != MAGIC) {
+				throw new IOException(file + " is not a patch bundle");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported patch bundle version " + version);
+			}
+			int count = in.readInt();
+			if (count < 0 || count > SmithPushClient.MAX_CLASSES_PER_FRAME) {
+				throw new IOException("Invalid patch bundle size: " + count);
+			}
+
+			List<Entry> entries = new ArrayList<Entry>(count);
+			for (int i = 0; i < count; i++) {
+				String className = in.readUTF();
+				String hint = in.readUTF();
+				byte[] base = readClass(in, className);
+				byte[] target = readClass(in, className);
+				entries.add(new Entry(className, hint, base, target));
+			}
+			return new PatchBundle(entries);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] readClass(DataInputStream in, String className)
+			throws IOException {
+		int length = in.readInt();
+		if (length < -1 || length > SmithPushClient.MAX_CLASS_LENGTH) {
+			throw new IOException("Invalid class length " + length + " for "
+					+ className);
+		}
+		byte[] bytes = null;
+		if (length >= 0) {
+			bytes = new byte[length];
+			in.readFully(bytes);
+		}
+		byte[] hash = new byte[HASH_LENGTH];
+		in.readFully(hash);
+		if (!Arrays.equals(hash, sha1(bytes))) {
+			throw new IOException("Corrupted patch bundle: bad SHA-1 for "
+					+ className);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes this bundle to a file
+	 * 
+	 * @param file
+	 *          the bundle file
+	 * @throws IOException
+	 *           if the file cannot be written
+	 */
+	public void write(File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new GZIPOutputStream(new FileOutputStream(file))));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+			for (Entry entry : entries) {
+				out.writeUTF(entry.className);
+				out.writeUTF(entry.hint);
+				writeClass(out, entry.base);
+				writeClass(out, entry.target);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeClass(DataOutputStream out, byte[] bytes)
+			throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+		out.write(sha1(bytes));
+	}
+
+	/**
+	 * The bundle undoing this one: applied to a jvm running the new build, it
+	 * brings it back to the old one
+	 * 
+	 * @return the reverse bundle
+	 */
+	public PatchBundle reverse() {
+		List<Entry> reversed = new ArrayList<Entry>(entries.size());
+		for (Entry entry : entries) {
+			reversed.add(new Entry(entry.className, entry.hint, entry.target,
+					entry.base));
+		}
+		return new PatchBundle(reversed);
+	}
+
+	/**
+	 * The part of this bundle changing the specified classes
+	 * 
+	 * @param classNames
+	 *          the fully qualified class names
+	 * @return the bundle made of the entries of the specified classes
+	 */
+	public PatchBundle select(Collection<String> classNames) {
+		List<Entry> selected = new ArrayList<Entry>();
+		for (Entry entry : entries) {
+			if (classNames.contains(entry.className)) {
+				selected.add(entry);
+			}
+		}
+		return new PatchBundle(selected);
+	}
+
+	/**
+	 * The classes of this bundle
+	 * 
+	 * @return the changed classes, sorted by hint and class name
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Reads the classes of a build output
+	 * 
+	 * @param build
+	 *          the build output
+	 * @return the hints and class names, separated by '!', mapped to the class
+	 *         bytes
+	 */
+	private static Map<String, byte[]> collect(File build) throws IOException {
+		if (!build.isDirectory()) {
+			throw new IOException(build + " is not a folder");
+		}
+		Map<String, byte[]> classes = new TreeMap<String, byte[]>();
+		collect(build, "", classes);
+		return classes;
+	}
+
+	private static void collect(File folder, String path,
+			Map<String, byte[]> classes) throws IOException {
+		File[] files = folder.listFiles();
+		if (files == null) {
+			throw new IOException("Unable to list " + folder);
+		}
+		for (File file : files) {
+			String name = path + file.getName();
+			if (file.isDirectory()) {
+				collect(file, name + "/", classes);
+			} else if (name.endsWith(".class")) {
+				classes.put("!" + toClassName(name), ClassBytesLoader.read(file));
+			} else if (name.endsWith(".jar")) {
+				collectJar(file, name, classes);
+			}
+		}
+	}
+
+	private static void collectJar(File file, String hint,
+			Map<String, byte[]> classes) throws IOException {
+		JarFile jar = new JarFile(file);
+		try {
+			for (Enumeration<JarEntry> jarEntries = jar.entries(); jarEntries
+					.hasMoreElements();) {
+				JarEntry jarEntry = jarEntries.nextElement();
+				if (!jarEntry.isDirectory() && jarEntry.getName().endsWith(".class")) {
+					InputStream is = jar.getInputStream(jarEntry);
+					try {
+						classes.put(hint + "!" + toClassName(jarEntry.getName()),
+								ClassBytesLoader.read(is, jarEntry.getSize()));
+					} finally {
+						is.close();
+					}
+				}
+			}
+		} finally {
+			jar.close();
+		}
+	}
+
+	private static String toClassName(String path) {
+		return path.substring(0, path.length() - ".class".length()).replace('/',
+				'.');
+	}
+
+	/**
+	 * Computes the SHA-1 of some class bytes
+	 * 
+	 * @param bytes
+	 *          the class bytes, null for a missing class
+	 * @return the hash, all zeros for a missing class
+	 */
+	static byte[] sha1(byte[] bytes) {
+		if (bytes == null) {
+			return new byte[HASH_LENGTH];
+		}
+		try {
+			return MessageDigest.getInstance("SHA-1").digest(bytes);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Builds a bundle from two build outputs, or lists the classes of a bundle
+	 * 
+	 * @param args
+	 *          <code>create oldBuild newBuild bundle</code> or
+	 *          <code>list bundle</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 4 && "create".equals(args[0])) {
+			PatchBundle bundle = create(new File(args[1]), new File(args[2]));
+			bundle.write(new File(args[3]));
+			System.out.println("Bundled " + bundle.getEntries().size()
+					+ " changed classes into " + args[3]);
+		} else if (args.length == 2 && "list".equals(args[0])) {
+			for (Entry entry : read(new File(args[1])).getEntries()) {
+				System.out.println(entry);
+			}
+		} else {
+			System.err.println("Usage: PatchBundle create oldBuild newBuild bundle"
+					+ EXTENSION + " | list bundle" + EXTENSION);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * A class changed between the two builds
+	 */
+	public static final class Entry {
+
+		private final String className;
+		private final String hint;
+		private final byte[] base;
+		private final byte[] target;
+
+		Entry(String className, String hint, byte[] base, byte[] target) {
+			this.className = className;
+			this.hint = hint;
+			this.base = base;
+			this.target = target;
+		}
+
+		/**
+		 * The fully qualified class name
+		 * 
+		 * @return the class name
+		 */
+		public String getClassName() {
+			return className;
+		}
+
+		/**
+		 * The path of the jar containing the class within the build output
+		 * 
+		 * @return the path, '/' separated, empty for the classes folder
+		 */
+		public String getHint() {
+			return hint;
+		}
+
+		/**
+		 * The bytes of the class in the old build
+		 * 
+		 * @return the old bytes, null if the class has been added
+		 */
+		public byte[] getBase() {
+			return base;
+		}
+
+		/**
+		 * The bytes of the class in the new build
+		 * 
+		 * @return the new bytes, null if the class has been removed
+		 */
+		public byte[] getTarget() {
+			return target;
+		}
+
+		/**
+		 * Tells whether a class comes from the place this entry refers to
+		 * 
+		 * @param location
+		 *          the absolute path of the folder or jar the class has been
+		 *          loaded from, null if unknown
+		 * @return true if the entry has no hint or the location ends with it
+		 */
+		public boolean isFrom(String location) {
+			if (hint.length() == 0) {
+				return true;
+			}
+			if (location == null) {
+				return false;
+			}
+			String path = location.replace(File.separatorChar, '/');
+			return path.equals(hint) || path.endsWith("/" + hint);
+		}
+
+		@Override
+		public String toString() {
+			String state = base == null ? "added" : target == null ? "removed"
+					: "changed";
+			return (hint.length() > 0 ? hint + "!" : "") + className + " " + state;
+		}
+
+	}
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.lang.instrument.ClassDefinition;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * RedefinitionPacer splits large sets of changed classes into chunks, so that
+ * each call to Instrumentation.redefineClasses, and therefore each safepoint,
+ * stays within a budget. The budget can be given as max classes, max bytes or
+ * target pause (ms) per call: in the latter case the pacer learns how long a
+ * byte takes to be redefined from the past calls. Nested and inner classes are
+ * kept in the same chunk as their outer class. Between two chunks the agent
+ * waits for a gap, so that the application threads can run.<br/>
+ * With no budget, every change set is redefined in a single call.
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class RedefinitionPacer {
+
+	/** Weight of the latest sample in the learned redefinition speed */
+	private static final double LEARNING_RATE = 0.3;
+
+	/** Max classes of the first chunk, while the speed is still unknown */
+	private static final int PROBE_CLASSES = 64;
+
+	/** Measures class definitions */
+	private static final Measure<ClassDefinition> DEFINITIONS = new Measure<ClassDefinition>() {
+
+		public String getClassName(ClassDefinition definition) {
+			return definition.getDefinitionClass().getName();
+		}
+
+		public long getSize(ClassDefinition definition) {
+			return definition.getDefinitionClassFile().length;
+		}
+
+	};
+
+	private volatile int maxClasses;
+	private volatile long maxBytes;
+	private volatile int targetMillis;
+	private volatile int gapMillis;
+	private volatile double nanosPerByte;
+
+	/**
+	 * Creates a new pacer
+	 * 
+	 * @param args
+	 *          the {@link SmithArgs} holding the budget
+	 */
+	public RedefinitionPacer(SmithArgs args) {
+		configure(args);
+	}
+
+	/**
+	 * Changes the budget
+	 * 
+	 * @param args
+	 *          the {@link SmithArgs} holding the budget
+	 */
+	public void configure(SmithArgs args) {
+		this.maxClasses = args.getMaxClasses();
+		this.maxBytes = args.getMaxBytes();
+		this.targetMillis = args.getPauseMillis();
+		this.gapMillis = args.getPauseGap();
+	}
+
+	/**
+	 * Learns from a completed call to Instrumentation.redefineClasses
+	 * 
+	 * @param bytes
+	 *          the total size of the redefined classes
+	 * @param nanos
+	 *          the duration of the call (ns)
+	 */
+	public void learn(long bytes, long nanos) {
+		if (bytes <= 0) {
+			return;
+		}
+		double sample = (double) nanos / bytes;
+		double current = nanosPerByte;
+		nanosPerByte = current == 0 ? sample : current * (1 - LEARNING_RATE)
+				+ sample * LEARNING_RATE;
+	}
+
+	/**
+	 * The time to wait between two chunks
+	 * 
+	 * @return the gap (ms)
+	 */
+	public int getGapMillis() {
+		return gapMillis;
+	}
+
+	/**
+	 * The learned redefinition speed
+	 * 
+	 * @return the time to redefine a byte (ns), 0 if not learned yet
+	 */
+	public double getNanosPerByte() {
+		return nanosPerByte;
+	}
+
+	/**
+	 * Splits the definitions into chunks which fit the budget. A group of
+	 * nested classes bigger than the budget is never split
+	 * 
+	 * @param definitions
+	 *          the classes to redefine
+	 * @return the chunks, in the order they should be redefined
+	 */
+	public List<List<ClassDefinition>> split(List<ClassDefinition> definitions) {
+		return split(definitions, DEFINITIONS);
+	}
+
+	/**
+	 * Splits the classes to redefine into chunks which fit the budget, before
+	 * their bytes are available
+	 * 
+	 * @param classes
+	 *          the classes to redefine
+	 * @param measure
+	 *          tells the name and the expected size of each class
+	 * @return the chunks, in the order they should be redefined
+	 * @see #split(List)
+	 */
+	public <T> List<List<T>> split(List<T> classes, Measure<T> measure) {
+		List<List<T>> chunks = new ArrayList<List<T>>();
+		if (classes.isEmpty()) {
+			return chunks;
+		}
+
+		int classesLimit = maxClasses > 0 ? maxClasses : Integer.MAX_VALUE;
+		long bytesLimit = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+		if (targetMillis > 0) {
+			double speed = nanosPerByte;
+			if (speed > 0) {
+				bytesLimit = Math.min(bytesLimit, Math.max(1L,
+						(long) (targetMillis * 1000000L / speed)));
+			} else {
+				classesLimit = Math.min(classesLimit, PROBE_CLASSES);
+			}
+		}
+
+		List<T> chunk = new ArrayList<T>();
+		long chunkBytes = 0;
+		for (List<T> group : group(classes, measure)) {
+			long groupBytes = 0;
+			for (T item : group) {
+				groupBytes += measure.getSize(item);
+			}
+			if (!chunk.isEmpty()
+					&& (chunk.size() + group.size() > classesLimit || chunkBytes
+							+ groupBytes > bytesLimit)) {
+				chunks.add(chunk);
+				chunk = new ArrayList<T>();
+				chunkBytes = 0;
+			}
+			chunk.addAll(group);
+			chunkBytes += groupBytes;
+		}
+		chunks.add(chunk);
+		return chunks;
+	}
+
+	/**
+	 * Groups the definitions by outer class, i.e. the class name up to the
+	 * first '$'
+	 * 
+	 * @param definitions
+	 *          the classes to redefine
+	 * @return the groups, in the order their outer classes first appear
+	 */
+	public static List<List<ClassDefinition>> group(
+			List<ClassDefinition> definitions) {
+		return group(definitions, DEFINITIONS);
+	}
+
+	private static <T> List<List<T>> group(List<T> classes, Measure<T> measure) {
+		Map<String, List<T>> groups = new LinkedHashMap<String, List<T>>();
+		for (T item : classes) {
+			String name = measure.getClassName(item);
+			int nested = name.indexOf('$');
+			String outer = nested > 0 ? name.substring(0, nested) : name;
+			List<T> group = groups.get(outer);
+			if (group == null) {
+				group = new ArrayList<T>();
+				groups.put(outer, group);
+			}
+			group.add(item);
+		}
+		return new ArrayList<List<T>>(groups.values());
+	}
+
+	/**
+	 * Tells the pacer the name and the size of the classes it splits
+	 */
+	public interface Measure<T> {
+
+		public String getClassName(T item);
+
+		/**
+		 * The size of the class file
+		 * 
+		 * @param item
+		 *          the class
+		 * @return the size in bytes, 0 if unknown
+		 */
+		public long getSize(T item);
+
+	}
+
+}
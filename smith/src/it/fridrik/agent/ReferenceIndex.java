@@ -0,0 +1,536 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * ReferenceIndex tells which loaded classes depend on which, so that a class
+ * changing the value of a constant is redefined together with the classes
+ * using it. javac copies the value of a <code>static final</code> constant
+ * into the classes reading it, which then keep running the old value even
+ * after the declaring class has been redefined: they need to be recompiled
+ * and redefined in the same batch.<br/>
+ * The index is built from the constant pools of the class files as they are
+ * loaded, or as they are found on disk for the classes loaded before the
+ * index has been created, and updated with the new bytes of each redefined
+ * class only. For
+ * each class it records the classes it refers to, the hashes of the literals
+ * of its constant pool and its constants. The dependents of a changed
+ * constant are the classes referring to its class, plus the ones holding its
+ * old value in their pool: among them, the ones whose class file has changed
+ * since it has been loaded or redefined are redefined too, while the ones
+ * whose class file still holds the old value are reported as stale. Recent
+ * versions of javac also keep a reference to the class declaring each constant
+ * it copies. Values written into the code rather than into the pool (int
+ * constants within the short range, booleans, chars) cannot be told apart
+ * from any other number: their users are found through these references
+ * only.
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+class ReferenceIndex {
+
+	private final Map<String, Node> nodes;
+	private final Map<String, Set<String>> referencedBy;
+	private final Map<Integer, Set<String>> literalUsers;
+
+	ReferenceIndex() {
+		this.nodes = new HashMap<String, Node>();
+		this.referencedBy = new HashMap<String, Set<String>>();
+		this.literalUsers = new HashMap<Integer, Set<String>>();
+	}
+
+	/**
+	 * Records the version of a class the jvm is running
+	 * 
+	 * @param className
+	 *          the fully qualified class name
+	 * @param location
+	 *          the absolute path of the folder or jar the class comes from, null
+	 *          to keep the known one
+	 * @param classBytes
+	 *          the bytes of the class
+	 */
+	void update(String className, String location, byte[] classBytes) {
+		record(className, location, classBytes, true);
+	}
+
+	/**
+	 * Records the version of a class the jvm is running, unless the class is
+	 * already known
+	 * 
+	 * @param className
+	 *          the fully qualified class name
+	 * @param location
+	 *          the absolute path of the folder or jar the class comes from
+	 * @param classBytes
+	 *          the bytes of the class
+	 * @return true if the class has been recorded
+	 */
+	boolean add(String className, String location, byte[] classBytes) {
+		return record(className, location, classBytes, false);
+	}
+
+	private boolean record(String className, String location,
+			byte[] classBytes, boolean replace) {
+		ClassInfo info = ClassInfo.parse(classBytes, false);
+		synchronized (this) {
+			Node old = nodes.get(className);
+			if (old != null && !replace) {
+				return false;
+			}
+			if (old != null) {
+				unlink(className, old);
+				if (location == null) {
+					location = old.location;
+				}
+			}
+			Node node = new Node(location, info);
+			nodes.put(className, node);
+			for (String reference : node.info.references) {
+				add(referencedBy, reference, className);
+			}
+			for (int literal : node.info.literals) {
+				add(literalUsers, Integer.valueOf(literal), className);
+			}
+		}
+		return true;
+	}
+
+	private void unlink(String className, Node node) {
+		for (String reference : node.info.references) {
+			remove(referencedBy, reference, className);
+		}
+		for (int literal : node.info.literals) {
+			remove(literalUsers, Integer.valueOf(literal), className);
+		}
+	}
+
+	private static <K> void add(Map<K, Set<String>> map, K key, String value) {
+		Set<String> values = map.get(key);
+		if (values == null) {
+			values = new HashSet<String>(4);
+			map.put(key, values);
+		}
+		values.add(value);
+	}
+
+	private static <K> void remove(Map<K, Set<String>> map, K key, String value) {
+		Set<String> values = map.get(key);
+		if (values != null && values.remove(value) && values.isEmpty()) {
+			map.remove(key);
+		}
+	}
+
+	/**
+	 * Finds the classes that may be using the old value of a constant changed
+	 * by the new version of the specified classes
+	 * 
+	 * @param classes
+	 *          the names of the changed classes mapped to their new bytes
+	 * @return the dependents mapped to the changed constants they may use, in
+	 *         no particular order
+	 */
+	synchronized Map<String, List<Constant>> getDependents(
+			Map<String, byte[]> classes) {
+		Map<String, List<Constant>> dependents = new LinkedHashMap<String, List<Constant>>();
+		for (Map.Entry<String, byte[]> changed : classes.entrySet()) {
+			Node old = nodes.get(changed.getKey());
+			if (old == null || old.info.constants.isEmpty()) {
+				continue;
+			}
+
+			Map<String, Object> constants = ClassInfo.parse(changed.getValue(),
+					false).constants;
+			for (Map.Entry<String, Object> constant : old.info.constants.entrySet()) {
+				Object value = constants.get(constant.getKey());
+				if (constant.getValue().equals(value)) {
+					continue;
+				}
+				Constant changedConstant = new Constant(changed.getKey(), constant
+						.getKey(), constant.getValue());
+				Set<String> users = new HashSet<String>();
+				Set<String> referring = referencedBy.get(changed.getKey());
+				if (referring != null) {
+					users.addAll(referring);
+				}
+				if (changedConstant.isPooled()) {
+					Set<String> holding = literalUsers.get(Integer
+							.valueOf(literalHash(constant.getValue())));
+					if (holding != null) {
+						users.addAll(holding);
+					}
+				}
+				for (String user : users) {
+					if (!classes.containsKey(user)) {
+						List<Constant> used = dependents.get(user);
+						if (used == null) {
+							used = new ArrayList<Constant>(1);
+							dependents.put(user, used);
+						}
+						used.add(changedConstant);
+					}
+				}
+			}
+		}
+		return dependents;
+	}
+
+	/**
+	 * The folder or jar a class has been loaded from
+	 * 
+	 * @param className
+	 *          the fully qualified class name
+	 * @return the absolute path of the folder or jar, null if unknown
+	 */
+	synchronized String getLocation(String className) {
+		Node node = nodes.get(className);
+		return node != null ? node.location : null;
+	}
+
+	/**
+	 * Tells whether the specified bytes are the version of a class the jvm is
+	 * running
+	 * 
+	 * @param className
+	 *          the fully qualified class name
+	 * @param classBytes
+	 *          the bytes of the class file
+	 * @return true if the class file has not changed since the class has been
+	 *         loaded or redefined
+	 */
+	synchronized boolean isRunning(String className, byte[] classBytes) {
+		Node node = nodes.get(className);
+		return node != null && node.info.hash == ClassInfo.hash(classBytes);
+	}
+
+	/**
+	 * Tells whether a class file still holds the old value of one of the
+	 * specified constants. An old string is looked for within the strings of
+	 * the pool too, as javac merges the constants concatenated with other
+	 * values into a single string
+	 * 
+	 * @param classBytes
+	 *          the bytes of the class file
+	 * @param constants
+	 *          the changed constants
+	 * @return the first constant whose old value is still held, null if none
+	 */
+	static Constant findStale(byte[] classBytes, List<Constant> constants) {
+		ClassInfo info = null;
+		for (Constant constant : constants) {
+			if (constant.isPooled()) {
+				if (info == null) {
+					info = ClassInfo.parse(classBytes, true);
+				}
+				if (Arrays.binarySearch(info.literals, literalHash(constant.oldValue)) >= 0) {
+					return constant;
+				}
+				if (constant.oldValue instanceof String
+						&& ((String) constant.oldValue).length() > 0) {
+					for (String string : info.strings) {
+						if (string.indexOf((String) constant.oldValue) >= 0) {
+							return constant;
+						}
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The number of classes indexed
+	 * 
+	 * @return the number of loaded classes known
+	 */
+	synchronized int size() {
+		return nodes.size();
+	}
+
+	private static int literalHash(Object value) {
+		// the type is part of the hash, so that 1L and 1.0f do not collide
+		return value.getClass().getName().hashCode() * 31 + value.hashCode();
+	}
+
+	/**
+	 * A constant whose value has changed
+	 */
+	static final class Constant {
+
+		private final String owner;
+		private final String field;
+		private final Object oldValue;
+
+		Constant(String owner, String field, Object oldValue) {
+			this.owner = owner;
+			this.field = field;
+			this.oldValue = oldValue;
+		}
+
+		/**
+		 * The class declaring the constant
+		 * 
+		 * @return the fully qualified class name
+		 */
+		String getOwner() {
+			return owner;
+		}
+
+		/**
+		 * Tells whether javac copies the value into the constant pool of the
+		 * classes using it
+		 */
+		boolean isPooled() {
+			if (oldValue instanceof Integer) {
+				int value = ((Integer) oldValue).intValue();
+				return value < Short.MIN_VALUE || value > Short.MAX_VALUE;
+			}
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return owner + "." + field;
+		}
+
+	}
+
+	private static final class Node {
+
+		final String location;
+		final ClassInfo info;
+
+		Node(String location, ClassInfo info) {
+			this.location = location;
+			this.info = info;
+		}
+
+	}
+
+	/**
+	 * What the index keeps of a class file
+	 */
+	private static final class ClassInfo {
+
+		private static final String[] NONE = new String[0];
+		private static final int[] NO_LITERALS = new int[0];
+
+		private static final int STATIC_FINAL = 0x0008 | 0x0010;
+
+		final String[] references;
+		final int[] literals;
+		final String[] strings;
+		final Map<String, Object> constants;
+		final long hash;
+
+		private ClassInfo(String[] references, int[] literals, String[] strings,
+				Map<String, Object> constants, long hash) {
+			this.references = references;
+			this.literals = literals;
+			this.strings = strings;
+			this.constants = constants;
+			this.hash = hash;
+		}
+
+		static long hash(byte[] classBytes) {
+			CRC32 crc = new CRC32();
+			crc.update(classBytes);
+			return ((long) classBytes.length << 32) | crc.getValue();
+		}
+
+		/**
+		 * Reads the constant pool and the fields of a class file. A class file
+		 * which cannot be read is indexed with no references
+		 * 
+		 * @param b
+		 *          the bytes of the class file
+		 * @param keepStrings
+		 *          whether the string literals are kept, besides their hashes
+		 */
+		static ClassInfo parse(byte[] b, boolean keepStrings) {
+			try {
+				return read(b, keepStrings);
+			} catch (RuntimeException e) {
+				return new ClassInfo(NONE, NO_LITERALS, NONE, Collections
+						.<String, Object> emptyMap(), hash(b));
+			}
+		}
+
+		private static ClassInfo read(byte[] b, boolean keepStrings) {
+			if (u4(b, 0) != 0xcafebabe) {
+				throw new IllegalArgumentException("not a class file");
+			}
+			int count = u2(b, 8);
+			int[] offsets = new int[count];
+			Set<String> references = new HashSet<String>();
+			Set<Integer> literals = new HashSet<Integer>();
+			List<String> strings = new ArrayList<String>();
+			int pos = 10;
+			for (int i = 1; i < count; i++) {
+				offsets[i] = pos;
+				int tag = b[pos] & 0xff;
+				switch (tag) {
+				case 1:
+					pos += 3 + u2(b, pos + 1);
+					break;
+				case 3:
+				case 4:
+				case 9:
+				case 10:
+				case 11:
+				case 12:
+				case 17:
+				case 18:
+					pos += 5;
+					break;
+				case 5:
+				case 6:
+					pos += 9;
+					i++;
+					break;
+				case 7:
+				case 8:
+				case 16:
+				case 19:
+				case 20:
+					pos += 3;
+					break;
+				case 15:
+					pos += 4;
+					break;
+				default:
+					throw new IllegalArgumentException("unknown constant tag " + tag);
+				}
+			}
+
+			for (int i = 1; i < count; i++) {
+				int offset = offsets[i];
+				if (offset == 0) {
+					continue;
+				}
+				int tag = b[offset] & 0xff;
+				if (tag == 7) {
+					String name = utf8(b, offsets, u2(b, offset + 1));
+					int array = name.lastIndexOf('[');
+					if (array >= 0) {
+						name = name.endsWith(";") ? name.substring(array + 2, name
+								.length() - 1) : null;
+					}
+					if (name != null) {
+						references.add(name.replace('/', '.'));
+					}
+				} else if (tag == 8 || (tag >= 3 && tag <= 6)) {
+					Object literal = constant(b, offsets, i);
+					literals.add(Integer.valueOf(literalHash(literal)));
+					if (keepStrings && tag == 8) {
+						strings.add((String) literal);
+					}
+				}
+			}
+			references.remove(utf8(b, offsets, u2(b, offsets[u2(b, pos + 2)] + 1))
+					.replace('/', '.'));
+
+			Map<String, Object> constants = new HashMap<String, Object>();
+			pos += 6;
+			pos += 2 + 2 * u2(b, pos); // interfaces
+			int fields = u2(b, pos);
+			pos += 2;
+			for (int i = 0; i < fields; i++) {
+				int access = u2(b, pos);
+				String field = utf8(b, offsets, u2(b, pos + 2));
+				int attributes = u2(b, pos + 6);
+				pos += 8;
+				for (int j = 0; j < attributes; j++) {
+					String attribute = utf8(b, offsets, u2(b, pos));
+					int length = u4(b, pos + 2);
+					if ((access & STATIC_FINAL) == STATIC_FINAL
+							&& "ConstantValue".equals(attribute)) {
+						constants.put(field, constant(b, offsets, u2(b, pos + 6)));
+					}
+					pos += 6 + length;
+				}
+			}
+
+			int[] hashes = new int[literals.size()];
+			int i = 0;
+			for (Integer literal : literals) {
+				hashes[i++] = literal.intValue();
+			}
+			Arrays.sort(hashes);
+			return new ClassInfo(references.toArray(new String[references.size()]),
+					hashes, strings.toArray(new String[strings.size()]), constants,
+					hash(b));
+		}
+
+		private static Object constant(byte[] b, int[] offsets, int index) {
+			int offset = offsets[index];
+			switch (b[offset]) {
+			case 3:
+				return Integer.valueOf(u4(b, offset + 1));
+			case 4:
+				return Float.valueOf(Float.intBitsToFloat(u4(b, offset + 1)));
+			case 5:
+				return Long.valueOf(u8(b, offset + 1));
+			case 6:
+				return Double.valueOf(Double.longBitsToDouble(u8(b, offset + 1)));
+			case 8:
+				return utf8(b, offsets, u2(b, offset + 1));
+			default:
+				throw new IllegalArgumentException("not a literal: " + index);
+			}
+		}
+
+		private static String utf8(byte[] b, int[] offsets, int index) {
+			int offset = offsets[index];
+			if (b[offset] != 1) {
+				throw new IllegalArgumentException("not a name: " + index);
+			}
+			try {
+				return new String(b, offset + 3, u2(b, offset + 1), "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private static int u2(byte[] b, int offset) {
+			return ((b[offset] & 0xff) << 8) | (b[offset + 1] & 0xff);
+		}
+
+		private static int u4(byte[] b, int offset) {
+			return (u2(b, offset) << 16) | u2(b, offset + 2);
+		}
+
+		private static long u8(byte[] b, int offset) {
+			return ((long) u4(b, offset) << 32) | (u4(b, offset + 4) & 0xffffffffL);
+		}
+
+	}
+
+}
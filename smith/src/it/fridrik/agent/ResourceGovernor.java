@@ -0,0 +1,376 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ResourceGovernor keeps the agents of this jvm within a budget of cpu time
+ * and allocated memory. The agent threads (scans, I/O, push channel) measure
+ * each piece of work they do through the {@link ThreadMXBean} and charge it
+ * here. The budget is refilled as time goes by, at the configured rate (e.g.
+ * 1% of one core) and up to one second worth of it: when the work done so far
+ * exceeds it, the scheduled checks are stretched until the debt is paid back
+ * and non-urgent work is postponed, while the redefinition of the changes
+ * found is never delayed.<br/>
+ * Threads whose cpu time the jvm does not measure are charged the elapsed
+ * time instead, an upper bound of it: this is why the {@link ScanScheduler}
+ * does not run the scans on virtual threads while a cpu budget is set. When
+ * the agents set different budgets, the tightest one applies.
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class ResourceGovernor {
+
+	/** The window the reported usage is averaged over (ns) */
+	static final long WINDOW_NANOS = 10000000000L;
+
+	/** The work that can be done in a burst, in seconds of budget */
+	private static final long BURST_NANOS = 1000000000L;
+
+	private static ResourceGovernor instance;
+
+	/**
+	 * Gets the governor shared by all the agents of this jvm
+	 * 
+	 * @return the ResourceGovernor instance
+	 */
+	public static synchronized ResourceGovernor getInstance() {
+		if (instance == null) {
+			instance = new ResourceGovernor();
+		}
+		return instance;
+	}
+
+	private final ThreadMXBean threads;
+	private final boolean cpuMeasured;
+	private final Method allocatedBytes;
+	private final Map<Object, double[]> budgets;
+	private double cpuBudget;
+	private double allocationBudget;
+	private double cpuBalance;
+	private double allocationBalance;
+	private long lastRefill;
+	private long cpuNanos;
+	private long allocated;
+	private long throttled;
+	private long windowStart;
+	private long windowCpu;
+	private long windowAllocated;
+	private double cpuUsage;
+	private long allocationRate;
+
+	ResourceGovernor() {
+		this.threads = ManagementFactory.getThreadMXBean();
+		this.cpuMeasured = threads.isCurrentThreadCpuTimeSupported()
+				&& threads.isThreadCpuTimeEnabled();
+		this.allocatedBytes = findAllocatedBytes(threads);
+		this.budgets = new HashMap<Object, double[]>();
+		this.lastRefill = System.nanoTime();
+		this.windowStart = lastRefill;
+		this.cpuUsage = -1;
+	}
+
+	/**
+	 * Looks up the count of the bytes allocated by a thread, available on
+	 * HotSpot since java 6
+	 */
+	private static Method findAllocatedBytes(ThreadMXBean threads) {
+		try {
+			Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+			if (type.isInstance(threads)) {
+				return type.getMethod("getThreadAllocatedBytes", long.class);
+			}
+		} catch (Exception e) {
+			// not available
+		}
+		return null;
+	}
+
+	/**
+	 * Sets the budget of an agent. A budget of 0 is unlimited
+	 * 
+	 * @param owner
+	 *          the agent
+	 * @param cpu
+	 *          the fraction of one core the agents can use
+	 * @param allocation
+	 *          the bytes per second the agents can allocate
+	 */
+	public synchronized void setBudget(Object owner, double cpu, long allocation) {
+		if (cpu <= 0 && allocation <= 0) {
+			budgets.remove(owner);
+		} else {
+			budgets.put(owner, new double[] { cpu, allocation });
+		}
+		updateBudget();
+	}
+
+	/**
+	 * Forgets the budget of an agent
+	 * 
+	 * @param owner
+	 *          the agent
+	 */
+	public synchronized void removeBudget(Object owner) {
+		budgets.remove(owner);
+		updateBudget();
+	}
+
+	private void updateBudget() {
+		double cpu = 0;
+		double allocation = 0;
+		for (double[] budget : budgets.values()) {
+			cpu = tightest(cpu, budget[0]);
+			allocation = tightest(allocation, budget[1]);
+		}
+		if (cpu != cpuBudget || allocation != allocationBudget) {
+			cpuBudget = cpu;
+			allocationBudget = allocation;
+			cpuBalance = 0;
+			allocationBalance = 0;
+			lastRefill = System.nanoTime();
+		}
+	}
+
+	private static double tightest(double current, double budget) {
+		if (budget <= 0) {
+			return current;
+		}
+		return current == 0 ? budget : Math.min(current, budget);
+	}
+
+	/**
+	 * Takes a snapshot of the resources used so far by the current thread, to
+	 * be {@link #charge(Sample) charged} when the work is done
+	 * 
+	 * @return the snapshot
+	 */
+	public Sample start() {
+		return new Sample();
+	}
+
+	/**
+	 * Charges the work done by the current thread since a snapshot
+	 * 
+	 * @param start
+	 *          the snapshot taken when the work started
+	 */
+	public void charge(Sample start) {
+		Sample end = new Sample();
+		long cpu = start.cpu >= 0 && end.cpu >= 0 ? end.cpu - start.cpu
+				: end.wall - start.wall;
+		long bytes = start.bytes >= 0 && end.bytes >= 0 ? end.bytes - start.bytes
+				: 0;
+		charge(cpu, bytes, end.wall);
+	}
+
+	synchronized void charge(long cpu, long bytes, long now) {
+		refill(now);
+		cpuBalance -= cpu;
+		allocationBalance -= bytes;
+		cpuNanos += cpu;
+		allocated += bytes;
+		windowCpu += cpu;
+		windowAllocated += bytes;
+	}
+
+	/**
+	 * Stretches the period of a scheduled check while the agents are over
+	 * budget
+	 * 
+	 * @param period
+	 *          the period of the check (ms)
+	 * @return the time to wait before the next run of the check (ms)
+	 */
+	public long stretch(long period) {
+		return stretch(period, System.nanoTime());
+	}
+
+	synchronized long stretch(long period, long now) {
+		long delay = getDelay(now);
+		if (delay > period) {
+			throttled++;
+			return delay;
+		}
+		return period;
+	}
+
+	/**
+	 * Tells whether the agents have used more than their budget, in which case
+	 * non-urgent work should be postponed
+	 * 
+	 * @return true if over budget
+	 */
+	public synchronized boolean isOverBudget() {
+		return getDelay(System.nanoTime()) > 0;
+	}
+
+	/**
+	 * The time it takes to pay back the work done beyond the budget
+	 * 
+	 * @return the time (ms), 0 if within budget
+	 */
+	synchronized long getDelay(long now) {
+		refill(now);
+		double nanos = 0;
+		if (cpuBudget > 0 && cpuBalance < 0) {
+			nanos = -cpuBalance / cpuBudget;
+		}
+		if (allocationBudget > 0 && allocationBalance < 0) {
+			nanos = Math.max(nanos, -allocationBalance / allocationBudget * 1e9);
+		}
+		return (long) Math.ceil(nanos / 1000000);
+	}
+
+	/**
+	 * Refills the budget for the time elapsed since the last refill, and rolls
+	 * the usage window
+	 */
+	private void refill(long now) {
+		long elapsed = now - lastRefill;
+		if (elapsed > 0) {
+			lastRefill = now;
+			cpuBalance = Math.min(cpuBudget * BURST_NANOS, cpuBalance + elapsed
+					* cpuBudget);
+			allocationBalance = Math.min(allocationBudget, allocationBalance
+					+ elapsed * allocationBudget / 1e9);
+		}
+
+		long window = now - windowStart;
+		if (window >= WINDOW_NANOS) {
+			cpuUsage = (double) windowCpu / window;
+			allocationRate = (long) (windowAllocated * 1e9 / window);
+			windowStart = now;
+			windowCpu = 0;
+			windowAllocated = 0;
+		}
+	}
+
+	/**
+	 * The cpu used by the agent threads over the last completed window of
+	 * {@link #WINDOW_NANOS}, or since the start if none is complete yet
+	 * 
+	 * @return the fraction of one core used
+	 */
+	public synchronized double getCpuUsage() {
+		long now = System.nanoTime();
+		refill(now);
+		if (cpuUsage < 0) {
+			long window = now - windowStart;
+			return window > 0 ? (double) windowCpu / window : 0;
+		}
+		return cpuUsage;
+	}
+
+	/**
+	 * The memory allocated by the agent threads over the last completed window
+	 * of {@link #WINDOW_NANOS}, or since the start if none is complete yet
+	 * 
+	 * @return the bytes allocated per second
+	 */
+	public synchronized long getAllocationRate() {
+		long now = System.nanoTime();
+		refill(now);
+		if (cpuUsage < 0) {
+			long window = now - windowStart;
+			return window > 0 ? (long) (windowAllocated * 1e9 / window) : 0;
+		}
+		return allocationRate;
+	}
+
+	/**
+	 * The cpu time used by the agent threads since the start
+	 * 
+	 * @return the cpu time (ns)
+	 */
+	public synchronized long getCpuNanos() {
+		return cpuNanos;
+	}
+
+	/**
+	 * The memory allocated by the agent threads since the start
+	 * 
+	 * @return the bytes allocated, 0 if the jvm does not count them
+	 */
+	public synchronized long getAllocatedBytes() {
+		return allocated;
+	}
+
+	/**
+	 * The number of scheduled checks delayed beyond their period to stay
+	 * within budget
+	 * 
+	 * @return the delayed checks
+	 */
+	public synchronized long getThrottled() {
+		return throttled;
+	}
+
+	/**
+	 * The budget of cpu in force
+	 * 
+	 * @return the fraction of one core, 0 if unlimited
+	 */
+	public synchronized double getCpuBudget() {
+		return cpuBudget;
+	}
+
+	/**
+	 * The budget of allocated memory in force
+	 * 
+	 * @return the bytes per second, 0 if unlimited
+	 */
+	public synchronized long getAllocationBudget() {
+		return (long) allocationBudget;
+	}
+
+	/**
+	 * What the current thread has used so far
+	 */
+	public final class Sample {
+
+		private final long wall;
+		private final long cpu;
+		private final long bytes;
+
+		private Sample() {
+			this.wall = System.nanoTime();
+			this.cpu = cpuMeasured ? threads.getCurrentThreadCpuTime() : -1;
+			this.bytes = getAllocatedBytes(Thread.currentThread());
+		}
+
+		private long getAllocatedBytes(Thread thread) {
+			if (allocatedBytes == null) {
+				return -1;
+			}
+			try {
+				return ((Long) allocatedBytes.invoke(threads, Long.valueOf(thread
+						.getId()))).longValue();
+			} catch (Exception e) {
+				return -1;
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,609 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import it.fridrik.filemonitor.ChangeSet;
+import it.fridrik.filemonitor.ChangeSetListener;
+import it.fridrik.filemonitor.FileMonitor;
+import it.fridrik.filemonitor.FileTree;
+import it.fridrik.filemonitor.JarEvent;
+import it.fridrik.filemonitor.JarModifiedListener;
+import it.fridrik.filemonitor.JarMonitor;
+import it.fridrik.filemonitor.LocalFileTree;
+import it.fridrik.filemonitor.ScanCompletedListener;
+import it.fridrik.filemonitor.StatLimiter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ScanRegistry is the jvm-wide registry of the watched folders. Agents
+ * watching the same folder, even through different paths, share a single
+ * {@link FileMonitor}: the folder is walked once per check, whatever the number
+ * of agents and of file extensions they are interested in, and the snapshot of
+ * the jars it contains is kept once as well.<br/>
+ * Each agent subscribes to the folders it watches and tells its period,
+ * shards and mode. A shared folder is checked with the shortest period and the
+ * highest number of shards among its subscribers, and only the watched files
+ * are checked if every subscriber asks so. Nested folders are not merged: a
+ * folder inside another watched folder gets its own monitor.<br/>
+ * The changes found by a check are notified right away to the scheduled
+ * subscribers and to the ones that asked for the check. The others, checking
+ * the folder only on demand, get them with their next check.
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class ScanRegistry {
+
+	private static final Logger log = Logger.getLogger(ScanRegistry.class
+			.getName());
+
+	private static ScanRegistry instance;
+
+	/**
+	 * Gets the registry shared by all the agents of this jvm
+	 * 
+	 * @return the ScanRegistry instance
+	 */
+	public static synchronized ScanRegistry getInstance() {
+		if (instance == null) {
+			instance = new ScanRegistry(ScanScheduler.getInstance());
+		}
+		return instance;
+	}
+
+	private final ScanScheduler scheduler;
+	private final FileTree tree;
+	private final Map<String, Root> roots;
+
+	/**
+	 * Creates a new registry of folders of the platform file system
+	 * 
+	 * @param scheduler
+	 *          the scheduler running the checks
+	 */
+	ScanRegistry(ScanScheduler scheduler) {
+		this(scheduler, LocalFileTree.getInstance());
+	}
+
+	/**
+	 * Creates a new registry
+	 * 
+	 * @param scheduler
+	 *          the scheduler running the checks, null to check the folders only
+	 *          when a subscriber asks for it (see {@link Subscription#run()}),
+	 *          as a simulation does
+	 * @param tree
+	 *          the file system the folders belong to
+	 */
+	ScanRegistry(ScanScheduler scheduler, FileTree tree) {
+		this.scheduler = scheduler;
+		this.tree = tree;
+		this.roots = new HashMap<String, Root>();
+	}
+
+	/**
+	 * The file system the watched folders belong to
+	 * 
+	 * @return the file tree
+	 */
+	public FileTree getFileTree() {
+		return tree;
+	}
+
+	/**
+	 * Subscribes to the changes of the files with the specified extension. The
+	 * subscription is not scheduled until its period is set
+	 * 
+	 * @param folder
+	 *          the absolute path of the folder
+	 * @param extension
+	 *          the file extension
+	 * @param changeListener
+	 *          notified of the changes of the files with the extension
+	 * @param scanListener
+	 *          notified at the end of each check of the folder
+	 * @return the subscription
+	 */
+	public synchronized Subscription subscribe(String folder, String extension,
+			ChangeSetListener changeListener, ScanCompletedListener scanListener) {
+		Root root = getRoot(folder);
+		root.monitor.addExtension(extension);
+		Subscription subscription = new Subscription(root, extension,
+				changeListener, null, scanListener);
+		root.monitor.addChangeSetListener(subscription.changeListener);
+		root.monitor.addScanCompletedListener(scanListener);
+		root.subscriptions.add(subscription);
+		return subscription;
+	}
+
+	/**
+	 * Subscribes to the changes of the classes in the jars of a folder. The
+	 * subscription is not scheduled until its period is set
+	 * 
+	 * @param folder
+	 *          the absolute path of the folder
+	 * @param jarListener
+	 *          notified of each changed jar entry
+	 * @param scanListener
+	 *          notified at the end of each check of the folder, once the jar
+	 *          entries have been notified
+	 * @return the subscription
+	 */
+	public synchronized Subscription subscribeJars(String folder,
+			JarModifiedListener jarListener, ScanCompletedListener scanListener) {
+		Root root = getRoot(folder);
+		if (root.jarMonitor == null) {
+			root.jarMonitor = new JarMonitor(root.monitor);
+		}
+		Subscription subscription = new Subscription(root, null, null,
+				jarListener, scanListener);
+		root.jarMonitor.addJarModifiedListener(jarListener);
+		root.jarMonitor.addScanCompletedListener(scanListener);
+		root.subscriptions.add(subscription);
+		return subscription;
+	}
+
+	/**
+	 * Checks the folders of some subscriptions right now, each folder once even
+	 * when shared by several of them. Besides the scheduled subscribers, the
+	 * changes found are notified to these subscriptions only, together with
+	 * the ones kept for them since their previous check
+	 * 
+	 * @param subscriptions
+	 *          the subscriptions asking for the check
+	 */
+	public void run(Subscription... subscriptions) {
+		List<Root> checked = new ArrayList<Root>();
+		for (Subscription subscription : subscriptions) {
+			if (!checked.contains(subscription.root)) {
+				checked.add(subscription.root);
+			}
+		}
+
+		for (Root root : checked) {
+			synchronized (root.monitor) {
+				List<JarFile> opened = new ArrayList<JarFile>();
+				for (Subscription subscription : subscriptions) {
+					if (subscription.root == root) {
+						root.requesters.add(subscription);
+						if (subscription.jarListener != null) {
+							subscription.jarListener.flush(opened);
+						}
+					}
+				}
+				try {
+					root.monitor.run();
+				} finally {
+					root.requesters.clear();
+					for (JarFile file : opened) {
+						try {
+							file.close();
+						} catch (IOException e) {
+							log.log(Level.FINE, "error", e);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * The number of folders currently watched
+	 * 
+	 * @return the number of distinct folders
+	 */
+	public synchronized int getRoots() {
+		return roots.size();
+	}
+
+	private Root getRoot(String folder) {
+		String key = tree.getCanonicalPath(folder);
+		Root root = roots.get(key);
+		if (root == null) {
+			root = new Root(key, new FileMonitor(tree, folder));
+			root.monitor.setScanTracer(Telemetry.getInstance());
+			roots.put(key, root);
+		}
+		return root;
+	}
+
+	/**
+	 * A watched folder, with its monitors and subscriptions
+	 */
+	private class Root {
+
+		final String key;
+		final FileMonitor monitor;
+		final List<Subscription> subscriptions;
+		final Set<Subscription> requesters;
+		JarMonitor jarMonitor;
+		ScanScheduler.Task task;
+
+		Root(String key, FileMonitor monitor) {
+			this.key = key;
+			this.monitor = monitor;
+			this.subscriptions = new ArrayList<Subscription>();
+			this.requesters = new HashSet<Subscription>();
+		}
+
+		/**
+		 * Applies the settings of the subscriptions to the monitor and its task
+		 */
+		void update() {
+			int period = 0;
+			int shards = 1;
+			boolean selective = !subscriptions.isEmpty();
+			StatLimiter limiter = null;
+			for (Subscription subscription : subscriptions) {
+				if (subscription.period > 0) {
+					period = period == 0 ? subscription.period : Math.min(period,
+							subscription.period);
+					shards = Math.max(shards, subscription.shards);
+				}
+				selective &= subscription.selective;
+				if (limiter == null) {
+					limiter = subscription.limiter;
+				}
+			}
+
+			int subPeriod = Math.max(1, period / shards);
+			monitor.setShards(shards);
+			monitor.setCoverageWindow(period + subPeriod);
+			monitor.setSelective(selective);
+			monitor.setStatLimiter(limiter);
+
+			if (scheduler == null) {
+				return;
+			}
+			if (period == 0) {
+				if (task != null) {
+					task.cancel();
+					task = null;
+				}
+			} else if (task == null) {
+				task = scheduler.schedule(key, monitor, subPeriod);
+			} else if (task.getPeriod() != subPeriod) {
+				task.setPeriod(subPeriod);
+			}
+		}
+
+		void remove(Subscription subscription) {
+			if (subscription.jarListener != null) {
+				jarMonitor.removeJarModifiedListener(subscription.jarListener);
+				jarMonitor.removeScanCompletedListener(subscription.scanListener);
+			} else {
+				monitor.removeChangeSetListener(subscription.changeListener);
+				monitor.removeScanCompletedListener(subscription.scanListener);
+			}
+			subscriptions.remove(subscription);
+
+			if (!subscriptions.isEmpty()) {
+				update();
+				return;
+			}
+			if (task != null) {
+				task.cancel();
+				task = null;
+			}
+			if (jarMonitor != null) {
+				jarMonitor.detach();
+				jarMonitor.clear();
+			}
+			monitor.clear();
+			roots.remove(key);
+		}
+
+	}
+
+	/**
+	 * The interest of an agent in a watched folder
+	 */
+	public class Subscription {
+
+		private final Root root;
+		private final ChangeGate changeListener;
+		private final JarGate jarListener;
+		private final ScanCompletedListener scanListener;
+		private volatile int period;
+		private int shards;
+		private boolean selective;
+		private StatLimiter limiter;
+		private boolean cancelled;
+
+		private Subscription(Root root, String extension,
+				ChangeSetListener changeListener, JarModifiedListener jarListener,
+				ScanCompletedListener scanListener) {
+			this.root = root;
+			this.changeListener = changeListener != null ? new ChangeGate(
+					extension, changeListener) : null;
+			this.jarListener = jarListener != null ? new JarGate(jarListener) : null;
+			this.scanListener = scanListener;
+			this.shards = 1;
+		}
+
+		/**
+		 * Sets how often this subscriber wants the folder checked
+		 * 
+		 * @param period
+		 *          the period between checks (ms), 0 to check only on
+		 *          {@link #run()}
+		 * @param shards
+		 *          the number of shards the folder is split in
+		 * @see FileMonitor#setShards(int)
+		 */
+		public void setSchedule(int period, int shards) {
+			synchronized (ScanRegistry.this) {
+				this.period = period;
+				this.shards = Math.max(1, shards);
+				update();
+			}
+		}
+
+		/**
+		 * Sets whether this subscriber is interested in the watched files only
+		 * 
+		 * @param selective
+		 *          true to check only the watched files
+		 * @see FileMonitor#setSelective(boolean)
+		 */
+		public void setSelective(boolean selective) {
+			synchronized (ScanRegistry.this) {
+				this.selective = selective;
+				update();
+			}
+		}
+
+		/**
+		 * Paces the file system calls of the checks of the folder. When the
+		 * subscribers have different limiters, the first one is used
+		 * 
+		 * @param limiter
+		 *          the limiter, null for no limit
+		 */
+		public void setStatLimiter(StatLimiter limiter) {
+			synchronized (ScanRegistry.this) {
+				this.limiter = limiter;
+				update();
+			}
+		}
+
+		/**
+		 * Adds a file to the ones checked in selective mode
+		 * 
+		 * @param relativePath
+		 *          the path of the file, relative to the folder
+		 * @see FileMonitor#watch(String)
+		 */
+		public void watch(String relativePath) {
+			root.monitor.watch(relativePath);
+		}
+
+		/**
+		 * Adds a file to the ones checked in selective mode, with the
+		 * modification time it had when it was read
+		 * 
+		 * @param relativePath
+		 *          the path of the file, relative to the folder
+		 * @param lastModified
+		 *          the modification time of the file when it was read, 0 if
+		 *          unknown
+		 * @see FileMonitor#watch(String, long)
+		 */
+		public void watch(String relativePath, long lastModified) {
+			root.monitor.watch(relativePath, lastModified);
+		}
+
+		/**
+		 * Checks the folder right now. This subscriber and the scheduled ones are
+		 * notified of the changes found
+		 * 
+		 * @see ScanRegistry#run(Subscription...)
+		 */
+		public void run() {
+			ScanRegistry.this.run(this);
+		}
+
+		/**
+		 * The monitor of the folder, shared with the other subscribers
+		 * 
+		 * @return the file monitor
+		 */
+		public FileMonitor getFileMonitor() {
+			return root.monitor;
+		}
+
+		/**
+		 * The jar monitor of the folder, shared with the other subscribers
+		 * 
+		 * @return the jar monitor, null if nobody subscribed to the jars
+		 */
+		public JarMonitor getJarMonitor() {
+			synchronized (ScanRegistry.this) {
+				return root.jarMonitor;
+			}
+		}
+
+		/**
+		 * Ends this subscription. The folder is no longer checked once its last
+		 * subscription ends
+		 */
+		public void cancel() {
+			synchronized (ScanRegistry.this) {
+				if (!cancelled) {
+					cancelled = true;
+					root.remove(this);
+				}
+			}
+		}
+
+		private void update() {
+			if (!cancelled) {
+				root.update();
+			}
+		}
+
+		/**
+		 * Tells whether the changes found by the running check are notified to
+		 * this subscriber now, or kept for its next check
+		 */
+		private boolean isDue() {
+			return period > 0 || root.requesters.contains(this);
+		}
+
+		/**
+		 * Forwards the changes of the files with an extension, keeping them while
+		 * the subscriber is not due. Only called during a check, holding the
+		 * lock of the monitor
+		 */
+		private class ChangeGate implements ChangeSetListener {
+
+			private final String extension;
+			private final ChangeSetListener listener;
+			private final Map<String, ChangeSet.Change> deleted;
+			private final Map<String, ChangeSet.Change> added;
+			private final Map<String, ChangeSet.Change> modified;
+
+			ChangeGate(String extension, ChangeSetListener listener) {
+				this.extension = extension;
+				this.listener = listener;
+				this.deleted = new LinkedHashMap<String, ChangeSet.Change>();
+				this.added = new LinkedHashMap<String, ChangeSet.Change>();
+				this.modified = new LinkedHashMap<String, ChangeSet.Change>();
+			}
+
+			public void changesFound(ChangeSet changes) {
+				ChangeSet filtered = changes.filter(extension);
+				if (!isDue()) {
+					keep(filtered);
+					return;
+				}
+				if (!deleted.isEmpty() || !added.isEmpty() || !modified.isEmpty()) {
+					keep(filtered);
+					filtered = new ChangeSet(changes.getSource(), changes
+							.getDetectedAt(), new ArrayList<ChangeSet.Change>(deleted
+							.values()), new ArrayList<ChangeSet.Change>(added.values()),
+							new ArrayList<ChangeSet.Change>(modified.values()));
+					deleted.clear();
+					added.clear();
+					modified.clear();
+				}
+				if (!filtered.isEmpty()) {
+					listener.changesFound(filtered);
+				}
+			}
+
+			/**
+			 * Merges the changes with the ones kept so far: a file added and then
+			 * deleted is forgotten, a file deleted and then added is modified
+			 */
+			private void keep(ChangeSet changes) {
+				for (ChangeSet.Change change : changes.getDeleted()) {
+					modified.remove(change.getPath());
+					if (added.remove(change.getPath()) == null) {
+						deleted.put(change.getPath(), change);
+					}
+				}
+				for (ChangeSet.Change change : changes.getAdded()) {
+					if (deleted.remove(change.getPath()) != null) {
+						modified.put(change.getPath(), change);
+					} else {
+						added.put(change.getPath(), change);
+					}
+				}
+				for (ChangeSet.Change change : changes.getModified()) {
+					if (added.containsKey(change.getPath())) {
+						added.put(change.getPath(), change);
+					} else {
+						modified.put(change.getPath(), change);
+					}
+				}
+			}
+
+		}
+
+		/**
+		 * Forwards the changed jar entries, keeping them while the subscriber is
+		 * not due. The jars are closed at the end of each check, so only the
+		 * names are kept and the jars are opened again when the subscriber asks
+		 * for a check
+		 */
+		private class JarGate implements JarModifiedListener {
+
+			private final JarModifiedListener listener;
+			private final Map<String, Map<String, JarEvent>> kept;
+
+			JarGate(JarModifiedListener listener) {
+				this.listener = listener;
+				this.kept = new LinkedHashMap<String, Map<String, JarEvent>>();
+			}
+
+			public void jarModified(JarEvent event) {
+				if (isDue()) {
+					listener.jarModified(event);
+					return;
+				}
+				String jar = event.getPath();
+				Map<String, JarEvent> entries = kept.get(jar);
+				if (entries == null) {
+					entries = new LinkedHashMap<String, JarEvent>();
+					kept.put(jar, entries);
+				}
+				entries.put(event.getEntryName(), event);
+			}
+
+			/**
+			 * Notifies the entries kept so far, from the jars opened again
+			 * 
+			 * @param opened
+			 *          where the opened jars are added, to be closed once the
+			 *          check is over
+			 */
+			void flush(List<JarFile> opened) {
+				for (Map.Entry<String, Map<String, JarEvent>> jar : kept.entrySet()) {
+					JarFile file;
+					try {
+						file = tree.openJar(jar.getKey());
+					} catch (IOException e) {
+						log.log(Level.FINE, "Smith: " + jar.getKey() + " is gone", e);
+						continue;
+					}
+					opened.add(file);
+					for (JarEvent event : jar.getValue().values()) {
+						listener.jarModified(new JarEvent(file, jar.getKey(), event
+								.getEntryName(), event.getLastModified(), event
+								.getDetectedAt()));
+					}
+				}
+				kept.clear();
+			}
+
+		}
+
+	}
+
+}
@@ -0,0 +1,279 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ScanScheduler is the jvm-wide scheduler shared by every Smith agent. A
+ * single timer thread keeps track of when each root has to be scanned; the
+ * scans themselves run on virtual threads when the runtime supports them (java
+ * 21+) and no cpu budget is set, and on a small pool of daemon threads
+ * otherwise. At most N scans run at
+ * the same time (see {@link #CONCURRENCY_PROPERTY}), and the first run of each
+ * root is staggered across its period, so that many agents started together do
+ * not scan all at once.
+ *
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class ScanScheduler {
+
+	/** System property holding the max number of concurrent scans */
+	public static final String CONCURRENCY_PROPERTY = "smith.scan.concurrency";
+
+	private static final int DEFAULT_CONCURRENCY = 2;
+
+	private static final Logger log = Logger.getLogger(ScanScheduler.class
+			.getName());
+
+	private static ScanScheduler instance;
+
+	/**
+	 * Gets the scheduler shared by all the agents of this jvm
+	 *
+	 * @return the ScanScheduler instance
+	 */
+	public static synchronized ScanScheduler getInstance() {
+		if (instance == null) {
+			instance = new ScanScheduler(Integer.getInteger(CONCURRENCY_PROPERTY,
+					DEFAULT_CONCURRENCY).intValue());
+		}
+		return instance;
+	}
+
+	private final ScheduledThreadPoolExecutor timer;
+	private final ExecutorService workers;
+	private final ExecutorService virtualWorkers;
+	private final ExecutorService pollers;
+	private final Semaphore permits;
+	private final AtomicInteger scheduled;
+	private final ResourceGovernor governor;
+
+	/**
+	 * Creates a new scheduler
+	 *
+	 * @param concurrency
+	 *          the max number of scans running at the same time
+	 */
+	ScanScheduler(int concurrency) {
+		this.timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory(
+				"Smith scan timer"));
+		this.workers = Executors.newFixedThreadPool(Math.max(1, concurrency),
+				new DaemonThreadFactory("Smith scan worker"));
+		this.virtualWorkers = newVirtualWorkers();
+		this.pollers = Executors.newCachedThreadPool(new DaemonThreadFactory(
+				"Smith poll"));
+		this.permits = new Semaphore(Math.max(1, concurrency), true);
+		this.scheduled = new AtomicInteger();
+		this.governor = ResourceGovernor.getInstance();
+	}
+
+	/**
+	 * Schedules a root scan. Each run starts the specified period after the end
+	 * of the previous one, so a scan never overlaps with itself. The work done
+	 * by each run is charged to the {@link ResourceGovernor}, which stretches
+	 * the period while the agents are over budget
+	 *
+	 * @param name
+	 *          the name of the work item, used for logging
+	 * @param scan
+	 *          the scan to run
+	 * @param period
+	 *          the delay between the end of a run and the start of the next one
+	 *          (ms)
+	 * @return the handle to cancel the work item
+	 */
+	public Task schedule(String name, Runnable scan, long period) {
+		Task task = new Task(name, scan, period, false);
+		long slot = scheduled.getAndIncrement() % 8;
+		task.arm(period * slot / 8);
+		return task;
+	}
+
+	/**
+	 * Schedules a light poll, such as the check of a journal or of a settings
+	 * file. Polls run on their own threads, neither waiting for the scans
+	 * running nor counting towards their max number, and their period is never stretched by the
+	 * {@link ResourceGovernor}: the changes they find are applied at once,
+	 * however slow the scans of the folders are
+	 *
+	 * @param name
+	 *          the name of the work item, used for logging
+	 * @param poll
+	 *          the poll to run
+	 * @param period
+	 *          the delay between the end of a run and the start of the next one
+	 *          (ms)
+	 * @return the handle to cancel the work item
+	 */
+	public Task schedulePoll(String name, Runnable poll, long period) {
+		Task task = new Task(name, poll, period, true);
+		task.arm(period);
+		return task;
+	}
+
+	/**
+	 * Creates the executor running one virtual thread per scan
+	 *
+	 * @return the executor, null if the runtime has no virtual threads
+	 */
+	private static ExecutorService newVirtualWorkers() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * The executor running the next scan. The jvm does not measure the cpu time
+	 * of virtual threads: the {@link ResourceGovernor} would charge them the
+	 * elapsed time, waits for I/O and stat pacing included, so the scans run on
+	 * the daemon threads while a cpu budget is set
+	 *
+	 * @return the executor
+	 */
+	private ExecutorService getWorkers() {
+		if (virtualWorkers != null && governor.getCpuBudget() <= 0) {
+			return virtualWorkers;
+		}
+		return workers;
+	}
+
+	/**
+	 * A scheduled root scan
+	 */
+	public class Task implements Runnable {
+
+		private final String name;
+		private final Runnable scan;
+		private final boolean poll;
+		private volatile long period;
+		private volatile boolean cancelled;
+		private ScheduledFuture<?> next;
+
+		private Task(String name, Runnable scan, long period, boolean poll) {
+			this.name = name;
+			this.scan = scan;
+			this.period = period;
+			this.poll = poll;
+		}
+
+		/**
+		 * Cancels this work item. A scan already running completes normally
+		 */
+		public synchronized void cancel() {
+			cancelled = true;
+			if (next != null && next.cancel(false)) {
+				// java 5 keeps cancelled runs in the queue until they are due
+				timer.purge();
+			}
+		}
+
+		/**
+		 * Changes the period of this work item, starting from the next run
+		 *
+		 * @param period
+		 *          the new period (ms)
+		 */
+		public synchronized void setPeriod(long period) {
+			this.period = period;
+			if (next != null && next.cancel(false)) {
+				timer.purge();
+				arm(period);
+			}
+		}
+
+		public long getPeriod() {
+			return period;
+		}
+
+		public void run() {
+			boolean acquired = false;
+			try {
+				if (!poll) {
+					permits.acquire();
+					acquired = true;
+				}
+				if (!cancelled) {
+					ResourceGovernor.Sample sample = governor.start();
+					try {
+						scan.run();
+					} finally {
+						governor.charge(sample);
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Throwable t) {
+				log.log(Level.SEVERE, "Scan of " + name + " failed", t);
+			} finally {
+				if (acquired) {
+					permits.release();
+				}
+				arm(poll ? period : governor.stretch(period));
+			}
+		}
+
+		private synchronized void arm(long delay) {
+			if (!cancelled) {
+				next = timer.schedule(new Runnable() {
+
+					public void run() {
+						(poll ? pollers : getWorkers()).execute(Task.this);
+					}
+
+				}, delay, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+
+	}
+
+	static class DaemonThreadFactory implements ThreadFactory {
+
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, name + " " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+}
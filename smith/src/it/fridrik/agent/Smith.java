@@ -16,27 +16,46 @@
  */
 package it.fridrik.agent;
 
+import it.fridrik.filemonitor.ChangeSet;
+import it.fridrik.filemonitor.ChangeSetListener;
 import it.fridrik.filemonitor.FileEvent;
 import it.fridrik.filemonitor.FileModifiedListener;
 import it.fridrik.filemonitor.FileMonitor;
+import it.fridrik.filemonitor.FileTree;
 import it.fridrik.filemonitor.JarEvent;
 import it.fridrik.filemonitor.JarModifiedListener;
 import it.fridrik.filemonitor.JarMonitor;
+import it.fridrik.filemonitor.ScanCompletedListener;
+import it.fridrik.filemonitor.ScanEvent;
+import it.fridrik.filemonitor.StatLimiter;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.lang.instrument.ClassDefinition;
 import java.lang.instrument.Instrumentation;
 import java.lang.instrument.UnmodifiableClassException;
-import java.util.Enumeration;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EventObject;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.Vector;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.logging.ConsoleHandler;
@@ -53,11 +72,15 @@ import java.util.logging.Logger;
  * @see JarMonitor
  * @since 1.0
  */
-public class Smith implements FileModifiedListener, JarModifiedListener {
+public class Smith implements FileModifiedListener, JarModifiedListener,
+		ScanCompletedListener {
 
 	/** Min period allowed */
 	private static final int MONITOR_PERIOD_MIN_VALUE = 500;
 
+	/** Max number of failures remembered */
+	private static final int MAX_FAILURES = 20;
+
 	/** Lists of active Smith agents */
 	private static Vector<Smith> smiths = new Vector<Smith>();
 
@@ -71,7 +94,8 @@ public class Smith implements FileModifiedListener, JarModifiedListener {
 		initialize(agentArgs, inst);
 	}
 
-	private static void initialize(String agentArgs, Instrumentation inst) {
+	private static synchronized void initialize(String agentArgs,
+			Instrumentation inst) {
 		SmithArgs args = new SmithArgs(agentArgs);
 
 		if (!args.isValid()) {
@@ -79,22 +103,224 @@ public class Smith implements FileModifiedListener, JarModifiedListener {
 					"Your parameters are invalid! Check the documentation for the correct syntax");
 		}
 
-		Smith smith = new Smith(inst, args);
-		smiths.add(smith);
+		if (args.getBundle() != null) {
+			applyBundle(args);
+			return;
+		}
+
+		Smith smith = find(args);
+		if (smith != null) {
+			smith.reconfigure(args);
+		} else {
+			smith = new Smith(inst, args);
+			smiths.add(smith);
+		}
+	}
+
+	/**
+	 * Applies the patch bundle named by the arguments with the agent already
+	 * running, the one watching the folders the arguments name or the only one
+	 * when they name none. The agent is neither started nor reconfigured: only
+	 * the bundle related arguments are considered. When a receipt folder is
+	 * given, the classes changed are written to a file named after the PID of
+	 * the jvm, empty if the bundle has not been applied. A failure is rethrown,
+	 * so that the tool loading the agent knows the bundle has not been applied
+	 * 
+	 * @param args
+	 *          the {@link SmithArgs} instance
+	 */
+	private static void applyBundle(SmithArgs args) {
+		List<String> changed = Collections.emptyList();
+		try {
+			Smith smith = args.getClassFolder() != null ? find(args) : getOnlyAgent();
+			if (smith == null) {
+				throw new IllegalStateException(
+						"No Smith agent running to apply the bundle with");
+			}
+			PatchBundle bundle = PatchBundle.read(new File(args.getBundle()));
+			changed = smith.applyBundle(args.isRevert() ? bundle.reverse() : bundle,
+					args.isForce());
+		} catch (Exception e) {
+			log.log(Level.SEVERE, "Smith: patch bundle " + args.getBundle()
+					+ " not applied", e);
+			throw new RuntimeException("Unable to apply patch bundle "
+					+ args.getBundle(), e);
+		} finally {
+			if (args.getReceipt() != null) {
+				writeReceipt(new File(args.getReceipt(), currentPid()),
+						changed);
+			}
+		}
+	}
+
+	/**
+	 * Gets the only active Smith agent
+	 * 
+	 * @return the agent, null if none or more than one is active
+	 */
+	private static Smith getOnlyAgent() {
+		synchronized (smiths) {
+			return smiths.size() == 1 ? smiths.get(0) : null;
+		}
+	}
+
+	/**
+	 * Writes the classes a patch bundle has changed, one per line. The receipt
+	 * is written aside and renamed, so that it is never read half written
+	 * 
+	 * @param receipt
+	 *          the receipt file
+	 * @param classNames
+	 *          the fully qualified names of the classes changed
+	 */
+	private static void writeReceipt(File receipt, List<String> classNames) {
+		File temp = new File(receipt.getPath() + ".tmp");
+		try {
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(
+					new FileOutputStream(temp), "UTF-8"));
+			try {
+				for (String className : classNames) {
+					out.println(className);
+				}
+			} finally {
+				out.close();
+			}
+			if (out.checkError() || !temp.renameTo(receipt)) {
+				throw new IOException("Unable to write " + receipt);
+			}
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Smith: patch bundle receipt not written", e);
+		}
+	}
+
+	/**
+	 * Looks for an active Smith agent watching the same folders the specified
+	 * arguments refer to
+	 * 
+	 * @param args
+	 *          the {@link SmithArgs} instance
+	 * @return the matching agent or null if none matches
+	 */
+	private static Smith find(SmithArgs args) {
+		String classRoot = canonicalPath(args.getClassFolder());
+		String jarRoot = canonicalPath(args.getJarFolder());
+		synchronized (smiths) {
+			for (Smith smith : smiths) {
+				if (classRoot.equals(canonicalPath(smith.classFolder))
+						&& (jarRoot == null ? smith.jarFolder == null : jarRoot
+								.equals(canonicalPath(smith.jarFolder)))) {
+					return smith;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the active Smith agents
+	 * 
+	 * @return a snapshot of the active agents
+	 */
+	public static List<Smith> getAgents() {
+		synchronized (smiths) {
+			return new ArrayList<Smith>(smiths);
+		}
+	}
+
+	/**
+	 * Gets the PID of the current jvm, through ProcessHandle when running on
+	 * java 9+ and through the runtime name (pid@host) otherwise
+	 * 
+	 * @return the PID of the current jvm
+	 */
+	public static String currentPid() {
+		try {
+			Class<?> processHandle = Class.forName("java.lang.ProcessHandle");
+			Object current = processHandle.getMethod("current").invoke(null);
+			return String.valueOf(processHandle.getMethod("pid").invoke(current));
+		} catch (Exception e) {
+			String name = ManagementFactory.getRuntimeMXBean().getName();
+			return name.substring(0, name.indexOf('@'));
+		}
 	}
 
 	/** Stops all active Smith agents */
-	public static void stopAll() {
-		for (Smith smith : smiths) {
+	public static synchronized void stopAll() {
+		for (Smith smith : smiths.toArray(new Smith[smiths.size()])) {
 			smith.stop();
 		}
+		smiths.clear();
+		if (consoleHandler != null) {
+			log.removeHandler(consoleHandler);
+			consoleHandler.close();
+			consoleHandler = null;
+		}
+	}
+
+	/**
+	 * Sets the log level shared by all the agents, installing the console
+	 * handler the first time
+	 * 
+	 * @param level
+	 *          the log level
+	 */
+	private static synchronized void configureLogging(Level level) {
+		if (consoleHandler == null) {
+			consoleHandler = new ConsoleHandler();
+			log.setUseParentHandlers(false);
+			log.addHandler(consoleHandler);
+		}
+		consoleHandler.setLevel(level);
+		log.setLevel(level);
+	}
+
+	private static String canonicalPath(String folder) {
+		if (folder == null) {
+			return null;
+		}
+		try {
+			return new File(folder).getCanonicalPath();
+		} catch (IOException e) {
+			return new File(folder).getAbsolutePath();
+		}
 	}
 
 	private static final Logger log = Logger.getLogger(Smith.class.getName());
+	private static ConsoleHandler consoleHandler;
 	private final Instrumentation inst;
+	private final ScanRegistry registry;
+	private final FileTree fileTree;
+	private final Telemetry telemetry;
+	private final Latencies latencies;
+	private final ClassHistory history;
+	private final RedefinitionPacer pacer;
+	private final ClassDiff diff;
+	private volatile ReferenceIndex references;
+	private final ResourceGovernor governor;
+	private WatchedClassTransformer transformer;
+	private volatile boolean loadedOnly;
+	private final Map<String, ScanEvent> lastScans;
+	private final Map<String, List<PatchBundle.Entry>> patches;
+	private final Map<String, byte[]> versions;
+	private volatile boolean recording;
+	private final LinkedList<Failure> failures;
+	private final Set<String> awaitingRestart;
 	private final String classFolder;
 	private final String jarFolder;
-	private final ScheduledExecutorService service;
+	private final ScanRegistry.Subscription classes;
+	private final ScanRegistry.Subscription jars;
+	private final StatLimiter statLimiter;
+	private int monitorPeriod;
+	private int shards;
+	private ScanScheduler.Task triggerTask;
+	private BuildTrigger trigger;
+	private ScanScheduler.Task followerTask;
+	private JournalFollower follower;
+	private ScanScheduler.Task configTask;
+	private ConfigWatcher configWatcher;
+	private volatile RootConfig classesConfig;
+	private volatile RootConfig jarsConfig;
+	private SmithPushServer pushServer;
 
 	/**
 	 * Creates and starts a new Smith agent. Please note that periods smaller than
@@ -106,182 +332,1932 @@ public class Smith implements FileModifiedListener, JarModifiedListener {
 	 *          the {@link SmithArgs} instance
 	 */
 	public Smith(Instrumentation inst, SmithArgs args) {
+		this(inst, args, ScanRegistry.getInstance());
+	}
+
+	/**
+	 * Creates and starts a new Smith agent, watching the folders of a registry
+	 * other than the jvm-wide one. Along with a recording Instrumentation, this
+	 * lets simulations drive the agent over a simulated file system
+	 * 
+	 * @param inst
+	 *          the instrumentation implementation
+	 * @param args
+	 *          the {@link SmithArgs} instance
+	 * @param registry
+	 *          the registry of the watched folders
+	 */
+	Smith(Instrumentation inst, SmithArgs args, ScanRegistry registry) {
+		if (args.getConfig() != null) {
+			configWatcher = new ConfigWatcher(this, args);
+			args = configWatcher.load();
+		}
 		this.inst = inst;
+		this.registry = registry;
+		this.fileTree = registry.getFileTree();
+		this.telemetry = Telemetry.getInstance();
+		this.latencies = new Latencies();
+		this.lastScans = new ConcurrentHashMap<String, ScanEvent>();
+		this.patches = new ConcurrentHashMap<String, List<PatchBundle.Entry>>();
+		this.versions = new ConcurrentHashMap<String, byte[]>();
+		this.failures = new LinkedList<Failure>();
+		this.awaitingRestart = new TreeSet<String>();
 		this.classFolder = args.getClassFolder();
 		this.jarFolder = args.getJarFolder();
-		int monitorPeriod = MONITOR_PERIOD_MIN_VALUE;
-		if (args.getPeriod() > monitorPeriod) {
-			monitorPeriod = args.getPeriod();
-		}
-		log.setUseParentHandlers(false);
-		log.setLevel(args.getLogLevel());
-		ConsoleHandler consoleHandler = new ConsoleHandler();
-		consoleHandler.setLevel(args.getLogLevel());
-		log.addHandler(consoleHandler);
+		this.pacer = new RedefinitionPacer(args);
+		this.diff = new ClassDiff(args.getDiff());
+		this.governor = ResourceGovernor.getInstance();
+		governor.setBudget(this, args.getCpuBudget(), args.getAllocationBudget());
+		this.statLimiter = new StatLimiter(args.getMaxStats());
+		this.shards = args.getShards();
+		this.classesConfig = new RootConfig(args, SmithArgs.ROOT_CLASSES);
+		this.jarsConfig = new RootConfig(args, SmithArgs.ROOT_JARS);
+		configureLogging(args.getLogLevel());
+
+		classes = registry.subscribe(classFolder, "class", new ChangeSetListener() {
 
-		service = Executors.newScheduledThreadPool(2);
+			public void changesFound(ChangeSet changes) {
+				redefineChanges(changes);
+			}
 
-		FileMonitor fileMonitor = new FileMonitor(classFolder, "class");
-		fileMonitor.addModifiedListener(this);
-		service.scheduleWithFixedDelay(fileMonitor, 0, monitorPeriod,
-				TimeUnit.MILLISECONDS);
+		}, this);
+		classes.setStatLimiter(statLimiter);
 
 		if (jarFolder != null) {
-			JarMonitor jarMonitor = new JarMonitor(jarFolder);
-			jarMonitor.addJarModifiedListener(this);
-			service.scheduleWithFixedDelay(jarMonitor, 0, monitorPeriod,
-					TimeUnit.MILLISECONDS);
+			ChangeCollector jarChanges = new ChangeCollector();
+			jars = registry.subscribeJars(jarFolder, jarChanges, jarChanges);
+			// a walk shared with the classes is already reported by them
+			jarChanges.reportScans = jars.getFileMonitor() != classes
+					.getFileMonitor();
+			jars.setStatLimiter(statLimiter);
+		} else {
+			jars = null;
+		}
+
+		if (args.getHistory() > 0) {
+			history = new ClassHistory(args.getHistory(), args.isHistoryOffHeap());
+			installTransformer();
+		} else {
+			history = null;
+		}
+		if (diff.isEnabled()) {
+			installTransformer();
+		}
+		if (args.isDependents()) {
+			references = new ReferenceIndex();
+			installTransformer();
+			indexLoadedClasses(references);
+		}
+		recording = args.isBundles();
+		if (recording) {
+			installTransformer();
+		}
+		setMode(args);
+
+		schedule(toMonitorPeriod(args.getPeriod()));
+
+		if (args.getPort() >= 0) {
+			pushServer = startPushServer(args.getPort());
+		}
+		if (configWatcher != null) {
+			configTask = ScanScheduler.getInstance().schedulePoll(
+					configWatcher.getConfig(), configWatcher, ConfigWatcher.PERIOD);
 		}
 
 		log.info("Smith: watching class folder: " + classFolder);
 		log.info("Smith: watching jars folder: " + jarFolder);
 		log.info("Smith: period between checks (ms): " + monitorPeriod);
+		log.info("Smith: mode: " + getMode());
+		if (trigger != null) {
+			log.info("Smith: build marker: " + trigger.getMarker());
+		}
+		if (follower != null) {
+			log.info("Smith: change journal: " + follower.getJournal());
+		}
 		log.info("Smith: log level: " + log.getLevel());
+		if (configWatcher != null) {
+			log.info("Smith: settings file: " + configWatcher.getConfig());
+		}
+		if (diff.isEnabled()) {
+			log.info("Smith: class diff: " + args.getDiff());
+		}
+		if (references != null) {
+			log.info("Smith: redefining the dependents of changed constants");
+		}
+		if (args.getCpuBudget() > 0 || args.getAllocationBudget() > 0) {
+			log.info("Smith: cpu budget (cores): " + args.getCpuBudget()
+					+ ", allocation budget (bytes/s): " + args.getAllocationBudget());
+		}
+		if (history != null) {
+			log.info("Smith: bytecode history (bytes): " + args.getHistory());
+		}
 	}
 
 	/**
-	 * Stops this Smith agent
+	 * Applies new arguments to this running agent. The watched folders cannot
+	 * change, while period, mode, log level, pause budget, root settings, class
+	 * diff, dependents, resource budget and push channel are updated on the
+	 * fly. When the arguments name a properties file, its settings override the
+	 * arguments
+	 * 
+	 * @param args
+	 *          the {@link SmithArgs} instance
 	 */
-	public void stop() {
-		service.shutdown();
+	public synchronized void reconfigure(SmithArgs args) {
+		setConfig(args);
+		configure(configWatcher != null ? configWatcher.load() : args);
 	}
 
 	/**
-	 * When the monitor notifies of a changed class file, Smith will redefine it
+	 * Starts, replaces or stops the watcher of the properties file
+	 * 
+	 * @param args
+	 *          the {@link SmithArgs} instance
 	 */
-	public void fileModified(FileEvent event) {
-		redefineClass(toClassName(event.getSource()), event);
+	private void setConfig(SmithArgs args) {
+		if (configWatcher != null
+				&& args.getConfig() != null
+				&& configWatcher.getConfig().equals(
+						new File(args.getConfig()).getAbsolutePath())) {
+			configWatcher.setBase(args);
+			return;
+		}
+
+		if (configTask != null) {
+			configTask.cancel();
+			configTask = null;
+		}
+		configWatcher = null;
+		if (args.getConfig() != null) {
+			configWatcher = new ConfigWatcher(this, args);
+			configTask = ScanScheduler.getInstance().schedulePoll(
+					configWatcher.getConfig(), configWatcher, ConfigWatcher.PERIOD);
+		}
 	}
 
 	/**
-	 * When the monitor notifies of a changed jar file, Smith will redefine the
-	 * changed class file the jar contains
+	 * Applies new arguments, already merged with the properties file
+	 * 
+	 * @param args
+	 *          the {@link SmithArgs} instance
 	 */
-	public void jarModified(JarEvent event) {
-		redefineClass(toClassName(event.getEntryName()), event);
+	synchronized void configure(SmithArgs args) {
+		configureLogging(args.getLogLevel());
+		pacer.configure(args);
+		diff.setPolicy(args.getDiff());
+		governor.setBudget(this, args.getCpuBudget(), args.getAllocationBudget());
+		if (diff.isEnabled()) {
+			installTransformer();
+		}
+		if (args.isBundles() && !recording) {
+			recording = true;
+			installTransformer();
+		}
+		if (!args.isDependents()) {
+			references = null;
+		} else if (references == null) {
+			references = new ReferenceIndex();
+			installTransformer();
+			indexLoadedClasses(references);
+		}
+
+		statLimiter.setRate(args.getMaxStats());
+		shards = args.getShards();
+		classesConfig = new RootConfig(args, SmithArgs.ROOT_CLASSES);
+		jarsConfig = new RootConfig(args, SmithArgs.ROOT_JARS);
+		schedule(toMonitorPeriod(args.getPeriod()));
+		setMode(args);
+
+		int currentPort = pushServer != null ? pushServer.getPort() : -1;
+		if (args.getPort() != currentPort && !(args.getPort() == 0 && currentPort > 0)) {
+			if (pushServer != null) {
+				pushServer.close();
+				pushServer = null;
+			}
+			if (args.getPort() >= 0) {
+				pushServer = startPushServer(args.getPort());
+			}
+		}
+
+		log.info("Smith: reconfigured agent watching class folder: " + classFolder);
+		log.info("Smith: period between checks (ms): " + monitorPeriod);
+		log.info("Smith: classes folder: " + classesConfig);
+		if (jars != null) {
+			log.info("Smith: jars folder: " + jarsConfig);
+		}
+		log.info("Smith: log level: " + log.getLevel());
 	}
 
 	/**
-	 * Redefines the specified class
+	 * Stops this Smith agent, releasing its monitors and push channel
+	 */
+	public synchronized void stop() {
+		cancelTasks();
+		if (configTask != null) {
+			configTask.cancel();
+			configTask = null;
+		}
+		if (follower != null) {
+			follower.close();
+		}
+		if (pushServer != null) {
+			pushServer.close();
+			pushServer = null;
+		}
+		classes.cancel();
+		if (jars != null) {
+			jars.cancel();
+		}
+		if (transformer != null) {
+			inst.removeTransformer(transformer);
+		}
+		governor.removeBudget(this);
+		smiths.remove(this);
+	}
+
+	/**
+	 * Subscribes the watched folders to the checks of the shared
+	 * {@link ScanRegistry} or, in {@link SmithArgs#MODE_MARKER}, schedules the
+	 * build trigger on the shared {@link ScanScheduler}, while the folders are
+	 * checked only when the build asks for it. In
+	 * {@link SmithArgs#MODE_JOURNAL} the folders are not checked at all, the
+	 * journal follower being polled instead. The monitors keep their state, so
+	 * rescheduling does not trigger a full set of notifications. When the
+	 * folders are split in shards, the monitors run shards times per period,
+	 * checking one shard each time, while the build trigger always checks the
+	 * whole folders. Each folder is checked with its own period, and not at all
+	 * when disabled
 	 * 
-	 * @param className
-	 *          the class name to redefine
-	 * @param event
-	 *          the event which contains the info to access the modified class
-	 *          files
-	 * @throws IOException
-	 *           if the inputstream is someway unreadable
-	 * @throws ClassNotFoundException
-	 *           if the class name cannot be found
-	 * @throws UnmodifiableClassException
-	 *           if the class is unmodifiable
+	 * @param period
+	 *          the period between checks (ms)
 	 */
-	protected void redefineClass(String className, EventObject event) {
-		Class[] loadedClasses = inst.getAllLoadedClasses();
-		for (Class<?> clazz : loadedClasses) {
-			if (clazz.getName().equals(className)) {
-				try {
-					ClassDefinition definition = new ClassDefinition(clazz,
-							getByteArrayOutOf(event));
-					inst.redefineClasses(new ClassDefinition[] { definition });
+	private synchronized void schedule(int period) {
+		monitorPeriod = period;
+		classes.setSchedule(getFolderPeriod(classesConfig), shards);
+		if (jars != null) {
+			jars.setSchedule(getFolderPeriod(jarsConfig), shards);
+		}
 
-					if (log.isLoggable(Level.FINE)) {
-						log.log(Level.FINE, "Redefined: " + clazz.getName());
-					}
-				} catch (Exception e) {
-					log.log(Level.SEVERE, "error", e);
-				}
+		if (follower != null && followerTask == null) {
+			followerTask = ScanScheduler.getInstance().schedulePoll(
+					follower.getJournal(), follower, JournalFollower.PERIOD);
+		}
+		if (trigger == null) {
+			return;
+		}
+		if (triggerTask != null) {
+			if (triggerTask.getPeriod() != period) {
+				triggerTask.setPeriod(period);
 			}
+		} else {
+			triggerTask = ScanScheduler.getInstance().schedule(trigger.getMarker(),
+					trigger, period);
+		}
+	}
+
+	private int getFolderPeriod(RootConfig config) {
+		if (trigger != null || follower != null || !config.enabled) {
+			return 0;
+		}
+		return config.period;
+	}
+
+	private synchronized void cancelTasks() {
+		if (triggerTask != null) {
+			triggerTask.cancel();
+			triggerTask = null;
+		}
+		if (followerTask != null) {
+			followerTask.cancel();
+			followerTask = null;
 		}
 	}
 
 	/**
-	 * Factory method. Depending on the event implementation, retrieves the byte
-	 * array of the changed class
+	 * Switches between the modes the watched folders are checked with:
+	 * <ul>
+	 * <li>{@link SmithArgs#MODE_SCAN}: the monitors walk the whole folders</li>
+	 * <li>{@link SmithArgs#MODE_LOADED}: the monitors check only the files of the
+	 * loaded classes. The transformer tells Smith about the classes loaded from
+	 * now on, while the classes already loaded are looked up once. Classes added
+	 * to the folders are therefore watched only when the jvm loads them</li>
+	 * <li>{@link SmithArgs#MODE_MARKER}: only the marker file of the build is
+	 * checked, see {@link BuildTrigger}. Without a marker file, the folders are
+	 * scanned</li>
+	 * <li>{@link SmithArgs#MODE_JOURNAL}: the folders are not checked, the
+	 * classes published in the journal by a {@link SmithWatcher} are redefined
+	 * instead, see {@link JournalFollower}. Without a journal, the folders are
+	 * scanned</li>
+	 * </ul>
 	 * 
-	 * @param event
-	 *          the event to analize
-	 * @return the byte array of the changed class file
-	 * @throws IOException
-	 *           if some problems occur while opening the class file for reading
+	 * @param args
+	 *          the {@link SmithArgs} instance
 	 */
-	private byte[] getByteArrayOutOf(EventObject event) throws IOException {
-		if (event instanceof FileEvent) {
-			return toByteArray(new FileInputStream(new File(classFolder
-					+ event.getSource())));
+	private synchronized void setMode(SmithArgs args) {
+		BuildTrigger newTrigger = null;
+		if (SmithArgs.MODE_MARKER.equals(args.getMode())) {
+			if (args.getMarker() != null) {
+				newTrigger = new BuildTrigger(this, args.getMarker(), args
+						.getChangeList());
+			} else {
+				log.warning("Smith: no marker file given, scanning the folders");
+			}
+		}
+		boolean sameTrigger = newTrigger == null ? trigger == null : newTrigger
+				.isSameBuild(trigger);
 
-		} else if (event instanceof JarEvent) {
-			JarEvent jarEvent = (JarEvent) event;
-			JarFile jar = jarEvent.getSource();
-			return toByteArray(jar.getInputStream(getJarEntry(jar, jarEvent
-					.getEntryName())));
+		JournalFollower newFollower = null;
+		if (SmithArgs.MODE_JOURNAL.equals(args.getMode())) {
+			if (args.getJournal() != null) {
+				newFollower = new JournalFollower(this, args.getJournal());
+			} else {
+				log.warning("Smith: no journal given, scanning the folders");
+			}
 		}
+		boolean sameFollower = newFollower == null ? follower == null
+				: follower != null
+						&& newFollower.getJournal().equals(follower.getJournal());
 
-		throw new IllegalArgumentException("Event of type "
-				+ event.getClass().getName() + " is not supported");
+		if (!sameTrigger || !sameFollower) {
+			cancelTasks();
+			if (!sameTrigger) {
+				trigger = newTrigger;
+			}
+			if (!sameFollower) {
+				if (follower != null) {
+					follower.close();
+				}
+				follower = newFollower;
+			}
+			if (monitorPeriod > 0) {
+				schedule(monitorPeriod);
+			}
+		}
+
+		boolean loaded = SmithArgs.MODE_LOADED.equals(args.getMode());
+		if (loaded == loadedOnly) {
+			return;
+		}
+
+		loadedOnly = loaded;
+		if (loaded) {
+			installTransformer();
+			watchLoadedClasses();
+		}
+		classes.setSelective(loaded);
+		if (jars != null) {
+			jars.setSelective(loaded);
+		}
+	}
+
+	private synchronized void installTransformer() {
+		if (transformer == null) {
+			transformer = new WatchedClassTransformer(this, classFolder, jarFolder);
+			inst.addTransformer(transformer);
+		}
+	}
+
+	private void watchLoadedClasses() {
+		for (Map.Entry<String, List<String>> location : findWatchedLoaded()
+				.entrySet()) {
+			for (String className : location.getValue()) {
+				watch(className, location.getKey());
+			}
+		}
 	}
 
 	/**
-	 * Converts an absolute path to a file to a fully qualified class name
+	 * Looks up the loaded classes coming from the watched folders
 	 * 
-	 * @param fileName
-	 *          the absolute path of the class file
-	 * @return a fully qualified class name
+	 * @return the absolute paths of the folders and jars mapped to the names of
+	 *         the classes loaded from them
 	 */
-	private static String toClassName(String fileName) {
-		return fileName.replace(".class", "").replace(File.separatorChar, '.');
+	private Map<String, List<String>> findWatchedLoaded() {
+		Map<String, List<String>> watched = new LinkedHashMap<String, List<String>>();
+		for (Class<?> clazz : inst.getAllLoadedClasses()) {
+			if (clazz.isArray() || clazz.isPrimitive()) {
+				continue;
+			}
+			try {
+				String location = transformer.getWatchedLocation(clazz
+						.getProtectionDomain());
+				if (location != null) {
+					List<String> classNames = watched.get(location);
+					if (classNames == null) {
+						classNames = new ArrayList<String>();
+						watched.put(location, classNames);
+					}
+					classNames.add(clazz.getName());
+				}
+			} catch (SecurityException e) {
+				log.log(Level.FINE, "error", e);
+			}
+		}
+		return watched;
 	}
 
 	/**
-	 * Gets the specified jar entry from the specified jar file
+	 * Indexes, in the background, the watched classes loaded before the index
+	 * has been created, as when the agent is attached to a running jvm. Their
+	 * class files are read as they are now: a class file changed since its
+	 * class has been loaded is taken for the running version. The classes
+	 * loaded or redefined in the meantime are indexed from their actual bytes
 	 * 
-	 * @param jar
-	 *          the jar file that contains the jar entry
-	 * @param entryName
-	 *          the name of the entry contained in the jar file
-	 * @return a JarEntry
-	 * @throws IllegalArgumentException
-	 *           if the specified entryname is not contained in the specified jar
-	 *           file
+	 * @param references
+	 *          the new index
 	 */
-	private static JarEntry getJarEntry(JarFile jar, String entryName) {
-		JarEntry entry = null;
-		for (Enumeration<JarEntry> entries = jar.entries(); entries
-				.hasMoreElements();) {
-			entry = entries.nextElement();
-			if (entry.getName().equals(entryName)) {
-				return entry;
+	private void indexLoadedClasses(final ReferenceIndex references) {
+		final Map<String, List<String>> loaded = findWatchedLoaded();
+		if (loaded.isEmpty()) {
+			return;
+		}
+
+		new ScanScheduler.DaemonThreadFactory("Smith index").newThread(
+				new Runnable() {
+
+					public void run() {
+						ResourceGovernor.Sample sample = governor.start();
+						int indexed = 0;
+						try {
+							for (Map.Entry<String, List<String>> location : loaded
+									.entrySet()) {
+								indexed += index(references, location.getKey(), location
+										.getValue());
+							}
+						} finally {
+							governor.charge(sample);
+						}
+						log.fine("Smith: indexed " + indexed + " loaded classes");
+					}
+
+				}).start();
+	}
+
+	private int index(ReferenceIndex references, String location,
+			List<String> classNames) {
+		int indexed = 0;
+		JarFile jar = null;
+		try {
+			if (!(location + File.separator).equals(classFolder)) {
+				jar = fileTree.openJar(location);
+			}
+			for (String className : classNames) {
+				byte[] classBytes = jar != null ? readEntry(jar, className)
+						: readClassFile(className, location);
+				if (classBytes != null
+						&& references.add(className, location, classBytes)) {
+					indexed++;
+				}
+			}
+		} catch (IOException e) {
+			log.log(Level.FINE, "error", e);
+		} finally {
+			if (jar != null) {
+				try {
+					jar.close();
+				} catch (IOException e) {
+					log.log(Level.FINE, "error", e);
+				}
 			}
 		}
-		throw new IllegalArgumentException("EntryName " + entryName
-				+ " does not exist in jar " + jar);
+		return indexed;
 	}
 
 	/**
-	 * Loads .class files as byte[]
+	 * Adds the file of a loaded class to the ones checked by the monitors: the
+	 * class file itself or the jar containing it
 	 * 
-	 * @param is
-	 *          the inputstream of the bytes to load
-	 * @return a byte[]
-	 * @throws IOException
-	 *           if an error occurs while reading file
+	 * @param className
+	 *          the fully qualified class name
+	 * @param location
+	 *          the absolute path of the folder or jar the class comes from
 	 */
-	private static byte[] toByteArray(InputStream is) throws IOException {
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+	private void watch(String className, String location) {
+		if (className.indexOf('/') != -1) {
+			// hidden classes have no class file
+			return;
+		}
+		if (jars != null && location.startsWith(jarFolder)) {
+			jars.watch(location.substring(jarFolder.length()));
+		} else if ((location + File.separator).equals(classFolder)) {
+			String path = className.replace('.', File.separatorChar) + ".class";
+			// a change made between the load and the next check is not lost
+			classes.watch(path, fileTree.lastModified(classFolder + path));
+		}
+	}
+
+	private static int toMonitorPeriod(int period) {
+		return period > MONITOR_PERIOD_MIN_VALUE ? period : MONITOR_PERIOD_MIN_VALUE;
+	}
 
-		byte[] buffer = new byte[1024];
-		int bytesRead = 0;
-		while ((bytesRead = is.read(buffer)) != -1) {
-			byte[] tmp = new byte[bytesRead];
-			System.arraycopy(buffer, 0, tmp, 0, bytesRead);
-			baos.write(tmp);
+	/**
+	 * Opens the push channel on the loopback interface. A failure here is not
+	 * fatal: the monitors keep on working
+	 * 
+	 * @param port
+	 *          the port to listen to, 0 to let the system choose one
+	 * @return the started push server or null if the port cannot be bound
+	 */
+	private SmithPushServer startPushServer(int port) {
+		try {
+			SmithPushServer server = new SmithPushServer(this, port);
+			server.start();
+			log.info("Smith: push channel listening on port: " + server.getPort()
+					+ ", token file: " + server.getTokenFile());
+			return server;
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Smith: unable to open push channel on port "
+					+ port, e);
+			return null;
 		}
+	}
 
-		byte[] result = baos.toByteArray();
+	/**
+	 * When the monitor notifies of a changed class file, Smith will redefine it.
+	 * The monitors started by Smith do not call this method: their changes are
+	 * collected and redefined all together at the end of each check
+	 */
+	public void fileModified(FileEvent event) {
+		redefineClass(toClassName(event.getSource()), event);
+	}
+
+	/**
+	 * When the monitor notifies of a changed jar file, Smith will redefine the
+	 * changed class file the jar contains
+	 */
+	public void jarModified(JarEvent event) {
+		redefineClass(toClassName(event.getEntryName()), event);
+	}
 
-		baos.close();
-		is.close();
+	/**
+	 * Records the latency of each check, then redefines
+	 * the debug-only changes kept aside if the agent has been quiet long enough
+	 * and is within its {@link ResourceGovernor} budget
+	 */
+	public void scanCompleted(ScanEvent event) {
+		latencies.getScan().record(event.getScanNanos() / 1000);
+		lastScans.put(event.getSource(), event);
+		if (!governor.isOverBudget()) {
+			redefinePaced(diff.takeDeferred(false), null);
+		}
+	}
 
-		return result;
+	/**
+	 * Redefines at once the debug-only changes kept aside in
+	 * {@link SmithArgs#DIFF_LAZY}, e.g. before attaching a debugger
+	 * 
+	 * @return the number of classes redefined
+	 */
+	public int redefineDeferred() {
+		return redefinePaced(diff.takeDeferred(true), null);
 	}
+
+	/**
+	 * Redefines the specified class
+	 * 
+	 * @param className
+	 *          the class name to redefine
+	 * @param event
+	 *          the event which contains the info to access the modified class
+	 *          files
+	 */
+	protected void redefineClass(String className, EventObject event) {
+		redefineChanges(Collections.singletonMap(className, event));
+	}
+
+	/**
+	 * Redefines the modified class files of a change set, all together
+	 * 
+	 * @param changes
+	 *          the changes found by a check of the classes folder
+	 */
+	private void redefineChanges(ChangeSet changes) {
+		if (changes.getModified().isEmpty()) {
+			return;
+		}
+
+		RootConfig config = classesConfig;
+		Map<String, EventObject> events = new LinkedHashMap<String, EventObject>();
+		for (ChangeSet.Change change : changes.getModified()) {
+			String className = toClassName(change.getPath());
+			if (config.accepts(className)) {
+				events.put(className, new FileEvent(change.getPath(), change
+						.getLastModified(), changes.getDetectedAt()));
+			}
+		}
+		if (!events.isEmpty()) {
+			redefineChanges(events);
+		}
+	}
+
+	/**
+	 * Redefines the loaded classes among the changed ones. The loaded classes
+	 * are looked up once for the whole change set, which is then split in
+	 * chunks by the {@link RedefinitionPacer}, using the sizes of the class
+	 * files. The bytes of a chunk are read by the {@link ClassBytesLoader} while
+	 * the previous chunk is being redefined, unless the dependents of the
+	 * changed classes are redefined too: they are found from the new bytes of
+	 * the whole change set, before it is split
+	 * 
+	 * @param changes
+	 *          the changed class names mapped to the events which contain the
+	 *          info to access their class files
+	 */
+	private void redefineChanges(Map<String, EventObject> changes) {
+		Map<String, List<Class<?>>> loaded = findLoaded(changes.keySet());
+		List<ChangedClass> changed = new ArrayList<ChangedClass>();
+		for (Map.Entry<String, EventObject> change : changes.entrySet()) {
+			List<Class<?>> classes = loaded.get(change.getKey());
+			if (classes != null) {
+				EventObject event = change.getValue();
+				latencies.getSettle().record(
+						(System.currentTimeMillis() - getDetectedAt(event)) * 1000);
+				changed.add(new ChangedClass(change.getKey(), classes, event,
+						getSizeOf(event)));
+			}
+		}
+		if (changed.isEmpty()) {
+			return;
+		}
+
+		ClassBytesLoader loader = ClassBytesLoader.getInstance();
+		if (references != null) {
+			// the dependents are found from the new bytes of the whole change set
+			redefinePaced(diff.select(toDefinitions(changed, loader
+					.load(toReads(changed)))), changes);
+			return;
+		}
+
+		List<List<ChangedClass>> chunks = pacer.split(changed,
+				ChangedClass.MEASURE);
+		List<Future<byte[]>> next = loader.load(toReads(chunks.get(0)));
+		for (int i = 0; i < chunks.size(); i++) {
+			List<Future<byte[]>> current = next;
+			if (i + 1 < chunks.size()) {
+				next = loader.load(toReads(chunks.get(i + 1)));
+			}
+
+			List<ClassDefinition> definitions = toDefinitions(chunks.get(i), current);
+			if (i > 0) {
+				pause(pacer.getGapMillis());
+			}
+			redefineChunk(diff.select(definitions), changes);
+		}
+	}
+
+	/**
+	 * Prepares the reads of the class files of a chunk
+	 * 
+	 * @param chunk
+	 *          the changed classes
+	 * @return the reads, timed into the read latency
+	 */
+	private List<Callable<byte[]>> toReads(List<ChangedClass> chunk) {
+		List<Callable<byte[]>> reads = new ArrayList<Callable<byte[]>>(chunk
+				.size());
+		for (final ChangedClass changedClass : chunk) {
+			reads.add(new Callable<byte[]>() {
+
+				public byte[] call() throws IOException {
+					long readStart = System.nanoTime();
+					byte[] bytes = getByteArrayOutOf(changedClass.event);
+					latencies.getRead().record((System.nanoTime() - readStart) / 1000);
+					return bytes;
+				}
+
+			});
+		}
+		return reads;
+	}
+
+	/**
+	 * Waits for the bytes of a chunk and builds its definitions. Classes which
+	 * cannot be read are logged and left out
+	 * 
+	 * @param chunk
+	 *          the changed classes
+	 * @param bytes
+	 *          the pending reads of the chunk, in the same order
+	 * @return the definitions
+	 */
+	private List<ClassDefinition> toDefinitions(List<ChangedClass> chunk,
+			List<Future<byte[]>> bytes) {
+		List<ClassDefinition> definitions = new ArrayList<ClassDefinition>(chunk
+				.size());
+		for (int i = 0; i < chunk.size(); i++) {
+			try {
+				byte[] classBytes = bytes.get(i).get();
+				for (Class<?> clazz : chunk.get(i).classes) {
+					definitions.add(new ClassDefinition(clazz, classBytes));
+				}
+			} catch (ExecutionException e) {
+				log.log(Level.SEVERE, "error", e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				log.log(Level.SEVERE, "error", e);
+			}
+		}
+		return definitions;
+	}
+
+	/**
+	 * Redefines the specified classes one chunk at a time, waiting for the gap
+	 * of the {@link RedefinitionPacer} between two chunks. The dependents of the
+	 * classes are added before splitting them, each in the chunk of the class
+	 * whose constant it uses. When a chunk is
+	 * refused, its classes are retried one outer class at a time, so that a
+	 * single broken class does not hold back the others
+	 * 
+	 * @param definitions
+	 *          the classes to redefine, with their new bytes
+	 * @param changes
+	 *          the events the classes come from, used to measure the latencies;
+	 *          null if the classes have been pushed
+	 * @return the number of classes redefined
+	 */
+	private int redefinePaced(List<ClassDefinition> definitions,
+			Map<String, EventObject> changes) {
+		int redefined = 0;
+		List<List<ClassDefinition>> chunks;
+		if (references != null && !definitions.isEmpty()) {
+			BoundMeasure measure = new BoundMeasure();
+			chunks = pacer.split(withDependents(definitions, measure), measure);
+		} else {
+			chunks = pacer.split(definitions);
+		}
+		for (int i = 0; i < chunks.size(); i++) {
+			if (i > 0) {
+				pause(pacer.getGapMillis());
+			}
+			redefined += redefineChunk(chunks.get(i), changes);
+		}
+		return redefined;
+	}
+
+	/**
+	 * Redefines a chunk with a single call. When the chunk is refused, its
+	 * classes are retried one outer class at a time
+	 * 
+	 * @param chunk
+	 *          the classes to redefine, with their new bytes
+	 * @param changes
+	 *          the events the classes come from, null if the classes have been
+	 *          pushed
+	 * @return the number of classes redefined
+	 */
+	private int redefineChunk(List<ClassDefinition> chunk,
+			Map<String, EventObject> changes) {
+		if (chunk.isEmpty()) {
+			return 0;
+		}
+		if (redefineQuietly(chunk, changes)) {
+			return chunk.size();
+		}
+
+		int redefined = 0;
+		List<List<ClassDefinition>> groups = RedefinitionPacer.group(chunk);
+		if (groups.size() > 1) {
+			for (List<ClassDefinition> group : groups) {
+				if (redefineQuietly(group, changes)) {
+					redefined += group.size();
+				}
+			}
+		}
+		return redefined;
+	}
+
+	/**
+	 * Adds to the classes to redefine the loaded classes which may be using the
+	 * old value of a constant they change, and whose class file has changed
+	 * since they have been loaded or redefined: the compiler copies the
+	 * constants into the classes using them, so these have to run their new
+	 * version together with the one of the changed class. The dependents whose
+	 * class file still holds the old value have not been recompiled and are
+	 * reported
+	 * 
+	 * @param definitions
+	 *          the classes to redefine, with their new bytes
+	 * @param measure
+	 *          where each dependent is bound to the classes it has to be
+	 *          redefined with
+	 * @return the classes with their dependents
+	 */
+	private List<ClassDefinition> withDependents(
+			List<ClassDefinition> definitions, BoundMeasure measure) {
+		ReferenceIndex references = this.references;
+		if (references == null) {
+			return definitions;
+		}
+		Map<String, byte[]> changed = new HashMap<String, byte[]>();
+		for (ClassDefinition definition : definitions) {
+			changed.put(definition.getDefinitionClass().getName(), definition
+					.getDefinitionClassFile());
+		}
+		Map<String, List<ReferenceIndex.Constant>> dependents = references
+				.getDependents(changed);
+		if (dependents.isEmpty()) {
+			return definitions;
+		}
+
+		List<ClassDefinition> expanded = new ArrayList<ClassDefinition>(
+				definitions);
+		Map<String, List<Class<?>>> loaded = findLoaded(dependents.keySet());
+		for (Map.Entry<String, List<Class<?>>> dependent : loaded.entrySet()) {
+			String className = dependent.getKey();
+			byte[] classBytes;
+			try {
+				classBytes = readClassFile(className, references
+						.getLocation(className));
+			} catch (IOException e) {
+				log.log(Level.FINE, "error", e);
+				continue;
+			}
+			if (classBytes == null) {
+				continue;
+			}
+
+			if (references.isRunning(className, classBytes)) {
+				ReferenceIndex.Constant stale = ReferenceIndex.findStale(classBytes,
+						dependents.get(className));
+				if (stale != null) {
+					log.warning("Smith: " + className + " may still use the old value of "
+							+ stale + ", rebuild it to run the new one");
+				}
+				continue;
+			}
+			for (Class<?> clazz : dependent.getValue()) {
+				expanded.add(new ClassDefinition(clazz, classBytes));
+			}
+			for (ReferenceIndex.Constant constant : dependents.get(className)) {
+				measure.bind(className, constant.getOwner());
+			}
+			log.info("Smith: redefining " + className + " along with "
+					+ dependents.get(className));
+		}
+		return expanded;
+	}
+
+	/**
+	 * Reads the current class file of a loaded class
+	 * 
+	 * @param className
+	 *          the fully qualified class name
+	 * @param location
+	 *          the absolute path of the folder or jar the class comes from
+	 * @return the bytes of the class file, null if it is no longer there
+	 * @throws IOException
+	 *           if the class file cannot be read
+	 */
+	private byte[] readClassFile(String className, String location)
+			throws IOException {
+		if (location == null) {
+			return null;
+		}
+		if ((location + File.separator).equals(classFolder)) {
+			String path = classFolder + className.replace('.', File.separatorChar)
+					+ ".class";
+			return fileTree.lastModified(path) > 0 ? ClassBytesLoader.read(fileTree,
+					path) : null;
+		}
+
+		JarFile jar = fileTree.openJar(location);
+		try {
+			return readEntry(jar, className);
+		} finally {
+			jar.close();
+		}
+	}
+
+	private static byte[] readEntry(JarFile jar, String className)
+			throws IOException {
+		JarEntry entry = jar.getJarEntry(className.replace('.', '/') + ".class");
+		if (entry == null) {
+			return null;
+		}
+		InputStream is = jar.getInputStream(entry);
+		try {
+			return ClassBytesLoader.read(is, entry.getSize());
+		} finally {
+			is.close();
+		}
+	}
+
+	private boolean redefineQuietly(List<ClassDefinition> definitions,
+			Map<String, EventObject> changes) {
+		try {
+			redefine(definitions.toArray(new ClassDefinition[definitions.size()]));
+		} catch (Exception e) {
+			log.log(Level.SEVERE, "error", e);
+			return false;
+		} catch (LinkageError e) {
+			log.log(Level.SEVERE, "error", e);
+			return false;
+		}
+
+		if (changes != null) {
+			long now = System.currentTimeMillis();
+			for (ClassDefinition definition : definitions) {
+				EventObject event = changes.get(definition.getDefinitionClass()
+						.getName());
+				long lastModified = getLastModified(event);
+				if (lastModified > 0) {
+					latencies.getDetection().record(
+							(getDetectedAt(event) - lastModified) * 1000);
+					latencies.getTotal().record((now - lastModified) * 1000);
+				}
+			}
+		}
+		return true;
+	}
+
+	private static void pause(int millis) {
+		if (millis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The latencies of the redefinitions done by this agent, from the moment a
+	 * class file is written to the moment its new version is running. Use them
+	 * to tune the monitor period
+	 * 
+	 * @return the latencies of this agent
+	 */
+	public Latencies getLatencies() {
+		return latencies;
+	}
+
+	/**
+	 * Redefines a batch of classes, with a single call to the instrumentation
+	 * unless the batch exceeds the pause budget. Class names not matching any
+	 * loaded class are ignored. This is the entry point used by the push
+	 * channel, where bytes come straight from the build tool instead of from a
+	 * monitored folder
+	 * 
+	 * @param classes
+	 *          fully qualified class names mapped to their new bytes
+	 * @return the number of loaded classes that have been redefined
+	 * @see SmithPushServer
+	 */
+	public int redefineClasses(Map<String, byte[]> classes) {
+		if (classes.isEmpty()) {
+			return 0;
+		}
+
+		return redefinePaced(diff.select(Arrays.asList(toDefinitions(classes))),
+				null);
+	}
+
+	/**
+	 * Hands the definitions to the instrumentation as a new change set, keeping
+	 * track of the applied bytes when the history is enabled. If this method
+	 * throws an exception, no classes have been redefined
+	 * 
+	 * @param definitions
+	 *          the classes to redefine, with their new bytes
+	 * @throws ClassNotFoundException
+	 *           if a class cannot be found
+	 * @throws UnmodifiableClassException
+	 *           if a class is unmodifiable
+	 */
+	private void redefine(ClassDefinition[] definitions)
+			throws ClassNotFoundException, UnmodifiableClassException {
+		apply(definitions);
+
+		if (history != null) {
+			long changeSet = history.nextChangeSet();
+			for (ClassDefinition definition : definitions) {
+				history.applied(changeSet, definition.getDefinitionClass().getName(),
+						definition.getDefinitionClassFile());
+			}
+		}
+
+		if (log.isLoggable(Level.FINE)) {
+			for (ClassDefinition definition : definitions) {
+				log.log(Level.FINE, "Redefined: "
+						+ definition.getDefinitionClass().getName());
+			}
+		}
+	}
+
+	/**
+	 * Calls the instrumentation, measuring it
+	 * 
+	 * @param definitions
+	 *          the classes to redefine, with their new bytes
+	 * @throws ClassNotFoundException
+	 *           if a class cannot be found
+	 * @throws UnmodifiableClassException
+	 *           if a class is unmodifiable
+	 */
+	private void apply(ClassDefinition[] definitions)
+			throws ClassNotFoundException, UnmodifiableClassException {
+		long bytes = 0;
+		for (ClassDefinition definition : definitions) {
+			bytes += definition.getDefinitionClassFile().length;
+		}
+
+		boolean success = false;
+		Object trace = telemetry.redefinitionStarted();
+		long start = System.nanoTime();
+		try {
+			inst.redefineClasses(definitions);
+			success = true;
+			if (recording) {
+				for (ClassDefinition definition : definitions) {
+					Class<?> clazz = definition.getDefinitionClass();
+					versions.put(toVersionKey(WatchedClassTransformer.getLocation(clazz
+							.getProtectionDomain()), clazz.getName()), PatchBundle
+							.sha1(definition.getDefinitionClassFile()));
+				}
+			}
+		} catch (RuntimeException e) {
+			failed(definitions, e);
+			throw e;
+		} catch (ClassNotFoundException e) {
+			failed(definitions, e);
+			throw e;
+		} catch (UnmodifiableClassException e) {
+			failed(definitions, e);
+			throw e;
+		} catch (LinkageError e) {
+			failed(definitions, e);
+			throw e;
+		} finally {
+			long nanos = System.nanoTime() - start;
+			latencies.getRedefinition().record(nanos / 1000);
+			if (success) {
+				pacer.learn(bytes, nanos);
+			}
+			telemetry.classesRedefined(trace, definitions.length, bytes, success);
+		}
+
+		synchronized (awaitingRestart) {
+			for (ClassDefinition definition : definitions) {
+				awaitingRestart.remove(definition.getDefinitionClass().getName());
+			}
+		}
+		diff.applied(definitions);
+		ReferenceIndex references = this.references;
+		if (references != null) {
+			for (ClassDefinition definition : definitions) {
+				references.update(definition.getDefinitionClass().getName(), null,
+						definition.getDefinitionClassFile());
+			}
+		}
+	}
+
+	/**
+	 * Keeps track of a failed redefinition. When the jvm refuses the new
+	 * version because its schema has changed, the classes can only be updated
+	 * by a restart
+	 * 
+	 * @param definitions
+	 *          the classes which have not been redefined
+	 * @param cause
+	 *          the reason of the failure
+	 */
+	private void failed(ClassDefinition[] definitions, Throwable cause) {
+		StringBuilder classes = new StringBuilder();
+		for (ClassDefinition definition : definitions) {
+			if (classes.length() > 0) {
+				classes.append(",");
+			}
+			classes.append(definition.getDefinitionClass().getName());
+		}
+
+		synchronized (failures) {
+			failures.addLast(new Failure(System.currentTimeMillis(), classes
+					.toString(), cause.toString()));
+			if (failures.size() > MAX_FAILURES) {
+				failures.removeFirst();
+			}
+		}
+
+		if (cause instanceof UnsupportedOperationException) {
+			synchronized (awaitingRestart) {
+				for (ClassDefinition definition : definitions) {
+					awaitingRestart.add(definition.getDefinitionClass().getName());
+				}
+			}
+		}
+	}
+
+	/**
+	 * The latest failed redefinitions, the oldest first
+	 * 
+	 * @return a snapshot of the recent failures
+	 */
+	public List<Failure> getRecentFailures() {
+		synchronized (failures) {
+			return new ArrayList<Failure>(failures);
+		}
+	}
+
+	/**
+	 * The classes whose new version has been refused because their schema has
+	 * changed, and which will stay stale until the jvm is restarted
+	 * 
+	 * @return a snapshot of the class names
+	 */
+	public List<String> getClassesAwaitingRestart() {
+		synchronized (awaitingRestart) {
+			return new ArrayList<String>(awaitingRestart);
+		}
+	}
+
+	/**
+	 * The summaries of the last checks of the watched folders
+	 * 
+	 * @return the last scan of each folder
+	 */
+	public List<ScanEvent> getLastScans() {
+		return new ArrayList<ScanEvent>(lastScans.values());
+	}
+
+	/**
+	 * The folder of the class files watched by this agent
+	 * 
+	 * @return the absolute path of the folder
+	 */
+	public String getClassFolder() {
+		return classFolder;
+	}
+
+	/**
+	 * The folder of the jars watched by this agent
+	 * 
+	 * @return the absolute path of the folder, null if jars are not watched
+	 */
+	public String getJarFolder() {
+		return jarFolder;
+	}
+
+	/**
+	 * The fraction of the watched files checked within the last period, plus
+	 * the time of a sub-scan when the folders are split in shards. Below 1 the
+	 * monitors cannot keep up with the period, e.g. because of the
+	 * <code>maxstats</code> limit
+	 * 
+	 * @return the lowest coverage of the monitors, between 0 and 1
+	 */
+	public double getCoverage() {
+		double coverage = classes.getFileMonitor().getCoverage();
+		if (jars != null) {
+			coverage = Math.min(coverage, jars.getFileMonitor().getCoverage());
+		}
+		return coverage;
+	}
+
+	/**
+	 * The time since the folder checked the longest ago has been checked
+	 * 
+	 * @return the highest staleness of the monitors (ms)
+	 */
+	public long getStaleness() {
+		long staleness = classes.getFileMonitor().getStaleness();
+		if (jars != null) {
+			staleness = Math.max(staleness, jars.getFileMonitor().getStaleness());
+		}
+		return staleness;
+	}
+
+	/**
+	 * How the watched folders are checked
+	 * 
+	 * @return {@link SmithArgs#MODE_SCAN}, {@link SmithArgs#MODE_LOADED},
+	 *         {@link SmithArgs#MODE_MARKER} or {@link SmithArgs#MODE_JOURNAL}
+	 */
+	public String getMode() {
+		if (follower != null) {
+			return SmithArgs.MODE_JOURNAL;
+		}
+		if (trigger != null) {
+			return SmithArgs.MODE_MARKER;
+		}
+		return loadedOnly ? SmithArgs.MODE_LOADED : SmithArgs.MODE_SCAN;
+	}
+
+	/**
+	 * The number of redefinitions left out because they would not have changed
+	 * the running code, see {@link SmithArgs#getDiff()}
+	 * 
+	 * @return the redefinitions avoided
+	 */
+	public long getRedefinitionsAvoided() {
+		return diff.getAvoided();
+	}
+
+	/**
+	 * The number of debug-only changes waiting to be redefined
+	 * 
+	 * @return the deferred classes
+	 */
+	public int getDeferredClasses() {
+		return diff.getDeferred();
+	}
+
+	/**
+	 * The number of class files known by this agent
+	 * 
+	 * @return the number of tracked class files
+	 */
+	public int getTrackedFiles() {
+		return classes.getFileMonitor().getTrackedFiles();
+	}
+
+	/**
+	 * The number of jar entries known by this agent
+	 * 
+	 * @return the number of tracked jar entries
+	 */
+	public int getTrackedJarEntries() {
+		return jars != null ? jars.getJarMonitor().getTrackedEntries() : 0;
+	}
+
+	/**
+	 * The period between checks
+	 * 
+	 * @return the period (ms)
+	 */
+	public int getMonitorPeriod() {
+		return monitorPeriod;
+	}
+
+	/**
+	 * Checks the watched folders once, as a scheduled check would do. A single
+	 * check serves both when the jars are in the classes folder. The changes
+	 * found by the checks of other agents since the previous call are
+	 * notified as well
+	 */
+	void checkFolders() {
+		if (jars != null && jarsConfig.enabled) {
+			if (classesConfig.enabled) {
+				registry.run(classes, jars);
+			} else {
+				jars.run();
+			}
+		} else if (classesConfig.enabled) {
+			classes.run();
+		}
+	}
+
+	/**
+	 * Redefines the classes listed by a build, all together. Listed jars are
+	 * checked by the jar monitor as a whole
+	 * 
+	 * @param paths
+	 *          the class files and jars changed by the build, absolute or
+	 *          relative to the classes folder
+	 */
+	void redefineFiles(List<String> paths) {
+		String separator = fileTree.getSeparator();
+		String folder = fileTree.getCanonicalPath(classFolder.substring(0,
+				classFolder.length() - separator.length()))
+				+ separator;
+		long now = System.currentTimeMillis();
+		Map<String, EventObject> changes = new LinkedHashMap<String, EventObject>();
+		Map<String, Long> listed = new HashMap<String, Long>();
+		boolean jarsChanged = false;
+		for (String path : paths) {
+			if (!new File(path).isAbsolute() && !path.startsWith(separator)) {
+				path = classFolder + path;
+			}
+			String canonicalPath = fileTree.getCanonicalPath(path);
+			if (canonicalPath.endsWith(".jar")) {
+				jarsChanged = true;
+			} else if (canonicalPath.endsWith(".class")
+					&& canonicalPath.startsWith(folder)) {
+				String relativePath = canonicalPath.substring(folder.length());
+				String className = toClassName(relativePath);
+				if (classesConfig.accepts(className)) {
+					long lastModified = fileTree.lastModified(canonicalPath);
+					changes.put(className, new FileEvent(relativePath, lastModified,
+							now));
+					listed.put(relativePath, Long.valueOf(lastModified));
+				}
+			} else {
+				log.fine("Smith: ignoring " + path + ", not in " + classFolder);
+			}
+		}
+
+		if (!changes.isEmpty()) {
+			redefineChanges(changes);
+			// the next check must not find them modified again
+			classes.getFileMonitor().update(listed);
+		}
+		if (jarsChanged && jars != null) {
+			jars.run();
+		}
+	}
+
+	/**
+	 * Looks up the loaded classes with the specified names. A name may match
+	 * more than one class, when loaded by different class loaders
+	 * 
+	 * @param classNames
+	 *          the fully qualified class names
+	 * @return the class names mapped to their loaded classes
+	 */
+	private Map<String, List<Class<?>>> findLoaded(Set<String> classNames) {
+		Map<String, List<Class<?>>> loaded = new HashMap<String, List<Class<?>>>();
+		for (Class<?> clazz : inst.getAllLoadedClasses()) {
+			if (classNames.contains(clazz.getName())) {
+				List<Class<?>> classes = loaded.get(clazz.getName());
+				if (classes == null) {
+					classes = new ArrayList<Class<?>>(1);
+					loaded.put(clazz.getName(), classes);
+				}
+				classes.add(clazz);
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * Builds the definitions of the loaded classes among the specified ones
+	 * 
+	 * @param classes
+	 *          fully qualified class names mapped to their bytes
+	 * @return the definitions, an empty array if none of the classes is loaded
+	 */
+	private ClassDefinition[] toDefinitions(Map<String, byte[]> classes) {
+		List<ClassDefinition> definitions = new ArrayList<ClassDefinition>();
+		for (Class<?> clazz : inst.getAllLoadedClasses()) {
+			byte[] bytes = classes.get(clazz.getName());
+			if (bytes != null) {
+				definitions.add(new ClassDefinition(clazz, bytes));
+			}
+		}
+		return definitions.toArray(new ClassDefinition[definitions.size()]);
+	}
+
+	/**
+	 * Reverts the latest redefinition of the specified class, reapplying the
+	 * version that was running before it. Requires the history to be enabled
+	 * (<code>history</code> parameter)
+	 * 
+	 * @param className
+	 *          the fully qualified class name
+	 * @return true if the class has been rolled back, false if its previous
+	 *         version is not known or cannot be applied
+	 */
+	public boolean rollback(String className) {
+		if (history == null) {
+			return false;
+		}
+		byte[] previous = history.previous(className);
+		if (previous == null) {
+			return false;
+		}
+
+		Map<String, byte[]> classes = new HashMap<String, byte[]>();
+		classes.put(className, previous);
+		return rollback(classes) > 0;
+	}
+
+	/**
+	 * Reverts a whole change set, i.e. the classes redefined together, with a
+	 * single redefinition. Classes redefined again after the change set are
+	 * left untouched
+	 * 
+	 * @param changeSet
+	 *          the id of the change set
+	 * @return the number of classes rolled back
+	 */
+	public int rollbackChangeSet(long changeSet) {
+		if (history == null) {
+			return 0;
+		}
+		return rollback(history.previousOf(changeSet));
+	}
+
+	/**
+	 * Reverts the latest change set
+	 * 
+	 * @return the number of classes rolled back
+	 * @see #rollbackChangeSet(long)
+	 */
+	public int rollbackLastChangeSet() {
+		if (history == null) {
+			return 0;
+		}
+		return rollbackChangeSet(history.getLastChangeSet());
+	}
+
+	/**
+	 * The bytecode history of this agent
+	 * 
+	 * @return the history, null if disabled
+	 */
+	public ClassHistory getHistory() {
+		return history;
+	}
+
+	private int rollback(Map<String, byte[]> classes) {
+		ClassDefinition[] definitions = toDefinitions(classes);
+		if (definitions.length == 0) {
+			return 0;
+		}
+
+		try {
+			apply(definitions);
+		} catch (Exception e) {
+			log.log(Level.SEVERE, "Rollback failed", e);
+			return 0;
+		}
+
+		for (ClassDefinition definition : definitions) {
+			history.rolledBack(definition.getDefinitionClass().getName());
+			log.info("Smith: rolled back " + definition.getDefinitionClass().getName());
+		}
+		return definitions.length;
+	}
+
+	/**
+	 * Applies a patch bundle with a single redefinition. The jvm redefines all
+	 * the classes of a batch or none of them, so a bundle refused by the jvm
+	 * leaves the running code as it was. Before redefining, the bundle is
+	 * checked against the hashes of the bytes each class has been loaded or
+	 * last redefined with, per folder or jar it comes from: classes already
+	 * running their new version are skipped, and a class running neither its
+	 * old nor its new version rejects the whole bundle, as the jvm does not run
+	 * the build the bundle has been made from. The hashes are recorded from the
+	 * start when the agent is started with <code>bundles=true</code>, and from
+	 * the first bundle applied otherwise: a class loaded before cannot be
+	 * verified and rejects the bundle as well, unless forced. The classes of
+	 * the bundle not loaded yet are patched when loaded from their old
+	 * version.<br/>
+	 * Bundles adding classes are rejected, as redefinitions cannot add classes:
+	 * deploy the new build instead. Removed classes are left alone.
+	 * 
+	 * @param bundle
+	 *          the bundle to apply
+	 * @param force
+	 *          true to redefine the classes whose running version is not known
+	 * @return the names of the classes redefined or to be patched when loaded
+	 * @throws IllegalStateException
+	 *           if the bundle does not fit the running classes
+	 * @throws ClassNotFoundException
+	 *           if a class cannot be found
+	 * @throws UnmodifiableClassException
+	 *           if a class is unmodifiable
+	 * @see PatchBundle#reverse()
+	 */
+	public synchronized List<String> applyBundle(PatchBundle bundle,
+			boolean force) throws ClassNotFoundException,
+			UnmodifiableClassException {
+		List<PatchBundle.Entry> entries = new ArrayList<PatchBundle.Entry>();
+		Set<String> classNames = new HashSet<String>();
+		List<String> added = new ArrayList<String>();
+		for (PatchBundle.Entry entry : bundle.getEntries()) {
+			if (entry.getBase() == null) {
+				added.add(entry.getClassName());
+			} else if (entry.getTarget() != null) {
+				entries.add(entry);
+				classNames.add(entry.getClassName());
+			}
+		}
+		if (!added.isEmpty()) {
+			throw new IllegalStateException(
+					"The bundle adds classes, which cannot be redefined: " + added);
+		}
+		recording = true;
+		installTransformer();
+
+		List<ClassDefinition> definitions = new ArrayList<ClassDefinition>();
+		List<PatchBundle.Entry> pending = new ArrayList<PatchBundle.Entry>();
+		List<String> mismatches = new ArrayList<String>();
+		List<String> unverified = new ArrayList<String>();
+		Map<String, List<Class<?>>> loaded = findLoaded(classNames);
+		for (PatchBundle.Entry entry : entries) {
+			List<Class<?>> classes = loaded.get(entry.getClassName());
+			boolean matched = false;
+			for (int i = 0; classes != null && i < classes.size(); i++) {
+				Class<?> clazz = classes.get(i);
+				String location = WatchedClassTransformer.getLocation(clazz
+						.getProtectionDomain());
+				if (!entry.isFrom(location)) {
+					continue;
+				}
+				matched = true;
+				byte[] running = versions.get(toVersionKey(location, clazz.getName()));
+				if (running == null) {
+					unverified.add(entry.getClassName());
+				} else if (Arrays.equals(running, PatchBundle.sha1(entry.getTarget()))) {
+					continue;
+				} else if (!Arrays.equals(running, PatchBundle.sha1(entry.getBase()))) {
+					mismatches.add(entry.getClassName());
+				}
+				definitions.add(new ClassDefinition(clazz, entry.getTarget()));
+			}
+			if (!matched) {
+				pending.add(entry);
+			}
+		}
+		if (!mismatches.isEmpty()) {
+			throw new IllegalStateException(
+					"Classes not running the version the bundle patches: " + mismatches);
+		}
+		if (!unverified.isEmpty()) {
+			if (!force) {
+				throw new IllegalStateException(
+						"Classes loaded before the hashes were recorded, whose version cannot be verified: "
+								+ unverified);
+			}
+			log.warning("Smith: forcing the patch bundle on unverified classes "
+					+ unverified);
+		}
+
+		if (!definitions.isEmpty()) {
+			redefine(definitions.toArray(new ClassDefinition[definitions.size()]));
+		}
+
+		Set<String> changed = new TreeSet<String>();
+		for (ClassDefinition definition : definitions) {
+			changed.add(definition.getDefinitionClass().getName());
+		}
+		for (PatchBundle.Entry entry : pending) {
+			addPatch(entry);
+			changed.add(entry.getClassName());
+		}
+		log.info("Smith: applied patch bundle of " + bundle.getEntries().size()
+				+ " classes, " + definitions.size() + " redefined");
+		return new ArrayList<String>(changed);
+	}
+
+	/**
+	 * Keeps a bundle entry until its class is loaded, replacing the one of a
+	 * previous bundle for the same class and jar
+	 * 
+	 * @param entry
+	 *          the bundle entry
+	 */
+	private void addPatch(PatchBundle.Entry entry) {
+		List<PatchBundle.Entry> entries = new ArrayList<PatchBundle.Entry>(1);
+		List<PatchBundle.Entry> previous = patches.get(entry.getClassName());
+		if (previous != null) {
+			for (PatchBundle.Entry patch : previous) {
+				if (!patch.getHint().equals(entry.getHint())) {
+					entries.add(patch);
+				}
+			}
+		}
+		entries.add(entry);
+		patches.put(entry.getClassName(), entries);
+	}
+
+	/**
+	 * The key of the recorded version of a class: the same class name can be
+	 * loaded from several folders or jars
+	 */
+	private static String toVersionKey(String location, String className) {
+		return location + "!" + className;
+	}
+
+	/**
+	 * Called when a class is loaded from one of the watched folders. A class
+	 * loaded with the old version of a patch bundle is given its new version
+	 * 
+	 * @param className
+	 *          the fully qualified class name
+	 * @param location
+	 *          the absolute path of the folder or jar the class comes from
+	 * @param classBytes
+	 *          the bytes the class is being loaded with
+	 * @return the bytes to load the class with, null to keep the original ones
+	 */
+	byte[] classLoaded(String className, String location, byte[] classBytes) {
+		byte[] patched = null;
+		List<PatchBundle.Entry> patches = this.patches.get(className);
+		if (patches != null) {
+			for (PatchBundle.Entry patch : patches) {
+				if (patch.isFrom(location)
+						&& Arrays.equals(patch.getBase(), classBytes)) {
+					patched = patch.getTarget();
+					classBytes = patched;
+					log.info("Smith: patched " + className + " while loading it");
+					break;
+				}
+			}
+		}
+
+		if (recording) {
+			versions.put(toVersionKey(location, className), PatchBundle
+					.sha1(classBytes));
+		}
+		if (history != null) {
+			history.baseline(className, classBytes);
+		}
+		diff.loaded(className, classBytes);
+		ReferenceIndex references = this.references;
+		if (references != null) {
+			references.update(className, location, classBytes);
+		}
+		if (loadedOnly) {
+			watch(className, location);
+		}
+		return patched;
+	}
+
+	/**
+	 * Factory method. Depending on the event implementation, retrieves the byte
+	 * array of the changed class
+	 * 
+	 * @param event
+	 *          the event to analize
+	 * @return the byte array of the changed class file
+	 * @throws IOException
+	 *           if some problems occur while opening the class file for reading
+	 */
+	private byte[] getByteArrayOutOf(EventObject event) throws IOException {
+		if (event instanceof FileEvent) {
+			return ClassBytesLoader.read(fileTree, classFolder + event.getSource());
+
+		} else if (event instanceof JarEvent) {
+			JarEvent jarEvent = (JarEvent) event;
+			JarFile jar = jarEvent.getSource();
+			JarEntry entry = getJarEntry(jar, jarEvent.getEntryName());
+			InputStream is = jar.getInputStream(entry);
+			try {
+				return ClassBytesLoader.read(is, entry.getSize());
+			} finally {
+				is.close();
+			}
+		}
+
+		throw new IllegalArgumentException("Event of type "
+				+ event.getClass().getName() + " is not supported");
+	}
+
+	/**
+	 * Gets the size of the changed class file, without reading it
+	 * 
+	 * @param event
+	 *          the event to analize
+	 * @return the size of the class file, 0 if unknown
+	 */
+	private long getSizeOf(EventObject event) {
+		if (event instanceof FileEvent) {
+			return fileTree.length(classFolder + event.getSource());
+		} else if (event instanceof JarEvent) {
+			JarEvent jarEvent = (JarEvent) event;
+			JarEntry entry = jarEvent.getSource().getJarEntry(
+					jarEvent.getEntryName());
+			return entry != null ? Math.max(0L, entry.getSize()) : 0L;
+		}
+		return 0L;
+	}
+
+	private static long getLastModified(EventObject event) {
+		if (event instanceof FileEvent) {
+			return ((FileEvent) event).getLastModified();
+		} else if (event instanceof JarEvent) {
+			return ((JarEvent) event).getLastModified();
+		}
+		return 0L;
+	}
+
+	private static long getDetectedAt(EventObject event) {
+		if (event instanceof FileEvent) {
+			return ((FileEvent) event).getDetectedAt();
+		} else if (event instanceof JarEvent) {
+			return ((JarEvent) event).getDetectedAt();
+		}
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Converts an absolute path to a file to a fully qualified class name
+	 * 
+	 * @param fileName
+	 *          the absolute path of the class file
+	 * @return a fully qualified class name
+	 */
+	static String toClassName(String fileName) {
+		String path = fileName;
+		if (path.endsWith(".class")) {
+			path = path.substring(0, path.length() - ".class".length());
+		}
+		// jar entries always use '/'
+		return path.replace(File.separatorChar, '.').replace('/', '.');
+	}
+
+	/**
+	 * Gets the specified jar entry from the specified jar file
+	 * 
+	 * @param jar
+	 *          the jar file that contains the jar entry
+	 * @param entryName
+	 *          the name of the entry contained in the jar file
+	 * @return a JarEntry
+	 * @throws IllegalArgumentException
+	 *           if the specified entryname is not contained in the specified jar
+	 *           file
+	 */
+	private static JarEntry getJarEntry(JarFile jar, String entryName) {
+		JarEntry entry = jar.getJarEntry(entryName);
+		if (entry == null) {
+			throw new IllegalArgumentException("EntryName " + entryName
+					+ " does not exist in jar " + jar);
+		}
+		return entry;
+	}
+
+	/**
+	 * Collects the jar entries notified by the jar monitor during a check and
+	 * redefines them all together when the check is completed. The check is
+	 * reported to Smith here only when the jars have a folder of their own
+	 */
+	private class ChangeCollector implements JarModifiedListener,
+			ScanCompletedListener {
+
+		private final Map<String, EventObject> changes = new LinkedHashMap<String, EventObject>();
+		private boolean reportScans = true;
+
+		public void jarModified(JarEvent event) {
+			String className = toClassName(event.getEntryName());
+			if (jarsConfig.accepts(className)) {
+				changes.put(className, event);
+			}
+		}
+
+		public void scanCompleted(ScanEvent event) {
+			if (reportScans) {
+				Smith.this.scanCompleted(event);
+			}
+			if (!changes.isEmpty()) {
+				try {
+					redefineChanges(changes);
+				} finally {
+					changes.clear();
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * The settings of a watched folder
+	 */
+	private static final class RootConfig {
+
+		final int period;
+		final boolean enabled;
+		final List<String> excludes;
+
+		RootConfig(SmithArgs args, String root) {
+			this.period = toMonitorPeriod(args.getPeriod(root));
+			this.enabled = args.isEnabled(root);
+			this.excludes = args.getExcludes(root);
+		}
+
+		/**
+		 * Tells whether the changes of a class are redefined
+		 */
+		boolean accepts(String className) {
+			if (!enabled) {
+				return false;
+			}
+			for (String exclude : excludes) {
+				if (className.startsWith(exclude)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public String toString() {
+			return enabled ? "period " + period + " ms, excluding " + excludes
+					: "disabled";
+		}
+
+	}
+
+	/**
+	 * Measures class definitions for the {@link RedefinitionPacer}, keeping in
+	 * the same chunk the classes bound together: a class is named after the
+	 * outer class of its group
+	 */
+	private static class BoundMeasure implements
+			RedefinitionPacer.Measure<ClassDefinition> {
+
+		private final Map<String, String> bound = new HashMap<String, String>();
+
+		/**
+		 * Binds a class to another one, and to the classes bound to it
+		 */
+		void bind(String className, String with) {
+			String group = find(outer(className));
+			String other = find(outer(with));
+			if (!group.equals(other)) {
+				bound.put(group, other);
+			}
+		}
+
+		private String find(String outer) {
+			for (String next = bound.get(outer); next != null; next = bound
+					.get(outer)) {
+				outer = next;
+			}
+			return outer;
+		}
+
+		private static String outer(String className) {
+			int nested = className.indexOf('$');
+			return nested > 0 ? className.substring(0, nested) : className;
+		}
+
+		public String getClassName(ClassDefinition definition) {
+			return find(outer(definition.getDefinitionClass().getName()));
+		}
+
+		public long getSize(ClassDefinition definition) {
+			return definition.getDefinitionClassFile().length;
+		}
+
+	}
+
+	/**
+	 * A changed class, waiting for its bytes to be read
+	 */
+	private static class ChangedClass {
+
+		static final RedefinitionPacer.Measure<ChangedClass> MEASURE = new RedefinitionPacer.Measure<ChangedClass>() {
+
+			public String getClassName(ChangedClass item) {
+				return item.className;
+			}
+
+			public long getSize(ChangedClass item) {
+				return item.size;
+			}
+
+		};
+
+		final String className;
+		final List<Class<?>> classes;
+		final EventObject event;
+		final long size;
+
+		ChangedClass(String className, List<Class<?>> classes, EventObject event,
+				long size) {
+			this.className = className;
+			this.classes = classes;
+			this.event = event;
+			this.size = size;
+		}
+
+	}
+
+	/**
+	 * A redefinition refused by the jvm
+	 */
+	public static class Failure {
+
+		private final long time;
+		private final String classes;
+		private final String cause;
+
+		Failure(long time, String classes, String cause) {
+			this.time = time;
+			this.classes = classes;
+			this.cause = cause;
+		}
+
+		/**
+		 * When the redefinition failed, as milliseconds since the epoch
+		 * 
+		 * @return the failure time
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/**
+		 * The classes which should have been redefined, comma separated
+		 * 
+		 * @return the class names
+		 */
+		public String getClasses() {
+			return classes;
+		}
+
+		/**
+		 * The exception thrown by the instrumentation
+		 * 
+		 * @return the cause of the failure
+		 */
+		public String getCause() {
+			return cause;
+		}
+
+	}
+
 }
@@ -17,8 +17,13 @@
 package it.fridrik.agent;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.logging.Level;
 
 /**
@@ -30,21 +35,134 @@ import java.util.logging.Level;
  */
 public class SmithArgs {
 
-	private static final String KEY_CLASSES = "classes";
-	private static final String KEY_JARS = "jars";
+	/** Mode walking the whole watched folders at each check (default) */
+	public static final String MODE_SCAN = "scan";
+
+	/** Mode checking only the files of the classes the jvm has loaded */
+	public static final String MODE_LOADED = "loaded";
+
+	/** Mode checking the folders only when the build touches a marker file */
+	public static final String MODE_MARKER = "marker";
+
+	/** Mode following the change journal written by a {@link SmithWatcher} */
+	public static final String MODE_JOURNAL = "journal";
+
+	/** Every change is redefined (default) */
+	public static final String DIFF_OFF = "off";
+
+	/** Changes not touching the running code are never redefined */
+	public static final String DIFF_SKIP = "skip";
+
+	/** Debug-only changes are redefined when the agent is quiet */
+	public static final String DIFF_LAZY = "lazy";
+
+	/** The classes folder, as a prefix of the settings of a single root */
+	public static final String ROOT_CLASSES = "classes";
+
+	/** The jars folder, as a prefix of the settings of a single root */
+	public static final String ROOT_JARS = "jars";
+
+	private static final String[] ROOTS = { ROOT_CLASSES, ROOT_JARS };
+
+	private static final String KEY_CLASSES = ROOT_CLASSES;
+	private static final String KEY_JARS = ROOT_JARS;
 	private static final String KEY_PERIOD = "period";
 	private static final String KEY_LOG_LEVEL = "loglevel";
-	
+	private static final String KEY_PORT = "port";
+	private static final String KEY_HISTORY = "history";
+	private static final String KEY_HISTORY_OFF_HEAP = "historyoffheap";
+	private static final String KEY_MAX_CLASSES = "maxclasses";
+	private static final String KEY_MAX_BYTES = "maxbytes";
+	private static final String KEY_PAUSE_MS = "pausems";
+	private static final String KEY_PAUSE_GAP = "pausegap";
+	private static final String KEY_MODE = "mode";
+	private static final String KEY_MARKER = "marker";
+	private static final String KEY_CHANGE_LIST = "changelist";
+	private static final String KEY_MAX_STATS = "maxstats";
+	private static final String KEY_SHARDS = "shards";
+	private static final String KEY_JOURNAL = "journal";
+	private static final String KEY_JOURNAL_SIZE = "journalsize";
+	private static final String KEY_CONFIG = "config";
+	private static final String KEY_ENABLED = "enabled";
+	private static final String KEY_EXCLUDE = "exclude";
+	private static final String KEY_DIFF = "diff";
+	private static final String KEY_DEPENDENTS = "dependents";
+	private static final String KEY_BUNDLES = "bundles";
+	private static final String KEY_BUNDLE = "bundle";
+	private static final String KEY_REVERT = "revert";
+	private static final String KEY_FORCE = "force";
+	private static final String KEY_RECEIPT = "receipt";
+	private static final String KEY_CPU_BUDGET = "cpubudget";
+	private static final String KEY_ALLOCATION_BUDGET = "allocbudget";
+
 	private String classFolder;
 	private String jarFolder;
 	private int period;
 	private Level logLevel;
+	private int port;
+	private long history;
+	private boolean historyOffHeap;
+	private int maxClasses;
+	private long maxBytes;
+	private int pauseMillis;
+	private int pauseGap;
+	private String mode;
+	private String marker;
+	private String changeList;
+	private int maxStats;
+	private int shards;
+	private String journal;
+	private int journalSize;
+	private String config;
+	private boolean enabled;
+	private List<String> excludes;
+	private String diff;
+	private boolean dependents;
+	private boolean bundles;
+	private String bundle;
+	private boolean revert;
+	private boolean force;
+	private String receipt;
+	private double cpuBudget;
+	private long allocationBudget;
+	private final Map<String, Integer> rootPeriods;
+	private final Map<String, Boolean> rootEnabled;
+	private final Map<String, List<String>> rootExcludes;
 
 	private SmithArgs() {
 		this.classFolder = null;
 		this.jarFolder = null;
 		this.period = -1;
 		this.logLevel = Level.WARNING;
+		this.port = -1;
+		this.history = 0;
+		this.historyOffHeap = false;
+		this.maxClasses = 0;
+		this.maxBytes = 0;
+		this.pauseMillis = 0;
+		this.pauseGap = 0;
+		this.mode = MODE_SCAN;
+		this.marker = null;
+		this.changeList = null;
+		this.maxStats = 0;
+		this.shards = 1;
+		this.journal = null;
+		this.journalSize = ChangeJournal.DEFAULT_SIZE;
+		this.config = null;
+		this.enabled = true;
+		this.excludes = Collections.emptyList();
+		this.diff = DIFF_OFF;
+		this.dependents = false;
+		this.bundles = false;
+		this.bundle = null;
+		this.revert = false;
+		this.force = false;
+		this.receipt = null;
+		this.cpuBudget = 0;
+		this.allocationBudget = 0;
+		this.rootPeriods = new HashMap<String, Integer>();
+		this.rootEnabled = new HashMap<String, Boolean>();
+		this.rootExcludes = new HashMap<String, List<String>>();
 	}
 
 	public SmithArgs(String agentArgs) {
@@ -85,6 +203,302 @@ public class SmithArgs {
 		return period;
 	}
 
+	/**
+	 * The loopback port of the push channel
+	 * 
+	 * @return the port, 0 for a system chosen one, -1 if the channel is disabled
+	 *         or the port is out of range
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * The memory cap of the bytecode history, used to roll redefinitions back
+	 * 
+	 * @return the max number of class bytes kept, 0 if the history is disabled
+	 */
+	public long getHistory() {
+		return history;
+	}
+
+	/**
+	 * Tells whether the bytecode history is kept off heap
+	 * 
+	 * @return true if the history uses direct buffers
+	 */
+	public boolean isHistoryOffHeap() {
+		return historyOffHeap;
+	}
+
+	/**
+	 * The max number of classes redefined together
+	 * 
+	 * @return the max number of classes, 0 if unlimited
+	 */
+	public int getMaxClasses() {
+		return maxClasses;
+	}
+
+	/**
+	 * The max size of the classes redefined together
+	 * 
+	 * @return the max number of bytes, 0 if unlimited
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * The target duration of a redefinition pause
+	 * 
+	 * @return the target pause (ms), 0 if unlimited
+	 */
+	public int getPauseMillis() {
+		return pauseMillis;
+	}
+
+	/**
+	 * The time to wait between two chunks of the same change set
+	 * 
+	 * @return the gap (ms)
+	 */
+	public int getPauseGap() {
+		return pauseGap;
+	}
+
+	/**
+	 * How the watched folders are checked: {@link #MODE_SCAN},
+	 * {@link #MODE_LOADED}, {@link #MODE_MARKER} or {@link #MODE_JOURNAL}
+	 * 
+	 * @return the mode
+	 */
+	public String getMode() {
+		return mode;
+	}
+
+	/**
+	 * What is done with the changes not touching the running code:
+	 * {@link #DIFF_OFF}, {@link #DIFF_SKIP} or {@link #DIFF_LAZY}
+	 * 
+	 * @return the policy
+	 */
+	public String getDiff() {
+		return diff;
+	}
+
+	/**
+	 * Tells whether the classes using the constants of a changed class are
+	 * redefined along with it
+	 * 
+	 * @return true if the dependents of changed constants are looked for
+	 */
+	public boolean isDependents() {
+		return dependents;
+	}
+
+	/**
+	 * Tells whether the agent records the version of the watched classes as
+	 * they are loaded, so that patch bundles can verify them
+	 * 
+	 * @return true if the classes loaded are hashed from the start
+	 */
+	public boolean isBundles() {
+		return bundles;
+	}
+
+	/**
+	 * The patch bundle to apply when the agent is loaded
+	 * 
+	 * @return the absolute path of the bundle, null if not set
+	 * @see PatchBundle
+	 */
+	public String getBundle() {
+		return bundle;
+	}
+
+	/**
+	 * Tells whether the patch bundle is to be undone rather than applied
+	 * 
+	 * @return true if the reverse of the bundle is applied
+	 */
+	public boolean isRevert() {
+		return revert;
+	}
+
+	/**
+	 * Tells whether the patch bundle is applied to the classes whose running
+	 * version cannot be verified, as they have been loaded before the agent
+	 * 
+	 * @return true if unverified classes are redefined anyway
+	 */
+	public boolean isForce() {
+		return force;
+	}
+
+	/**
+	 * The folder where the agent writes the classes a patch bundle has changed,
+	 * in a file named after the PID of the jvm
+	 * 
+	 * @return the path of the folder, null if not set
+	 */
+	public String getReceipt() {
+		return receipt;
+	}
+
+	/**
+	 * The file the build touches when it completes, used in
+	 * {@link #MODE_MARKER}
+	 * 
+	 * @return the absolute path of the marker file, null if not set
+	 */
+	public String getMarker() {
+		return marker;
+	}
+
+	/**
+	 * The file where the build lists the class files and jars it has changed,
+	 * used in {@link #MODE_MARKER}
+	 * 
+	 * @return the absolute path of the change list, null if not set
+	 */
+	public String getChangeList() {
+		return changeList;
+	}
+
+	/**
+	 * The cpu the agent threads can use, see {@link ResourceGovernor}
+	 * 
+	 * @return the fraction of one core, 0 if unlimited
+	 */
+	public double getCpuBudget() {
+		return cpuBudget;
+	}
+
+	/**
+	 * The memory the agent threads can allocate, see {@link ResourceGovernor}
+	 * 
+	 * @return the bytes per second, 0 if unlimited
+	 */
+	public long getAllocationBudget() {
+		return allocationBudget;
+	}
+
+	/**
+	 * The max number of file system calls per second done by the monitors
+	 * 
+	 * @return the max number of calls, 0 if unlimited
+	 */
+	public int getMaxStats() {
+		return maxStats;
+	}
+
+	/**
+	 * The number of parts the watched folders are split into, each check
+	 * visiting one of them
+	 * 
+	 * @return the number of shards, 1 if the folders are checked as a whole
+	 */
+	public int getShards() {
+		return shards;
+	}
+
+	/**
+	 * The change journal followed in {@link #MODE_JOURNAL}, or written by the
+	 * {@link SmithWatcher}
+	 * 
+	 * @return the absolute path of the journal, null if not set
+	 */
+	public String getJournal() {
+		return journal;
+	}
+
+	/**
+	 * The size of the data area of the journal written by the
+	 * {@link SmithWatcher}
+	 * 
+	 * @return the size (bytes)
+	 */
+	public int getJournalSize() {
+		return journalSize;
+	}
+
+	/**
+	 * The properties file the agent takes its settings from, watched and
+	 * applied on the fly. Its settings override the ones of the agent string,
+	 * except the watched folders
+	 * 
+	 * @return the absolute path of the properties file, null if not set
+	 */
+	public String getConfig() {
+		return config;
+	}
+
+	/**
+	 * The period between checks of a root, <code>root.period</code>
+	 * overriding <code>period</code>
+	 * 
+	 * @param root
+	 *          {@link #ROOT_CLASSES} or {@link #ROOT_JARS}
+	 * @return the period (ms)
+	 */
+	public int getPeriod(String root) {
+		Integer rootPeriod = rootPeriods.get(root);
+		return rootPeriod != null ? rootPeriod.intValue() : period;
+	}
+
+	/**
+	 * Tells whether the changes found in a root are redefined,
+	 * <code>root.enabled</code> overriding <code>enabled</code>
+	 * 
+	 * @param root
+	 *          {@link #ROOT_CLASSES} or {@link #ROOT_JARS}
+	 * @return false if the root is not checked
+	 */
+	public boolean isEnabled(String root) {
+		Boolean enabledRoot = rootEnabled.get(root);
+		return enabledRoot != null ? enabledRoot.booleanValue() : enabled;
+	}
+
+	/**
+	 * The prefixes of the class names never redefined from a root, separated
+	 * by ';' in the parameters. <code>root.exclude</code> overrides
+	 * <code>exclude</code>
+	 * 
+	 * @param root
+	 *          {@link #ROOT_CLASSES} or {@link #ROOT_JARS}
+	 * @return the excluded prefixes, empty if none
+	 */
+	public List<String> getExcludes(String root) {
+		List<String> excluded = rootExcludes.get(root);
+		return excluded != null ? excluded : excludes;
+	}
+
+	/**
+	 * Creates new arguments by overriding these ones with the settings in a
+	 * properties file. The watched folders and the properties file itself
+	 * cannot be overridden
+	 * 
+	 * @param overrides
+	 *          the settings read from the properties file
+	 * @return the merged arguments
+	 */
+	public SmithArgs merge(Properties overrides) {
+		Map<String, String> argsMap = toMap(toString());
+		for (Enumeration<?> names = overrides.propertyNames(); names
+				.hasMoreElements();) {
+			String name = ((String) names.nextElement()).trim();
+			if (!KEY_CLASSES.equals(name) && !KEY_JARS.equals(name)
+					&& !KEY_CONFIG.equals(name)) {
+				argsMap.put(name, overrides.getProperty(name));
+			}
+		}
+
+		SmithArgs merged = new SmithArgs();
+		merged.init(argsMap);
+		return merged;
+	}
+
 	private void initOldArgs(String agentArgs) {
 		String[] args = agentArgs.split(",");
 		setClassFolder(args[0]);
@@ -103,13 +517,20 @@ public class SmithArgs {
 	}
 
 	private void initWithNamedArgs(String agentArgs) {
+		init(toMap(agentArgs));
+	}
+
+	private static Map<String, String> toMap(String agentArgs) {
 		String[] args = agentArgs.split(",");
 		Map<String, String> argsMap = new HashMap<String, String>();
 		for (String s : args) {
 			String[] param = s.split("=");
 			argsMap.put(param[0].trim(), param[1]);
 		}
+		return argsMap;
+	}
 
+	private void init(Map<String, String> argsMap) {
 		if (argsMap.containsKey(KEY_CLASSES)) {
 			setClassFolder(argsMap.get(KEY_CLASSES));
 		}
@@ -126,10 +547,138 @@ public class SmithArgs {
 			setLogLevel(argsMap.get(KEY_LOG_LEVEL));
 		}
 
+		if (argsMap.containsKey(KEY_PORT)) {
+			setPort(argsMap.get(KEY_PORT));
+		}
+
+		if (argsMap.containsKey(KEY_HISTORY)) {
+			setHistory(argsMap.get(KEY_HISTORY));
+		}
+
+		if (argsMap.containsKey(KEY_MAX_CLASSES)) {
+			this.maxClasses = parseCount(argsMap.get(KEY_MAX_CLASSES));
+		}
+
+		if (argsMap.containsKey(KEY_MAX_BYTES)) {
+			this.maxBytes = parseSize(argsMap.get(KEY_MAX_BYTES));
+		}
+
+		if (argsMap.containsKey(KEY_PAUSE_MS)) {
+			this.pauseMillis = parseCount(argsMap.get(KEY_PAUSE_MS));
+		}
+
+		if (argsMap.containsKey(KEY_PAUSE_GAP)) {
+			this.pauseGap = parseCount(argsMap.get(KEY_PAUSE_GAP));
+		}
+
+		if (argsMap.containsKey(KEY_MODE)) {
+			setMode(argsMap.get(KEY_MODE));
+		}
+
+		if (argsMap.containsKey(KEY_MARKER)) {
+			this.marker = parseFilePath(argsMap.get(KEY_MARKER));
+		}
+
+		if (argsMap.containsKey(KEY_CHANGE_LIST)) {
+			this.changeList = parseFilePath(argsMap.get(KEY_CHANGE_LIST));
+		}
+
+		if (argsMap.containsKey(KEY_MAX_STATS)) {
+			this.maxStats = parseCount(argsMap.get(KEY_MAX_STATS));
+		}
+
+		if (argsMap.containsKey(KEY_SHARDS)) {
+			this.shards = Math.max(1, parseCount(argsMap.get(KEY_SHARDS)));
+		}
+
+		if (argsMap.containsKey(KEY_JOURNAL)) {
+			this.journal = parseFilePath(argsMap.get(KEY_JOURNAL));
+		}
+
+		if (argsMap.containsKey(KEY_JOURNAL_SIZE)) {
+			long size = parseSize(argsMap.get(KEY_JOURNAL_SIZE));
+			this.journalSize = size > 0 ? (int) Math.min(size, Integer.MAX_VALUE)
+					: ChangeJournal.DEFAULT_SIZE;
+		}
+
+		if (argsMap.containsKey(KEY_CONFIG)) {
+			this.config = parseFilePath(argsMap.get(KEY_CONFIG));
+		}
+
+		if (argsMap.containsKey(KEY_ENABLED)) {
+			this.enabled = parseBoolean(argsMap.get(KEY_ENABLED));
+		}
+
+		if (argsMap.containsKey(KEY_EXCLUDE)) {
+			this.excludes = parseList(argsMap.get(KEY_EXCLUDE));
+		}
+
+		if (argsMap.containsKey(KEY_DIFF)) {
+			setDiff(argsMap.get(KEY_DIFF));
+		}
+
+		if (argsMap.containsKey(KEY_DEPENDENTS)) {
+			this.dependents = parseBoolean(argsMap.get(KEY_DEPENDENTS));
+		}
+
+		if (argsMap.containsKey(KEY_BUNDLES)) {
+			this.bundles = parseBoolean(argsMap.get(KEY_BUNDLES));
+		}
+
+		if (argsMap.containsKey(KEY_BUNDLE)) {
+			this.bundle = parseFilePath(argsMap.get(KEY_BUNDLE));
+		}
+
+		if (argsMap.containsKey(KEY_REVERT)) {
+			this.revert = parseBoolean(argsMap.get(KEY_REVERT));
+		}
+
+		if (argsMap.containsKey(KEY_FORCE)) {
+			this.force = parseBoolean(argsMap.get(KEY_FORCE));
+		}
+
+		if (argsMap.containsKey(KEY_RECEIPT)) {
+			this.receipt = parseFilePath(argsMap.get(KEY_RECEIPT));
+		}
+
+		if (argsMap.containsKey(KEY_CPU_BUDGET)) {
+			this.cpuBudget = parseFraction(argsMap.get(KEY_CPU_BUDGET));
+		}
+
+		if (argsMap.containsKey(KEY_ALLOCATION_BUDGET)) {
+			this.allocationBudget = parseSize(argsMap.get(KEY_ALLOCATION_BUDGET));
+		}
+
+		for (String root : ROOTS) {
+			String prefix = root + ".";
+			if (argsMap.containsKey(prefix + KEY_PERIOD)) {
+				rootPeriods.put(root, Integer.valueOf(parseCount(argsMap.get(prefix
+						+ KEY_PERIOD))));
+			}
+			if (argsMap.containsKey(prefix + KEY_ENABLED)) {
+				rootEnabled.put(root, Boolean.valueOf(parseBoolean(argsMap
+						.get(prefix + KEY_ENABLED))));
+			}
+			if (argsMap.containsKey(prefix + KEY_EXCLUDE)) {
+				rootExcludes.put(root, parseList(argsMap.get(prefix + KEY_EXCLUDE)));
+			}
+		}
+
+		if (argsMap.containsKey(KEY_HISTORY_OFF_HEAP)) {
+			this.historyOffHeap = Boolean.valueOf(
+					argsMap.get(KEY_HISTORY_OFF_HEAP).trim()).booleanValue();
+		}
+
 	}
 
+	/**
+	 * Tells whether these arguments can be used: an agent needs the classes
+	 * folder, while a patch bundle is applied with the agent already running
+	 * 
+	 * @return true if the classes folder or a patch bundle is set
+	 */
 	public boolean isValid() {
-		return classFolder != null;
+		return classFolder != null || bundle != null;
 	}
 
 	private void setClassFolder(String classFolder) {
@@ -156,23 +705,254 @@ public class SmithArgs {
 		}
 	}
 
+	private void setPort(String port) {
+		try {
+			this.port = Integer.parseInt(port.trim());
+		} catch (NumberFormatException e) {
+			this.port = -1;
+		}
+		if (this.port > 65535) {
+			this.port = -1;
+		}
+	}
+
+	private void setMode(String mode) {
+		String value = mode.trim().toLowerCase();
+		if (MODE_LOADED.equals(value) || MODE_MARKER.equals(value)
+				|| MODE_JOURNAL.equals(value)) {
+			this.mode = value;
+		} else {
+			this.mode = MODE_SCAN;
+		}
+	}
+
+	private void setDiff(String diff) {
+		String value = diff.trim().toLowerCase();
+		if (DIFF_SKIP.equals(value) || DIFF_LAZY.equals(value)) {
+			this.diff = value;
+		} else {
+			this.diff = DIFF_OFF;
+		}
+	}
+
+	/**
+	 * Parses a memory size, in bytes or with a k, m or g suffix
+	 * 
+	 * @param history
+	 *          the memory size
+	 */
+	private void setHistory(String history) {
+		this.history = parseSize(history);
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 
-		sb.append(KEY_CLASSES).append("=").append(classFolder);
+		if (classFolder != null) {
+			sb.append(KEY_CLASSES).append("=").append(classFolder).append(",");
+		}
 
 		if (jarFolder != null) {
-			sb.append(",").append(KEY_JARS).append("=").append(jarFolder);
+			sb.append(KEY_JARS).append("=").append(jarFolder).append(",");
 		}
 
-		sb.append(",").append(KEY_PERIOD).append("=").append(period);
+		sb.append(KEY_PERIOD).append("=").append(period);
 		sb.append(",").append(KEY_LOG_LEVEL).append("=")
 				.append(logLevel.toString());
 
+		if (port >= 0) {
+			sb.append(",").append(KEY_PORT).append("=").append(port);
+		}
+
+		if (!MODE_SCAN.equals(mode)) {
+			sb.append(",").append(KEY_MODE).append("=").append(mode);
+		}
+
+		if (marker != null) {
+			sb.append(",").append(KEY_MARKER).append("=").append(marker);
+		}
+
+		if (changeList != null) {
+			sb.append(",").append(KEY_CHANGE_LIST).append("=").append(changeList);
+		}
+
+		if (journal != null) {
+			sb.append(",").append(KEY_JOURNAL).append("=").append(journal);
+		}
+
+		if (journalSize != ChangeJournal.DEFAULT_SIZE) {
+			sb.append(",").append(KEY_JOURNAL_SIZE).append("=").append(journalSize);
+		}
+
+		if (config != null) {
+			sb.append(",").append(KEY_CONFIG).append("=").append(config);
+		}
+
+		if (!enabled) {
+			sb.append(",").append(KEY_ENABLED).append("=false");
+		}
+
+		if (!excludes.isEmpty()) {
+			sb.append(",").append(KEY_EXCLUDE).append("=").append(
+					toString(excludes));
+		}
+
+		for (String root : ROOTS) {
+			String prefix = root + ".";
+			if (rootPeriods.containsKey(root)) {
+				sb.append(",").append(prefix).append(KEY_PERIOD).append("=").append(
+						rootPeriods.get(root));
+			}
+			if (rootEnabled.containsKey(root)) {
+				sb.append(",").append(prefix).append(KEY_ENABLED).append("=").append(
+						rootEnabled.get(root));
+			}
+			if (rootExcludes.containsKey(root)) {
+				sb.append(",").append(prefix).append(KEY_EXCLUDE).append("=").append(
+						toString(rootExcludes.get(root)));
+			}
+		}
+
+		if (maxStats > 0) {
+			sb.append(",").append(KEY_MAX_STATS).append("=").append(maxStats);
+		}
+
+		if (shards > 1) {
+			sb.append(",").append(KEY_SHARDS).append("=").append(shards);
+		}
+
+		if (maxClasses > 0) {
+			sb.append(",").append(KEY_MAX_CLASSES).append("=").append(maxClasses);
+		}
+
+		if (maxBytes > 0) {
+			sb.append(",").append(KEY_MAX_BYTES).append("=").append(maxBytes);
+		}
+
+		if (pauseMillis > 0) {
+			sb.append(",").append(KEY_PAUSE_MS).append("=").append(pauseMillis);
+		}
+
+		if (pauseGap > 0) {
+			sb.append(",").append(KEY_PAUSE_GAP).append("=").append(pauseGap);
+		}
+
+		if (history > 0) {
+			sb.append(",").append(KEY_HISTORY).append("=").append(history);
+			if (historyOffHeap) {
+				sb.append(",").append(KEY_HISTORY_OFF_HEAP).append("=true");
+			}
+		}
+
+		if (!DIFF_OFF.equals(diff)) {
+			sb.append(",").append(KEY_DIFF).append("=").append(diff);
+		}
+
+		if (dependents) {
+			sb.append(",").append(KEY_DEPENDENTS).append("=true");
+		}
+
+		if (bundles) {
+			sb.append(",").append(KEY_BUNDLES).append("=true");
+		}
+
+		if (bundle != null) {
+			sb.append(",").append(KEY_BUNDLE).append("=").append(bundle);
+			if (revert) {
+				sb.append(",").append(KEY_REVERT).append("=true");
+			}
+			if (force) {
+				sb.append(",").append(KEY_FORCE).append("=true");
+			}
+			if (receipt != null) {
+				sb.append(",").append(KEY_RECEIPT).append("=").append(receipt);
+			}
+		}
+
+		if (cpuBudget > 0) {
+			sb.append(",").append(KEY_CPU_BUDGET).append("=").append(
+					cpuBudget * 100).append("%");
+		}
+
+		if (allocationBudget > 0) {
+			sb.append(",").append(KEY_ALLOCATION_BUDGET).append("=").append(
+					allocationBudget);
+		}
+
 		return sb.toString();
 	}
 
+	private static String toString(List<String> values) {
+		StringBuilder sb = new StringBuilder();
+		for (String value : values) {
+			if (sb.length() > 0) {
+				sb.append(';');
+			}
+			sb.append(value);
+		}
+		return sb.toString();
+	}
+
+	private static boolean parseBoolean(String value) {
+		return Boolean.valueOf(value.trim()).booleanValue();
+	}
+
+	private static List<String> parseList(String value) {
+		List<String> values = new ArrayList<String>();
+		for (String item : value.split(";")) {
+			if (item.trim().length() > 0) {
+				values.add(item.trim());
+			}
+		}
+		return Collections.unmodifiableList(values);
+	}
+
+	private static int parseCount(String count) {
+		try {
+			return Math.max(0, Integer.parseInt(count.trim()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Parses a fraction, as a number or as a percentage
+	 */
+	private static double parseFraction(String fraction) {
+		String trimmed = fraction.trim();
+		double unit = 1;
+		if (trimmed.endsWith("%")) {
+			unit = 100;
+			trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+		}
+		try {
+			return Math.max(0, Double.parseDouble(trimmed) / unit);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static long parseSize(String size) {
+		String trimmed = size.trim().toLowerCase();
+		long unit = 1;
+		if (trimmed.endsWith("k")) {
+			unit = 1024;
+		} else if (trimmed.endsWith("m")) {
+			unit = 1024 * 1024;
+		} else if (trimmed.endsWith("g")) {
+			unit = 1024 * 1024 * 1024;
+		}
+		if (unit > 1) {
+			trimmed = trimmed.substring(0, trimmed.length() - 1).trim();
+		}
+		try {
+			return Math.max(0, Long.parseLong(trimmed) * unit);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
 	private static String parseFolderPath(String folder) {
 		if (folder != null) {
 			String trimmed = folder.trim();
@@ -182,4 +962,9 @@ public class SmithArgs {
 		return null;
 	}
 
+	private static String parseFilePath(String file) {
+		String trimmed = file.trim();
+		return trimmed.length() > 0 ? trimmed : null;
+	}
+
 }
\ No newline at end of file
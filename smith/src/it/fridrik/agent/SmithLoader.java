@@ -2,13 +2,13 @@
  * SmithLoader - Loads an agent at runtime (after jvm start up)
  * Copyright (C) 2007 Federico Fissore
  *
- * Licensed under the Apache License, Version 2.0 (the "License"); 
- * you may not use this file except in compliance with the License. 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
- * 
+ *
  * http://www.apache.org/licenses/LICENSE-2.0
- * 
- * Unless required by applicable law or agreed to in writing, software 
+ *
+ * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS,
  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
  * See the License for the specific language governing permissions and
@@ -16,36 +16,76 @@
  */
 package it.fridrik.agent;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import com.sun.tools.attach.VirtualMachine;
 import com.sun.tools.attach.VirtualMachineDescriptor;
 
 /**
- * SmithLoader loads a Smith agent after the jvm start up. This class is
- * experimental. See {@link #hotStart(String, SmithArgs)} for more details.
- * 
+ * SmithLoader loads a Smith agent after the jvm start up. The target jvm can be
+ * chosen by PID ({@link #hotStart(String, SmithArgs, String)}), by a pattern
+ * matched against its display name, usually the main class or the jar name (
+ * {@link #hotStartMatching(String, SmithArgs, Pattern)}), or it can be the
+ * current jvm ({@link #hotStartSelf(String, SmithArgs)}).<br/>
+ * SmithLoader can be used from the command line too:
+ *
+ * <pre>
+ * java -cp smith.jar:tools.jar it.fridrik.agent.SmithLoader smith.jar pid|regex agentArgs
+ * </pre>
+ *
+ * When a regex is given, every matching jvm gets its own agent, attaching to
+ * them in parallel.
+ *
  * @author Federico Fissore (federico@fissore.org)
  * @since 1.0
  */
 public class SmithLoader {
 
+	private static final Logger log = Logger.getLogger(SmithLoader.class
+			.getName());
+
+	/** Max number of jvms attached at the same time */
+	private static final int MAX_PARALLEL_ATTACHES = 8;
+
+	/** Max milliseconds the attaches to a set of jvms may take */
+	private static final long ATTACH_TIMEOUT = 60000;
+
 	/**
 	 * Asks the jvm to load the Smith agent specified by the absolute path
-	 * parameter and telling the agent to monitor the specified folder. This class
-	 * is experimental as it needs a sort of low-level interaction with the
-	 * operating system. The following assumptions are done:
+	 * parameter and telling the agent to monitor the specified folder. This
+	 * method is experimental as it needs a sort of low-level interaction with
+	 * the operating system. The following assumptions are done:
 	 * <ul>
 	 * <li>The Process Identifier (PID of the target jvm) is a integer </li>
 	 * <li>The latest started jvm is the one we want to plug the agent into and
 	 * it has the greatest PID</li>
 	 * </ul>
-	 * If any of these assumptions are NOT valid for your operating system, please
-	 * report is ASAP and contribute to the project
-	 * 
+	 * If any of these assumptions are NOT valid for your operating system, or if
+	 * more than one jvm runs on your host, use one of the targeted methods
+	 * instead
+	 *
 	 * @param pathToSmithJar
 	 *          the absolute path to the Smith jar
 	 * @param args
@@ -61,13 +101,368 @@ public class SmithLoader {
 
 			public int compare(VirtualMachineDescriptor one,
 					VirtualMachineDescriptor two) {
-				return Integer.valueOf(two.id()).compareTo(Integer.valueOf(one.id()));
+				return Long.valueOf(two.id()).compareTo(Long.valueOf(one.id()));
 			}
 
 		});
 
-		VirtualMachine vm = VirtualMachine.attach(vmds.get(0));
-		vm.loadAgent(pathToSmithJar, args.toString());
+		hotStart(pathToSmithJar, args, vmds.get(0).id());
+	}
+
+	/**
+	 * Loads the Smith agent into the jvm with the specified PID
+	 *
+	 * @param pathToSmithJar
+	 *          the absolute path to the Smith jar
+	 * @param args
+	 *          the SmithArgs instance
+	 * @param pid
+	 *          the PID of the target jvm
+	 * @throws Exception
+	 *           if something goes wrong
+	 */
+	public static void hotStart(String pathToSmithJar, SmithArgs args, String pid)
+			throws Exception {
+		VirtualMachine vm = VirtualMachine.attach(pid);
+		try {
+			vm.loadAgent(pathToSmithJar, args.toString());
+		} finally {
+			vm.detach();
+		}
+	}
+
+	/**
+	 * Loads the Smith agent into the current jvm. Since java 9 a jvm can attach
+	 * to itself only if started with <code>-Djdk.attach.allowAttachSelf=true</code>
+	 *
+	 * @param pathToSmithJar
+	 *          the absolute path to the Smith jar
+	 * @param args
+	 *          the SmithArgs instance
+	 * @throws Exception
+	 *           if something goes wrong
+	 */
+	public static void hotStartSelf(String pathToSmithJar, SmithArgs args)
+			throws Exception {
+		hotStart(pathToSmithJar, args, Smith.currentPid());
+	}
+
+	/**
+	 * Loads the Smith agent into every jvm whose display name (usually the main
+	 * class or jar followed by its arguments) matches the specified pattern. The
+	 * current jvm is never considered. Jvms are attached in parallel: a failure
+	 * to attach one of them is logged and does not stop the others
+	 *
+	 * @param pathToSmithJar
+	 *          the absolute path to the Smith jar
+	 * @param args
+	 *          the SmithArgs instance
+	 * @param displayName
+	 *          the pattern to find in the display name of the target jvms
+	 * @return the PIDs of the jvms the agent has been loaded into
+	 * @throws InterruptedException
+	 *           if interrupted while waiting for the attaches to complete
+	 */
+	public static List<String> hotStartMatching(final String pathToSmithJar,
+			final SmithArgs args, Pattern displayName) throws InterruptedException {
+		return hotStart(pathToSmithJar, args, findMatching(displayName));
+	}
+
+	/**
+	 * Applies a patch bundle to every jvm whose display name matches the
+	 * specified pattern, with the agents running there. If the bundle cannot be
+	 * applied to one of them, it is rolled back on the others, so that the jvms
+	 * are either all patched or all left as they were. Each agent writes a
+	 * receipt of the classes it has changed, even when the attach fails or
+	 * times out on this side: the rollback reverts only those classes, on every
+	 * jvm that has written one. A jvm with no receipt, or refusing the
+	 * rollback, may still run the bundle: the rollback is then partial
+	 * 
+	 * @param pathToSmithJar
+	 *          the absolute path to the Smith jar
+	 * @param args
+	 *          the SmithArgs instance, naming the bundle
+	 * @param displayName
+	 *          the pattern to find in the display name of the target jvms
+	 * @return the PIDs of the jvms the bundle has been applied to, empty if it
+	 *         has been rolled back
+	 * @throws IllegalStateException
+	 *           if the rollback is partial, naming the jvms that may still run
+	 *           the bundle
+	 * @throws IOException
+	 *           if the bundle or the receipts cannot be read or written
+	 * @throws InterruptedException
+	 *           if interrupted while waiting for the attaches to complete
+	 */
+	public static List<String> applyBundle(final String pathToSmithJar,
+			SmithArgs args, Pattern displayName) throws IOException,
+			InterruptedException {
+		if (args.getBundle() == null) {
+			throw new IllegalArgumentException("No patch bundle in " + args);
+		}
+
+		File receipts = File.createTempFile("smith-receipts", "");
+		if (!receipts.delete() || !receipts.mkdir()) {
+			throw new IOException("Unable to create " + receipts);
+		}
+		List<String> pids = findMatching(displayName);
+		List<String> applied = hotStart(pathToSmithJar, new SmithArgs(args
+				+ ",receipt=" + receipts.getAbsolutePath()), pids);
+		if (applied.size() == pids.size()) {
+			delete(receipts);
+			return applied;
+		}
+
+		log.warning("Patch bundle not applied to "
+				+ (pids.size() - applied.size()) + " jvms, rolling it back");
+		PatchBundle bundle = PatchBundle.read(new File(args.getBundle()));
+		if (args.isRevert()) {
+			bundle = bundle.reverse();
+		}
+		List<String> unconfirmed = new ArrayList<String>();
+		final Map<String, File> reverses = new HashMap<String, File>();
+		for (String pid : pids) {
+			List<String> changed = readReceipt(new File(receipts, pid));
+			if (changed == null) {
+				unconfirmed.add(pid);
+			} else if (!changed.isEmpty()) {
+				File reverse = new File(receipts, pid + PatchBundle.EXTENSION);
+				bundle.select(changed).reverse().write(reverse);
+				reverses.put(pid, reverse);
+			}
+		}
+		final String revert = args.toString();
+		List<String> reverted = attach(new ArrayList<String>(reverses.keySet()),
+				new Attacher() {
+
+					public void attach(String pid) throws Exception {
+						hotStart(pathToSmithJar, new SmithArgs(revert + ",bundle="
+								+ reverses.get(pid).getAbsolutePath() + ",revert=false"), pid);
+					}
+
+				}, ATTACH_TIMEOUT);
+		for (String pid : reverses.keySet()) {
+			if (!reverted.contains(pid)) {
+				unconfirmed.add(pid);
+			}
+		}
+		if (!unconfirmed.isEmpty()) {
+			throw new IllegalStateException("Patch bundle rolled back partially: jvms "
+					+ unconfirmed + " may still run it, receipts in " + receipts);
+		}
+		delete(receipts);
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Reads the classes an agent has changed applying a patch bundle
+	 * 
+	 * @param receipt
+	 *          the receipt written by the agent
+	 * @return the fully qualified class names, null if there is no receipt
+	 * @throws IOException
+	 *           if the receipt cannot be read
+	 */
+	private static List<String> readReceipt(File receipt) throws IOException {
+		if (!receipt.isFile()) {
+			return null;
+		}
+		List<String> classNames = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(receipt), "UTF-8"));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.length() > 0) {
+					classNames.add(line);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return classNames;
+	}
+
+	private static void delete(File folder) {
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		folder.delete();
+	}
+
+	/**
+	 * Finds the jvms whose display name matches the specified pattern, the
+	 * current one excluded
+	 * 
+	 * @param displayName
+	 *          the pattern to find in the display name of the target jvms
+	 * @return the PIDs of the matching jvms
+	 */
+	private static List<String> findMatching(Pattern displayName) {
+		String self = Smith.currentPid();
+		List<String> pids = new ArrayList<String>();
+		for (VirtualMachineDescriptor vmd : VirtualMachine.list()) {
+			if (!vmd.id().equals(self)
+					&& displayName.matcher(vmd.displayName()).find()) {
+				pids.add(vmd.id());
+			}
+		}
+		return pids;
+	}
+
+	/**
+	 * Loads the Smith agent into the jvms with the specified PIDs, in parallel.
+	 * A failure is logged and does not stop the others
+	 * 
+	 * @param pathToSmithJar
+	 *          the absolute path to the Smith jar
+	 * @param args
+	 *          the SmithArgs instance
+	 * @param pids
+	 *          the PIDs of the target jvms
+	 * @return the PIDs of the jvms the agent has been loaded into
+	 * @throws InterruptedException
+	 *           if interrupted while waiting for the attaches to complete
+	 */
+	private static List<String> hotStart(final String pathToSmithJar,
+			final SmithArgs args, List<String> pids) throws InterruptedException {
+		return attach(pids, new Attacher() {
+
+			public void attach(String pid) throws Exception {
+				hotStart(pathToSmithJar, args, pid);
+			}
+
+		}, ATTACH_TIMEOUT);
+	}
+
+	/**
+	 * Attaches to the jvms with the specified PIDs, in parallel. A failure is
+	 * logged and does not stop the others. A jvm that has not completed the
+	 * attach when the timeout expires, agent initialization included, counts as
+	 * failed: its attach is interrupted and left running in the background
+	 * 
+	 * @param pids
+	 *          the PIDs of the target jvms
+	 * @param attacher
+	 *          what to do with each jvm
+	 * @param timeout
+	 *          the milliseconds all the attaches may take
+	 * @return the PIDs of the jvms the attach has completed on
+	 * @throws InterruptedException
+	 *           if interrupted while waiting for the attaches to complete
+	 */
+	static List<String> attach(List<String> pids, final Attacher attacher,
+			long timeout) throws InterruptedException {
+		List<String> attached = new ArrayList<String>();
+		if (pids.isEmpty()) {
+			return attached;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(
+				pids.size(), MAX_PARALLEL_ATTACHES), new ThreadFactory() {
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "Smith attach");
+				thread.setDaemon(true);
+				return thread;
+			}
+
+		});
+		try {
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+			for (final String pid : pids) {
+				futures.add(executor.submit(new Callable<String>() {
+
+					public String call() throws Exception {
+						attacher.attach(pid);
+						return pid;
+					}
+
+				}));
+			}
+
+			long deadline = System.currentTimeMillis() + timeout;
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					attached.add(futures.get(i).get(
+							Math.max(0, deadline - System.currentTimeMillis()),
+							TimeUnit.MILLISECONDS));
+				} catch (ExecutionException e) {
+					log.log(Level.SEVERE, "Unable to load Smith into jvm "
+							+ pids.get(i), e.getCause());
+				} catch (TimeoutException e) {
+					futures.get(i).cancel(true);
+					log.severe("Timed out loading Smith into jvm " + pids.get(i));
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return attached;
+	}
+
+	/**
+	 * What {@link SmithLoader#attach(List, Attacher, long)} does with each jvm
+	 */
+	interface Attacher {
+
+		/**
+		 * Attaches to a jvm
+		 * 
+		 * @param pid
+		 *          the PID of the jvm
+		 * @throws Exception
+		 *           if the attach fails
+		 */
+		void attach(String pid) throws Exception;
+
+	}
+
+	/**
+	 * Loads Smith into the jvm with the specified PID or into every jvm whose
+	 * display name matches the specified regex
+	 *
+	 * @param args
+	 *          the path to the Smith jar, a PID or a regex, the agent arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length != 3) {
+			System.err.println("Usage: SmithLoader smith.jar pid|regex agentArgs");
+			System.exit(1);
+		}
+
+		SmithArgs smithArgs = new SmithArgs(args[2]);
+		if (!smithArgs.isValid()) {
+			System.err.println("Invalid agent arguments: " + args[2]);
+			System.exit(1);
+		}
+
+		if (smithArgs.getBundle() != null && !args[1].matches("\\d+")) {
+			List<String> pids;
+			try {
+				pids = applyBundle(args[0], smithArgs, Pattern.compile(args[1]));
+			} catch (IllegalStateException e) {
+				System.err.println(e.getMessage());
+				System.exit(3);
+				return;
+			}
+			if (pids.isEmpty()) {
+				System.err.println("Patch bundle not applied");
+				System.exit(2);
+			}
+			System.out.println("Patch bundle applied to jvms " + pids);
+		} else if (args[1].matches("\\d+")) {
+			hotStart(args[0], smithArgs, args[1]);
+			System.out.println("Smith loaded into jvm " + args[1]);
+		} else {
+			List<String> pids = hotStartMatching(args[0], smithArgs, Pattern
+					.compile(args[1]));
+			System.out.println("Smith loaded into jvms " + pids);
+		}
 	}
 
 }
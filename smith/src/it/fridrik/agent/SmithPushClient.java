@@ -0,0 +1,225 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * SmithPushClient sends freshly compiled classes to the push channel of a
+ * running Smith agent (started with the <code>port</code> parameter). A
+ * connection opens with the token of the channel (modified UTF-8), which the
+ * agent writes to a file only its owner can read (see
+ * {@link #getTokenFile(int)}): the agent answers with an int, 0, and closes
+ * the connection if the token is wrong. The connection then carries any number
+ * of frames; a frame is made of:
+ * <ul>
+ * <li>an int, the number of classes in the frame</li>
+ * <li>for each class, its fully qualified name (modified UTF-8, as written by
+ * {@link DataOutputStream#writeUTF(String)}), an int length and the class
+ * bytes</li>
+ * </ul>
+ * A frame holds at most {@link #MAX_CLASSES_PER_FRAME} classes and
+ * {@link #MAX_FRAME_LENGTH} bytes of classes. All ints are big endian. The
+ * agent answers each frame with an int: the
+ * number of loaded classes it has redefined. Classes not yet loaded are
+ * ignored, as the jvm will load the new version anyway.<br/>
+ * The client can be used from the command line too:
+ *
+ * <pre>
+ * java -cp smith.jar it.fridrik.agent.SmithPushClient port classesFolder file.class [file.class ...]
+ * </pre>
+ *
+ * @author Federico Fissore (federico@fissore.org)
+ * @see SmithPushServer
+ * @since 1.0
+ */
+public class SmithPushClient {
+
+	/** Max number of classes a frame can hold */
+	public static final int MAX_CLASSES_PER_FRAME = 65536;
+
+	/** Max length of a single class */
+	public static final int MAX_CLASS_LENGTH = 64 * 1024 * 1024;
+
+	/** Max length of all the classes of a frame */
+	public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	/**
+	 * Connects to the push channel of the agent running on this host, reading
+	 * its token from the token file of the port
+	 *
+	 * @param port
+	 *          the port of the push channel
+	 * @throws IOException
+	 *           if the token cannot be read, the agent cannot be reached or
+	 *           refuses the token
+	 */
+	public SmithPushClient(int port) throws IOException {
+		this(port, readToken(getTokenFile(port)));
+	}
+
+	/**
+	 * Connects to the push channel of the agent running on this host
+	 *
+	 * @param port
+	 *          the port of the push channel
+	 * @param token
+	 *          the token of the channel
+	 * @throws IOException
+	 *           if the agent cannot be reached or refuses the token
+	 */
+	public SmithPushClient(int port, String token) throws IOException {
+		this.socket = new Socket(InetAddress.getByName(null), port);
+		this.socket.setTcpNoDelay(true);
+		this.in = new DataInputStream(new BufferedInputStream(socket
+				.getInputStream()));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket
+				.getOutputStream()));
+
+		out.writeUTF(token);
+		out.flush();
+		try {
+			in.readInt();
+		} catch (EOFException e) {
+			socket.close();
+			throw new IOException("The push channel on port " + port
+					+ " refused the token");
+		}
+	}
+
+	/**
+	 * The file holding the token of the push channel listening on a port: a
+	 * file in the <code>.smith</code> folder of the home of the user running
+	 * the agent
+	 *
+	 * @param port
+	 *          the port of the push channel
+	 * @return the token file
+	 */
+	public static File getTokenFile(int port) {
+		return new File(new File(System.getProperty("user.home"), ".smith"),
+				"push-" + port + ".token");
+	}
+
+	private static String readToken(File file) throws IOException {
+		return new String(readFile(file), "UTF-8").trim();
+	}
+
+	/**
+	 * Sends a frame and waits for the agent to redefine it
+	 *
+	 * @param classes
+	 *          fully qualified class names mapped to their new bytes
+	 * @return the number of classes the agent has redefined
+	 * @throws IOException
+	 *           if the connection breaks
+	 */
+	public int push(Map<String, byte[]> classes) throws IOException {
+		if (classes.size() > MAX_CLASSES_PER_FRAME) {
+			throw new IllegalArgumentException("A frame cannot hold more than "
+					+ MAX_CLASSES_PER_FRAME + " classes");
+		}
+		long length = 0;
+		for (byte[] bytes : classes.values()) {
+			length += bytes.length;
+		}
+		if (length > MAX_FRAME_LENGTH) {
+			throw new IllegalArgumentException("A frame cannot hold more than "
+					+ MAX_FRAME_LENGTH + " bytes of classes");
+		}
+
+		out.writeInt(classes.size());
+		for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeInt(entry.getValue().length);
+			out.write(entry.getValue());
+		}
+		out.flush();
+
+		return in.readInt();
+	}
+
+	/**
+	 * Closes the connection
+	 */
+	public void close() throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * Pushes the specified class files, all in the same frame
+	 *
+	 * @param args
+	 *          the port, the classes folder and the class files to push
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("Usage: SmithPushClient port classesFolder "
+					+ "file.class [file.class ...]");
+			System.exit(1);
+		}
+
+		String classFolder = new File(args[1]).getAbsolutePath() + File.separator;
+		Map<String, byte[]> classes = new LinkedHashMap<String, byte[]>();
+		for (int i = 2; i < args.length; i++) {
+			File file = new File(args[i]).getAbsoluteFile();
+			String path = file.getPath();
+			if (!path.startsWith(classFolder)) {
+				throw new IllegalArgumentException(path + " is not contained in "
+						+ classFolder);
+			}
+			String className = path.substring(classFolder.length(),
+					path.length() - ".class".length()).replace(File.separatorChar, '.');
+			classes.put(className, readFile(file));
+		}
+
+		SmithPushClient client = new SmithPushClient(Integer.parseInt(args[0]));
+		try {
+			System.out.println("Redefined " + client.push(classes) + " of "
+					+ classes.size() + " classes");
+		} finally {
+			client.close();
+		}
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		DataInputStream is = new DataInputStream(new FileInputStream(file));
+		try {
+			is.readFully(bytes);
+		} finally {
+			is.close();
+		}
+		return bytes;
+	}
+
+}
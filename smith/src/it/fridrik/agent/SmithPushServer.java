@@ -0,0 +1,377 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SmithPushServer is the optional push channel of a Smith agent. It listens on
+ * the loopback interface only and lets a build tool send the classes it has
+ * just compiled, skipping the file monitors altogether. Every frame received is
+ * redefined as a whole with a single call to the instrumentation.<br/>
+ * Local users other than the one running the agent are kept out by a random
+ * token, written to a file only its owner can read and checked at the start
+ * of every connection. Each connection is served by its own thread, up to
+ * {@link #MAX_CLIENTS}, and closed after {@link #IDLE_TIMEOUT} ms without a
+ * frame.<br/>
+ * The protocol is described in {@link SmithPushClient}
+ *
+ * @author Federico Fissore (federico@fissore.org)
+ * @see SmithPushClient
+ * @since 1.0
+ */
+public class SmithPushServer implements Runnable {
+
+	/** Max number of connections served at the same time */
+	public static final int MAX_CLIENTS = 4;
+
+	/** Time (ms) a connection can stay silent before being closed */
+	public static final int IDLE_TIMEOUT = 60000;
+
+	private static final Logger log = Logger.getLogger(SmithPushServer.class
+			.getName());
+
+	private final Smith smith;
+	private final ServerSocket serverSocket;
+	private final ThreadPoolExecutor clients;
+	private final File tokenFile;
+	private final byte[] token;
+	private volatile boolean running;
+
+	/**
+	 * Creates a new push server bound to the loopback interface, writing its
+	 * token to {@link SmithPushClient#getTokenFile(int)}
+	 *
+	 * @param smith
+	 *          the agent which will redefine the received classes
+	 * @param port
+	 *          the port to listen to, 0 to let the system choose one
+	 * @throws IOException
+	 *           if the port cannot be bound or the token cannot be written
+	 */
+	public SmithPushServer(Smith smith, int port) throws IOException {
+		this.smith = smith;
+		this.serverSocket = new ServerSocket(port, 50, InetAddress.getByName(null));
+		this.tokenFile = SmithPushClient.getTokenFile(serverSocket.getLocalPort());
+		try {
+			this.token = writeToken(tokenFile);
+			tokenFile.deleteOnExit();
+		} catch (IOException e) {
+			serverSocket.close();
+			throw e;
+		}
+		this.clients = new ThreadPoolExecutor(0, MAX_CLIENTS, IDLE_TIMEOUT,
+				TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(),
+				new ScanScheduler.DaemonThreadFactory("Smith push client"));
+	}
+
+	/**
+	 * Writes a new random token to a file, readable and writable by its owner
+	 * only. The token is written in a staging folder restricted to the owner
+	 * before anything is put in it, restricted in turn and renamed into place,
+	 * so that no other user can ever open it. The permissions are set through
+	 * the java 6 File methods: on java 5 no token is written
+	 *
+	 * @param file
+	 *          the token file
+	 * @return the token, as sent by the clients
+	 * @throws IOException
+	 *           if the file cannot be written or restricted
+	 */
+	private static byte[] writeToken(File file) throws IOException {
+		byte[] random = new byte[24];
+		SecureRandom secureRandom = new SecureRandom();
+		secureRandom.nextBytes(random);
+		byte[] token = toHex(random).getBytes("UTF-8");
+
+		File folder = file.getParentFile();
+		if (!folder.isDirectory() && folder.mkdirs()) {
+			ownerOnly(folder, true);
+		}
+		random = new byte[8];
+		secureRandom.nextBytes(random);
+		File staging = new File(folder, "." + file.getName() + "."
+				+ toHex(random));
+		if (!staging.mkdir()) {
+			throw new IOException("Unable to create " + staging);
+		}
+		File temp = new File(staging, file.getName());
+		try {
+			ownerOnly(staging, true);
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				out.write(token);
+			} finally {
+				out.close();
+			}
+			ownerOnly(temp, false);
+			file.delete();
+			if (!temp.renameTo(file)) {
+				throw new IOException("Unable to create " + file);
+			}
+		} finally {
+			temp.delete();
+			staging.delete();
+		}
+		return token;
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(
+					Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Lets only the owner of a file read and write it, and list it when it is a
+	 * folder
+	 *
+	 * @param file
+	 *          the file or folder
+	 * @param folder
+	 *          true if the file is a folder
+	 * @throws IOException
+	 *           if the permissions cannot be restricted
+	 */
+	private static void ownerOnly(File file, boolean folder) throws IOException {
+		boolean restricted;
+		try {
+			restricted = setPermission(file, "setReadable", false, false)
+					&& setPermission(file, "setReadable", true, true)
+					&& setPermission(file, "setWritable", false, false)
+					&& setPermission(file, "setWritable", true, true);
+			setPermission(file, "setExecutable", false, false);
+			if (folder) {
+				restricted &= setPermission(file, "setExecutable", true, true);
+			}
+		} catch (NoSuchMethodException e) {
+			restricted = false;
+		}
+		if (!restricted) {
+			throw new IOException("Unable to restrict the permissions of " + file);
+		}
+	}
+
+	private static boolean setPermission(File file, String name, boolean enable,
+			boolean ownerOnly) throws NoSuchMethodException {
+		try {
+			return ((Boolean) File.class.getMethod(name, boolean.class,
+					boolean.class).invoke(file, Boolean.valueOf(enable),
+					Boolean.valueOf(ownerOnly))).booleanValue();
+		} catch (NoSuchMethodException e) {
+			throw e;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Starts accepting connections on a daemon thread
+	 */
+	public void start() {
+		running = true;
+		Thread thread = new Thread(this, "Smith push channel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * The port this server is listening to
+	 *
+	 * @return the local port
+	 */
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * The file holding the token of this server
+	 *
+	 * @return the token file
+	 */
+	public File getTokenFile() {
+		return tokenFile;
+	}
+
+	/**
+	 * Stops accepting connections, closes the open ones and deletes the token
+	 * file
+	 */
+	public void close() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			log.log(Level.FINE, "error", e);
+		}
+		clients.shutdownNow();
+		tokenFile.delete();
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				final Socket socket = serverSocket.accept();
+				try {
+					clients.execute(new Runnable() {
+
+						public void run() {
+							serveQuietly(socket);
+						}
+
+					});
+				} catch (RejectedExecutionException e) {
+					log.warning("Smith: push channel busy, connection refused");
+					socket.close();
+				}
+			} catch (SocketException e) {
+				if (running) {
+					log.log(Level.SEVERE, "error", e);
+				}
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "error", e);
+			}
+		}
+	}
+
+	private void serveQuietly(Socket socket) {
+		try {
+			socket.setSoTimeout(IDLE_TIMEOUT);
+			serve(socket);
+		} catch (SocketTimeoutException e) {
+			log.log(Level.FINE, "Smith: idle push connection closed", e);
+		} catch (SocketException e) {
+			if (running) {
+				log.log(Level.SEVERE, "error", e);
+			}
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "error", e);
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				log.log(Level.FINE, "error", e);
+			}
+		}
+	}
+
+	/**
+	 * Checks the token of the connected client, then reads frames until it
+	 * hangs up, answering to each of them with the number of redefined classes
+	 *
+	 * @param socket
+	 *          the client connection
+	 * @throws IOException
+	 *           if the connection breaks or the client violates the protocol
+	 */
+	private void serve(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket
+				.getInputStream()));
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				socket.getOutputStream()));
+
+		if (!MessageDigest.isEqual(token, in.readUTF().getBytes("UTF-8"))) {
+			log.warning("Smith: push connection with a wrong token refused");
+			return;
+		}
+		out.writeInt(0);
+		out.flush();
+
+		while (running) {
+			Map<String, byte[]> frame;
+			try {
+				frame = readFrame(in);
+			} catch (EOFException e) {
+				return;
+			}
+
+			ResourceGovernor governor = ResourceGovernor.getInstance();
+			ResourceGovernor.Sample sample = governor.start();
+			int redefined;
+			try {
+				redefined = smith.redefineClasses(frame);
+			} finally {
+				governor.charge(sample);
+			}
+			out.writeInt(redefined);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Reads a single frame
+	 *
+	 * @param in
+	 *          the client input
+	 * @return the class names mapped to their bytes
+	 * @throws IOException
+	 *           if the frame is malformed or too large
+	 */
+	private static Map<String, byte[]> readFrame(DataInputStream in)
+			throws IOException {
+		int count = in.readInt();
+		if (count < 0 || count > SmithPushClient.MAX_CLASSES_PER_FRAME) {
+			throw new IOException("Invalid frame size: " + count);
+		}
+
+		Map<String, byte[]> frame = new HashMap<String, byte[]>();
+		long frameLength = 0;
+		for (int i = 0; i < count; i++) {
+			String className = in.readUTF();
+			int length = in.readInt();
+			if (length < 0 || length > SmithPushClient.MAX_CLASS_LENGTH) {
+				throw new IOException("Invalid class length " + length + " for "
+						+ className);
+			}
+			frameLength += length;
+			if (frameLength > SmithPushClient.MAX_FRAME_LENGTH) {
+				throw new IOException("Frame longer than "
+						+ SmithPushClient.MAX_FRAME_LENGTH + " bytes");
+			}
+			byte[] bytes = new byte[length];
+			in.readFully(bytes);
+			frame.put(className, bytes);
+		}
+		return frame;
+	}
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import it.fridrik.filemonitor.ChangeSet;
+import it.fridrik.filemonitor.ChangeSetListener;
+import it.fridrik.filemonitor.JarEvent;
+import it.fridrik.filemonitor.JarModifiedListener;
+import it.fridrik.filemonitor.ScanCompletedListener;
+import it.fridrik.filemonitor.ScanEvent;
+import it.fridrik.filemonitor.StatLimiter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * SmithWatcher checks the watched folders on behalf of every jvm of the host
+ * and publishes the changed classes to a {@link ChangeJournal}. The agents
+ * started with <code>mode=journal</code> and the same <code>journal</code>
+ * follow it instead of checking the folders themselves, so a single check
+ * serves the whole host. The watcher takes the same parameters of the agent,
+ * <code>journal</code> being mandatory:
+ * 
+ * <pre>
+ * java -cp smith.jar it.fridrik.agent.SmithWatcher classes=/app/classes,jars=/app/lib,journal=/tmp/app.journal,period=500
+ * </pre>
+ * 
+ * <code>journalsize</code> sets the size of the journal (16m by default): a
+ * follower paused for longer than it takes the watcher to fill it loses the
+ * changes published in the meantime.
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @see JournalFollower
+ * @since 1.0
+ */
+public class SmithWatcher implements ChangeSetListener, JarModifiedListener,
+		ScanCompletedListener {
+
+	private static final Logger log = Logger.getLogger(SmithWatcher.class
+			.getName());
+
+	private final String classFolder;
+	private final String jarFolder;
+	private final ChangeJournal journal;
+	private final List<ChangeJournal.Entry> jarChanges;
+	private final ScanRegistry.Subscription classes;
+	private final ScanRegistry.Subscription jars;
+
+	/**
+	 * Creates the journal and starts checking the watched folders
+	 * 
+	 * @param args
+	 *          the {@link SmithArgs} instance
+	 * @throws IOException
+	 *           if the journal cannot be created
+	 */
+	public SmithWatcher(SmithArgs args) throws IOException {
+		this.classFolder = args.getClassFolder();
+		this.jarFolder = args.getJarFolder();
+		this.journal = ChangeJournal.create(new File(args.getJournal()), args
+				.getJournalSize());
+		this.jarChanges = new ArrayList<ChangeJournal.Entry>();
+
+		int period = args.getPeriod() > 0 ? args.getPeriod() : 500;
+		StatLimiter limiter = new StatLimiter(args.getMaxStats());
+		ScanRegistry registry = ScanRegistry.getInstance();
+		classes = registry.subscribe(classFolder, "class", this, this);
+		classes.setStatLimiter(limiter);
+		classes.setSchedule(period, args.getShards());
+		if (jarFolder != null) {
+			jars = registry.subscribeJars(jarFolder, this, this);
+			jars.setStatLimiter(limiter);
+			jars.setSchedule(period, args.getShards());
+		} else {
+			jars = null;
+		}
+		ResourceGovernor.getInstance().setBudget(this, args.getCpuBudget(),
+				args.getAllocationBudget());
+	}
+
+	/**
+	 * Publishes the class files modified since the previous check, as a single
+	 * batch
+	 */
+	public void changesFound(ChangeSet changes) {
+		List<ChangeJournal.Entry> entries = new ArrayList<ChangeJournal.Entry>();
+		for (ChangeSet.Change change : changes.getModified()) {
+			try {
+				entries.add(new ChangeJournal.Entry(Smith.toClassName(change
+						.getPath()), ClassBytesLoader.read(new File(classFolder, change
+						.getPath())), changes.getDetectedAt()));
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "error", e);
+			}
+		}
+		publish(entries);
+	}
+
+	/**
+	 * Reads a changed jar entry while its jar is still open
+	 */
+	public void jarModified(JarEvent event) {
+		try {
+			JarEntry entry = event.getSource().getJarEntry(event.getEntryName());
+			if (entry == null || !entry.getName().endsWith(".class")) {
+				return;
+			}
+			InputStream is = event.getSource().getInputStream(entry);
+			try {
+				jarChanges.add(new ChangeJournal.Entry(Smith.toClassName(entry
+						.getName()), ClassBytesLoader.read(is, entry.getSize()), event
+						.getDetectedAt()));
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "error", e);
+		}
+	}
+
+	/**
+	 * Publishes the jar entries changed during a check of the jar folder
+	 */
+	public void scanCompleted(ScanEvent event) {
+		if (jars != null && event.getSource().equals(getJarRoot())
+				&& !jarChanges.isEmpty()) {
+			try {
+				publish(new ArrayList<ChangeJournal.Entry>(jarChanges));
+			} finally {
+				jarChanges.clear();
+			}
+		}
+	}
+
+	private String getJarRoot() {
+		return jars.getFileMonitor().getFolder();
+	}
+
+	private void publish(List<ChangeJournal.Entry> entries) {
+		if (entries.isEmpty()) {
+			return;
+		}
+		int published = journal.publish(entries);
+		log.info("Smith watcher: published " + published + " of "
+				+ entries.size() + " changed classes");
+	}
+
+	/**
+	 * Stops checking the watched folders and closes the journal
+	 */
+	public void stop() {
+		classes.cancel();
+		if (jars != null) {
+			jars.cancel();
+		}
+		journal.close();
+		ResourceGovernor.getInstance().removeBudget(this);
+	}
+
+	/**
+	 * Runs a watcher until the jvm is stopped
+	 * 
+	 * @param args
+	 *          the watcher parameters, in the same format of the agent ones
+	 */
+	public static void main(String[] args) throws Exception {
+		SmithArgs smithArgs = new SmithArgs(args.length > 0 ? args[0] : null);
+		if (smithArgs.getClassFolder() == null || smithArgs.getJournal() == null) {
+			System.err.println("Usage: SmithWatcher classes=...,journal=...[,jars=...]"
+					+ "[,period=...][,journalsize=...]");
+			System.exit(1);
+		}
+
+		final SmithWatcher watcher = new SmithWatcher(smithArgs);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+
+			@Override
+			public void run() {
+				watcher.stop();
+			}
+
+		});
+		System.out.println("Smith watcher: publishing the changes of "
+				+ smithArgs.getClassFolder() + " to " + smithArgs.getJournal());
+		while (true) {
+			Thread.sleep(Long.MAX_VALUE);
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import it.fridrik.filemonitor.ScanEvent;
+import it.fridrik.filemonitor.ScanTracer;
+
+/**
+ * Telemetry reports what the agents are doing to an external profiler. This
+ * implementation does nothing: when the runtime ships Java Flight Recorder
+ * (java 11+), {@link #getInstance()} returns an implementation emitting JFR
+ * events instead.<br/>
+ * Every phase is reported when it starts and again when it ends, so that the
+ * events carry their real start time and duration
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class Telemetry implements ScanTracer {
+
+	private static final String JFR_TELEMETRY = "it.fridrik.agent.jfr.JfrTelemetry";
+
+	private static final Telemetry instance = create();
+
+	/**
+	 * Gets the telemetry shared by all the agents of this jvm
+	 * 
+	 * @return the Telemetry instance
+	 */
+	public static Telemetry getInstance() {
+		return instance;
+	}
+
+	private static Telemetry create() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (Telemetry) Class.forName(JFR_TELEMETRY)
+					.getDeclaredConstructor().newInstance();
+		} catch (Throwable t) {
+			return new Telemetry();
+		}
+	}
+
+	public Object scanStarted(String root) {
+		return null;
+	}
+
+	public void dispatchStarted(Object trace) {
+	}
+
+	public void scanCompleted(Object trace, ScanEvent event) {
+	}
+
+	/**
+	 * Reports that Instrumentation.redefineClasses is about to be called
+	 * 
+	 * @return a handle for {@link #classesRedefined(Object, int, long, boolean)},
+	 *         may be null
+	 */
+	public Object redefinitionStarted() {
+		return null;
+	}
+
+	/**
+	 * Reports the end of a call to Instrumentation.redefineClasses
+	 * 
+	 * @param trace
+	 *          the handle returned by {@link #redefinitionStarted()}
+	 * @param classes
+	 *          the number of classes redefined together
+	 * @param bytes
+	 *          the total size of the new class files
+	 * @param success
+	 *          false if the call has thrown an exception
+	 */
+	public void classesRedefined(Object trace, int classes, long bytes,
+			boolean success) {
+	}
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent;
+
+import java.io.File;
+import java.lang.instrument.ClassFileTransformer;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+
+/**
+ * Tells a Smith agent about the classes loaded from the folders it watches,
+ * and where they have been loaded from. The class bytes are only changed
+ * when the agent has a patch waiting for the class being loaded
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+class WatchedClassTransformer implements ClassFileTransformer {
+
+	private final Smith smith;
+	private final String[] roots;
+
+	/**
+	 * Creates a new transformer
+	 * 
+	 * @param smith
+	 *          the agent to notify
+	 * @param roots
+	 *          the absolute paths of the watched folders, null ones are ignored
+	 */
+	WatchedClassTransformer(Smith smith, String... roots) {
+		this.smith = smith;
+		this.roots = roots;
+	}
+
+	public byte[] transform(ClassLoader loader, String className,
+			Class<?> classBeingRedefined, ProtectionDomain protectionDomain,
+			byte[] classfileBuffer) {
+		if (classBeingRedefined == null && className != null) {
+			String location = getWatchedLocation(protectionDomain);
+			if (location != null) {
+				return smith.classLoaded(className.replace('/', '.'), location,
+						classfileBuffer);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Tells whether a class comes from one of the watched folders, looking at
+	 * the location of its code source
+	 * 
+	 * @param protectionDomain
+	 *          the protection domain of the class
+	 * @return the absolute path of the folder or jar the class has been loaded
+	 *         from, null if it is not contained in a watched folder
+	 */
+	String getWatchedLocation(ProtectionDomain protectionDomain) {
+		String path = getLocation(protectionDomain);
+		if (path == null) {
+			return null;
+		}
+
+		for (String root : roots) {
+			if (root != null
+					&& (path + File.separator).startsWith(root.endsWith(File.separator) ? root
+							: root + File.separator)) {
+				return path;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the folder or jar a class has been loaded from, looking at the
+	 * location of its code source
+	 * 
+	 * @param protectionDomain
+	 *          the protection domain of the class
+	 * @return the absolute path of the folder or jar, null if the class does not
+	 *         come from the file system
+	 */
+	static String getLocation(ProtectionDomain protectionDomain) {
+		if (protectionDomain == null) {
+			return null;
+		}
+		CodeSource codeSource = protectionDomain.getCodeSource();
+		if (codeSource == null || codeSource.getLocation() == null) {
+			return null;
+		}
+
+		URL location = codeSource.getLocation();
+		if (!"file".equals(location.getProtocol())) {
+			return null;
+		}
+		String path;
+		try {
+			path = new File(location.toURI()).getAbsolutePath();
+		} catch (Exception e) {
+			path = new File(location.getPath()).getAbsolutePath();
+		}
+		return path;
+	}
+
+}
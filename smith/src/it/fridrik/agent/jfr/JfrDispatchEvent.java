@@ -0,0 +1,45 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Committed when a check has found changes, once they have all been notified
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+@Name("it.fridrik.smith.Dispatch")
+@Label("Smith Dispatch")
+@Category("Smith")
+@Description("The changes found by a check, notified to the listeners")
+@StackTrace(false)
+class JfrDispatchEvent extends Event {
+
+	@Label("Root")
+	String root;
+
+	@Label("Events")
+	int events;
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Committed after every call to Instrumentation.redefineClasses
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+@Name("it.fridrik.smith.Redefinition")
+@Label("Smith Redefinition")
+@Category("Smith")
+@Description("A batch of classes redefined by Smith")
+class JfrRedefinitionEvent extends Event {
+
+	@Label("Classes")
+	int classes;
+
+	@Label("Bytes")
+	@DataAmount
+	long bytes;
+
+	@Label("Success")
+	boolean success;
+
+}
@@ -0,0 +1,51 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Committed at the end of every check of a monitored folder
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+@Name("it.fridrik.smith.Scan")
+@Label("Smith Scan")
+@Category("Smith")
+@Description("A check of a folder monitored by Smith")
+@StackTrace(false)
+class JfrScanEvent extends Event {
+
+	@Label("Root")
+	String root;
+
+	@Label("Files Visited")
+	int files;
+
+	@Label("Directories Visited")
+	int directories;
+
+	@Label("Changes Found")
+	int changes;
+
+}
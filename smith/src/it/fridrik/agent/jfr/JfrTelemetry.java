@@ -0,0 +1,114 @@
+/*
+ * Agent Smith - A java hot class redefinition implementation
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.agent.jfr;
+
+import it.fridrik.agent.Telemetry;
+import it.fridrik.filemonitor.ScanEvent;
+import jdk.jfr.EventType;
+
+/**
+ * Emits the Java Flight Recorder events of Smith. Every event type is checked
+ * before building the event, so that nothing is done while the event is
+ * disabled in the running recording settings. Events are begun when the work
+ * starts and committed once it is done, so that JFR records their real start
+ * time and duration
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class JfrTelemetry extends Telemetry {
+
+	private final EventType scanType = EventType
+			.getEventType(JfrScanEvent.class);
+	private final EventType dispatchType = EventType
+			.getEventType(JfrDispatchEvent.class);
+	private final EventType redefinitionType = EventType
+			.getEventType(JfrRedefinitionEvent.class);
+
+	@Override
+	public Object scanStarted(String root) {
+		if (!scanType.isEnabled() && !dispatchType.isEnabled()) {
+			return null;
+		}
+		Trace trace = new Trace();
+		trace.scan.begin();
+		return trace;
+	}
+
+	@Override
+	public void dispatchStarted(Object trace) {
+		if (trace != null) {
+			Trace phases = (Trace) trace;
+			phases.scan.end();
+			phases.dispatch.begin();
+		}
+	}
+
+	@Override
+	public void scanCompleted(Object trace, ScanEvent event) {
+		if (trace == null) {
+			return;
+		}
+		Trace phases = (Trace) trace;
+		phases.scan.root = event.getSource();
+		phases.scan.files = event.getFiles();
+		phases.scan.directories = event.getDirectories();
+		phases.scan.changes = event.getChanges();
+		phases.scan.commit();
+
+		if (event.getChanges() > 0) {
+			phases.dispatch.end();
+			phases.dispatch.root = event.getSource();
+			phases.dispatch.events = event.getChanges();
+			phases.dispatch.commit();
+		}
+	}
+
+	@Override
+	public Object redefinitionStarted() {
+		if (!redefinitionType.isEnabled()) {
+			return null;
+		}
+		JfrRedefinitionEvent redefinition = new JfrRedefinitionEvent();
+		redefinition.begin();
+		return redefinition;
+	}
+
+	@Override
+	public void classesRedefined(Object trace, int classes, long bytes,
+			boolean success) {
+		if (trace != null) {
+			JfrRedefinitionEvent redefinition = (JfrRedefinitionEvent) trace;
+			redefinition.end();
+			redefinition.classes = classes;
+			redefinition.bytes = bytes;
+			redefinition.success = success;
+			redefinition.commit();
+		}
+	}
+
+	/**
+	 * The events of the phases of a check, begun when each phase starts
+	 */
+	private static class Trace {
+
+		final JfrScanEvent scan = new JfrScanEvent();
+		final JfrDispatchEvent dispatch = new JfrDispatchEvent();
+
+	}
+
+}
@@ -16,12 +16,22 @@
  */
 package it.fridrik.agent.servlet;
 
+import it.fridrik.agent.LatencyHistogram;
+import it.fridrik.agent.Latencies;
+import it.fridrik.agent.ResourceGovernor;
 import it.fridrik.agent.Smith;
 import it.fridrik.agent.SmithArgs;
 import it.fridrik.agent.SmithLoader;
+import it.fridrik.filemonitor.ScanEvent;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 /**
  * Loads Smith together with the webapp into which SmithServlet is installed.
@@ -53,8 +63,22 @@ import javax.servlet.http.HttpServlet;
  *         &lt;/init-param&gt;
  *       &lt;load-on-startup&gt;1&lt;/load-on-startup&gt;
  *     &lt;/servlet&gt;
+ *     &lt;servlet-mapping&gt;
+ *       &lt;servlet-name&gt;SmithServlet&lt;/servlet-name&gt;
+ *       &lt;url-pattern&gt;/smith/status&lt;/url-pattern&gt;
+ *     &lt;/servlet-mapping&gt;
  * </pre>
  * 
+ * Smith is loaded into the very jvm running the webapp. Since java 9 this
+ * requires the container to be started with
+ * <code>-Djdk.attach.allowAttachSelf=true</code><br/>
+ * Once mapped to an url, the servlet answers GET requests with the status of
+ * the active agents, as JSON: the cpu and memory used by the agent threads
+ * against their budget, then, for each agent, watched folders, tracked files
+ * and jar entries, redefinitions avoided and deferred by the class diff, last
+ * scans, latency percentiles (us), recent failures and classes awaiting a
+ * restart. Building the status never waits for a running scan.
+ * 
  * @author Federico Fissore (federico@fissore.org)
  * @since 1.0
  */
@@ -76,13 +100,200 @@ public class SmithServlet extends HttpServlet {
 		SmithArgs args = new SmithArgs(classesPath, jarsPath, monitorPeriod, logLevel);
 
 		try {
-			SmithLoader.hotStart(smithJar, args);
+			SmithLoader.hotStartSelf(smithJar, args);
 		} catch (Exception e) {
 			throw new ServletException(e);
 		}
 
 	}
 
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+			throws ServletException, IOException {
+		resp.setContentType("application/json");
+		resp.setCharacterEncoding("UTF-8");
+		resp.setHeader("Cache-Control", "no-cache");
+
+		PrintWriter out = resp.getWriter();
+		List<Smith> agents = Smith.getAgents();
+		out.print("{\"active\":");
+		out.print(agents.size());
+		out.print(",\"resources\":");
+		writeResources(out, ResourceGovernor.getInstance());
+		out.print(",\"agents\":[");
+		for (int i = 0; i < agents.size(); i++) {
+			if (i > 0) {
+				out.print(',');
+			}
+			writeAgent(out, agents.get(i));
+		}
+		out.print("]}");
+		out.flush();
+	}
+
+	private static void writeAgent(PrintWriter out, Smith smith) {
+		out.print("{\"classFolder\":");
+		writeString(out, smith.getClassFolder());
+		out.print(",\"jarFolder\":");
+		writeString(out, smith.getJarFolder());
+		out.print(",\"period\":");
+		out.print(smith.getMonitorPeriod());
+		out.print(",\"mode\":");
+		writeString(out, smith.getMode());
+		out.print(",\"coverage\":");
+		writeNumber(out, smith.getCoverage());
+		out.print(",\"staleness\":");
+		out.print(smith.getStaleness());
+		out.print(",\"trackedFiles\":");
+		out.print(smith.getTrackedFiles());
+		out.print(",\"trackedJarEntries\":");
+		out.print(smith.getTrackedJarEntries());
+		out.print(",\"redefinitionsAvoided\":");
+		out.print(smith.getRedefinitionsAvoided());
+		out.print(",\"deferredClasses\":");
+		out.print(smith.getDeferredClasses());
+
+		out.print(",\"scans\":[");
+		List<ScanEvent> scans = smith.getLastScans();
+		for (int i = 0; i < scans.size(); i++) {
+			ScanEvent scan = scans.get(i);
+			if (i > 0) {
+				out.print(',');
+			}
+			out.print("{\"root\":");
+			writeString(out, scan.getSource());
+			out.print(",\"files\":");
+			out.print(scan.getFiles());
+			out.print(",\"directories\":");
+			out.print(scan.getDirectories());
+			out.print(",\"changes\":");
+			out.print(scan.getChanges());
+			out.print(",\"scanMicros\":");
+			out.print(scan.getScanNanos() / 1000);
+			out.print('}');
+		}
+
+		Latencies latencies = smith.getLatencies();
+		out.print("],\"latencies\":{\"detection\":");
+		writeHistogram(out, latencies.getDetection());
+		out.print(",\"settle\":");
+		writeHistogram(out, latencies.getSettle());
+		out.print(",\"read\":");
+		writeHistogram(out, latencies.getRead());
+		out.print(",\"redefinition\":");
+		writeHistogram(out, latencies.getRedefinition());
+		out.print(",\"total\":");
+		writeHistogram(out, latencies.getTotal());
+		out.print(",\"scan\":");
+		writeHistogram(out, latencies.getScan());
+
+		out.print("},\"failures\":[");
+		List<Smith.Failure> failures = smith.getRecentFailures();
+		for (int i = 0; i < failures.size(); i++) {
+			Smith.Failure failure = failures.get(i);
+			if (i > 0) {
+				out.print(',');
+			}
+			out.print("{\"time\":");
+			out.print(failure.getTime());
+			out.print(",\"classes\":");
+			writeString(out, failure.getClasses());
+			out.print(",\"cause\":");
+			writeString(out, failure.getCause());
+			out.print('}');
+		}
+
+		out.print("],\"awaitingRestart\":[");
+		List<String> classes = smith.getClassesAwaitingRestart();
+		for (int i = 0; i < classes.size(); i++) {
+			if (i > 0) {
+				out.print(',');
+			}
+			writeString(out, classes.get(i));
+		}
+		out.print("]}");
+	}
+
+	private static void writeResources(PrintWriter out,
+			ResourceGovernor governor) {
+		out.print("{\"cpuUsage\":");
+		writeNumber(out, governor.getCpuUsage());
+		out.print(",\"cpuBudget\":");
+		writeNumber(out, governor.getCpuBudget());
+		out.print(",\"cpuMicros\":");
+		out.print(governor.getCpuNanos() / 1000);
+		out.print(",\"allocationRate\":");
+		out.print(governor.getAllocationRate());
+		out.print(",\"allocationBudget\":");
+		out.print(governor.getAllocationBudget());
+		out.print(",\"allocatedBytes\":");
+		out.print(governor.getAllocatedBytes());
+		out.print(",\"throttled\":");
+		out.print(governor.getThrottled());
+		out.print('}');
+	}
+
+	private static void writeHistogram(PrintWriter out,
+			LatencyHistogram histogram) {
+		out.print("{\"count\":");
+		out.print(histogram.getCount());
+		out.print(",\"mean\":");
+		out.print(histogram.getMean());
+		out.print(",\"p50\":");
+		out.print(histogram.getPercentile(50));
+		out.print(",\"p90\":");
+		out.print(histogram.getPercentile(90));
+		out.print(",\"p99\":");
+		out.print(histogram.getPercentile(99));
+		out.print(",\"max\":");
+		out.print(histogram.getMax());
+		out.print('}');
+	}
+
+	private static void writeNumber(PrintWriter out, double value) {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			out.print("null");
+		} else {
+			out.print(value);
+		}
+	}
+
+	private static void writeString(PrintWriter out, String value) {
+		if (value == null) {
+			out.print("null");
+			return;
+		}
+
+		out.print('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				out.print("\\\"");
+				break;
+			case '\\':
+				out.print("\\\\");
+				break;
+			case '\n':
+				out.print("\\n");
+				break;
+			case '\r':
+				out.print("\\r");
+				break;
+			case '\t':
+				out.print("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					out.print(String.format("\\u%04x", Integer.valueOf(c)));
+				} else {
+					out.print(c);
+				}
+			}
+		}
+		out.print('"');
+	}
+
 	@Override
 	public void destroy() {
 		super.destroy();
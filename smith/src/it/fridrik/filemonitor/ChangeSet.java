@@ -0,0 +1,186 @@
+/*
+ * File Monitor - Watches a folder and notify files changes
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.filemonitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EventObject;
+import java.util.List;
+
+/**
+ * The changes found by a check of a monitored folder: the files deleted, added
+ * and modified since the previous check. A change set is immutable and holds
+ * one compact {@link Change} per changed file, whose path is relative to the
+ * monitored folder
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class ChangeSet extends EventObject {
+
+	private static final long serialVersionUID = 5174180826423427215L;
+
+	private final long detectedAt;
+	private final List<Change> deleted;
+	private final List<Change> added;
+	private final List<Change> modified;
+
+	/**
+	 * Creates a new change set, copying the specified lists
+	 * 
+	 * @param root
+	 *          the absolute path of the monitored folder
+	 * @param detectedAt
+	 *          the time the check has found the changes
+	 * @param deleted
+	 *          the deleted files
+	 * @param added
+	 *          the added files
+	 * @param modified
+	 *          the modified files
+	 */
+	public ChangeSet(String root, long detectedAt, List<Change> deleted,
+			List<Change> added, List<Change> modified) {
+		super(root);
+		this.detectedAt = detectedAt;
+		this.deleted = copyOf(deleted);
+		this.added = copyOf(added);
+		this.modified = copyOf(modified);
+	}
+
+	/**
+	 * The absolute path of the monitored folder
+	 */
+	@Override
+	public String getSource() {
+		return (String) super.getSource();
+	}
+
+	/**
+	 * The time the check has found the changes, as milliseconds since the epoch
+	 * 
+	 * @return the detection time
+	 */
+	public long getDetectedAt() {
+		return detectedAt;
+	}
+
+	public List<Change> getDeleted() {
+		return deleted;
+	}
+
+	public List<Change> getAdded() {
+		return added;
+	}
+
+	public List<Change> getModified() {
+		return modified;
+	}
+
+	/**
+	 * The number of changes
+	 * 
+	 * @return the number of deleted, added and modified files
+	 */
+	public int size() {
+		return deleted.size() + added.size() + modified.size();
+	}
+
+	public boolean isEmpty() {
+		return size() == 0;
+	}
+
+	/**
+	 * Keeps only the files with the specified extension
+	 * 
+	 * @param extension
+	 *          the file extension
+	 * @return the changes of the files with the extension, this change set if
+	 *         they all have it
+	 */
+	public ChangeSet filter(String extension) {
+		List<Change> filteredDeleted = filter(deleted, extension);
+		List<Change> filteredAdded = filter(added, extension);
+		List<Change> filteredModified = filter(modified, extension);
+		if (filteredDeleted == deleted && filteredAdded == added
+				&& filteredModified == modified) {
+			return this;
+		}
+		return new ChangeSet(getSource(), detectedAt, filteredDeleted,
+				filteredAdded, filteredModified);
+	}
+
+	private static List<Change> filter(List<Change> changes, String extension) {
+		List<Change> filtered = null;
+		for (int i = 0; i < changes.size(); i++) {
+			Change change = changes.get(i);
+			boolean matches = change.getPath().endsWith(extension);
+			if (!matches && filtered == null) {
+				filtered = new ArrayList<Change>(changes.subList(0, i));
+			} else if (matches && filtered != null) {
+				filtered.add(change);
+			}
+		}
+		return filtered != null ? filtered : changes;
+	}
+
+	private static List<Change> copyOf(List<Change> changes) {
+		if (changes.isEmpty()) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(new ArrayList<Change>(changes));
+	}
+
+	/**
+	 * A changed file
+	 */
+	public static final class Change {
+
+		private final String path;
+		private final long lastModified;
+
+		public Change(String path, long lastModified) {
+			this.path = path;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * The path of the file, relative to the monitored folder
+		 * 
+		 * @return the relative path
+		 */
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * The modification time of the file, as milliseconds since the epoch
+		 * 
+		 * @return the modification time, 0 if the file has been deleted
+		 */
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		@Override
+		public String toString() {
+			return path;
+		}
+
+	}
+
+}
@@ -29,6 +29,9 @@ public class FileEvent extends EventObject {
 
 	private static final long serialVersionUID = 4696923746078504205L;
 
+	private final long lastModified;
+	private final long detectedAt;
+
 	/**
 	 * Creates a new FileEvent, removing the absolute folder path supplied when
 	 * creating this instance. Therefore the event will contain the relative path
@@ -40,7 +43,57 @@ public class FileEvent extends EventObject {
 	 *          the basepath to erase from the event source
 	 */
 	public FileEvent(String path, String basePath) {
-		super(path.replace(basePath + File.separator, ""));
+		this(path, basePath, 0L, System.currentTimeMillis());
+	}
+
+	/**
+	 * Creates a new FileEvent stamped with the modification time of the file and
+	 * the time the change has been detected
+	 * 
+	 * @param path
+	 *          the path of the file
+	 * @param basePath
+	 *          the basepath to erase from the event source
+	 * @param lastModified
+	 *          the modification time of the file, 0 if unknown
+	 * @param detectedAt
+	 *          the time the change has been detected
+	 */
+	public FileEvent(String path, String basePath, long lastModified,
+			long detectedAt) {
+		this(relativize(path, basePath), lastModified, detectedAt);
+	}
+
+	/**
+	 * Creates a new FileEvent for a file whose path is already relative to the
+	 * monitored folder
+	 * 
+	 * @param relativePath
+	 *          the path of the file, relative to the monitored folder
+	 * @param lastModified
+	 *          the modification time of the file, 0 if unknown
+	 * @param detectedAt
+	 *          the time the change has been detected
+	 */
+	public FileEvent(String relativePath, long lastModified, long detectedAt) {
+		super(relativePath);
+		this.lastModified = lastModified;
+		this.detectedAt = detectedAt;
+	}
+
+	/**
+	 * Removes the base path from the beginning of the path, if there
+	 * 
+	 * @param path
+	 *          the path of the file
+	 * @param basePath
+	 *          the basepath to erase
+	 * @return the relative path
+	 */
+	private static String relativize(String path, String basePath) {
+		String prefix = basePath.endsWith(File.separator) ? basePath : basePath
+				+ File.separator;
+		return path.startsWith(prefix) ? path.substring(prefix.length()) : path;
 	}
 
 	/**
@@ -51,4 +104,23 @@ public class FileEvent extends EventObject {
 		return (String) super.getSource();
 	}
 
+	/**
+	 * The modification time of the file, as milliseconds since the epoch
+	 * 
+	 * @return the modification time, 0 if unknown
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * The time the monitor has noticed the change, as milliseconds since the
+	 * epoch
+	 * 
+	 * @return the detection time
+	 */
+	public long getDetectedAt() {
+		return detectedAt;
+	}
+
 }
@@ -18,37 +18,82 @@ package it.fridrik.filemonitor;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * FileMonitor (the name says it all) monitors a folder and its subfolders for
- * file changes (added, removed and modified). Only one file extension can be
- * monitored for each instance of FileMonitor. For each change found, an event
- * is raised. File renames are notified as a file removal and a file addition,
- * in this order. FileMonitor implements Runnable and expects you to start it
- * through a ScheduledExecutorService
+ * file changes (added, removed and modified). Each instance of FileMonitor
+ * monitors the files with one of its extensions, so that a single walk can
+ * serve files of different kinds (see {@link ChangeSet#filter(String)}). For
+ * each change found, an event is raised. File renames are notified as a file
+ * removal and a file addition, in this order. Changes are notified all
+ * together at the end of each check: first as a single {@link ChangeSet}, then
+ * one event per file, followed by a {@link ScanEvent} which sums the check up.
+ * FileMonitor implements Runnable and expects you to start it through a
+ * ScheduledExecutorService.<br/>
+ * A selective FileMonitor does not walk the folder: it only checks the files
+ * explicitly watched (see {@link #watch(String)}), so that the cost of a check
+ * depends on the number of watched files rather than on the size of the folder.
+ * <br/>
+ * FileMonitor remembers the content of each folder, so that a check costs one
+ * listing per folder and one stat per monitored file. The folders can be split
+ * in shards, each check visiting only one of them (see
+ * {@link #setShards(int)}), and the file system calls can be paced by a
+ * {@link StatLimiter}: on slow mounts, {@link #getCoverage()} and
+ * {@link #getStaleness()} tell how up to date the monitor is.<br/>
+ * The folder is accessed through a {@link FileTree}, the platform file system
+ * unless specified otherwise
  * 
  * @author Federico Fissore (federico@fissore.org)
  * @since 1.0
  */
 public class FileMonitor implements Runnable {
 
-	private final File folder;
+	private final FileTree tree;
+	private final String root;
+	private final String separator;
+	private final int rootLength;
 	private final ExtFilenameFilter filenameFilter;
-	private final String fileExtension;
+	private final List<String> fileExtensions;
 	private final Map<String, Long> fileMap;
+	private final Map<String, Folder> folderMap;
 	private final List<FileAddedListener> fileAddedListeners;
 	private final List<FileDeletedListener> fileDeletedListeners;
 	private final List<FileModifiedListener> fileModifiedListeners;
+	private final List<ScanCompletedListener> scanCompletedListeners;
+	private final List<ChangeSetListener> changeSetListeners;
+	private final List<ChangeSet.Change> pendingDeleted;
+	private final List<ChangeSet.Change> pendingAdded;
+	private final List<ChangeSet.Change> pendingModified;
+	private final Set<String> watched;
+	private final Queue<ChangeSet.Change> newlyWatched;
+	private volatile boolean selective;
+	private volatile int shards;
+	private int nextShard;
+	private StatLimiter limiter;
+	private volatile ScanTracer tracer;
+	private volatile long coverageWindow;
+	private volatile double coverage;
+	private volatile long oldestCheck;
+	private int filesVisited;
+	private int directoriesVisited;
+	private volatile int trackedFiles;
 
 	class ExtFilenameFilter implements FilenameFilter {
 
 		@SuppressWarnings("synthetic-access")
 		public boolean accept(File folder, String name) {
-			return name.endsWith(fileExtension)
+			return matches(name)
 					|| new File(folder.getAbsolutePath() + File.separator + name)
 							.isDirectory();
 		}
@@ -60,70 +105,577 @@ public class FileMonitor implements Runnable {
 	 * 
 	 * @param absoluteFolderPath
 	 *          the absolute folder path to monitor
-	 * @param fileExtension
-	 *          the file extension to monitor
+	 * @param fileExtensions
+	 *          the file extensions to monitor
+	 */
+	public FileMonitor(String absoluteFolderPath, String... fileExtensions) {
+		this(LocalFileTree.getInstance(), toAbsolute(absoluteFolderPath),
+				fileExtensions);
+	}
+
+	/**
+	 * Creates a new instance of FileMonitor watching a folder of a
+	 * {@link FileTree}
+	 * 
+	 * @param tree
+	 *          the file system the folder belongs to
+	 * @param absoluteFolderPath
+	 *          the absolute folder path to monitor
+	 * @param fileExtensions
+	 *          the file extensions to monitor
 	 */
-	public FileMonitor(String absoluteFolderPath, String fileExtension) {
-		this.fileExtension = fileExtension;
+	public FileMonitor(FileTree tree, String absoluteFolderPath,
+			String... fileExtensions) {
+		this.tree = tree;
+		this.fileExtensions = new CopyOnWriteArrayList<String>(Arrays
+				.asList(fileExtensions));
 		this.filenameFilter = new ExtFilenameFilter();
 		this.fileMap = new HashMap<String, Long>();
-		this.fileAddedListeners = new LinkedList<FileAddedListener>();
-		this.fileDeletedListeners = new LinkedList<FileDeletedListener>();
-		this.fileModifiedListeners = new LinkedList<FileModifiedListener>();
-		this.folder = new File(absoluteFolderPath);
+		this.folderMap = new HashMap<String, Folder>();
+		this.shards = 1;
+		this.coverage = 1.0;
+		this.oldestCheck = System.currentTimeMillis();
+		this.fileAddedListeners = new CopyOnWriteArrayList<FileAddedListener>();
+		this.fileDeletedListeners = new CopyOnWriteArrayList<FileDeletedListener>();
+		this.fileModifiedListeners = new CopyOnWriteArrayList<FileModifiedListener>();
+		this.scanCompletedListeners = new CopyOnWriteArrayList<ScanCompletedListener>();
+		this.changeSetListeners = new CopyOnWriteArrayList<ChangeSetListener>();
+		this.pendingDeleted = new ArrayList<ChangeSet.Change>();
+		this.pendingAdded = new ArrayList<ChangeSet.Change>();
+		this.pendingModified = new ArrayList<ChangeSet.Change>();
+		this.watched = new HashSet<String>();
+		this.newlyWatched = new ConcurrentLinkedQueue<ChangeSet.Change>();
+		this.separator = tree.getSeparator();
 
-		if (!folder.isAbsolute() || !folder.isDirectory()) {
+		if (absoluteFolderPath == null || !tree.isDirectory(absoluteFolderPath)) {
 			throw new IllegalArgumentException("The parameter with value "
 					+ absoluteFolderPath + " MUST be a folder");
 		}
+
+		String path = absoluteFolderPath;
+		while (path.length() > separator.length() && path.endsWith(separator)) {
+			path = path.substring(0, path.length() - separator.length());
+		}
+		this.root = path;
+		this.rootLength = root.endsWith(separator) ? root.length() : root
+				.length()
+				+ separator.length();
+	}
+
+	private static String toAbsolute(String folderPath) {
+		return new File(folderPath).isAbsolute() ? folderPath : null;
+	}
+
+	public synchronized void run() {
+		ScanTracer tracer = this.tracer;
+		Object trace = tracer == null ? null : tracer.scanStarted(root);
+		long start = System.nanoTime();
+		filesVisited = 0;
+		directoriesVisited = 0;
+
+		if (selective) {
+			checkWatched();
+		} else {
+			int shard = nextShard;
+			nextShard = (nextShard + 1) % shards;
+			checkShard(shard);
+		}
+
+		long scanned = System.nanoTime();
+		if (tracer != null) {
+			tracer.dispatchStarted(trace);
+		}
+		updateCoverage();
+		trackedFiles = fileMap.size();
+		ChangeSet changes = new ChangeSet(root, System
+				.currentTimeMillis(), pendingDeleted, pendingAdded, pendingModified);
+		pendingDeleted.clear();
+		pendingAdded.clear();
+		pendingModified.clear();
+		dispatch(changes);
+
+		ScanEvent event = new ScanEvent(root, filesVisited, directoriesVisited,
+				changes.size(), scanned - start, System.nanoTime() - scanned);
+		if (tracer != null) {
+			tracer.scanCompleted(trace, event);
+		}
+		notifyScanCompletedListeners(event);
 	}
 
-	public void run() {
-		checkDeletion();
-		checkAddAndModify(folder);
+	/**
+	 * Forgets every known file. The next run will notify each of them as added
+	 */
+	public synchronized void clear() {
+		fileMap.clear();
+		folderMap.clear();
+		nextShard = 0;
+		trackedFiles = 0;
 	}
 
 	/**
-	 * Checks for files deletion
+	 * Adds an extension to the monitored ones. The files with the new extension
+	 * already in the folder are notified as added by the next check, which
+	 * looks again at every name not monitored so far
+	 * 
+	 * @param fileExtension
+	 *          the file extension to monitor
 	 */
-	protected void checkDeletion() {
-		List<String> pathsToDelete = new LinkedList<String>();
-		for (String path : fileMap.keySet()) {
-			if (!new File(path).exists()) {
-				pathsToDelete.add(path);
-				notifyDeletedListeners(new FileEvent(path, folder.getAbsolutePath()));
+	public synchronized void addExtension(String fileExtension) {
+		if (!fileExtensions.contains(fileExtension)) {
+			fileExtensions.add(fileExtension);
+			for (Folder known : folderMap.values()) {
+				known.others.clear();
 			}
 		}
-		for (String path : pathsToDelete) {
-			fileMap.remove(path);
+	}
+
+	/**
+	 * Tells whether a file name has one of the monitored extensions
+	 * 
+	 * @param name
+	 *          the file name
+	 * @return true if the file is monitored
+	 */
+	public boolean matches(String name) {
+		for (String fileExtension : fileExtensions) {
+			if (name.endsWith(fileExtension)) {
+				return true;
+			}
 		}
+		return false;
 	}
 
 	/**
-	 * Checks for file addition and modification
+	 * The absolute path of the monitored folder
 	 * 
-	 * @param currentFolder
-	 *          the folder to monitor
+	 * @return the path
 	 */
-	protected void checkAddAndModify(File currentFolder) {
-		for (File file : getFiles(currentFolder)) {
-			if (file.isDirectory()) {
-				checkAddAndModify(file);
-			} else {
-				if (fileMap.containsKey(file.getAbsolutePath())) {
-					if (fileMap.get(file.getAbsolutePath()).longValue() != file
-							.lastModified()) {
-						fileMap.put(file.getAbsolutePath(), Long.valueOf(file
-								.lastModified()));
-						notifyModifiedListeners(new FileEvent(file.getAbsolutePath(),
-								folder.getAbsolutePath()));
-					}
-				} else {
-					fileMap
-							.put(file.getAbsolutePath(), Long.valueOf(file.lastModified()));
-					notifyAddedListeners(new FileEvent(file.getAbsolutePath(), folder
-							.getAbsolutePath()));
+	public String getFolder() {
+		return root;
+	}
+
+	/**
+	 * The file system the monitored folder belongs to
+	 * 
+	 * @return the file tree
+	 */
+	public FileTree getFileTree() {
+		return tree;
+	}
+
+	/**
+	 * Splits the monitored folders in shards, each run checking only one of
+	 * them. Schedule the monitor shards times more often to keep the same
+	 * period. The first run always checks the whole folder
+	 * 
+	 * @param shards
+	 *          the number of shards, 1 to check everything at each run
+	 */
+	public synchronized void setShards(int shards) {
+		this.shards = Math.max(1, shards);
+		this.nextShard = 0;
+	}
+
+	public int getShards() {
+		return shards;
+	}
+
+	/**
+	 * Paces the file system calls of this monitor
+	 * 
+	 * @param limiter
+	 *          the limiter, possibly shared with other monitors, null for no
+	 *          limit
+	 */
+	public synchronized void setStatLimiter(StatLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Sets the tracer following the phases of each check
+	 * 
+	 * @param tracer
+	 *          the tracer, null for none
+	 */
+	public void setScanTracer(ScanTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	/**
+	 * Sets the time within which every monitored file should be checked, used
+	 * to compute the coverage
+	 * 
+	 * @param millis
+	 *          the window (ms), usually the period of the monitor
+	 */
+	public void setCoverageWindow(long millis) {
+		this.coverageWindow = millis;
+	}
+
+	/**
+	 * The fraction of the known files checked within the coverage window, as of
+	 * the last check. It drops below 1 when checks cannot keep up with the
+	 * window, e.g. because of the stat limiter
+	 * 
+	 * @return the coverage, between 0 and 1
+	 */
+	public double getCoverage() {
+		return coverage;
+	}
+
+	/**
+	 * The age of the oldest information held by this monitor: the time since
+	 * the folder checked the longest ago has been checked. It never waits for a
+	 * running check
+	 * 
+	 * @return the staleness (ms)
+	 */
+	public long getStaleness() {
+		return System.currentTimeMillis() - oldestCheck;
+	}
+
+	/**
+	 * Makes this monitor check only the watched files, or walk the whole folder
+	 * again
+	 * 
+	 * @param selective
+	 *          true to check only the watched files
+	 */
+	public void setSelective(boolean selective) {
+		this.selective = selective;
+	}
+
+	public boolean isSelective() {
+		return selective;
+	}
+
+	/**
+	 * Adds a file to the ones checked in selective mode. It can be called from
+	 * any thread and never waits for a running check: the file is considered
+	 * starting from the next check, which notifies it as added
+	 * 
+	 * @param relativePath
+	 *          the path of the file, relative to the monitored folder
+	 */
+	public void watch(String relativePath) {
+		watch(relativePath, 0L);
+	}
+
+	/**
+	 * Adds a file to the ones checked in selective mode, telling the
+	 * modification time it had when it was read, for instance by the class
+	 * loader. If the file is not known yet, the next check compares it with
+	 * that time and notifies it as modified if it has changed since, instead of
+	 * notifying it as added
+	 * 
+	 * @param relativePath
+	 *          the path of the file, relative to the monitored folder
+	 * @param lastModified
+	 *          the modification time of the file when it was read, 0 if unknown
+	 */
+	public void watch(String relativePath, long lastModified) {
+		newlyWatched.add(new ChangeSet.Change(relativePath, lastModified));
+	}
+
+	/**
+	 * Records the modification time of files whose change has been handled
+	 * without a check, so that the next check does not notify them again. Files
+	 * not known yet are left to the next check
+	 * 
+	 * @param lastModified
+	 *          the modification times of the files, by path relative to the
+	 *          monitored folder
+	 */
+	public synchronized void update(Map<String, Long> lastModified) {
+		for (Map.Entry<String, Long> entry : lastModified.entrySet()) {
+			String file = child(root, entry.getKey());
+			if (fileMap.containsKey(file)) {
+				fileMap.put(file, entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * The number of files checked in selective mode, as of the last check
+	 * 
+	 * @return the number of watched files
+	 */
+	public synchronized int getWatchedFiles() {
+		return watched.size();
+	}
+
+	/**
+	 * The number of files known after the last check. It never waits for a
+	 * running check
+	 * 
+	 * @return the number of tracked files
+	 */
+	public int getTrackedFiles() {
+		return trackedFiles;
+	}
+
+	/**
+	 * Checks the watched files only, with a single stat each
+	 */
+	protected void checkWatched() {
+		for (ChangeSet.Change change = newlyWatched.poll(); change != null; change = newlyWatched
+				.poll()) {
+			watched.add(change.getPath());
+			String file = child(root, change.getPath());
+			if (change.getLastModified() != 0L && !fileMap.containsKey(file)) {
+				fileMap.put(file, Long.valueOf(change.getLastModified()));
+			}
+		}
+
+		for (String path : watched) {
+			String file = child(root, path);
+			filesVisited++;
+			acquire();
+			long lastModified = tree.lastModified(file);
+			if (lastModified != 0L) {
+				check(file, lastModified);
+			} else if (fileMap.remove(file) != null) {
+				pendingDeleted.add(new ChangeSet.Change(path, 0L));
+			}
+		}
+	}
+
+	/**
+	 * Checks the known folders belonging to a shard. When no folder is known
+	 * yet, the whole tree is walked
+	 * 
+	 * @param shard
+	 *          the shard to check
+	 */
+	protected void checkShard(int shard) {
+		if (!folderMap.containsKey(root)) {
+			addFolder(root);
+			return;
+		}
+
+		for (String path : new ArrayList<String>(folderMap.keySet())) {
+			Folder known = folderMap.get(path);
+			if (known != null && shardOf(path) == shard) {
+				checkFolder(path, known);
+			}
+		}
+	}
+
+	private int shardOf(String path) {
+		return shards == 1 ? 0 : (path.hashCode() & Integer.MAX_VALUE) % shards;
+	}
+
+	/**
+	 * Starts tracking a new folder, checking it and its subfolders right away
+	 * 
+	 * @param path
+	 *          the absolute path of the folder
+	 */
+	private void addFolder(String path) {
+		Folder added = new Folder();
+		folderMap.put(path, added);
+		checkFolder(path, added);
+	}
+
+	/**
+	 * Lists a folder and compares its content with the previous listing: known
+	 * files are checked with a single stat, new names are classified once and
+	 * missing names are notified as deleted without touching the file system
+	 * 
+	 * @param path
+	 *          the absolute path of the folder
+	 * @param known
+	 *          what the folder contained at the previous listing
+	 */
+	private void checkFolder(String path, Folder known) {
+		acquire();
+		String[] names = tree.list(path);
+		if (names == null) {
+			removeFolder(path);
+			int slash = path.lastIndexOf(separator);
+			Folder parent = slash > 0 ? folderMap.get(path.substring(0, slash))
+					: null;
+			if (parent != null) {
+				parent.folders.remove(path.substring(slash + separator.length()));
+			}
+			return;
+		}
+
+		directoriesVisited++;
+		known.lastChecked = System.currentTimeMillis();
+		int expected = known.size();
+		int found = 0;
+		for (String name : names) {
+			if (known.files.contains(name)) {
+				found++;
+				String file = child(path, name);
+				filesVisited++;
+				acquire();
+				long lastModified = tree.lastModified(file);
+				if (lastModified != 0L) {
+					check(file, lastModified);
 				}
+			} else if (known.folders.contains(name) || known.others.contains(name)) {
+				found++;
+			} else {
+				addName(path, name, known);
+			}
+		}
+
+		if (found < expected) {
+			removeMissing(path, known, names);
+		}
+	}
+
+	/**
+	 * Classifies a name never seen before in a folder
+	 */
+	private void addName(String path, String name, Folder known) {
+		String file = child(path, name);
+		acquire();
+		if (tree.isDirectory(file)) {
+			known.folders.add(name);
+			addFolder(file);
+		} else if (matches(name)) {
+			known.files.add(name);
+			filesVisited++;
+			acquire();
+			check(file, tree.lastModified(file));
+		} else {
+			known.others.add(name);
+		}
+	}
+
+	/**
+	 * Forgets the names not listed anymore in a folder, notifying the deleted
+	 * files
+	 */
+	private void removeMissing(String path, Folder known, String[] names) {
+		Set<String> listed = new HashSet<String>(Arrays.asList(names));
+		for (Iterator<String> i = known.files.iterator(); i.hasNext();) {
+			String name = i.next();
+			if (!listed.contains(name)) {
+				i.remove();
+				removeFile(child(path, name));
+			}
+		}
+		for (Iterator<String> i = known.folders.iterator(); i.hasNext();) {
+			String name = i.next();
+			if (!listed.contains(name)) {
+				i.remove();
+				removeFolder(child(path, name));
+			}
+		}
+		known.others.retainAll(listed);
+	}
+
+	/**
+	 * Forgets a folder and its content, notifying its files as deleted
+	 */
+	private void removeFolder(String path) {
+		Folder removed = folderMap.remove(path);
+		if (removed == null) {
+			return;
+		}
+		for (String name : removed.files) {
+			removeFile(child(path, name));
+		}
+		for (String name : removed.folders) {
+			removeFolder(child(path, name));
+		}
+	}
+
+	private String child(String path, String name) {
+		return path.endsWith(separator) ? path + name : path + separator + name;
+	}
+
+	private void removeFile(String path) {
+		if (fileMap.remove(path) != null) {
+			pendingDeleted.add(new ChangeSet.Change(path.substring(rootLength), 0L));
+		}
+	}
+
+	/**
+	 * Computes coverage and staleness at the end of a check
+	 */
+	private void updateCoverage() {
+		long now = System.currentTimeMillis();
+		if (selective || folderMap.isEmpty()) {
+			coverage = 1.0;
+			oldestCheck = now;
+			return;
+		}
+
+		long window = coverageWindow;
+		long oldest = now;
+		int files = 0;
+		int covered = 0;
+		for (Folder known : folderMap.values()) {
+			oldest = Math.min(oldest, known.lastChecked);
+			files += known.files.size();
+			if (window <= 0 || now - known.lastChecked <= window) {
+				covered += known.files.size();
+			}
+		}
+		coverage = files == 0 ? 1.0 : (double) covered / files;
+		oldestCheck = oldest;
+	}
+
+	private void acquire() {
+		if (limiter != null) {
+			limiter.acquire();
+		}
+	}
+
+	/**
+	 * Compares a file with its known version, queueing an event if it has been
+	 * added or modified
+	 * 
+	 * @param path
+	 *          the absolute path of the file
+	 * @param lastModified
+	 *          its current last modified time
+	 */
+	private void check(String path, long lastModified) {
+		Long known = fileMap.put(path, Long.valueOf(lastModified));
+		if (known == null) {
+			pendingAdded.add(new ChangeSet.Change(path.substring(rootLength),
+					lastModified));
+		} else if (known.longValue() != lastModified) {
+			pendingModified.add(new ChangeSet.Change(path.substring(rootLength),
+					lastModified));
+		}
+	}
+
+	/**
+	 * Notifies the changes found by the last check, all together: first the
+	 * whole change set, then one event per file, deletions first, then additions
+	 * and modifications. Per file events are created only if someone listens to
+	 * them
+	 * 
+	 * @param changes
+	 *          the changes found by the last check
+	 */
+	private void dispatch(ChangeSet changes) {
+		for (ChangeSetListener listener : changeSetListeners) {
+			listener.changesFound(changes);
+		}
+		if (!fileDeletedListeners.isEmpty()) {
+			for (ChangeSet.Change change : changes.getDeleted()) {
+				notifyDeletedListeners(new FileEvent(change.getPath(), 0L, changes
+						.getDetectedAt()));
+			}
+		}
+		if (!fileAddedListeners.isEmpty()) {
+			for (ChangeSet.Change change : changes.getAdded()) {
+				notifyAddedListeners(new FileEvent(change.getPath(), change
+						.getLastModified(), changes.getDetectedAt()));
+			}
+		}
+		if (!fileModifiedListeners.isEmpty()) {
+			for (ChangeSet.Change change : changes.getModified()) {
+				notifyModifiedListeners(new FileEvent(change.getPath(), change
+						.getLastModified(), changes.getDetectedAt()));
 			}
 		}
 	}
@@ -162,6 +714,56 @@ public class FileMonitor implements Runnable {
 		fileAddedListeners.add(listener);
 	}
 
+	/**
+	 * Adds a change set listener
+	 * 
+	 * @param listener
+	 *          the listener
+	 */
+	public void addChangeSetListener(ChangeSetListener listener) {
+		changeSetListeners.add(listener);
+	}
+
+	/**
+	 * Adds a scan completed listener
+	 * 
+	 * @param listener
+	 *          the listener
+	 */
+	public void addScanCompletedListener(ScanCompletedListener listener) {
+		scanCompletedListeners.add(listener);
+	}
+
+	public void removeChangeSetListener(ChangeSetListener listener) {
+		changeSetListeners.remove(listener);
+	}
+
+	public void removeScanCompletedListener(ScanCompletedListener listener) {
+		scanCompletedListeners.remove(listener);
+	}
+
+	/**
+	 * What a folder contained at its last listing
+	 */
+	private static class Folder {
+
+		final Set<String> files = new HashSet<String>();
+		final Set<String> folders = new HashSet<String>();
+		final Set<String> others = new HashSet<String>();
+		long lastChecked;
+
+		int size() {
+			return files.size() + folders.size() + others.size();
+		}
+
+	}
+
+	private void notifyScanCompletedListeners(ScanEvent event) {
+		for (ScanCompletedListener listener : scanCompletedListeners) {
+			listener.scanCompleted(event);
+		}
+	}
+
 	private void notifyModifiedListeners(FileEvent event) {
 		for (FileModifiedListener listener : fileModifiedListeners) {
 			listener.fileModified(event);
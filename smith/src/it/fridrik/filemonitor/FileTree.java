@@ -0,0 +1,111 @@
+/*
+ * File Monitor - Watches a folder and notify files changes
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.filemonitor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.jar.JarFile;
+
+/**
+ * The file system seen by the monitors. Paths are absolute strings, made of
+ * names joined by the separator of the tree. The default tree is the platform
+ * file system (see {@link LocalFileTree}); other implementations let the
+ * monitors watch any file system, or a simulated one
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public interface FileTree {
+
+	/**
+	 * The separator of the names in a path
+	 * 
+	 * @return the separator
+	 */
+	String getSeparator();
+
+	/**
+	 * Resolves a path to the one identifying the same file regardless of the
+	 * links followed to get there
+	 * 
+	 * @param path
+	 *          the absolute path
+	 * @return the canonical path, the path itself if it cannot be resolved
+	 */
+	String getCanonicalPath(String path);
+
+	/**
+	 * Lists the names contained in a folder
+	 * 
+	 * @param path
+	 *          the absolute path of the folder
+	 * @return the names, null if the path is not a folder
+	 */
+	String[] list(String path);
+
+	/**
+	 * Tells whether a path is a folder
+	 * 
+	 * @param path
+	 *          the absolute path
+	 * @return true if the path exists and is a folder
+	 */
+	boolean isDirectory(String path);
+
+	/**
+	 * The last modified time of a file
+	 * 
+	 * @param path
+	 *          the absolute path of the file
+	 * @return the time (ms), 0 if the file does not exist
+	 */
+	long lastModified(String path);
+
+	/**
+	 * The size of a file
+	 * 
+	 * @param path
+	 *          the absolute path of the file
+	 * @return the size (bytes), 0 if the file does not exist
+	 */
+	long length(String path);
+
+	/**
+	 * Opens a file for reading
+	 * 
+	 * @param path
+	 *          the absolute path of the file
+	 * @return the content of the file
+	 * @throws IOException
+	 *           if the file cannot be read
+	 */
+	InputStream open(String path) throws IOException;
+
+	/**
+	 * Opens a jar for reading. A tree other than the platform file system
+	 * hands out a temporary copy, deleted once the jar is closed (see
+	 * {@link LocalFileTree#openCopy(InputStream)})
+	 * 
+	 * @param path
+	 *          the absolute path of the jar
+	 * @return the jar, to be closed by the caller
+	 * @throws IOException
+	 *           if the jar cannot be read
+	 */
+	JarFile openJar(String path) throws IOException;
+
+}
@@ -20,7 +20,8 @@ import java.util.EventObject;
 import java.util.jar.JarFile;
 
 /**
- * Raised every time a class contained into a jar is modified
+ * Raised every time a class contained into a jar is modified. The jar file is
+ * closed as soon as all the listeners have been notified
  * 
  * @author Federico Fissore (federico@fissore.org)
  * @since 1.0
@@ -29,11 +30,55 @@ public class JarEvent extends EventObject {
 
 	private static final long serialVersionUID = -7809367345460212417L;
 
+	private final String path;
 	private final String entryName;
+	private final long lastModified;
+	private final long detectedAt;
 
 	public JarEvent(JarFile file, String entryName) {
+		this(file, entryName, 0L, System.currentTimeMillis());
+	}
+
+	/**
+	 * Creates a new JarEvent stamped with the modification time of the jar and
+	 * the time the change has been detected
+	 * 
+	 * @param file
+	 *          the changed jar file
+	 * @param entryName
+	 *          the changed class file
+	 * @param lastModified
+	 *          the modification time of the jar file, 0 if unknown
+	 * @param detectedAt
+	 *          the time the change has been detected
+	 */
+	public JarEvent(JarFile file, String entryName, long lastModified,
+			long detectedAt) {
+		this(file, file.getName(), entryName, lastModified, detectedAt);
+	}
+
+	/**
+	 * Creates a new JarEvent for a jar read from a file tree other than the
+	 * platform file system, whose JarFile is a temporary copy
+	 * 
+	 * @param file
+	 *          the changed jar file
+	 * @param path
+	 *          the absolute path of the jar in its file tree
+	 * @param entryName
+	 *          the changed class file
+	 * @param lastModified
+	 *          the modification time of the jar file, 0 if unknown
+	 * @param detectedAt
+	 *          the time the change has been detected
+	 */
+	public JarEvent(JarFile file, String path, String entryName,
+			long lastModified, long detectedAt) {
 		super(file);
+		this.path = path;
 		this.entryName = entryName;
+		this.lastModified = lastModified;
+		this.detectedAt = detectedAt;
 	}
 
 	/**
@@ -46,6 +91,15 @@ public class JarEvent extends EventObject {
 		return (JarFile) super.getSource();
 	}
 
+	/**
+	 * The absolute path of the changed jar in the watched file tree
+	 * 
+	 * @return the path of the jar
+	 */
+	public String getPath() {
+		return path;
+	}
+
 	/**
 	 * The changed class file
 	 * 
@@ -55,4 +109,23 @@ public class JarEvent extends EventObject {
 		return entryName;
 	}
 
+	/**
+	 * The modification time of the jar file, as milliseconds since the epoch
+	 * 
+	 * @return the modification time, 0 if unknown
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * The time the monitor has noticed the change, as milliseconds since the
+	 * epoch
+	 * 
+	 * @return the detection time
+	 */
+	public long getDetectedAt() {
+		return detectedAt;
+	}
+
 }
@@ -22,6 +22,7 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.logging.Level;
@@ -36,35 +37,222 @@ import java.util.logging.Logger;
  * @since 1.0
  */
 public class JarMonitor implements FileModifiedListener, FileAddedListener,
-		FileDeletedListener, Runnable {
+		FileDeletedListener, ChangeSetListener, ScanCompletedListener, Runnable {
 
 	private final static Logger log = Logger.getLogger(JarMonitor.class.getName());
 
+	private static final String JAR = "jar";
+
 	private final FileMonitor fileMonitor;
 	private final String absoluteFolderPath;
 	private final Map<String, Map<String, Long>> jarsMap;
 	private final List<JarModifiedListener> jarModifiedListeners;
+	private final List<ScanCompletedListener> scanCompletedListeners;
+	private final List<JarFile> modifiedJars;
+	private int entriesChanged;
+	private volatile int trackedEntries;
 
 	public JarMonitor(String absoluteFolderPath) {
-		this.absoluteFolderPath = absoluteFolderPath;
+		this(new FileMonitor(absoluteFolderPath, "jar"));
+	}
+
+	/**
+	 * Creates a JarMonitor that finds the changed jars through an existing
+	 * FileMonitor, which may be watching other kinds of files in the same
+	 * folder: the folder is then walked once for all of them
+	 * 
+	 * @param fileMonitor
+	 *          the monitor of the jar folder
+	 */
+	public JarMonitor(FileMonitor fileMonitor) {
+		this.fileMonitor = fileMonitor;
+		String folder = fileMonitor.getFolder();
+		String separator = fileMonitor.getFileTree().getSeparator();
+		this.absoluteFolderPath = folder.endsWith(separator) ? folder : folder
+				+ separator;
 		this.jarsMap = new HashMap<String, Map<String, Long>>();
-		this.jarModifiedListeners = new LinkedList<JarModifiedListener>();
+		this.jarModifiedListeners = new CopyOnWriteArrayList<JarModifiedListener>();
+		this.scanCompletedListeners = new CopyOnWriteArrayList<ScanCompletedListener>();
+		this.modifiedJars = new LinkedList<JarFile>();
 
-		fileMonitor = new FileMonitor(absoluteFolderPath, "jar");
-		fileMonitor.addModifiedListener(this);
-		fileMonitor.addAddedListener(this);
-		fileMonitor.addDeletedListener(this);
+		fileMonitor.addExtension(JAR);
+		fileMonitor.addChangeSetListener(this);
+		fileMonitor.addScanCompletedListener(this);
 	}
 
 	public void run() {
 		fileMonitor.run();
 	}
 
+	/**
+	 * Stops listening to the FileMonitor
+	 */
+	public void detach() {
+		fileMonitor.removeChangeSetListener(this);
+		fileMonitor.removeScanCompletedListener(this);
+	}
+
+	/**
+	 * The FileMonitor used to find the changed jars
+	 * 
+	 * @return the file monitor
+	 */
+	public FileMonitor getFileMonitor() {
+		return fileMonitor;
+	}
+
+	/**
+	 * Sums up the check of the jar folder: files are the jars visited, changes
+	 * are the jar entries notified. The modified jars are closed only after the
+	 * listeners have been notified, so that the changed entries can be read
+	 * either while handling each event or all together at the end of the check
+	 */
+	public void scanCompleted(ScanEvent event) {
+		int entries = 0;
+		for (Map<String, Long> jarEntries : jarsMap.values()) {
+			entries += jarEntries.size();
+		}
+		trackedEntries = entries;
+
+		notifyScanCompletedListeners(new ScanEvent(event.getSource(), event
+				.getFiles(), event.getDirectories(), entriesChanged, event
+				.getScanNanos(), event.getDispatchNanos()));
+
+		for (JarFile file : modifiedJars) {
+			close(file);
+		}
+		modifiedJars.clear();
+		entriesChanged = 0;
+	}
+
+	/**
+	 * Forgets every known jar and jar entry
+	 */
+	public void clear() {
+		fileMonitor.clear();
+		jarsMap.clear();
+		trackedEntries = 0;
+	}
+
+	/**
+	 * The number of jars known after the last check
+	 * 
+	 * @return the number of tracked jars
+	 */
+	public int getTrackedJars() {
+		return fileMonitor.getTrackedFiles();
+	}
+
+	/**
+	 * The number of jar entries known after the last check
+	 * 
+	 * @return the number of tracked jar entries
+	 */
+	public int getTrackedEntries() {
+		return trackedEntries;
+	}
+
+	/**
+	 * Makes this monitor check only the watched jars, or every jar in the folder
+	 * again
+	 * 
+	 * @param selective
+	 *          true to check only the watched jars
+	 * @see FileMonitor#setSelective(boolean)
+	 */
+	public void setSelective(boolean selective) {
+		fileMonitor.setSelective(selective);
+	}
+
+	/**
+	 * Splits the jar folder in shards
+	 * 
+	 * @param shards
+	 *          the number of shards
+	 * @see FileMonitor#setShards(int)
+	 */
+	public void setShards(int shards) {
+		fileMonitor.setShards(shards);
+	}
+
+	/**
+	 * Paces the file system calls done to find the changed jars
+	 * 
+	 * @param limiter
+	 *          the limiter, null for no limit
+	 * @see FileMonitor#setStatLimiter(StatLimiter)
+	 */
+	public void setStatLimiter(StatLimiter limiter) {
+		fileMonitor.setStatLimiter(limiter);
+	}
+
+	/**
+	 * @see FileMonitor#setCoverageWindow(long)
+	 */
+	public void setCoverageWindow(long millis) {
+		fileMonitor.setCoverageWindow(millis);
+	}
+
+	/**
+	 * @see FileMonitor#getCoverage()
+	 */
+	public double getCoverage() {
+		return fileMonitor.getCoverage();
+	}
+
+	/**
+	 * @see FileMonitor#getStaleness()
+	 */
+	public long getStaleness() {
+		return fileMonitor.getStaleness();
+	}
+
+	/**
+	 * Adds a jar to the ones checked in selective mode
+	 * 
+	 * @param relativePath
+	 *          the path of the jar, relative to the monitored folder
+	 * @see FileMonitor#watch(String)
+	 */
+	public void watch(String relativePath) {
+		fileMonitor.watch(relativePath);
+	}
+
+	/**
+	 * Handles all the jar changes found by a check of the jar folder
+	 */
+	public void changesFound(ChangeSet changes) {
+		changes = changes.filter(JAR);
+		for (ChangeSet.Change change : changes.getDeleted()) {
+			jarsMap.remove(change.getPath());
+		}
+		for (ChangeSet.Change change : changes.getAdded()) {
+			jarAdded(change.getPath());
+		}
+		for (ChangeSet.Change change : changes.getModified()) {
+			jarModified(change.getPath(), change.getLastModified(), changes
+					.getDetectedAt());
+		}
+	}
+
 	public void fileModified(FileEvent event) {
-		JarFile file = getJarFile(event);
+		jarModified(event.getSource(), event.getLastModified(), event
+				.getDetectedAt());
+	}
+
+	public void fileAdded(FileEvent event) {
+		jarAdded(event.getSource());
+	}
+
+	private void jarModified(String path, long lastModified, long detectedAt) {
+		JarFile file = getJarFile(path);
 
 		if (file != null) {
-			Map<String, Long> jarEntries = jarsMap.get(event.getSource());
+			Map<String, Long> jarEntries = jarsMap.get(path);
+			if (jarEntries == null) {
+				jarEntries = new HashMap<String, Long>();
+				jarsMap.put(path, jarEntries);
+			}
 			for (Enumeration<JarEntry> entries = file.entries(); entries
 					.hasMoreElements();) {
 				JarEntry entry = entries.nextElement();
@@ -75,29 +263,30 @@ public class JarMonitor implements FileModifiedListener, FileAddedListener,
 
 				if (entry.getTime() != jarEntries.get(entry.getName()).longValue()) {
 					jarEntries.put(entry.getName(), Long.valueOf(entry.getTime()));
-					notifyJarModifiedListeners(new JarEvent(file, entry.getName()));
+					notifyJarModifiedListeners(new JarEvent(file, absoluteFolderPath
+							+ path, entry.getName(), lastModified, detectedAt));
 				}
 
 			}
 
+			modifiedJars.add(file);
 		}
 	}
 
-	public void fileAdded(FileEvent event) {
-		JarFile file = getJarFile(event);
+	private void jarAdded(String path) {
+		JarFile file = getJarFile(path);
 
 		if (file != null) {
 			Map<String, Long> jarEntries = new HashMap<String, Long>();
-			jarsMap.put(event.getSource(), jarEntries);
+			jarsMap.put(path, jarEntries);
 
 			for (Enumeration<JarEntry> entries = file.entries(); entries
 					.hasMoreElements();) {
 				JarEntry entry = entries.nextElement();
-				if (entry.getName().endsWith("jar")) {
-					jarEntries.put(entry.getName(), Long.valueOf(entry.getTime()));
-					notifyJarModifiedListeners(new JarEvent(file, entry.getName()));
-				}
+				jarEntries.put(entry.getName(), Long.valueOf(entry.getTime()));
 			}
+
+			close(file);
 		}
 	}
 
@@ -109,15 +298,48 @@ public class JarMonitor implements FileModifiedListener, FileAddedListener,
 		jarModifiedListeners.add(listener);
 	}
 
+	public void addScanCompletedListener(ScanCompletedListener listener) {
+		scanCompletedListeners.add(listener);
+	}
+
+	public void removeJarModifiedListener(JarModifiedListener listener) {
+		jarModifiedListeners.remove(listener);
+	}
+
+	public void removeScanCompletedListener(ScanCompletedListener listener) {
+		scanCompletedListeners.remove(listener);
+	}
+
+	private void notifyScanCompletedListeners(ScanEvent event) {
+		for (ScanCompletedListener listener : scanCompletedListeners) {
+			listener.scanCompleted(event);
+		}
+	}
+
 	private void notifyJarModifiedListeners(JarEvent event) {
+		entriesChanged++;
 		for (JarModifiedListener listener : jarModifiedListeners) {
 			listener.jarModified(event);
 		}
 	}
 
-	private JarFile getJarFile(FileEvent event) {
+	/**
+	 * Closes a jar file
+	 * 
+	 * @param file
+	 *          the jar file to close
+	 */
+	private static void close(JarFile file) {
+		try {
+			file.close();
+		} catch (IOException e) {
+			log.log(Level.FINE, "error", e);
+		}
+	}
+
+	private JarFile getJarFile(String path) {
 		try {
-			return new JarFile(absoluteFolderPath + event.getSource());
+			return fileMonitor.getFileTree().openJar(absoluteFolderPath + path);
 		} catch (IOException e) {
 			log.log(Level.SEVERE, "error", e);
 			return null;
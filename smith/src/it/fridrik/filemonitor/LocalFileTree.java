@@ -0,0 +1,120 @@
+/*
+ * File Monitor - Watches a folder and notify files changes
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.filemonitor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.jar.JarFile;
+import java.util.zip.ZipFile;
+
+/**
+ * The platform file system, through java.io.File
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class LocalFileTree implements FileTree {
+
+	private static final LocalFileTree instance = new LocalFileTree();
+
+	/**
+	 * Gets the platform file system
+	 * 
+	 * @return the LocalFileTree instance
+	 */
+	public static LocalFileTree getInstance() {
+		return instance;
+	}
+
+	private LocalFileTree() {
+	}
+
+	public String getSeparator() {
+		return File.separator;
+	}
+
+	public String getCanonicalPath(String path) {
+		File file = new File(path);
+		try {
+			return file.getCanonicalPath();
+		} catch (IOException e) {
+			return file.getAbsolutePath();
+		}
+	}
+
+	public String[] list(String path) {
+		return new File(path).list();
+	}
+
+	public boolean isDirectory(String path) {
+		return new File(path).isDirectory();
+	}
+
+	public long lastModified(String path) {
+		return new File(path).lastModified();
+	}
+
+	public long length(String path) {
+		return new File(path).length();
+	}
+
+	public InputStream open(String path) throws IOException {
+		return new FileInputStream(path);
+	}
+
+	public JarFile openJar(String path) throws IOException {
+		return new JarFile(path);
+	}
+
+	/**
+	 * Copies a jar of another file tree to a temporary file and opens it, as a
+	 * JarFile can only read the platform file system. The copy is deleted once
+	 * the jar is closed
+	 * 
+	 * @param content
+	 *          the content of the jar, closed once copied
+	 * @return the copy of the jar
+	 * @throws IOException
+	 *           if the jar cannot be copied or read
+	 */
+	public static JarFile openCopy(InputStream content) throws IOException {
+		File copy = File.createTempFile("smith", ".jar");
+		try {
+			OutputStream out = new FileOutputStream(copy);
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = content.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+			return new JarFile(copy, true, ZipFile.OPEN_READ | ZipFile.OPEN_DELETE);
+		} catch (IOException e) {
+			copy.delete();
+			throw e;
+		} finally {
+			content.close();
+		}
+	}
+
+}
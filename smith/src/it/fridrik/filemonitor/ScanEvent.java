@@ -0,0 +1,102 @@
+/*
+ * File Monitor - Watches a folder and notify files changes
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.filemonitor;
+
+import java.util.EventObject;
+
+/**
+ * Raised at the end of every check of a monitored folder. It tells how much
+ * work the check has done and how long it took to walk the folder and to
+ * notify the changes found
+ *
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class ScanEvent extends EventObject {
+
+	private static final long serialVersionUID = -2320956112553012297L;
+
+	private final int files;
+	private final int directories;
+	private final int changes;
+	private final long scanNanos;
+	private final long dispatchNanos;
+
+	public ScanEvent(String root, int files, int directories, int changes,
+			long scanNanos, long dispatchNanos) {
+		super(root);
+		this.files = files;
+		this.directories = directories;
+		this.changes = changes;
+		this.scanNanos = scanNanos;
+		this.dispatchNanos = dispatchNanos;
+	}
+
+	/**
+	 * The absolute path of the monitored folder
+	 */
+	@Override
+	public String getSource() {
+		return (String) super.getSource();
+	}
+
+	/**
+	 * The number of monitored files visited
+	 *
+	 * @return the number of files
+	 */
+	public int getFiles() {
+		return files;
+	}
+
+	/**
+	 * The number of directories listed
+	 *
+	 * @return the number of directories
+	 */
+	public int getDirectories() {
+		return directories;
+	}
+
+	/**
+	 * The number of changes notified
+	 *
+	 * @return the number of changes
+	 */
+	public int getChanges() {
+		return changes;
+	}
+
+	/**
+	 * The time spent walking the folder
+	 *
+	 * @return the scan duration (ns)
+	 */
+	public long getScanNanos() {
+		return scanNanos;
+	}
+
+	/**
+	 * The time spent notifying the changes to the listeners
+	 *
+	 * @return the dispatch duration (ns)
+	 */
+	public long getDispatchNanos() {
+		return dispatchNanos;
+	}
+
+}
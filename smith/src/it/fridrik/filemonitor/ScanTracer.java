@@ -0,0 +1,57 @@
+/*
+ * File Monitor - Watches a folder and notify files changes
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.filemonitor;
+
+/**
+ * Follows the phases of every check of a monitored folder while they happen,
+ * so that a profiler can record when each of them has actually started
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public interface ScanTracer {
+
+	/**
+	 * Called before the folder is walked
+	 * 
+	 * @param root
+	 *          the absolute path of the folder
+	 * @return a handle passed to the next phases, may be null
+	 */
+	public Object scanStarted(String root);
+
+	/**
+	 * Called once the folder has been walked, before notifying the changes
+	 * found
+	 * 
+	 * @param trace
+	 *          the handle returned by {@link #scanStarted(String)}
+	 */
+	public void dispatchStarted(Object trace);
+
+	/**
+	 * Called once the changes have been notified, before the
+	 * {@link ScanCompletedListener}s
+	 * 
+	 * @param trace
+	 *          the handle returned by {@link #scanStarted(String)}
+	 * @param event
+	 *          the summary of the check
+	 */
+	public void scanCompleted(Object trace, ScanEvent event);
+
+}
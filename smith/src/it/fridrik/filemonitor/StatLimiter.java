@@ -0,0 +1,96 @@
+/*
+ * File Monitor - Watches a folder and notify files changes
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.filemonitor;
+
+/**
+ * StatLimiter caps the rate of the file system calls (stats and directory
+ * listings) done by the monitors sharing it, so that checking a folder mounted
+ * over the network does not flood the file server. It is a token bucket
+ * allowing bursts of a tenth of a second: a monitor exceeding the rate sleeps
+ * until its call is allowed
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class StatLimiter {
+
+	private volatile int statsPerSecond;
+	private double tokens;
+	private long last;
+
+	/**
+	 * Creates a new limiter
+	 * 
+	 * @param statsPerSecond
+	 *          the max number of calls per second, 0 for no limit
+	 */
+	public StatLimiter(int statsPerSecond) {
+		this.last = System.nanoTime();
+		setRate(statsPerSecond);
+	}
+
+	/**
+	 * Changes the max number of calls per second
+	 * 
+	 * @param statsPerSecond
+	 *          the max number of calls per second, 0 for no limit
+	 */
+	public synchronized void setRate(int statsPerSecond) {
+		this.statsPerSecond = Math.max(0, statsPerSecond);
+		this.tokens = Math.min(tokens, getBurst());
+	}
+
+	public int getRate() {
+		return statsPerSecond;
+	}
+
+	/**
+	 * Waits until the next call is allowed
+	 */
+	public void acquire() {
+		if (statsPerSecond == 0) {
+			return;
+		}
+
+		long wait;
+		synchronized (this) {
+			int rate = statsPerSecond;
+			if (rate == 0) {
+				return;
+			}
+			long now = System.nanoTime();
+			tokens = Math.min(getBurst(), tokens + (now - last) * (double) rate
+					/ 1000000000L);
+			last = now;
+			tokens -= 1;
+			wait = tokens < 0 ? (long) (-tokens * 1000000000L / rate) : 0L;
+		}
+
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private double getBurst() {
+		return Math.max(1, statsPerSecond / 10);
+	}
+
+}
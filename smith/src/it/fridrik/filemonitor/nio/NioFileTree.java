@@ -0,0 +1,123 @@
+/*
+ * File Monitor - Watches a folder and notify files changes
+ * Copyright (C) 2007 Federico Fissore
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software 
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package it.fridrik.filemonitor.nio;
+
+import it.fridrik.filemonitor.FileTree;
+import it.fridrik.filemonitor.LocalFileTree;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarFile;
+
+/**
+ * A {@link FileTree} over a java.nio.file.FileSystem (java 7+), so that the
+ * monitors can watch any file system provider: the platform one by default,
+ * an in-memory one in tests, a remote one
+ * 
+ * @author Federico Fissore (federico@fissore.org)
+ * @since 1.0
+ */
+public class NioFileTree implements FileTree {
+
+	private final FileSystem fileSystem;
+
+	/**
+	 * Creates a tree over the platform file system
+	 */
+	public NioFileTree() {
+		this(FileSystems.getDefault());
+	}
+
+	/**
+	 * Creates a tree over a file system
+	 * 
+	 * @param fileSystem
+	 *          the file system
+	 */
+	public NioFileTree(FileSystem fileSystem) {
+		this.fileSystem = fileSystem;
+	}
+
+	public String getSeparator() {
+		return fileSystem.getSeparator();
+	}
+
+	public String getCanonicalPath(String path) {
+		try {
+			return fileSystem.getPath(path).toRealPath().toString();
+		} catch (IOException e) {
+			return path;
+		}
+	}
+
+	public String[] list(String path) {
+		List<String> names = new ArrayList<String>();
+		try {
+			DirectoryStream<Path> stream = Files.newDirectoryStream(fileSystem
+					.getPath(path));
+			try {
+				for (Path child : stream) {
+					names.add(child.getFileName().toString());
+				}
+			} finally {
+				stream.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	public boolean isDirectory(String path) {
+		return Files.isDirectory(fileSystem.getPath(path));
+	}
+
+	public long lastModified(String path) {
+		try {
+			return Files.getLastModifiedTime(fileSystem.getPath(path)).toMillis();
+		} catch (IOException e) {
+			return 0L;
+		}
+	}
+
+	public long length(String path) {
+		try {
+			return Files.size(fileSystem.getPath(path));
+		} catch (IOException e) {
+			return 0L;
+		}
+	}
+
+	public InputStream open(String path) throws IOException {
+		return Files.newInputStream(fileSystem.getPath(path));
+	}
+
+	public JarFile openJar(String path) throws IOException {
+		if (fileSystem == FileSystems.getDefault()) {
+			return new JarFile(path);
+		}
+		return LocalFileTree.openCopy(open(path));
+	}
+
+}
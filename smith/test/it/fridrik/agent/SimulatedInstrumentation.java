@@ -0,0 +1,119 @@
+package it.fridrik.agent;
+
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A recording, fault injecting Instrumentation: it pretends to have loaded a
+ * given set of classes and records every redefinition instead of applying it.
+ * Redefinitions including a refused class fail as a schema change does, and
+ * scripted faults fail the next calls whatever they contain
+ */
+public class SimulatedInstrumentation implements InvocationHandler {
+
+	private final Class<?>[] loaded;
+	private final Set<String> refused = new HashSet<String>();
+	private final LinkedList<Throwable> faults = new LinkedList<Throwable>();
+	private final List<ClassDefinition[]> redefinitions = new ArrayList<ClassDefinition[]>();
+	private int calls;
+
+	public SimulatedInstrumentation(Class<?>... loaded) {
+		this.loaded = loaded;
+	}
+
+	public Instrumentation getInstrumentation() {
+		return (Instrumentation) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { Instrumentation.class }, this);
+	}
+
+	/**
+	 * Makes every redefinition including a class fail, as if its schema had
+	 * changed
+	 */
+	public synchronized void refuse(String className) {
+		refused.add(className);
+	}
+
+	/**
+	 * Makes the next redefinition fail with the specified error
+	 */
+	public synchronized void fail(Throwable fault) {
+		faults.add(fault);
+	}
+
+	/**
+	 * The redefinitions applied so far
+	 */
+	public synchronized List<ClassDefinition[]> getRedefinitions() {
+		return new ArrayList<ClassDefinition[]>(redefinitions);
+	}
+
+	/**
+	 * The names of the classes redefined so far
+	 */
+	public synchronized Set<String> getRedefined() {
+		Set<String> names = new HashSet<String>();
+		for (ClassDefinition[] definitions : redefinitions) {
+			for (ClassDefinition definition : definitions) {
+				names.add(definition.getDefinitionClass().getName());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * The number of calls to redefineClasses, failed ones included
+	 */
+	public synchronized int getCalls() {
+		return calls;
+	}
+
+	public synchronized Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		String name = method.getName();
+		if ("getAllLoadedClasses".equals(name)) {
+			return loaded.clone();
+		} else if ("redefineClasses".equals(name)) {
+			calls++;
+			ClassDefinition[] definitions = (ClassDefinition[]) args[0];
+			if (!faults.isEmpty()) {
+				throw faults.removeFirst();
+			}
+			for (ClassDefinition definition : definitions) {
+				if (refused.contains(definition.getDefinitionClass().getName())) {
+					throw new UnsupportedOperationException(
+							"class redefinition failed: attempted to change the schema");
+				}
+			}
+			redefinitions.add(definitions);
+			return null;
+		} else if ("isRedefineClassesSupported".equals(name)) {
+			return Boolean.TRUE;
+		} else if ("hashCode".equals(name)) {
+			return Integer.valueOf(System.identityHashCode(proxy));
+		} else if ("equals".equals(name)) {
+			return Boolean.valueOf(proxy == args[0]);
+		} else if ("toString".equals(name)) {
+			return "SimulatedInstrumentation";
+		}
+
+		Class<?> type = method.getReturnType();
+		if (type == boolean.class) {
+			return Boolean.FALSE;
+		} else if (type == long.class) {
+			return Long.valueOf(0L);
+		} else if (type.isArray()) {
+			return java.lang.reflect.Array.newInstance(type.getComponentType(), 0);
+		}
+		return null;
+	}
+
+}
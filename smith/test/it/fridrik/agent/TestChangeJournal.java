@@ -0,0 +1,173 @@
+package it.fridrik.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestChangeJournal extends TestCase {
+
+	private File file;
+
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("smith", ".journal");
+	}
+
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+
+	public void testPublishAndPoll() throws IOException {
+		ChangeJournal writer = ChangeJournal.create(file, 4096);
+		writer.publish(batch("Old", 1, 100));
+		ChangeJournal reader = ChangeJournal.open(file);
+		assertTrue(reader.poll().isEmpty());
+
+		writer.publish(batch("Bar", 2, 100));
+		List<ChangeJournal.Entry> entries = reader.poll();
+		assertEquals(2, entries.size());
+		assertEquals("Bar0", entries.get(0).getClassName());
+		assertEquals(100, entries.get(1).getBytes().length);
+		assertEquals(ChangeJournal.hash(entries.get(1).getBytes()), entries.get(1)
+				.getHash());
+		assertTrue(reader.poll().isEmpty());
+
+		reader.close();
+		writer.close();
+	}
+
+	public void testWrap() throws IOException {
+		ChangeJournal writer = ChangeJournal.create(file, 4096);
+		ChangeJournal reader = ChangeJournal.open(file);
+		for (int i = 0; i < 20; i++) {
+			writer.publish(batch("Bar", 3, 300));
+			List<ChangeJournal.Entry> entries = reader.poll();
+			assertEquals(3, entries.size());
+			assertEquals("Bar2", entries.get(2).getClassName());
+		}
+		assertEquals(0, reader.getLost());
+
+		assertEquals(0, writer.publish(batch("Big", 1, 2000)));
+		reader.close();
+		writer.close();
+	}
+
+	public void testLapped() throws IOException {
+		ChangeJournal writer = ChangeJournal.create(file, 4096);
+		ChangeJournal reader = ChangeJournal.open(file);
+		for (int i = 0; i < 10; i++) {
+			writer.publish(batch("Bar", 3, 300));
+		}
+		assertTrue(reader.poll().isEmpty());
+		assertTrue(reader.getLost() > 0);
+
+		writer.publish(batch("Foo", 1, 10));
+		assertEquals("Foo0", reader.poll().get(0).getClassName());
+		reader.close();
+		writer.close();
+	}
+
+	public void testRetired() throws IOException {
+		ChangeJournal writer = ChangeJournal.create(file, 4096);
+		ChangeJournal reader = ChangeJournal.open(file);
+		writer.publish(batch("Old", 1, 100));
+		writer.close();
+		assertFalse(reader.isRetired());
+
+		writer = ChangeJournal.create(file, 4096);
+		writer.publish(batch("New", 1, 100));
+		assertTrue(reader.isRetired());
+		assertEquals("Old0", reader.poll().get(0).getClassName());
+		assertTrue(reader.poll().isEmpty());
+		reader.close();
+
+		reader = ChangeJournal.open(file, true);
+		assertEquals("New0", reader.poll().get(0).getClassName());
+		reader.close();
+		writer.close();
+	}
+
+	public void testRecordNotVisibleYet() throws IOException {
+		ChangeJournal writer = ChangeJournal.create(file, 4096);
+		ChangeJournal reader = ChangeJournal.open(file);
+		writer.publish(batch("Bar", 1, 100));
+
+		// the first byte of the class, after the record and class name headers
+		long offset = 64 + 16 + 8 + 4 + 2 + 4 + 4;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(offset);
+			raf.write(1);
+			assertTrue(reader.poll().isEmpty());
+			assertEquals(0, reader.getLost());
+
+			raf.seek(offset);
+			raf.write(0);
+			assertEquals("Bar0", reader.poll().get(0).getClassName());
+			assertEquals(0, reader.getLost());
+		} finally {
+			raf.close();
+		}
+		reader.close();
+		writer.close();
+	}
+
+	public void testBatchBiggerThanRing() throws IOException {
+		ChangeJournal writer = ChangeJournal.create(file, 4096);
+		ChangeJournal reader = ChangeJournal.open(file);
+		writer.publish(batch("Old", 1, 1000));
+		reader.poll();
+
+		// 344 bytes per record, the batch keeps clear of its own start
+		int published = writer.publish(batch("Bar", 20, 300));
+		assertEquals(11, published);
+		List<ChangeJournal.Entry> entries = reader.poll();
+		assertEquals(published, entries.size());
+		assertEquals("Bar10", entries.get(10).getClassName());
+		assertEquals(0, reader.getLost());
+		reader.close();
+		writer.close();
+	}
+
+	public void testPartialBatchNotReturned() throws IOException {
+		ChangeJournal writer = ChangeJournal.create(file, 4096);
+		ChangeJournal reader = ChangeJournal.open(file);
+		writer.publish(batch("Bar", 2, 100));
+
+		// the first byte of the second class, after a 144 bytes record
+		long offset = 64 + 144 + 16 + 8 + 4 + 2 + 4 + 4;
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(offset);
+			raf.write(2);
+			assertTrue(reader.poll().isEmpty());
+
+			raf.seek(offset);
+			raf.write(1);
+			assertEquals(2, reader.poll().size());
+			assertEquals(0, reader.getLost());
+		} finally {
+			raf.close();
+		}
+		reader.close();
+		writer.close();
+	}
+
+	private static List<ChangeJournal.Entry> batch(String prefix, int classes,
+			int size) {
+		List<ChangeJournal.Entry> entries = new ArrayList<ChangeJournal.Entry>();
+		for (int i = 0; i < classes; i++) {
+			byte[] bytes = new byte[size];
+			bytes[0] = (byte) i;
+			entries.add(new ChangeJournal.Entry(prefix + i, bytes, System
+					.currentTimeMillis()));
+		}
+		return entries;
+	}
+
+}
@@ -0,0 +1,39 @@
+package it.fridrik.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class TestClassBytesLoader extends TestCase {
+
+	public void testSized() throws IOException {
+		byte[] bytes = ClassBytesLoader.read(new ByteArrayInputStream(
+				new byte[] { 1, 2, 3 }), 3);
+
+		assertEquals(3, bytes.length);
+		assertEquals(3, bytes[2]);
+	}
+
+	public void testUnsized() throws IOException {
+		byte[] source = new byte[200 * 1024 + 7];
+		source[source.length - 1] = 42;
+		byte[] bytes = ClassBytesLoader.read(new ByteArrayInputStream(source), -1);
+
+		assertEquals(source.length, bytes.length);
+		assertEquals(42, bytes[bytes.length - 1]);
+		assertEquals(0, ClassBytesLoader.read(
+				new ByteArrayInputStream(new byte[0]), -1).length);
+	}
+
+	public void testTruncated() throws IOException {
+		try {
+			ClassBytesLoader.read(new ByteArrayInputStream(new byte[2]), 3);
+			fail();
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+package it.fridrik.agent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.instrument.ClassDefinition;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import junit.framework.TestCase;
+
+public class TestClassDiff extends TestCase {
+
+	private static final String SOURCE = "public class Bar {\n"
+			+ "  private final java.util.List<String> names = new java.util.ArrayList<String>();\n"
+			+ "  public String greet(int times) {\n"
+			+ "    StringBuilder sb = new StringBuilder();\n"
+			+ "    for (int i = 0; i < times; i++) {\n"
+			+ "      switch (i % 3) { case 0: sb.append(\"%s\"); break; case 1: sb.append(3.5d); break; default: sb.append(names.size()); }\n"
+			+ "    }\n"
+			+ "    try { return sb.toString(); } catch (RuntimeException e) { return null; }\n"
+			+ "  }\n" + "}\n";
+
+	private File folder;
+
+	@Override
+	protected void setUp() {
+		folder = new File(System.getProperty("java.io.tmpdir"), "smith-diff-"
+				+ System.nanoTime());
+		folder.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : folder.listFiles()) {
+			file.delete();
+		}
+		folder.delete();
+	}
+
+	public void testDebugOnly() throws IOException {
+		ClassDigest debug = ClassDigest.of(compile(SOURCE, "-g"));
+		ClassDigest none = ClassDigest.of(compile(SOURCE, "-g:none"));
+		ClassDigest moved = ClassDigest.of(compile("\n// moved down\n\n" + SOURCE,
+				"-g"));
+
+		assertFalse(debug.sameBytes(none));
+		assertTrue(debug.sameCode(none));
+		assertFalse(debug.sameBytes(moved));
+		assertTrue(debug.sameCode(moved));
+		assertTrue(debug.sameBytes(ClassDigest.of(compile(SOURCE, "-g"))));
+	}
+
+	public void testCodeChange() throws IOException {
+		ClassDigest before = ClassDigest.of(compile(SOURCE, "-g"));
+		assertFalse(before.sameCode(ClassDigest.of(compile(SOURCE.replace("%s",
+				"%d"), "-g"))));
+		assertFalse(before.sameCode(ClassDigest.of(compile(SOURCE.replace("3.5d",
+				"4.5d"), "-g"))));
+		assertFalse(before.sameCode(ClassDigest.of(compile(SOURCE.replace("i % 3",
+				"i % 4"), "-g"))));
+	}
+
+	public void testNotAClass() {
+		byte[] garbage = { 1, 2, 3 };
+		assertTrue(ClassDigest.of(garbage).sameCode(ClassDigest.of(garbage)));
+		assertFalse(ClassDigest.of(garbage).sameCode(
+				ClassDigest.of(new byte[] { 1, 2, 4 })));
+	}
+
+	public void testSelect() throws IOException {
+		byte[] debug = compile(SOURCE, "-g");
+		byte[] none = compile(SOURCE, "-g:none");
+		byte[] changed = compile(SOURCE.replace("%s", "%d"), "-g");
+
+		ClassDiff diff = new ClassDiff(SmithArgs.DIFF_LAZY);
+		assertEquals(1, diff.select(definition(none)).size());
+		diff.loaded(getClass().getName(), debug);
+		assertEquals(0, diff.select(definition(debug)).size());
+		assertEquals(0, diff.select(definition(none)).size());
+		assertEquals(2, diff.getAvoided());
+		assertEquals(1, diff.getDeferred());
+		assertEquals(0, diff.takeDeferred(false).size());
+
+		List<ClassDefinition> deferred = diff.takeDeferred(true);
+		assertEquals(1, deferred.size());
+		assertSame(none, deferred.get(0).getDefinitionClassFile());
+		assertEquals(1, diff.getAvoided());
+
+		assertEquals(0, diff.select(definition(none)).size());
+		assertEquals(1, diff.select(definition(changed)).size());
+		diff.applied(definition(changed).toArray(new ClassDefinition[1]));
+		assertEquals(0, diff.getDeferred());
+
+		diff.setPolicy(SmithArgs.DIFF_SKIP);
+		assertEquals(0, diff.select(definition(changed)).size());
+		assertEquals(0, diff.getDeferred());
+		diff.setPolicy(SmithArgs.DIFF_OFF);
+		assertEquals(1, diff.select(definition(changed)).size());
+	}
+
+	private List<ClassDefinition> definition(byte[] bytes) {
+		return Collections.singletonList(new ClassDefinition(getClass(), bytes));
+	}
+
+	private byte[] compile(String source, String debug) throws IOException {
+		File file = new File(folder, "Bar.java");
+		FileWriter writer = new FileWriter(file);
+		writer.write(source);
+		writer.close();
+
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		assertEquals(0, compiler.run(null, null, null, debug, "-d", folder
+				.getAbsolutePath(), file.getAbsolutePath()));
+		File classFile = new File(folder, "Bar.class");
+		byte[] bytes = new byte[(int) classFile.length()];
+		FileInputStream in = new FileInputStream(classFile);
+		try {
+			assertEquals(bytes.length, in.read(bytes));
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+}
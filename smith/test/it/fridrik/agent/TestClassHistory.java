@@ -0,0 +1,59 @@
+package it.fridrik.agent;
+
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class TestClassHistory extends TestCase {
+
+	public void testPrevious() {
+		ClassHistory history = new ClassHistory(1024, false);
+		history.baseline("Bar", new byte[] { 1 });
+		history.applied(history.nextChangeSet(), "Bar", new byte[] { 2 });
+
+		assertEquals(1, history.previous("Bar")[0]);
+		assertEquals(2, history.current("Bar")[0]);
+
+		history.rolledBack("Bar");
+		assertNull(history.previous("Bar"));
+		assertEquals(1, history.current("Bar")[0]);
+	}
+
+	public void testBaselineIgnoredOnceKnown() {
+		ClassHistory history = new ClassHistory(1024, true);
+		history.applied(history.nextChangeSet(), "Bar", new byte[] { 2 });
+		history.baseline("Bar", new byte[] { 1 });
+
+		assertNull(history.previous("Bar"));
+		assertEquals(2, history.current("Bar")[0]);
+	}
+
+	public void testChangeSet() {
+		ClassHistory history = new ClassHistory(1024, false);
+		long first = history.nextChangeSet();
+		history.applied(first, "Bar", new byte[] { 1 });
+		history.applied(first, "Foo", new byte[] { 1 });
+		long second = history.nextChangeSet();
+		history.applied(second, "Bar", new byte[] { 2 });
+		history.applied(second, "Foo", new byte[] { 2 });
+		long third = history.nextChangeSet();
+		history.applied(third, "Foo", new byte[] { 3 });
+
+		Map<String, byte[]> previous = history.previousOf(second);
+		assertEquals(1, previous.size());
+		assertEquals(1, previous.get("Bar")[0]);
+		assertEquals(third, history.getLastChangeSet());
+	}
+
+	public void testEviction() {
+		ClassHistory history = new ClassHistory(4, false);
+		history.applied(history.nextChangeSet(), "Bar", new byte[2]);
+		history.applied(history.nextChangeSet(), "Foo", new byte[2]);
+		history.applied(history.nextChangeSet(), "Foo", new byte[2]);
+
+		assertEquals(4, history.getBytes());
+		assertNull(history.current("Bar"));
+		assertNotNull(history.previous("Foo"));
+	}
+
+}
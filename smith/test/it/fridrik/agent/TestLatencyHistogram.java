@@ -0,0 +1,39 @@
+package it.fridrik.agent;
+
+import junit.framework.TestCase;
+
+public class TestLatencyHistogram extends TestCase {
+
+	public void testEmpty() {
+		LatencyHistogram histogram = new LatencyHistogram();
+
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMean());
+		assertEquals(0, histogram.getPercentile(99));
+	}
+
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 0; i < 99; i++) {
+			histogram.record(100);
+		}
+		histogram.record(5000);
+
+		assertEquals(100, histogram.getCount());
+		assertEquals(149, histogram.getMean());
+		assertEquals(5000, histogram.getMax());
+		assertEquals(127, histogram.getPercentile(50));
+		assertEquals(127, histogram.getPercentile(99));
+		assertEquals(5000, histogram.getPercentile(100));
+	}
+
+	public void testNegativeIsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-10);
+
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(50));
+	}
+
+}
@@ -0,0 +1,136 @@
+package it.fridrik.agent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+public class TestPatchBundle extends TestCase {
+
+	private File folder;
+
+	@Override
+	protected void setUp() {
+		folder = new File(System.getProperty("java.io.tmpdir"), "smith-bundle-"
+				+ System.nanoTime());
+		folder.mkdirs();
+	}
+
+	@Override
+	protected void tearDown() {
+		delete(folder);
+	}
+
+	public void testCreate() throws IOException {
+		write("old/a/A.class", 1);
+		write("old/a/B.class", 2);
+		write("old/a/Gone.class", 3);
+		jar("old/lib/dep.jar", "d/D.class", 4);
+		write("new/a/A.class", 1);
+		write("new/a/B.class", 5);
+		write("new/a/New.class", 6);
+		jar("new/lib/dep.jar", "d/D.class", 7);
+
+		List<PatchBundle.Entry> entries = PatchBundle.create(
+				new File(folder, "old"), new File(folder, "new")).getEntries();
+		assertEquals("[a.B changed, a.Gone removed, a.New added, "
+				+ "lib/dep.jar!d.D changed]", entries.toString());
+		assertTrue(Arrays.equals(new byte[] { 2 }, entries.get(0).getBase()));
+		assertTrue(Arrays.equals(new byte[] { 5 }, entries.get(0).getTarget()));
+		assertTrue(entries.get(0).isFrom(null));
+		assertTrue(entries.get(3).isFrom("/srv/app/lib/dep.jar"));
+		assertFalse(entries.get(3).isFrom("/srv/app/lib/other-dep.jar"));
+		assertFalse(entries.get(3).isFrom(null));
+	}
+
+	public void testWriteRead() throws IOException {
+		write("old/a/B.class", 2);
+		write("new/a/B.class", 5);
+		write("new/a/New.class", 6);
+		File file = new File(folder, "patch" + PatchBundle.EXTENSION);
+		PatchBundle.create(new File(folder, "old"), new File(folder, "new"))
+				.write(file);
+
+		PatchBundle bundle = PatchBundle.read(file);
+		assertEquals("[a.B changed, a.New added]", bundle.getEntries().toString());
+		assertEquals("[a.B changed, a.New removed]", bundle.reverse()
+				.getEntries().toString());
+		assertTrue(Arrays.equals(new byte[] { 2 }, bundle.reverse().getEntries()
+				.get(0).getTarget()));
+	}
+
+	public void testCorrupted() throws IOException {
+		File file = new File(folder, "patch" + PatchBundle.EXTENSION);
+		PatchBundle bundle = new PatchBundle(Arrays.asList(new PatchBundle.Entry(
+				"a.B", "", new byte[] { 2 }, new byte[] { 5 })));
+		bundle.write(file);
+
+		// flip a bit of the last SHA-1, rewriting the gzip stream
+		GZIPInputStream in = new GZIPInputStream(new FileInputStream(file));
+		byte[] bytes = new byte[4096];
+		int length = 0;
+		for (int read; (read = in.read(bytes, length, bytes.length - length)) > 0;) {
+			length += read;
+		}
+		in.close();
+		bytes[length - 1] ^= 1;
+		GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+		out.write(bytes, 0, length);
+		out.close();
+
+		try {
+			PatchBundle.read(file);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().indexOf("a.B") >= 0);
+		}
+
+		File raw = new File(folder, "raw");
+		RandomAccessFile notABundle = new RandomAccessFile(raw, "rw");
+		notABundle.write(new byte[] { 1, 2, 3 });
+		notABundle.close();
+		try {
+			PatchBundle.read(raw);
+			fail();
+		} catch (IOException e) {
+		}
+	}
+
+	private void write(String path, int content) throws IOException {
+		File file = new File(folder, path);
+		file.getParentFile().mkdirs();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content);
+		out.close();
+	}
+
+	private void jar(String path, String entry, int content) throws IOException {
+		File file = new File(folder, path);
+		file.getParentFile().mkdirs();
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+		out.putNextEntry(new JarEntry(entry));
+		out.write(content);
+		out.closeEntry();
+		out.close();
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
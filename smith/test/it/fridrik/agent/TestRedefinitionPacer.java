@@ -0,0 +1,48 @@
+package it.fridrik.agent;
+
+import java.lang.instrument.ClassDefinition;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class TestRedefinitionPacer extends TestCase {
+
+	public void testNoBudget() {
+		RedefinitionPacer pacer = new RedefinitionPacer(new SmithArgs("classes=/tmp"));
+
+		assertEquals(1, pacer.split(definitions()).size());
+		assertEquals(0, pacer.split(new ArrayList<ClassDefinition>()).size());
+	}
+
+	public void testMaxClassesKeepsNestedTogether() {
+		RedefinitionPacer pacer = new RedefinitionPacer(new SmithArgs(
+				"classes=/tmp,maxclasses=1"));
+		List<List<ClassDefinition>> chunks = pacer.split(definitions());
+
+		assertEquals(3, chunks.size());
+		assertEquals(Map.class, chunks.get(0).get(0).getDefinitionClass());
+		assertEquals(Map.Entry.class, chunks.get(0).get(1).getDefinitionClass());
+		assertEquals(String.class, chunks.get(1).get(0).getDefinitionClass());
+	}
+
+	public void testPauseTarget() {
+		RedefinitionPacer pacer = new RedefinitionPacer(new SmithArgs(
+				"classes=/tmp,pausems=1"));
+		pacer.learn(1000, 100000000L);
+
+		assertEquals(100000.0, pacer.getNanosPerByte(), 0.1);
+		assertEquals(3, pacer.split(definitions()).size());
+	}
+
+	private static List<ClassDefinition> definitions() {
+		List<ClassDefinition> definitions = new ArrayList<ClassDefinition>();
+		definitions.add(new ClassDefinition(Map.class, new byte[10]));
+		definitions.add(new ClassDefinition(String.class, new byte[10]));
+		definitions.add(new ClassDefinition(Map.Entry.class, new byte[10]));
+		definitions.add(new ClassDefinition(Integer.class, new byte[10]));
+		return definitions;
+	}
+
+}
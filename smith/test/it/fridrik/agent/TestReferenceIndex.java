@@ -0,0 +1,172 @@
+package it.fridrik.agent;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+import junit.framework.TestCase;
+
+public class TestReferenceIndex extends TestCase {
+
+	private static final String CONSTANTS = "public class Consts {\n"
+			+ "  public static final String NAME = \"old\";\n"
+			+ "  public static final long LIMIT = 100000L;\n"
+			+ "  public static final int SMALL = 3;\n" + "}\n";
+	private static final String USER = "public class User {\n"
+			+ "  public String name() { return Consts.NAME; }\n"
+			+ "  public long limit() { return Consts.LIMIT; }\n"
+			+ "  public int small() { return Consts.SMALL; }\n"
+			+ "}\n";
+	private static final String REFERRER = "public class Referrer {\n"
+			+ "  public Object create() { return new Consts(); }\n"
+			+ "  public String label(int n) { return Consts.NAME + n; }\n" + "}\n";
+
+	private File folder;
+	private ReferenceIndex index;
+
+	@Override
+	protected void setUp() throws IOException {
+		folder = new File(System.getProperty("java.io.tmpdir"), "smith-refs-"
+				+ System.nanoTime());
+		folder.mkdirs();
+		write("User", USER);
+		write("Referrer", REFERRER);
+		compile(CONSTANTS);
+		index = new ReferenceIndex();
+		for (String className : new String[] { "Consts", "User", "Referrer" }) {
+			index.update(className, folder.getAbsolutePath(), read(className));
+		}
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : folder.listFiles()) {
+			file.delete();
+		}
+		folder.delete();
+	}
+
+	public void testIndexed() throws IOException {
+		assertEquals(3, index.size());
+		assertEquals(folder.getAbsolutePath(), index.getLocation("User"));
+		assertNull(index.getLocation("Other"));
+		assertTrue(index.isRunning("User", read("User")));
+		assertFalse(index.isRunning("Other", read("User")));
+		assertTrue(getDependents(CONSTANTS).isEmpty());
+	}
+
+	public void testPooledConstant() throws IOException {
+		Map<String, List<ReferenceIndex.Constant>> dependents = getDependents(CONSTANTS
+				.replace("\"old\"", "\"new\""));
+		assertEquals(2, dependents.size());
+		assertEquals("[Consts.NAME]", dependents.get("User").toString());
+		assertEquals("[Consts.NAME]", dependents.get("Referrer").toString());
+
+		assertNotNull(ReferenceIndex.findStale(read("User"), dependents
+				.get("User")));
+		// the concatenation holds the old value within a longer string
+		assertNotNull(ReferenceIndex.findStale(read("Referrer"), dependents
+				.get("Referrer")));
+
+		compile(CONSTANTS.replace("\"old\"", "\"new\""));
+		assertFalse(index.isRunning("User", read("User")));
+		assertNull(ReferenceIndex.findStale(read("User"), dependents.get("User")));
+	}
+
+	public void testSmallConstant() throws IOException {
+		Map<String, List<ReferenceIndex.Constant>> dependents = getDependents(CONSTANTS
+				.replace("= 3", "= 4"));
+		assertEquals("[Consts.SMALL]", dependents.get("Referrer").toString());
+		// the value is part of the code of User, which recent compilers mark
+		// with a reference to Consts
+		assertNull(ReferenceIndex.findStale(read("User"), dependents
+				.get("Referrer")));
+	}
+
+	public void testUpdate() throws IOException {
+		compile(CONSTANTS.replace("100000L", "200000L"));
+		index.update("Consts", null, read("Consts"));
+		index.update("User", null, read("User"));
+		assertEquals(folder.getAbsolutePath(), index.getLocation("User"));
+
+		Map<String, List<ReferenceIndex.Constant>> dependents = getDependents(CONSTANTS
+				.replace("100000L", "300000L"));
+		assertEquals("[Consts.LIMIT]", dependents.get("User").toString());
+		assertNotNull(ReferenceIndex.findStale(read("User"), dependents
+				.get("User")));
+	}
+
+	public void testAddKeepsKnown() throws IOException {
+		byte[] running = read("Consts");
+		compile(CONSTANTS.replace("100000L", "200000L"));
+		assertFalse(index.add("Consts", folder.getAbsolutePath(), read("Consts")));
+		assertTrue(index.isRunning("Consts", running));
+		assertTrue(index.add("Other", folder.getAbsolutePath(), read("Consts")));
+	}
+
+	public void testNotAClass() {
+		index.update("Garbage", null, new byte[] { 1, 2, 3 });
+		assertEquals(4, index.size());
+		assertTrue(index.isRunning("Garbage", new byte[] { 1, 2, 3 }));
+		assertTrue(index.getDependents(
+				Collections.singletonMap("Garbage", new byte[] { 1, 2 })).isEmpty());
+	}
+
+	private Map<String, List<ReferenceIndex.Constant>> getDependents(
+			String constants) throws IOException {
+		File temp = folder;
+		folder = new File(temp, "changed");
+		folder.mkdirs();
+		try {
+			compile(constants);
+			return index.getDependents(Collections.singletonMap("Consts",
+					read("Consts")));
+		} finally {
+			for (File file : folder.listFiles()) {
+				file.delete();
+			}
+			folder.delete();
+			folder = temp;
+		}
+	}
+
+	private void write(String className, String source) throws IOException {
+		FileWriter writer = new FileWriter(new File(folder, className + ".java"));
+		writer.write(source);
+		writer.close();
+	}
+
+	private void compile(String constants) throws IOException {
+		write("Consts", constants);
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		String[] args = { "-d", folder.getAbsolutePath(), "-sourcepath",
+				folder.getAbsolutePath(), new File(folder, "Consts.java").getAbsolutePath(),
+				new File(folder, "User.java").getAbsolutePath(),
+				new File(folder, "Referrer.java").getAbsolutePath() };
+		if (!new File(folder, "User.java").exists()) {
+			write("User", USER);
+			write("Referrer", REFERRER);
+		}
+		assertEquals(0, compiler.run(null, null, null, args));
+	}
+
+	private byte[] read(String className) throws IOException {
+		File classFile = new File(folder, className + ".class");
+		byte[] bytes = new byte[(int) classFile.length()];
+		FileInputStream in = new FileInputStream(classFile);
+		try {
+			assertEquals(bytes.length, in.read(bytes));
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+}
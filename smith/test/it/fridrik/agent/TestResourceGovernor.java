@@ -0,0 +1,73 @@
+package it.fridrik.agent;
+
+import junit.framework.TestCase;
+
+public class TestResourceGovernor extends TestCase {
+
+	private static final long MILLIS = 1000000L;
+
+	private ResourceGovernor governor;
+
+	@Override
+	protected void setUp() {
+		governor = new ResourceGovernor();
+	}
+
+	public void testUnlimited() {
+		long now = System.nanoTime();
+		governor.charge(1000 * MILLIS, 1L << 30, now);
+		assertEquals(1000, governor.stretch(1000, now));
+		assertFalse(governor.isOverBudget());
+		assertEquals(0, governor.getThrottled());
+	}
+
+	public void testCpuBudget() {
+		governor.setBudget(this, 0.01, 0);
+		long now = System.nanoTime();
+		governor.charge(100 * MILLIS, 0, now);
+
+		// 100 ms at 1% of a core take 10 s to pay back
+		long delay = governor.stretch(1000, now);
+		assertTrue(delay > 9900 && delay <= 10000);
+		assertEquals(1, governor.getThrottled());
+		assertEquals(1000, governor.stretch(1000, now + 10000 * MILLIS));
+		assertEquals(100 * MILLIS, governor.getCpuNanos());
+	}
+
+	public void testAllocationBudget() {
+		governor.setBudget(this, 0, 1024 * 1024);
+		long now = System.nanoTime();
+		governor.charge(0, 3 * 1024 * 1024, now);
+
+		long delay = governor.stretch(500, now);
+		assertTrue(delay > 2900 && delay <= 3000);
+		assertEquals(500, governor.stretch(500, now + 3000 * MILLIS));
+	}
+
+	public void testTightestBudget() {
+		Object other = new Object();
+		governor.setBudget(this, 0.05, 0);
+		governor.setBudget(other, 0.01, 2048);
+		assertEquals(0.01, governor.getCpuBudget(), 0);
+		assertEquals(2048, governor.getAllocationBudget());
+
+		governor.removeBudget(other);
+		assertEquals(0.05, governor.getCpuBudget(), 0);
+		assertEquals(0, governor.getAllocationBudget());
+		governor.setBudget(this, 0, 0);
+		assertEquals(0, governor.getCpuBudget(), 0);
+	}
+
+	public void testMeasure() {
+		ResourceGovernor.Sample sample = governor.start();
+		long sum = 0;
+		for (int i = 0; i < 10000000; i++) {
+			sum += Integer.toString(i).length();
+		}
+		governor.charge(sample);
+		assertTrue(sum > 0);
+		assertTrue(governor.getCpuNanos() > 0);
+		assertTrue(governor.getCpuUsage() > 0);
+	}
+
+}
@@ -0,0 +1,137 @@
+package it.fridrik.agent;
+
+import it.fridrik.filemonitor.ChangeSet;
+import it.fridrik.filemonitor.ChangeSetListener;
+import it.fridrik.filemonitor.JarEvent;
+import it.fridrik.filemonitor.JarModifiedListener;
+import it.fridrik.filemonitor.LocalFileTree;
+import it.fridrik.filemonitor.ScanCompletedListener;
+import it.fridrik.filemonitor.ScanEvent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+
+import junit.framework.TestCase;
+
+public class TestScanRegistry extends TestCase {
+
+	private File folder;
+	private ScanRegistry registry;
+	private List<ChangeSet> changeSets;
+	private int scans;
+
+	@Override
+	protected void setUp() throws IOException {
+		folder = File.createTempFile("smith", "root");
+		folder.delete();
+		folder.mkdirs();
+		registry = new ScanRegistry(ScanScheduler.getInstance());
+		changeSets = new ArrayList<ChangeSet>();
+		scans = 0;
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : folder.listFiles()) {
+			file.delete();
+		}
+		folder.delete();
+	}
+
+	public void testSharedWalk() throws IOException {
+		ScanRegistry.Subscription classes = registry.subscribe(folder
+				.getAbsolutePath(), "class", new Collector(), new Counter());
+		ScanRegistry.Subscription jars = registry.subscribeJars(folder
+				.getAbsolutePath()
+				+ File.separator + "." + File.separator, new JarModifiedListener() {
+
+			public void jarModified(JarEvent event) {
+			}
+
+		}, new Counter());
+		assertEquals(1, registry.getRoots());
+		assertSame(classes.getFileMonitor(), jars.getFileMonitor());
+
+		write("Bar.class");
+		new JarOutputStream(new FileOutputStream(new File(folder, "lib.jar")))
+				.close();
+		classes.run();
+
+		assertEquals(2, scans);
+		assertEquals(1, changeSets.size());
+		assertEquals(1, changeSets.get(0).getAdded().size());
+		assertEquals("Bar.class", changeSets.get(0).getAdded().get(0).getPath());
+		assertEquals(2, classes.getFileMonitor().getTrackedFiles());
+
+		classes.cancel();
+		assertEquals(1, registry.getRoots());
+		jars.run();
+		assertEquals(1, changeSets.size());
+		assertEquals(3, scans);
+
+		jars.cancel();
+		assertEquals(0, registry.getRoots());
+	}
+
+	public void testOnDemandSubscriber() throws IOException {
+		registry = new ScanRegistry(null, LocalFileTree.getInstance());
+		ScanRegistry.Subscription scan = registry.subscribe(folder
+				.getAbsolutePath(), "class", new Collector(), new Counter());
+		scan.setSchedule(60000, 1);
+		final List<ChangeSet> onDemand = new ArrayList<ChangeSet>();
+		ScanRegistry.Subscription marker = registry.subscribe(folder
+				.getAbsolutePath(), "class", new ChangeSetListener() {
+
+			public void changesFound(ChangeSet changes) {
+				onDemand.add(changes);
+			}
+
+		}, new Counter());
+
+		write("Bar.class");
+		scan.run();
+		File foo = new File(folder, "Foo.class");
+		write("Foo.class");
+		scan.run();
+		foo.setLastModified(foo.lastModified() - 10000);
+		scan.run();
+		assertEquals(3, changeSets.size());
+		assertTrue(onDemand.isEmpty());
+
+		marker.run();
+		assertEquals(1, onDemand.size());
+		assertEquals(2, onDemand.get(0).getAdded().size());
+		assertTrue(onDemand.get(0).getModified().isEmpty());
+		assertEquals(3, changeSets.size());
+
+		marker.run();
+		assertEquals(1, onDemand.size());
+	}
+
+	private void write(String path) throws IOException {
+		FileOutputStream out = new FileOutputStream(new File(folder, path));
+		out.write(0);
+		out.close();
+	}
+
+	private class Collector implements ChangeSetListener {
+
+		public void changesFound(ChangeSet changes) {
+			changeSets.add(changes);
+		}
+
+	}
+
+	private class Counter implements ScanCompletedListener {
+
+		public void scanCompleted(ScanEvent event) {
+			scans++;
+		}
+
+	}
+
+}
@@ -0,0 +1,47 @@
+package it.fridrik.agent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class TestScanScheduler extends TestCase {
+
+	public void testPollsDoNotWaitForScans() throws InterruptedException {
+		ScanScheduler scheduler = new ScanScheduler(1);
+		final CountDownLatch scanning = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch polled = new CountDownLatch(2);
+
+		ScanScheduler.Task scan = scheduler.schedule("slow scan", new Runnable() {
+
+			public void run() {
+				scanning.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+		}, 10);
+		ScanScheduler.Task poll = scheduler.schedulePoll("poll", new Runnable() {
+
+			public void run() {
+				polled.countDown();
+			}
+
+		}, 10);
+
+		try {
+			assertTrue(scanning.await(5, TimeUnit.SECONDS));
+			// the only permit is held by the scan
+			assertTrue(polled.await(5, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			scan.cancel();
+			poll.cancel();
+		}
+	}
+
+}
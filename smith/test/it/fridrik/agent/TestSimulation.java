@@ -0,0 +1,349 @@
+package it.fridrik.agent;
+
+import it.fridrik.filemonitor.MemoryFileTree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassDefinition;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * Drives an agent over an in-memory file system with a recording
+ * Instrumentation. The size of the simulated build output is set by the
+ * <code>smith.simulation.files</code> system property
+ */
+public class TestSimulation extends TestCase {
+
+	private static final String CLASSES = "/sim/classes";
+	private static final int FILES = Integer.getInteger("smith.simulation.files",
+			100000).intValue();
+	private static final int FILES_PER_FOLDER = 1000;
+	private static final Class<?>[] LOADED = { java.util.ArrayList.class,
+			HashMap.class, LinkedList.class, TreeMap.class };
+
+	private MemoryFileTree tree;
+	private SimulatedInstrumentation inst;
+	private int folders;
+	private long time;
+	private Smith smith;
+
+	@Override
+	protected void setUp() {
+		tree = new MemoryFileTree();
+		inst = new SimulatedInstrumentation(LOADED);
+		time = 1000L;
+		folders = 1;
+		for (int i = 0; i < FILES; i++) {
+			if (i % FILES_PER_FOLDER == 0) {
+				tree.mkdirs(CLASSES + "/p" + i / FILES_PER_FOLDER);
+				folders++;
+			}
+			tree.write(CLASSES + "/p" + i / FILES_PER_FOLDER + "/C" + i + ".class",
+					new byte[] { 0 }, time);
+		}
+		for (Class<?> clazz : LOADED) {
+			tree.write(toPath(clazz), new byte[] { 1 }, time);
+		}
+		// java, java/util
+		folders += 2;
+	}
+
+	@Override
+	protected void tearDown() {
+		if (smith != null) {
+			smith.stop();
+		}
+	}
+
+	public void testSteadyStateCost() {
+		start("");
+		assertEquals(FILES + LOADED.length, smith.getTrackedFiles());
+
+		tree.resetCounters();
+		smith.checkFolders();
+		assertEquals(folders, tree.getLists());
+		assertEquals(FILES + LOADED.length, tree.getStats());
+		assertEquals(0, inst.getCalls());
+	}
+
+	public void testShardedCost() {
+		start(",shards=4");
+		for (int i = 1; i < 4; i++) {
+			smith.checkFolders();
+		}
+
+		tree.resetCounters();
+		int lists = 0;
+		for (int i = 0; i < 4; i++) {
+			smith.checkFolders();
+			assertTrue(tree.getLists() - lists < folders);
+			lists = tree.getLists();
+		}
+		assertEquals(folders, tree.getLists());
+		assertEquals(FILES + LOADED.length, tree.getStats());
+	}
+
+	public void testOnlyLoadedClassesRedefined() {
+		start("");
+		byte[] arrayList = { 2 };
+		byte[] hashMap = { 3 };
+		tree.write(toPath(java.util.ArrayList.class), arrayList, ++time);
+		tree.write(toPath(HashMap.class), hashMap, time);
+		tree.write(CLASSES + "/p0/C0.class", new byte[] { 4 }, time);
+		smith.checkFolders();
+
+		List<ClassDefinition[]> redefinitions = inst.getRedefinitions();
+		assertEquals(1, redefinitions.size());
+		ClassDefinition[] definitions = redefinitions.get(0);
+		assertEquals(2, definitions.length);
+		for (ClassDefinition definition : definitions) {
+			if (definition.getDefinitionClass() == HashMap.class) {
+				assertTrue(Arrays.equals(hashMap, definition.getDefinitionClassFile()));
+			} else {
+				assertSame(java.util.ArrayList.class, definition.getDefinitionClass());
+				assertTrue(Arrays.equals(arrayList, definition
+						.getDefinitionClassFile()));
+			}
+		}
+
+		smith.checkFolders();
+		assertEquals(1, inst.getCalls());
+	}
+
+	public void testDeletions() {
+		start("");
+		tree.delete(CLASSES + "/p0");
+		tree.delete(toPath(LinkedList.class));
+		smith.checkFolders();
+		assertEquals(FILES + LOADED.length - Math.min(FILES, FILES_PER_FOLDER) - 1,
+				smith.getTrackedFiles());
+		assertEquals(0, inst.getCalls());
+	}
+
+	public void testFaults() {
+		start(",loglevel=OFF");
+		inst.refuse(HashMap.class.getName());
+		tree.write(toPath(java.util.ArrayList.class), new byte[] { 2 }, ++time);
+		tree.write(toPath(HashMap.class), new byte[] { 3 }, time);
+		smith.checkFolders();
+
+		// the whole batch, then one class at a time
+		assertEquals(3, inst.getCalls());
+		assertEquals(1, inst.getRedefinitions().size());
+		assertEquals(java.util.ArrayList.class, inst.getRedefinitions().get(0)[0]
+				.getDefinitionClass());
+		assertEquals(2, smith.getRecentFailures().size());
+		assertEquals(Arrays.asList(HashMap.class.getName()), smith
+				.getClassesAwaitingRestart());
+
+		inst.fail(new VerifyError("simulated"));
+		tree.write(toPath(TreeMap.class), new byte[] { 5 }, ++time);
+		smith.checkFolders();
+		assertEquals(3, smith.getRecentFailures().size());
+		assertEquals(1, inst.getRedefinitions().size());
+	}
+
+	public void testJars() throws Exception {
+		String lib = "/sim/jars/lib.jar";
+		long entryTime = 1000000000000L;
+		tree.write(lib, jar(HashMap.class, new byte[] { 6 }, entryTime), time);
+		start(",jars=/sim/jars");
+		assertEquals(0, inst.getCalls());
+
+		// the jar is read from the simulated tree, never from the disk
+		tree.write(lib, jar(HashMap.class, new byte[] { 7 }, entryTime + 10000),
+				++time);
+		smith.checkFolders();
+		List<ClassDefinition[]> redefinitions = inst.getRedefinitions();
+		assertEquals(1, redefinitions.size());
+		assertSame(HashMap.class, redefinitions.get(0)[0].getDefinitionClass());
+		assertTrue(Arrays.equals(new byte[] { 7 }, redefinitions.get(0)[0]
+				.getDefinitionClassFile()));
+
+		smith.checkFolders();
+		assertEquals(1, inst.getCalls());
+	}
+
+	public void testBundle() throws Exception {
+		start(",bundles=true,loglevel=OFF");
+		// the simulated classes come from no code source
+		for (Class<?> clazz : LOADED) {
+			assertNull(smith.classLoaded(clazz.getName(), null, new byte[] { 1 }));
+		}
+		List<PatchBundle.Entry> entries = new ArrayList<PatchBundle.Entry>();
+		entries.add(new PatchBundle.Entry(java.util.ArrayList.class.getName(), "",
+				new byte[] { 1 }, new byte[] { 2 }));
+		entries.add(new PatchBundle.Entry(HashMap.class.getName(), "",
+				new byte[] { 1 }, new byte[] { 3 }));
+		entries.add(new PatchBundle.Entry("p0.C0", "", new byte[] { 0 },
+				new byte[] { 4 }));
+		PatchBundle bundle = new PatchBundle(entries);
+
+		// one batch, the class not loaded yet is patched when loaded
+		assertEquals(Arrays.asList(java.util.ArrayList.class.getName(),
+				HashMap.class.getName(), "p0.C0"), smith.applyBundle(bundle, false));
+		assertEquals(1, inst.getCalls());
+		assertTrue(Arrays.equals(new byte[] { 4 }, smith.classLoaded("p0.C0",
+				CLASSES, new byte[] { 0 })));
+		assertNull(smith.classLoaded("p0.C0", CLASSES, new byte[] { 9 }));
+		assertEquals(Arrays.asList("p0.C0"), smith.applyBundle(bundle, false));
+		assertEquals(1, inst.getCalls());
+
+		// the jvm refuses the reverse bundle as a whole
+		inst.refuse(HashMap.class.getName());
+		try {
+			smith.applyBundle(bundle.reverse(), false);
+			fail();
+		} catch (UnsupportedOperationException e) {
+		}
+		assertEquals(1, inst.getRedefinitions().size());
+
+		entries.set(0, new PatchBundle.Entry(java.util.ArrayList.class.getName(),
+				"", new byte[] { 7 }, new byte[] { 8 }));
+		try {
+			smith.applyBundle(new PatchBundle(entries), false);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertEquals(2, inst.getCalls());
+	}
+
+	public void testBundleUnverified() throws Exception {
+		start(",bundles=true,loglevel=OFF");
+		assertNull(smith.classLoaded(HashMap.class.getName(), null,
+				new byte[] { 1 }));
+		List<PatchBundle.Entry> entries = new ArrayList<PatchBundle.Entry>();
+		entries.add(new PatchBundle.Entry(java.util.ArrayList.class.getName(), "",
+				new byte[] { 1 }, new byte[] { 2 }));
+		entries.add(new PatchBundle.Entry(HashMap.class.getName(), "",
+				new byte[] { 1 }, new byte[] { 3 }));
+		PatchBundle bundle = new PatchBundle(entries);
+
+		// ArrayList has been loaded before the agent
+		try {
+			smith.applyBundle(bundle, false);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertEquals(0, inst.getCalls());
+
+		assertEquals(2, smith.applyBundle(bundle, true).size());
+		assertEquals(1, inst.getRedefinitions().size());
+		assertTrue(smith.applyBundle(bundle, false).isEmpty());
+		assertEquals(1, inst.getCalls());
+	}
+
+	public void testBundleTwoLoaders() throws Exception {
+		InputStream is = Probe.class.getResourceAsStream("TestSimulation$Probe.class");
+		byte[] bytes;
+		try {
+			bytes = ClassBytesLoader.read(is, -1);
+		} finally {
+			is.close();
+		}
+		Class<?> first = new ProbeLoader("/sim/a").define(bytes);
+		Class<?> second = new ProbeLoader("/sim/b").define(bytes);
+		inst = new SimulatedInstrumentation(first, second);
+		start(",bundles=true,loglevel=OFF");
+		smith.classLoaded(Probe.class.getName(), "/sim/a", new byte[] { 1 });
+		smith.classLoaded(Probe.class.getName(), "/sim/b", new byte[] { 5 });
+
+		// each loader is checked against its own version
+		List<PatchBundle.Entry> entries = new ArrayList<PatchBundle.Entry>();
+		entries.add(new PatchBundle.Entry(Probe.class.getName(), "a",
+				new byte[] { 1 }, new byte[] { 2 }));
+		entries.add(new PatchBundle.Entry(Probe.class.getName(), "b",
+				new byte[] { 5 }, new byte[] { 6 }));
+		smith.applyBundle(new PatchBundle(entries), false);
+		ClassDefinition[] definitions = inst.getRedefinitions().get(0);
+		assertEquals(2, definitions.length);
+		for (ClassDefinition definition : definitions) {
+			assertEquals(definition.getDefinitionClass() == first ? 2 : 6,
+					definition.getDefinitionClassFile()[0]);
+		}
+
+		// a bundle made for one of them does not fit the other
+		entries.clear();
+		entries.add(new PatchBundle.Entry(Probe.class.getName(), "",
+				new byte[] { 2 }, new byte[] { 3 }));
+		try {
+			smith.applyBundle(new PatchBundle(entries), false);
+			fail();
+		} catch (IllegalStateException e) {
+		}
+		assertEquals(1, inst.getCalls());
+
+		// pending patches are kept per jar too
+		entries.clear();
+		entries.add(new PatchBundle.Entry("p0.C0", "a", new byte[] { 0 },
+				new byte[] { 7 }));
+		entries.add(new PatchBundle.Entry("p0.C0", "b", new byte[] { 0 },
+				new byte[] { 8 }));
+		smith.applyBundle(new PatchBundle(entries), false);
+		assertEquals(7, smith.classLoaded("p0.C0", "/sim/a", new byte[] { 0 })[0]);
+		assertEquals(8, smith.classLoaded("p0.C0", "/sim/b", new byte[] { 0 })[0]);
+	}
+
+	private static byte[] jar(Class<?> clazz, byte[] bytes, long time)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JarOutputStream jar = new JarOutputStream(out);
+		JarEntry entry = new JarEntry(clazz.getName().replace('.', '/')
+				+ ".class");
+		entry.setTime(time);
+		jar.putNextEntry(entry);
+		jar.write(bytes);
+		jar.closeEntry();
+		jar.close();
+		return out.toByteArray();
+	}
+
+	private void start(String args) {
+		smith = new Smith(inst.getInstrumentation(), new SmithArgs("classes="
+				+ CLASSES + ",period=1000" + args), new ScanRegistry(null, tree));
+		smith.checkFolders();
+	}
+
+	private static String toPath(Class<?> clazz) {
+		return CLASSES + "/" + clazz.getName().replace('.', '/') + ".class";
+	}
+
+	public static class Probe {
+	}
+
+	/**
+	 * Defines a class as loaded from the specified folder
+	 */
+	private static class ProbeLoader extends ClassLoader {
+
+		private final String folder;
+
+		ProbeLoader(String folder) {
+			super(ProbeLoader.class.getClassLoader());
+			this.folder = folder;
+		}
+
+		Class<?> define(byte[] bytes) throws Exception {
+			CodeSource source = new CodeSource(new File(folder).toURI().toURL(),
+					(Certificate[]) null);
+			return defineClass(Probe.class.getName(), bytes, 0, bytes.length,
+					new ProtectionDomain(source, null));
+		}
+
+	}
+
+}
@@ -1,8 +1,10 @@
 package it.fridrik.agent;
 
+import java.util.Properties;
 import java.util.logging.Level;
 
 import it.fridrik.agent.SmithArgs;
+
 import junit.framework.TestCase;
 
 public class TestSmithArgsNew extends TestCase {
@@ -59,6 +61,126 @@ public class TestSmithArgsNew extends TestCase {
 		assertTrue(args.isValid());
 	}
 
+	public void testPort() {
+		String agentargs = " classes = /home/federico/classes , port = 7000 ";
+		SmithArgs args = new SmithArgs(agentargs);
+
+		assertEquals(7000, args.getPort());
+		assertEquals(
+				"classes=/home/federico/classes/,period=-1,loglevel=WARNING,port=7000",
+				args.toString());
+	}
+
+	public void testNoPort() {
+		SmithArgs args = new SmithArgs(" classes = /home/federico/classes ");
+
+		assertEquals(-1, args.getPort());
+	}
+
+	public void testPortOutOfRange() {
+		SmithArgs args = new SmithArgs("classes=/home/federico/classes,port=70000");
+
+		assertEquals(-1, args.getPort());
+	}
+
+	public void testHistory() {
+		SmithArgs args = new SmithArgs(" classes = /home/federico/classes , history = 16m , historyoffheap = true ");
+
+		assertEquals(16 * 1024 * 1024, args.getHistory());
+		assertTrue(args.isHistoryOffHeap());
+		assertEquals(
+				"classes=/home/federico/classes/,period=-1,loglevel=WARNING,history=16777216,historyoffheap=true",
+				args.toString());
+	}
+
+	public void testInvalidHistory() {
+		SmithArgs args = new SmithArgs(" classes = /home/federico/classes , history = lots ");
+
+		assertEquals(0, args.getHistory());
+		assertFalse(args.isHistoryOffHeap());
+	}
+
+	public void testPauseBudget() {
+		SmithArgs args = new SmithArgs(" classes = /home/federico/classes , maxclasses = 100 , maxbytes = 1m , pausems = 5 , pausegap = 20 ");
+
+		assertEquals(100, args.getMaxClasses());
+		assertEquals(1024 * 1024, args.getMaxBytes());
+		assertEquals(5, args.getPauseMillis());
+		assertEquals(20, args.getPauseGap());
+		assertEquals(
+				"classes=/home/federico/classes/,period=-1,loglevel=WARNING,maxclasses=100,maxbytes=1048576,pausems=5,pausegap=20",
+				args.toString());
+	}
+
+	public void testMode() {
+		SmithArgs args = new SmithArgs(" classes = /home/federico/classes , mode = Loaded ");
+
+		assertEquals(SmithArgs.MODE_LOADED, args.getMode());
+		assertEquals(
+				"classes=/home/federico/classes/,period=-1,loglevel=WARNING,mode=loaded",
+				args.toString());
+		assertEquals(SmithArgs.MODE_SCAN, new SmithArgs(
+				"classes=/home/federico/classes,mode=whatever").getMode());
+	}
+
+	public void testMarker() {
+		SmithArgs args = new SmithArgs(" classes = /home/federico/classes , mode = marker , marker = /home/federico/build.done , changelist = /home/federico/build.changes ");
+
+		assertEquals(SmithArgs.MODE_MARKER, args.getMode());
+		assertEquals("/home/federico/build.done", args.getMarker());
+		assertEquals("/home/federico/build.changes", args.getChangeList());
+		assertEquals(
+				"classes=/home/federico/classes/,period=-1,loglevel=WARNING,mode=marker,marker=/home/federico/build.done,changelist=/home/federico/build.changes",
+				args.toString());
+	}
+
+	public void testJournal() {
+		SmithArgs args = new SmithArgs(" classes = /home/federico/classes , mode = journal , journal = /tmp/app.journal , journalsize = 1m ");
+
+		assertEquals(SmithArgs.MODE_JOURNAL, args.getMode());
+		assertEquals("/tmp/app.journal", args.getJournal());
+		assertEquals(1024 * 1024, args.getJournalSize());
+		assertEquals(
+				"classes=/home/federico/classes/,period=-1,loglevel=WARNING,mode=journal,journal=/tmp/app.journal,journalsize=1048576",
+				args.toString());
+	}
+
+	public void testConfig() {
+		SmithArgs args = new SmithArgs(" classes = /home/federico/classes , jars = /home/federico/lib , period = 1000 , config = /etc/smith.properties , jars.period = 5000 , exclude = it.gen;it.proxy ");
+
+		assertEquals("/etc/smith.properties", args.getConfig());
+		assertEquals(1000, args.getPeriod(SmithArgs.ROOT_CLASSES));
+		assertEquals(5000, args.getPeriod(SmithArgs.ROOT_JARS));
+		assertEquals(2, args.getExcludes(SmithArgs.ROOT_JARS).size());
+		assertTrue(args.isEnabled(SmithArgs.ROOT_CLASSES));
+
+		Properties overrides = new Properties();
+		overrides.setProperty("classes", "/tmp/other");
+		overrides.setProperty("period", "2000");
+		overrides.setProperty("jars.enabled", "false");
+		overrides.setProperty("classes.exclude", "");
+		SmithArgs merged = args.merge(overrides);
+
+		assertEquals("/home/federico/classes/", merged.getClassFolder());
+		assertEquals(2000, merged.getPeriod(SmithArgs.ROOT_CLASSES));
+		assertEquals(5000, merged.getPeriod(SmithArgs.ROOT_JARS));
+		assertFalse(merged.isEnabled(SmithArgs.ROOT_JARS));
+		assertTrue(merged.getExcludes(SmithArgs.ROOT_CLASSES).isEmpty());
+		assertEquals("/etc/smith.properties", merged.getConfig());
+	}
+
+	public void testIoPacing() {
+		SmithArgs args = new SmithArgs(" classes = /home/federico/classes , maxstats = 2000 , shards = 4 ");
+
+		assertEquals(2000, args.getMaxStats());
+		assertEquals(4, args.getShards());
+		assertEquals(
+				"classes=/home/federico/classes/,period=-1,loglevel=WARNING,maxstats=2000,shards=4",
+				args.toString());
+		assertEquals(1, new SmithArgs("classes=/home/federico/classes,shards=0")
+				.getShards());
+	}
+
 	public void testToString() {
 		String agentargs = " classes = /home/federico/classes , jars = /home/federico/jars , period = 39 ";
 		SmithArgs args = new SmithArgs(agentargs);
@@ -68,4 +190,17 @@ public class TestSmithArgsNew extends TestCase {
 				args.toString());
 	}
 
+	public void testBundle() {
+		SmithArgs args = new SmithArgs(" bundle = /tmp/fix.smb , force = true , receipt = /tmp/receipts ");
+
+		assertTrue(args.isValid());
+		assertNull(args.getClassFolder());
+		assertTrue(args.isForce());
+		assertEquals("/tmp/receipts", args.getReceipt());
+		assertEquals(
+				"period=-1,loglevel=WARNING,bundle=/tmp/fix.smb,force=true,receipt=/tmp/receipts",
+				args.toString());
+		assertFalse(new SmithArgs("period=1000").isValid());
+	}
+
 }
@@ -0,0 +1,30 @@
+package it.fridrik.agent;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestSmithLoader extends TestCase {
+
+	public void testAttachTimeout() throws InterruptedException {
+		long start = System.currentTimeMillis();
+		List<String> attached = SmithLoader.attach(Arrays.asList("1", "2", "3"),
+				new SmithLoader.Attacher() {
+
+					public void attach(String pid) throws Exception {
+						if ("2".equals(pid)) {
+							Thread.sleep(60000);
+						} else if ("3".equals(pid)) {
+							throw new Exception("simulated");
+						}
+					}
+
+				}, 200);
+
+		// the stuck jvm counts as failed, as the refusing one does
+		assertEquals(Arrays.asList("1"), attached);
+		assertTrue(System.currentTimeMillis() - start < 10000);
+	}
+
+}
@@ -0,0 +1,178 @@
+package it.fridrik.filemonitor;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarFile;
+
+/**
+ * An in-memory {@link FileTree}, counting the calls the monitors make, so that
+ * simulations can check the cost of each check on trees of any size
+ */
+public class MemoryFileTree implements FileTree {
+
+	private final Map<String, Node> nodes = new HashMap<String, Node>();
+	private int lists;
+	private int stats;
+
+	public MemoryFileTree() {
+		nodes.put("/", new Node());
+	}
+
+	public String getSeparator() {
+		return "/";
+	}
+
+	public String getCanonicalPath(String path) {
+		return path.length() > 1 && path.endsWith("/") ? path.substring(0, path
+				.length() - 1) : path;
+	}
+
+	public synchronized String[] list(String path) {
+		lists++;
+		Node node = nodes.get(getCanonicalPath(path));
+		if (node == null || node.children == null) {
+			return null;
+		}
+		return node.children.toArray(new String[node.children.size()]);
+	}
+
+	public synchronized boolean isDirectory(String path) {
+		stats++;
+		Node node = nodes.get(getCanonicalPath(path));
+		return node != null && node.children != null;
+	}
+
+	public synchronized long lastModified(String path) {
+		stats++;
+		Node node = nodes.get(getCanonicalPath(path));
+		return node != null ? node.lastModified : 0L;
+	}
+
+	public synchronized long length(String path) {
+		Node node = nodes.get(getCanonicalPath(path));
+		return node != null && node.bytes != null ? node.bytes.length : 0L;
+	}
+
+	public synchronized InputStream open(String path) throws IOException {
+		Node node = nodes.get(getCanonicalPath(path));
+		if (node == null || node.bytes == null) {
+			throw new FileNotFoundException(path);
+		}
+		return new ByteArrayInputStream(node.bytes);
+	}
+
+	public JarFile openJar(String path) throws IOException {
+		return LocalFileTree.openCopy(open(path));
+	}
+
+	/**
+	 * Creates a folder and its missing parents
+	 */
+	public synchronized void mkdirs(String path) {
+		String folder = getCanonicalPath(path);
+		if (nodes.containsKey(folder)) {
+			return;
+		}
+		String parent = parentOf(folder);
+		mkdirs(parent);
+		nodes.get(parent).children.add(nameOf(folder));
+		nodes.put(folder, new Node());
+	}
+
+	/**
+	 * Creates or replaces a file, creating its folder if missing
+	 */
+	public synchronized void write(String path, byte[] bytes, long lastModified) {
+		Node node = nodes.get(path);
+		if (node == null) {
+			mkdirs(parentOf(path));
+			nodes.get(parentOf(path)).children.add(nameOf(path));
+			node = new Node(bytes);
+			nodes.put(path, node);
+		}
+		node.bytes = bytes;
+		node.lastModified = lastModified;
+	}
+
+	/**
+	 * Deletes a file or a folder with its content
+	 */
+	public synchronized void delete(String path) {
+		Node node = nodes.remove(path);
+		if (node == null) {
+			return;
+		}
+		if (node.children != null) {
+			for (String name : new ArrayList<String>(node.children)) {
+				delete(path + "/" + name);
+			}
+		}
+		Node parent = nodes.get(parentOf(path));
+		if (parent != null) {
+			parent.children.remove(nameOf(path));
+		}
+	}
+
+	public synchronized int getLists() {
+		return lists;
+	}
+
+	public synchronized int getStats() {
+		return stats;
+	}
+
+	public synchronized void resetCounters() {
+		lists = 0;
+		stats = 0;
+	}
+
+	/**
+	 * The paths of the files under a folder
+	 */
+	public synchronized List<String> getFiles(String path) {
+		List<String> files = new ArrayList<String>();
+		String prefix = getCanonicalPath(path) + "/";
+		for (Map.Entry<String, Node> entry : nodes.entrySet()) {
+			if (entry.getKey().startsWith(prefix) && entry.getValue().bytes != null) {
+				files.add(entry.getKey());
+			}
+		}
+		return files;
+	}
+
+	private static String parentOf(String path) {
+		int slash = path.lastIndexOf('/');
+		return slash > 0 ? path.substring(0, slash) : "/";
+	}
+
+	private static String nameOf(String path) {
+		return path.substring(path.lastIndexOf('/') + 1);
+	}
+
+	private static class Node {
+
+		final Set<String> children;
+		byte[] bytes;
+		long lastModified;
+
+		Node() {
+			this.children = new LinkedHashSet<String>();
+			this.lastModified = 1L;
+		}
+
+		Node(byte[] bytes) {
+			this.children = null;
+			this.bytes = bytes;
+		}
+
+	}
+
+}
@@ -0,0 +1,169 @@
+package it.fridrik.filemonitor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TestFileMonitor extends TestCase {
+
+	private File folder;
+	private List<ChangeSet> changeSets;
+	private List<String> modified;
+
+	@Override
+	protected void setUp() throws IOException {
+		folder = File.createTempFile("smith", "classes");
+		folder.delete();
+		new File(folder, "it" + File.separator + "classes").mkdirs();
+		changeSets = new ArrayList<ChangeSet>();
+		modified = new ArrayList<String>();
+	}
+
+	@Override
+	protected void tearDown() {
+		delete(folder);
+	}
+
+	public void testChangeSet() throws IOException {
+		FileMonitor monitor = newMonitor();
+		File bar = write("it" + File.separator + "classes" + File.separator
+				+ "Bar.class");
+		monitor.run();
+
+		assertEquals(1, changeSets.size());
+		assertEquals(1, changeSets.get(0).getAdded().size());
+		assertEquals("it" + File.separator + "classes" + File.separator
+				+ "Bar.class", changeSets.get(0).getAdded().get(0).getPath());
+
+		bar.setLastModified(bar.lastModified() - 10000);
+		monitor.run();
+
+		assertEquals(2, changeSets.size());
+		assertEquals(1, changeSets.get(1).getModified().size());
+		assertEquals(changeSets.get(1).getModified().get(0).getPath(), modified
+				.get(0));
+
+		monitor.run();
+		assertTrue(changeSets.get(2).isEmpty());
+
+		bar.delete();
+		monitor.run();
+		assertEquals(1, changeSets.get(3).getDeleted().size());
+	}
+
+	public void testSelective() throws IOException {
+		FileMonitor monitor = newMonitor();
+		monitor.setSelective(true);
+		write("Bar.class");
+		write("Foo.class");
+		monitor.watch("Bar.class");
+		monitor.run();
+
+		assertEquals(1, changeSets.get(0).getAdded().size());
+		assertEquals("Bar.class", changeSets.get(0).getAdded().get(0).getPath());
+		assertEquals(1, monitor.getWatchedFiles());
+	}
+
+	public void testWatchedAfterChange() throws IOException {
+		FileMonitor monitor = newMonitor();
+		monitor.setSelective(true);
+		File bar = write("Bar.class");
+		File foo = write("Foo.class");
+		monitor.watch("Bar.class", bar.lastModified());
+		monitor.watch("Foo.class", foo.lastModified());
+		bar.setLastModified(bar.lastModified() - 10000);
+		monitor.run();
+
+		assertTrue(changeSets.get(0).getAdded().isEmpty());
+		assertEquals(1, changeSets.get(0).getModified().size());
+		assertEquals("Bar.class", modified.get(0));
+	}
+
+	public void testShards() throws IOException {
+		FileMonitor monitor = newMonitor();
+		monitor.setShards(2);
+		new File(folder, "a").mkdir();
+		new File(folder, "b").mkdir();
+		File bar = write("a" + File.separator + "Bar.class");
+		File foo = write("b" + File.separator + "Foo.class");
+		monitor.run();
+		assertEquals(2, changeSets.get(0).getAdded().size());
+
+		bar.setLastModified(bar.lastModified() - 10000);
+		foo.setLastModified(foo.lastModified() - 10000);
+		monitor.run();
+		monitor.run();
+
+		assertEquals(2, changeSets.get(1).getModified().size()
+				+ changeSets.get(2).getModified().size());
+		assertEquals(1.0, monitor.getCoverage(), 0.0);
+	}
+
+	public void testDeletedFolder() throws IOException {
+		FileMonitor monitor = newMonitor();
+		File bar = write("it" + File.separator + "classes" + File.separator
+				+ "Bar.class");
+		monitor.run();
+
+		bar.delete();
+		bar.getParentFile().delete();
+		monitor.run();
+
+		assertEquals(1, changeSets.get(1).getDeleted().size());
+		assertEquals(0, monitor.getTrackedFiles());
+	}
+
+	public void testRelativePath() {
+		FileEvent event = new FileEvent(File.separator + "classes"
+				+ File.separator + "it" + File.separator + "classes"
+				+ File.separator + "Bar.class", File.separator + "classes");
+
+		assertEquals("it" + File.separator + "classes" + File.separator
+				+ "Bar.class", event.getSource());
+	}
+
+	private FileMonitor newMonitor() {
+		FileMonitor monitor = new FileMonitor(folder.getAbsolutePath(), "class");
+		monitor.addChangeSetListener(new ChangeSetListener() {
+
+			public void changesFound(ChangeSet changes) {
+				changeSets.add(changes);
+			}
+
+		});
+		monitor.addModifiedListener(new FileModifiedListener() {
+
+			public void fileModified(FileEvent event) {
+				modified.add(event.getSource());
+			}
+
+		});
+		return monitor;
+	}
+
+	private File write(String path) throws IOException {
+		File file = new File(folder, path);
+		FileOutputStream os = new FileOutputStream(file);
+		try {
+			os.write(new byte[] { (byte) 0xCA, (byte) 0xFE });
+		} finally {
+			os.close();
+		}
+		return file;
+	}
+
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
@@ -0,0 +1,442 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+
+/**
+ * A reproducible load test of Smith. The driver generates and compiles a set
+ * of classes, keeps half of them as loose class files and packs the other half
+ * in a jar, then starts {@link LoadTarget} with Smith watching both. After a
+ * warm up it rewrites a number of classes per second, patching the version
+ * they return, and finally reports:
+ * <ul>
+ * <li>the application throughput before and during the rewrites, and its
+ * worst dip</li>
+ * <li>the p99 request latency before and during the rewrites</li>
+ * <li>the detection latency: from the class file written to the new version
+ * running</li>
+ * <li>the cpu used by the agent threads</li>
+ * </ul>
+ * Jars are rewritten at most every two seconds, as jar entry times have a two
+ * seconds resolution.<br/>
+ * Usage:
+ * 
+ * <pre>
+ * java LoadDriver smith.jar workFolder [classes=200] [rate=10] [threads=4] [warmup=10] [duration=30] [period=1000]
+ * </pre>
+ */
+public class LoadDriver {
+
+	/** Marker of the version constant in the generated class files */
+	private static final int VERSION_MARKER = 0x7EB70000;
+
+	private static final long JAR_REWRITE_MILLIS = 2000;
+
+	public static String className(int i) {
+		return "LoadGen" + i;
+	}
+
+	private final File work;
+	private final File classes;
+	private final File jar;
+	private final int count;
+	private final byte[][] bytes;
+	private final int[] versionOffsets;
+	private final int[] versions;
+	private final long[] entryTimes;
+	private final Map<String, Long> written = new HashMap<String, Long>();
+	private final List<Long> detections = new ArrayList<Long>();
+	private final List<long[]> stats = new ArrayList<long[]>();
+	private long firstSwap = Long.MAX_VALUE;
+
+	LoadDriver(File work, int count) {
+		this.work = work;
+		this.classes = new File(work, "classes");
+		this.jar = new File(new File(work, "lib"), "load.jar");
+		this.count = count;
+		this.bytes = new byte[count][];
+		this.versionOffsets = new int[count];
+		this.versions = new int[count];
+		this.entryTimes = new long[count];
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: LoadDriver smith.jar workFolder [classes=200] "
+					+ "[rate=10] [threads=4] [warmup=10] [duration=30] [period=1000]");
+			System.exit(1);
+		}
+
+		Map<String, Integer> options = new HashMap<String, Integer>();
+		options.put("classes", 200);
+		options.put("rate", 10);
+		options.put("threads", 4);
+		options.put("warmup", 10);
+		options.put("duration", 30);
+		options.put("period", 1000);
+		for (int i = 2; i < args.length; i++) {
+			String[] option = args[i].split("=");
+			options.put(option[0], Integer.valueOf(option[1]));
+		}
+
+		LoadDriver driver = new LoadDriver(new File(args[1]).getAbsoluteFile(),
+				options.get("classes"));
+		driver.generate();
+		driver.run(new File(args[0]).getAbsolutePath(), options.get("threads"),
+				options.get("period"), options.get("rate"), options.get("warmup"),
+				options.get("duration"));
+	}
+
+	/**
+	 * Generates, compiles and lays out the classes: even ones as class files,
+	 * odd ones in the jar
+	 */
+	void generate() throws IOException {
+		File sources = new File(work, "sources");
+		sources.mkdirs();
+		classes.mkdirs();
+		jar.getParentFile().mkdirs();
+
+		List<String> files = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			File source = new File(sources, className(i) + ".java");
+			FileWriter writer = new FileWriter(source);
+			try {
+				writer.write("public class " + className(i) + " implements LoadWork {\n"
+						+ "	public int work(int x) {\n" + "		int r = x;\n"
+						+ "		for (int i = 0; i < 16; i++) {\n"
+						+ "			r = r * 31 + (i ^ (r >>> 7));\n" + "		}\n"
+						+ "		return r + " + i + ";\n" + "	}\n"
+						+ "	public int version() {\n" + "		return " + VERSION_MARKER
+						+ ";\n" + "	}\n" + "}\n");
+			} finally {
+				writer.close();
+			}
+			files.add(source.getPath());
+		}
+
+		File compiled = new File(work, "compiled");
+		compiled.mkdirs();
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		List<String> compilerArgs = new ArrayList<String>();
+		compilerArgs.add("-cp");
+		compilerArgs.add(System.getProperty("java.class.path"));
+		compilerArgs.add("-d");
+		compilerArgs.add(compiled.getPath());
+		compilerArgs.addAll(files);
+		if (compiler.run(null, null, null, compilerArgs
+				.toArray(new String[compilerArgs.size()])) != 0) {
+			throw new IOException("Unable to compile the generated classes");
+		}
+
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < count; i++) {
+			entryTimes[i] = now;
+			bytes[i] = readFile(new File(compiled, className(i) + ".class"));
+			versionOffsets[i] = findVersion(bytes[i]);
+			if (i % 2 == 0) {
+				writeClass(i);
+			}
+		}
+		writeJar();
+	}
+
+	void run(String smithJar, int threads, int period, int rate, int warmup,
+			int duration) throws Exception {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"),
+				"java").getPath());
+		command.add("-javaagent:" + smithJar + "=classes=" + classes.getPath()
+				+ ",jars=" + jar.getParent() + ",period=" + period);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("LoadTarget");
+		command.add(classes.getPath());
+		command.add(jar.getPath());
+		command.add(String.valueOf(count));
+		command.add(String.valueOf(threads));
+
+		final Process target = new ProcessBuilder(command).redirectErrorStream(
+				true).start();
+		Thread reader = new Thread(new Runnable() {
+
+			public void run() {
+				read(target);
+			}
+
+		});
+		reader.setDaemon(true);
+		reader.start();
+
+		try {
+			Thread.sleep(warmup * 1000L);
+			rewrite(rate, duration);
+			Thread.sleep(Math.max(3000, period * 3L));
+		} finally {
+			target.destroy();
+		}
+		report();
+	}
+
+	/**
+	 * Rewrites rate classes per second, alternating class files and jar
+	 * entries
+	 */
+	private void rewrite(int rate, int duration) throws IOException,
+			InterruptedException {
+		long end = System.currentTimeMillis() + duration * 1000L;
+		long interval = Math.max(1, 1000 / Math.max(1, rate));
+		long lastJar = System.currentTimeMillis();
+		Set<Integer> pendingJar = new LinkedHashSet<Integer>();
+		int next = 0;
+		while (System.currentTimeMillis() < end) {
+			int i = next;
+			next = (next + 1) % count;
+			bumpVersion(i);
+			if (i % 2 == 0) {
+				writeClass(i);
+				markWritten(i);
+			} else {
+				pendingJar.add(Integer.valueOf(i));
+			}
+
+			if (!pendingJar.isEmpty()
+					&& System.currentTimeMillis() - lastJar >= JAR_REWRITE_MILLIS) {
+				long now = System.currentTimeMillis();
+				for (Integer j : pendingJar) {
+					entryTimes[j.intValue()] = now;
+				}
+				writeJar();
+				for (Integer j : pendingJar) {
+					markWritten(j.intValue());
+				}
+				pendingJar.clear();
+				lastJar = System.currentTimeMillis();
+			}
+			Thread.sleep(interval);
+		}
+	}
+
+	private void read(Process target) {
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(target
+					.getInputStream()));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ");
+				if (line.startsWith("STAT ")) {
+					long[] stat = new long[fields.length - 1];
+					for (int i = 1; i < fields.length; i++) {
+						stat[i - 1] = Long.parseLong(fields[i]);
+					}
+					synchronized (stats) {
+						stats.add(stat);
+					}
+				} else if (line.startsWith("LIVE ")) {
+					Long writtenAt;
+					synchronized (written) {
+						writtenAt = written.remove(fields[1] + " " + fields[2]);
+					}
+					if (writtenAt != null) {
+						synchronized (detections) {
+							detections.add(Long.parseLong(fields[3]) - writtenAt);
+						}
+					}
+				} else {
+					System.out.println("target: " + line);
+				}
+			}
+		} catch (IOException e) {
+			// the target has been stopped
+		}
+	}
+
+	private void report() {
+		List<long[]> before = new ArrayList<long[]>();
+		List<long[]> during = new ArrayList<long[]>();
+		synchronized (stats) {
+			// the first seconds are jit warm up
+			for (int i = 3; i < stats.size(); i++) {
+				long[] stat = stats.get(i);
+				(stat[0] < firstSwap ? before : during).add(stat);
+			}
+		}
+
+		System.out.println("== Smith load test ==");
+		System.out.println("classes: " + count + ", rewritten: " + versionsSum());
+		System.out.println("throughput before swaps (req/s): " + average(before, 1));
+		System.out.println("throughput during swaps (req/s): " + average(during, 1)
+				+ ", worst second: " + min(during, 1));
+		System.out.println("p99 before swaps (us): " + average(before, 3)
+				+ ", worst: " + max(before, 3));
+		System.out.println("p99 during swaps (us): " + average(during, 3)
+				+ ", worst: " + max(during, 3) + ", max: " + max(during, 4));
+
+		List<Long> sorted;
+		synchronized (detections) {
+			sorted = new ArrayList<Long>(detections);
+		}
+		java.util.Collections.sort(sorted);
+		int missing;
+		synchronized (written) {
+			missing = written.size();
+		}
+		if (sorted.isEmpty()) {
+			System.out.println("detection latency (ms): no swap observed");
+		} else {
+			System.out.println("detection latency (ms): p50 "
+					+ sorted.get(sorted.size() / 2) + ", p99 "
+					+ sorted.get((int) Math.min(sorted.size() - 1, Math
+							.ceil(sorted.size() * 0.99) - 1)) + ", max "
+					+ sorted.get(sorted.size() - 1) + ", swaps observed "
+					+ sorted.size() + ", not observed " + missing);
+		}
+
+		if (stats.size() > 1) {
+			long[] first = stats.get(0);
+			long[] last = stats.get(stats.size() - 1);
+			long cpu = last[5] - first[5];
+			long wall = last[0] - first[0];
+			System.out.println("agent cpu (ms): " + cpu + " over " + wall
+					+ " ms, " + String.format("%.2f", 100.0 * cpu / Math.max(1, wall))
+					+ "% of one core");
+		}
+	}
+
+	private void markWritten(int i) {
+		long now = System.currentTimeMillis();
+		synchronized (written) {
+			written.put(className(i) + " " + (VERSION_MARKER + versions[i]), Long
+					.valueOf(now));
+			if (firstSwap == Long.MAX_VALUE) {
+				firstSwap = now;
+			}
+		}
+	}
+
+	private int versionsSum() {
+		int sum = 0;
+		for (int version : versions) {
+			sum += version;
+		}
+		return sum;
+	}
+
+	private void bumpVersion(int i) {
+		versions[i]++;
+		int value = VERSION_MARKER + versions[i];
+		int offset = versionOffsets[i];
+		bytes[i][offset] = (byte) (value >>> 24);
+		bytes[i][offset + 1] = (byte) (value >>> 16);
+		bytes[i][offset + 2] = (byte) (value >>> 8);
+		bytes[i][offset + 3] = (byte) value;
+	}
+
+	private void writeClass(int i) throws IOException {
+		File file = new File(classes, className(i) + ".class");
+		File tmp = new File(classes, className(i) + ".tmp");
+		writeFile(tmp, bytes[i]);
+		if (!tmp.renameTo(file)) {
+			throw new IOException("Unable to write " + file);
+		}
+	}
+
+	private void writeJar() throws IOException {
+		File tmp = new File(jar.getParentFile(), "load.tmp");
+		JarOutputStream out = new JarOutputStream(new FileOutputStream(tmp));
+		try {
+			for (int i = 1; i < count; i += 2) {
+				JarEntry entry = new JarEntry(className(i) + ".class");
+				entry.setTime(entryTimes[i]);
+				out.putNextEntry(entry);
+				out.write(bytes[i]);
+				out.closeEntry();
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(jar)) {
+			throw new IOException("Unable to write " + jar);
+		}
+	}
+
+	/**
+	 * Finds the CONSTANT_Integer holding the version marker
+	 */
+	private static int findVersion(byte[] classBytes) {
+		for (int i = 0; i < classBytes.length - 4; i++) {
+			if (classBytes[i] == 3 && readInt(classBytes, i + 1) == VERSION_MARKER) {
+				return i + 1;
+			}
+		}
+		throw new IllegalStateException("Version marker not found");
+	}
+
+	private static int readInt(byte[] b, int offset) {
+		return ((b[offset] & 0xff) << 24) | ((b[offset + 1] & 0xff) << 16)
+				| ((b[offset + 2] & 0xff) << 8) | (b[offset + 3] & 0xff);
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		byte[] result = new byte[(int) file.length()];
+		java.io.DataInputStream in = new java.io.DataInputStream(
+				new java.io.FileInputStream(file));
+		try {
+			in.readFully(result);
+		} finally {
+			in.close();
+		}
+		return result;
+	}
+
+	private static void writeFile(File file, byte[] content) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static long average(List<long[]> stats, int field) {
+		if (stats.isEmpty()) {
+			return 0;
+		}
+		long sum = 0;
+		for (long[] stat : stats) {
+			sum += stat[field];
+		}
+		return sum / stats.size();
+	}
+
+	private static long min(List<long[]> stats, int field) {
+		long min = stats.isEmpty() ? 0 : Long.MAX_VALUE;
+		for (long[] stat : stats) {
+			min = Math.min(min, stat[field]);
+		}
+		return min;
+	}
+
+	private static long max(List<long[]> stats, int field) {
+		long max = 0;
+		for (long[] stat : stats) {
+			max = Math.max(max, stat[field]);
+		}
+		return max;
+	}
+
+}
@@ -0,0 +1,80 @@
+/**
+ * A compact histogram of durations in nanoseconds, with 16 sub-buckets per
+ * power of two, so that percentiles are accurate within ~6%. Not thread safe:
+ * each thread records into its own histogram, merged when reporting
+ */
+public class LoadHistogram {
+
+	private static final int SUB_BUCKETS = 16;
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+	private final long[] counts = new long[BUCKETS];
+	private long count;
+	private long max;
+
+	public void record(long nanos) {
+		long value = Math.max(1, nanos);
+		counts[index(value)]++;
+		count++;
+		if (value > max) {
+			max = value;
+		}
+	}
+
+	public void add(LoadHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] += other.counts[i];
+		}
+		count += other.count;
+		max = Math.max(max, other.max);
+	}
+
+	public void reset() {
+		java.util.Arrays.fill(counts, 0);
+		count = 0;
+		max = 0;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMax() {
+		return max;
+	}
+
+	/** The upper bound of the bucket holding the specified percentile */
+	public long getPercentile(double percentile) {
+		if (count == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(count * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && seen > 0) {
+				return Math.min(upperBound(i), max);
+			}
+		}
+		return max;
+	}
+
+	private static int index(long value) {
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent < 4) {
+			return (int) value;
+		}
+		int sub = (int) ((value >>> (exponent - 4)) & (SUB_BUCKETS - 1));
+		return exponent * SUB_BUCKETS + sub;
+	}
+
+	private static long upperBound(int index) {
+		int exponent = index / SUB_BUCKETS;
+		int sub = index % SUB_BUCKETS;
+		if (exponent < 4) {
+			return index;
+		}
+		return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 4)) - 1;
+	}
+
+}
@@ -0,0 +1,141 @@
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The application under load, started by {@link LoadDriver} with Smith plugged
+ * in. Worker threads run requests made of hot loops over the generated
+ * classes, while a watcher thread notices as soon as a class runs a new
+ * version. Every second it prints a line for the driver:
+ * 
+ * <pre>
+ * STAT &lt;epoch ms&gt; &lt;requests&gt; &lt;p50 us&gt; &lt;p99 us&gt; &lt;max us&gt; &lt;agent cpu ms&gt;
+ * LIVE &lt;class&gt; &lt;version&gt; &lt;epoch ms&gt;
+ * </pre>
+ * 
+ * Usage: LoadTarget classesFolder jarFile classes threads
+ */
+public class LoadTarget {
+
+	/** Calls to the generated classes in a single request */
+	private static final int CALLS_PER_REQUEST = 256;
+
+	public static void main(String[] args) throws Exception {
+		File classes = new File(args[0]);
+		File jar = new File(args[1]);
+		int count = Integer.parseInt(args[2]);
+		int threads = Integer.parseInt(args[3]);
+
+		URLClassLoader loader = new URLClassLoader(new URL[] {
+				classes.toURI().toURL(), jar.toURI().toURL() }, LoadTarget.class
+				.getClassLoader());
+		final LoadWork[] works = new LoadWork[count];
+		for (int i = 0; i < count; i++) {
+			works[i] = (LoadWork) loader.loadClass(LoadDriver.className(i))
+					.newInstance();
+		}
+
+		final AtomicLong requests = new AtomicLong();
+		final LoadHistogram[] histograms = new LoadHistogram[threads];
+		for (int t = 0; t < threads; t++) {
+			final LoadHistogram histogram = new LoadHistogram();
+			histograms[t] = histogram;
+			final int seed = t;
+			Thread worker = new Thread(new Runnable() {
+
+				public void run() {
+					int next = seed;
+					int sink = 0;
+					while (true) {
+						long start = System.nanoTime();
+						for (int i = 0; i < CALLS_PER_REQUEST; i++) {
+							next = (next + 7) % works.length;
+							sink += works[next].work(sink + i);
+						}
+						long nanos = System.nanoTime() - start;
+						synchronized (histogram) {
+							histogram.record(nanos);
+						}
+						requests.incrementAndGet();
+						if (sink == 42) {
+							System.out.print("");
+						}
+					}
+				}
+
+			}, "load worker " + t);
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		Thread watcher = new Thread(new Runnable() {
+
+			public void run() {
+				int[] versions = new int[works.length];
+				for (int i = 0; i < works.length; i++) {
+					versions[i] = works[i].version();
+				}
+				while (true) {
+					for (int i = 0; i < works.length; i++) {
+						int version = works[i].version();
+						if (version != versions[i]) {
+							versions[i] = version;
+							System.out.println("LIVE " + LoadDriver.className(i) + " "
+									+ version + " " + System.currentTimeMillis());
+						}
+					}
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+
+		}, "load watcher");
+		watcher.setDaemon(true);
+		watcher.start();
+
+		ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+		LoadHistogram second = new LoadHistogram();
+		long lastRequests = 0;
+		while (true) {
+			Thread.sleep(1000);
+			second.reset();
+			for (LoadHistogram histogram : histograms) {
+				synchronized (histogram) {
+					second.add(histogram);
+					histogram.reset();
+				}
+			}
+			long total = requests.get();
+			System.out.println("STAT " + System.currentTimeMillis() + " "
+					+ (total - lastRequests) + " " + second.getPercentile(50) / 1000
+					+ " " + second.getPercentile(99) / 1000 + " " + second.getMax()
+					/ 1000 + " " + agentCpuMillis(threadBean));
+			lastRequests = total;
+		}
+	}
+
+	/**
+	 * The cpu time consumed so far by the threads of the agent, found by name
+	 */
+	private static long agentCpuMillis(ThreadMXBean threadBean) {
+		long nanos = 0;
+		for (ThreadInfo info : threadBean.getThreadInfo(threadBean
+				.getAllThreadIds())) {
+			if (info != null && info.getThreadName().startsWith("Smith")) {
+				long cpu = threadBean.getThreadCpuTime(info.getThreadId());
+				if (cpu > 0) {
+					nanos += cpu;
+				}
+			}
+		}
+		return nanos / 1000000;
+	}
+
+}
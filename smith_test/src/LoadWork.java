@@ -0,0 +1,13 @@
+/**
+ * The unit of work of the classes generated by {@link LoadDriver}. The target
+ * application calls them in hot loops while the driver rewrites them
+ */
+public interface LoadWork {
+
+	/** Some cpu bound work, whose result depends on the class version */
+	int work(int x);
+
+	/** The version of the class, bumped by the driver at every rewrite */
+	int version();
+
+}